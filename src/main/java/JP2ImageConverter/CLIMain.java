@@ -15,12 +15,12 @@ public class CLIMain {
     }
 
     public static void main(String[] args) {
-        int exitCode = new CommandLine(new CLIMain()).execute(args);
+        int exitCode = new CommandLine(new CLIMain()).setCaseInsensitiveEnumValuesAllowed(true).execute(args);
         System.exit(exitCode);
     }
 
     public static int runCommand(String[] args) {
-        int exitCode = new CommandLine(new CLIMain()).execute(args);
+        int exitCode = new CommandLine(new CLIMain()).setCaseInsensitiveEnumValuesAllowed(true).execute(args);
         return exitCode;
     }
 }
@@ -1,14 +1,29 @@
 package JP2ImageConverter;
 
+import JP2ImageConverter.model.EncodingProfile;
 import JP2ImageConverter.options.JP2ImageConverterOptions;
 import JP2ImageConverter.services.ColorFieldsService;
+import JP2ImageConverter.services.ConversionCacheService;
+import JP2ImageConverter.services.EncodingProfileService;
+import JP2ImageConverter.services.Jp2Encoder;
+import JP2ImageConverter.services.KakaduEncoder;
 import JP2ImageConverter.services.KakaduService;
 import JP2ImageConverter.services.ImagePreproccessingService;
+import JP2ImageConverter.services.OpenJpegEncoder;
+import JP2ImageConverter.services.ProbeCacheService;
+import JP2ImageConverter.services.RecoveryMemoService;
+import JP2ImageConverter.util.TempWorkspace;
 import org.slf4j.Logger;
 import picocli.CommandLine.Command;
 import picocli.CommandLine.Mixin;
 import picocli.CommandLine.ParentCommand;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
 import static JP2ImageConverter.util.CLIConstants.outputLogger;
 import static org.slf4j.LoggerFactory.getLogger;
 
@@ -30,7 +45,10 @@ public class JP2ImageConverterCommand {
             description = "Retrieve image color fields and attributes for an image file.")
     public int list(@Mixin JP2ImageConverterOptions options) throws Exception {
         try {
-            colorFieldsService.listFields(options.getFileName());
+            colorFieldsService.setOutputFormat(options.getOutputFormat());
+            try (ProbeCacheService probeCache = openProbeCache(options)) {
+                colorFieldsService.listFields(options.getFileName());
+            }
             return 0;
         } catch (Exception e) {
             outputLogger.info("{}", e.getMessage());
@@ -43,7 +61,10 @@ public class JP2ImageConverterCommand {
             description = "Retrieve image color fields and attributes for a list of files.")
     public int listAll(@Mixin JP2ImageConverterOptions options) throws Exception {
         try {
-            colorFieldsService.fileListAllFields(options.getFileName());
+            colorFieldsService.setOutputFormat(options.getOutputFormat());
+            try (ProbeCacheService probeCache = openProbeCache(options)) {
+                colorFieldsService.fileListAllFields(options.getFileName());
+            }
             return 0;
         } catch (Exception e) {
             outputLogger.info("FAIL: {}", e.getMessage());
@@ -58,7 +79,18 @@ public class JP2ImageConverterCommand {
         try {
             kakaduService.setColorFieldsService(colorFieldsService);
             kakaduService.setImagePreproccessingService(imagePreproccessingService);
-            kakaduService.kduCompress(options.getFileName(), options.getOutputPath(), options.getSourceFormat());
+            kakaduService.setFusedPreprocessing(options.isFusedPreprocessing());
+            kakaduService.setStreamPreprocessing(options.isStreamPreprocessing());
+            kakaduService.setDerivatives(options.getDerivatives());
+            kakaduService.setPreviewSize(options.getPreviewSize());
+            kakaduService.setExplain(options.isExplain());
+            configureEncodingProfiles(options);
+            try (ProbeCacheService probeCache = openProbeCache(options);
+                 ConversionCacheService conversionCache = openConversionCache(options);
+                 RecoveryMemoService recoveryMemo = openRecoveryMemo(options);
+                 TempWorkspace tempWorkspace = openTempWorkspace(options)) {
+                kakaduService.kduCompress(options.getFileName(), options.getOutputPath(), options.getSourceFormat());
+            }
             return 0;
         } catch (Exception e) {
             outputLogger.info("{}", e.getMessage());
@@ -73,7 +105,18 @@ public class JP2ImageConverterCommand {
         try {
             kakaduService.setColorFieldsService(colorFieldsService);
             kakaduService.setImagePreproccessingService(imagePreproccessingService);
-            kakaduService.fileListKduCompress(options.getFileName(), options.getOutputPath(), options.getSourceFormat());
+            kakaduService.setFusedPreprocessing(options.isFusedPreprocessing());
+            kakaduService.setStreamPreprocessing(options.isStreamPreprocessing());
+            kakaduService.setDerivatives(options.getDerivatives());
+            kakaduService.setPreviewSize(options.getPreviewSize());
+            kakaduService.setExplain(options.isExplain());
+            configureEncodingProfiles(options);
+            try (ProbeCacheService probeCache = openProbeCache(options);
+                 ConversionCacheService conversionCache = openConversionCache(options);
+                 RecoveryMemoService recoveryMemo = openRecoveryMemo(options);
+                 TempWorkspace tempWorkspace = openTempWorkspace(options)) {
+                kakaduService.fileListKduCompress(options.getFileName(), options.getOutputPath(), options.getSourceFormat());
+            }
             return 0;
         } catch (Exception e) {
             outputLogger.info("FAIL: {}", e.getMessage());
@@ -81,4 +124,125 @@ public class JP2ImageConverterCommand {
             return 1;
         }
     }
+
+    @Command(name = "kdu_benchmark",
+            description = "Compare encode time, size and region decode time of the encoding profile with and " +
+                    "without HTJ2K, and with the selected --encoder, on a list of image files.")
+    public int kduBenchmark(@Mixin JP2ImageConverterOptions options) throws Exception {
+        try {
+            kakaduService.setColorFieldsService(colorFieldsService);
+            kakaduService.setImagePreproccessingService(imagePreproccessingService);
+            kakaduService.setFusedPreprocessing(options.isFusedPreprocessing());
+            kakaduService.setStreamPreprocessing(options.isStreamPreprocessing());
+            // rejected by the benchmark, which times a single output of every image
+            kakaduService.setDerivatives(options.getDerivatives());
+            kakaduService.setPreviewSize(options.getPreviewSize());
+            configureEncodingProfiles(options);
+            // outputs are compared as encoded, so no cached or memoized conversions
+            try (ProbeCacheService probeCache = openProbeCache(options);
+                 TempWorkspace tempWorkspace = openTempWorkspace(options)) {
+                kakaduService.benchmark(options.getFileName(), options.getSourceFormat());
+            }
+            return 0;
+        } catch (Exception e) {
+            outputLogger.info("FAIL: {}", e.getMessage());
+            log.error("Failed to benchmark kdu_compress. Not processing file list further.", e);
+            return 1;
+        }
+    }
+
+    /**
+     * Open the probe cache if one was requested and give it to the color fields service
+     * @param options command options
+     * @return the probe cache, or null if no probe cache was requested
+     */
+    private ProbeCacheService openProbeCache(JP2ImageConverterOptions options) throws IOException {
+        ProbeCacheService probeCache = null;
+        if (options.getProbeCache() != null) {
+            probeCache = new ProbeCacheService(options.getProbeCache());
+        }
+        colorFieldsService.setProbeCacheService(probeCache);
+        return probeCache;
+    }
+
+    /**
+     * Open the conversion cache if one was requested and give it to the kakadu service
+     * @param options command options
+     * @return the conversion cache, or null if no conversion cache was requested
+     */
+    private ConversionCacheService openConversionCache(JP2ImageConverterOptions options) throws IOException {
+        ConversionCacheService conversionCache = null;
+        if (options.getConversionCache() != null) {
+            conversionCache = new ConversionCacheService(options.getConversionCache());
+        }
+        kakaduService.setConversionCacheService(conversionCache);
+        return conversionCache;
+    }
+
+    /**
+     * Load and validate the encoding profiles and select the profiles, block coder and encoder for the run
+     * @param options command options
+     */
+    private void configureEncodingProfiles(JP2ImageConverterOptions options) throws IOException {
+        EncodingProfileService encodingProfileService = new EncodingProfileService();
+        if (options.getEncodingProfiles() != null) {
+            encodingProfileService.load(options.getEncodingProfiles());
+        }
+        List<String> profileNames = new ArrayList<>(List.of(options.getEncodingProfile()));
+        if (options.getDerivatives() != null) {
+            profileNames.addAll(options.getDerivatives());
+        }
+        Jp2Encoder encoder = switch (options.getEncoder()) {
+            case KAKADU -> new KakaduEncoder();
+            case GROK -> OpenJpegEncoder.GROK;
+            case OPENJPEG -> OpenJpegEncoder.OPENJPEG;
+        };
+        for (String profileName : profileNames) {
+            EncodingProfile profile = encodingProfileService.get(profileName);
+            encoder.checkOptions(options.isHtj2k() ? EncodingProfileService.htj2kOptions(profile) : profile.options());
+        }
+        kakaduService.setEncoder(encoder);
+        kakaduService.setEncodingProfileService(encodingProfileService);
+        kakaduService.setEncodingProfile(options.getEncodingProfile());
+        kakaduService.setHtj2k(options.isHtj2k());
+    }
+
+    /**
+     * Open the recovery memo if one was requested and give it to the kakadu service
+     * @param options command options
+     * @return the recovery memo, or null if no recovery memo was requested
+     */
+    private RecoveryMemoService openRecoveryMemo(JP2ImageConverterOptions options) throws IOException {
+        RecoveryMemoService recoveryMemo = null;
+        if (options.getRecoveryMemo() != null) {
+            recoveryMemo = new RecoveryMemoService(options.getRecoveryMemo());
+        }
+        kakaduService.setRecoveryMemoService(recoveryMemo);
+        return recoveryMemo;
+    }
+
+    /**
+     * Reclaim temporary files left behind by stopped runs in the directories jp24u owns, then open the temporary
+     * workspace and give it to the preprocessing service. The budget of the fast temporary directory is
+     * jp24u.tmp.fastBudgetMb megabytes, by default 90% of the space available in it. Intermediates in the regular
+     * temporary directory are limited to jp24u.tmp.quotaMb megabytes if set, waiting up to
+     * jp24u.tmp.quotaWaitSeconds (default 600) for space.
+     * @param options command options
+     * @return the temporary workspace
+     */
+    private TempWorkspace openTempWorkspace(JP2ImageConverterOptions options) throws IOException {
+        TempWorkspace.reclaimOrphans(imagePreproccessingService.tmpFilesDir);
+        long budget = 0;
+        if (options.getFastTmpDir() != null) {
+            Files.createDirectories(options.getFastTmpDir());
+            TempWorkspace.reclaimOrphans(options.getFastTmpDir());
+            long available = Files.getFileStore(options.getFastTmpDir()).getUsableSpace();
+            budget = Long.getLong("jp24u.tmp.fastBudgetMb", available / 1024 / 1024 * 9 / 10) * 1024 * 1024;
+        }
+        long quota = Long.getLong("jp24u.tmp.quotaMb", 0) * 1024 * 1024;
+        Duration maxWait = Duration.ofSeconds(Long.getLong("jp24u.tmp.quotaWaitSeconds", 600));
+        TempWorkspace tempWorkspace = new TempWorkspace(options.getFastTmpDir(), budget, quota, maxWait);
+        imagePreproccessingService.setTempWorkspace(tempWorkspace);
+        return tempWorkspace;
+    }
 }
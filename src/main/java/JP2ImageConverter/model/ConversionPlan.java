@@ -0,0 +1,173 @@
+package JP2ImageConverter.model;
+
+import org.apache.commons.io.FilenameUtils;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The chain of tools, intermediate formats and Kakadu arguments a conversion would use, with an estimate of its
+ * cost from the file size and pixel count. Produced by kdu_compress --explain without running any of the tools.
+ * Estimated times use jp24u.explain.mpPerSecond megapixels per tool pass and jp24u.explain.mbPerSecond
+ * megabytes of file I/O per second.
+ * @param fileName the source image
+ * @param format normalized source format
+ * @param fileSize size of the source image in bytes
+ * @param probe probe of the source image
+ * @param colorSpace resolved color space of the source image
+ * @param commands the commands the conversion would run, in order; commands writing their standard output to a
+ *                 file end with ">" and the file
+ */
+public record ConversionPlan(String fileName, String format, long fileSize, ImageProbe probe, String colorSpace,
+                             List<List<String>> commands) {
+    private static final String EXIFTOOL = "exiftool";
+    // copies an embedded JPEG without decoding it
+    private static final String JPG_FROM_RAW = "jpgfromraw";
+    private static final double MEGA = 1000000.0;
+
+    public ConversionPlan {
+        commands = commands.stream().map(List::copyOf).toList();
+    }
+
+    /**
+     * @return source format, then each tool followed by the format it writes
+     */
+    public String route() {
+        List<String> route = new ArrayList<>();
+        route.add(format);
+        for (List<String> command : commands) {
+            String output = outputFormat(command);
+            if (output != null) {
+                route.add(tool(command));
+                route.add(output);
+            }
+        }
+        return String.join(" -> ", route);
+    }
+
+    /**
+     * @return number of pixels decoded and encoded by all tools, estimated from the source dimensions
+     */
+    public long pixelsProcessed() {
+        long passes = commands.stream().map(ConversionPlan::tool)
+                .filter(tool -> !tool.equals(EXIFTOOL) && !tool.equals(JPG_FROM_RAW)).count();
+        return passes * pixels();
+    }
+
+    /**
+     * @return bytes written to temporary files, estimated from the source dimensions and bit depth
+     */
+    public long temporaryBytes() {
+        long bytes = 0;
+        // the last command writes the JP2, or the preview after the JP2s of all derivatives
+        for (List<String> command : commands.subList(0, Math.max(0, commands.size() - 1))) {
+            String output = outputFormat(command);
+            if (output == null || isEncoder(tool(command))) {
+                continue;
+            }
+            if (output.equals("jpeg") || output.equals("jpg")) {
+                // embedded JPEG previews are typically around a third of the raw file
+                bytes += fileSize / 3;
+            } else {
+                int channels = output.equals("pgm") || probe.channels() == 1 ? 1 : 3;
+                int bytesPerSample = probe.bitDepth() > 8 ? 2 : 1;
+                bytes += pixels() * channels * bytesPerSample;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * @return estimated run time in seconds
+     */
+    public double estimatedSeconds() {
+        double megapixelsPerSecond = Double.parseDouble(System.getProperty("jp24u.explain.mpPerSecond", "25"));
+        double megabytesPerSecond = Double.parseDouble(System.getProperty("jp24u.explain.mbPerSecond", "150"));
+        // temporary files are written once and read back once
+        double megabytes = (fileSize + 2.0 * temporaryBytes()) / MEGA;
+        return pixelsProcessed() / MEGA / megapixelsPerSecond + megabytes / megabytesPerSecond;
+    }
+
+    /**
+     * Print the plan
+     * @param out stream to print to
+     */
+    public void print(PrintStream out) {
+        out.println(fileName);
+        out.println(String.format("  Source: %s, %.1f MB, %s, %s", format, fileSize / MEGA,
+                probe.pixelCount() > 0 ? String.format("%dx%d (%.1f MP)", probe.width(), probe.height(),
+                        probe.pixelCount() / MEGA) : "unknown dimensions", colorSpace));
+        out.println("  Route: " + route());
+        for (int i = 0; i < commands.size(); i++) {
+            out.println("  " + (i + 1) + ". " + String.join(" ", commands.get(i)));
+        }
+        out.println(String.format("  Estimate: %d tool runs, %.1f MP processed, %.1f MB temporary, %.1f seconds",
+                commands.size(), pixelsProcessed() / MEGA, temporaryBytes() / MEGA, estimatedSeconds()));
+    }
+
+    /**
+     * Print the totals of a batch of plans and their estimated cost per route, most expensive route first
+     * @param plans the plans of a batch
+     * @param out stream to print to
+     */
+    public static void printSummary(List<ConversionPlan> plans, PrintStream out) {
+        Map<String, double[]> routes = new LinkedHashMap<>();
+        double seconds = 0;
+        long temporaryBytes = 0;
+        long toolRuns = 0;
+        for (ConversionPlan plan : plans) {
+            double[] route = routes.computeIfAbsent(plan.route(), r -> new double[2]);
+            route[0]++;
+            route[1] += plan.estimatedSeconds();
+            seconds += plan.estimatedSeconds();
+            temporaryBytes += plan.temporaryBytes();
+            toolRuns += plan.commands().size();
+        }
+        out.println(String.format("Planned %d files: %d tool runs, %.1f MB temporary, %.1f seconds estimated",
+                plans.size(), toolRuns, temporaryBytes / MEGA, seconds));
+        routes.entrySet().stream()
+                .sorted(Comparator.comparingDouble((Map.Entry<String, double[]> e) -> e.getValue()[1]).reversed())
+                .forEach(e -> out.println(String.format("  %8.1f s %6d files  %s",
+                        e.getValue()[1], (long) e.getValue()[0], e.getKey())));
+    }
+
+    private long pixels() {
+        if (probe.pixelCount() > 0) {
+            return probe.pixelCount();
+        }
+        // unknown dimensions, assume an uncompressed 8 bit RGB source
+        return fileSize / 3;
+    }
+
+    private static String tool(List<String> command) {
+        return command.getFirst();
+    }
+
+    /**
+     * @return true for kdu_compress and the other JPEG 2000 encoders (opj_compress, grk_compress)
+     */
+    private static boolean isEncoder(String tool) {
+        return tool.startsWith("kdu_") || tool.endsWith("_compress");
+    }
+
+    private static String outputFormat(List<String> command) {
+        int redirect = command.indexOf(">");
+        int encoderOutput = command.indexOf("-o");
+        String output;
+        if (redirect >= 0 && redirect + 1 < command.size()) {
+            output = command.get(redirect + 1);
+        } else if (tool(command).equals(EXIFTOOL)) {
+            // exiftool edits metadata in place unless its output is redirected
+            return null;
+        } else if (isEncoder(tool(command)) && encoderOutput >= 0 && encoderOutput + 1 < command.size()) {
+            output = command.get(encoderOutput + 1);
+        } else {
+            output = command.getLast();
+        }
+        return FilenameUtils.getExtension(output).toLowerCase();
+    }
+}
@@ -0,0 +1,16 @@
+package JP2ImageConverter.model;
+
+import java.util.List;
+
+/**
+ * A named set of kdu_compress encoding options, such as code-block size, layers, progression order and rate.
+ * Options which depend on the image (-i, -o, -jp2_space, -no_palette) are added per conversion.
+ * @param name the profile name
+ * @param options the kdu_compress options, in order
+ */
+public record EncodingProfile(String name, List<String> options) {
+
+    public EncodingProfile {
+        options = List.copyOf(options);
+    }
+}
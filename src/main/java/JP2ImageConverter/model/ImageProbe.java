@@ -0,0 +1,106 @@
+package JP2ImageConverter.model;
+
+import JP2ImageConverter.services.ColorFieldsService;
+import JP2ImageConverter.util.ImageHeaderReader;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Immutable result of probing an image file once: format, geometry, color information and the metadata fields
+ * extracted from it. Probes are computed once per file and reused for every later decision in a conversion.
+ * @param fileName the probed file
+ * @param format normalized file format (tiff, jpeg, png, ppm, jp2...)
+ * @param width width in pixels, 0 if unknown
+ * @param height height in pixels, 0 if unknown
+ * @param bitDepth bits per sample, 0 if unknown
+ * @param channels samples per pixel, 0 if unknown
+ * @param colorSpace color space declared by the file metadata (ICC ColorSpace or PhotometricInterpretation), may be null
+ * @param type ImageMagick style image type (Grayscale, GrayscaleAlpha, Palette, TrueColor...), may be null
+ * @param iccProfileName name of the embedded ICC profile, may be null
+ * @param orientation EXIF orientation description, may be null
+ * @param metadata the metadata fields extracted from the file
+ */
+public record ImageProbe(String fileName, String format, int width, int height, int bitDepth, int channels,
+                         String colorSpace, String type, String iccProfileName, String orientation,
+                         Map<String, String> metadata) {
+
+    public ImageProbe {
+        metadata = metadata == null ? Collections.emptyMap() :
+                Collections.unmodifiableMap(new LinkedHashMap<>(metadata));
+    }
+
+    /**
+     * Build a probe from extracted metadata, the image type and the image header
+     * @param fileName the probed file
+     * @param format normalized file format
+     * @param metadata metadata fields from ColorFieldsService.extractMetadataFields
+     * @param type the image type
+     * @param header the image header, may be null if it could not be read
+     * @return the probe
+     */
+    public static ImageProbe of(String fileName, String format, Map<String, String> metadata, String type,
+                                ImageHeaderReader.Header header) {
+        Map<String, String> fields = metadata == null ? Collections.emptyMap() : metadata;
+        String colorSpace = fields.get(ColorFieldsService.COLOR_SPACE) != null ?
+                fields.get(ColorFieldsService.COLOR_SPACE) : fields.get(ColorFieldsService.PHOTOMETRIC_INTERPRETATION);
+        return new ImageProbe(fileName, format,
+                header == null ? 0 : header.width(),
+                header == null ? 0 : header.height(),
+                header == null ? 0 : header.bitDepth(),
+                header == null ? 0 : header.channels(),
+                colorSpace, type,
+                fields.get(ColorFieldsService.ICC_PROFILE_NAME),
+                fields.get(ColorFieldsService.ORIENTATION),
+                fields);
+    }
+
+    /**
+     * @return a copy of this probe describing another file with identical content, such as a symlink
+     */
+    public ImageProbe withFileName(String newFileName) {
+        return new ImageProbe(newFileName, format, width, height, bitDepth, channels, colorSpace, type,
+                iccProfileName, orientation, metadata);
+    }
+
+    /**
+     * @return a copy of this probe with a different format and no file metadata, for intermediates such as
+     * PPM files which carry no EXIF or ICC metadata
+     */
+    public ImageProbe withoutMetadata(String newFileName, String newFormat) {
+        return new ImageProbe(newFileName, newFormat, width, height, bitDepth, channels, null, type,
+                null, null, Collections.emptyMap());
+    }
+
+    /**
+     * @return a copy of this probe with the given color space and type
+     */
+    public ImageProbe withColor(String newColorSpace, String newType) {
+        return new ImageProbe(fileName, format, width, height, bitDepth, channels, newColorSpace, newType,
+                iccProfileName, orientation, metadata);
+    }
+
+    /**
+     * @return a copy of this probe with the given orientation description
+     */
+    public ImageProbe withOrientation(String newOrientation) {
+        return new ImageProbe(fileName, format, width, height, bitDepth, channels, colorSpace, type,
+                iccProfileName, newOrientation, metadata);
+    }
+
+    /**
+     * @return total number of pixels, 0 if the dimensions are unknown
+     */
+    public long pixelCount() {
+        return (long) width * height;
+    }
+
+    /**
+     * @return true if the color space or the image type indicate a grayscale image
+     */
+    public boolean isGray() {
+        return (colorSpace != null && colorSpace.equalsIgnoreCase("gray"))
+                || (type != null && type.contains("Gray"));
+    }
+}
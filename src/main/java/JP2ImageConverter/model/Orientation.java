@@ -0,0 +1,72 @@
+package JP2ImageConverter.model;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The eight EXIF orientations, with the descriptions metadata-extractor gives them in probes and the
+ * ImageMagick/GraphicsMagick operators which turn an image stored that way upright, as -auto-orient does.
+ * Orientations which are a plain clockwise rotation also have the angle kdu_compress -rotate takes; the mirrored
+ * ones have none, as kdu_compress can not flip its input.
+ */
+public enum Orientation {
+    TOP_LEFT(1, "Top, left side (Horizontal / normal)", 0),
+    TOP_RIGHT(2, "Top, right side (Mirror horizontal)", null, "-flop"),
+    BOTTOM_RIGHT(3, "Bottom, right side (Rotate 180)", 180, "-rotate", "180"),
+    BOTTOM_LEFT(4, "Bottom, left side (Mirror vertical)", null, "-flip"),
+    LEFT_TOP(5, "Left side, top (Mirror horizontal and rotate 270 CW)", null, "-transpose"),
+    RIGHT_TOP(6, "Right side, top (Rotate 90 CW)", 90, "-rotate", "90"),
+    RIGHT_BOTTOM(7, "Right side, bottom (Mirror horizontal and rotate 90 CW)", null, "-transverse"),
+    LEFT_BOTTOM(8, "Left side, bottom (Rotate 270 CW)", 270, "-rotate", "270");
+
+    private final int tag;
+    private final String description;
+    private final Integer rotation;
+    private final List<String> operators;
+
+    Orientation(int tag, String description, Integer rotation, String... operators) {
+        this.tag = tag;
+        this.description = description;
+        this.rotation = rotation;
+        this.operators = List.of(operators);
+    }
+
+    /**
+     * @param tag value of the EXIF/TIFF Orientation tag
+     * @return the orientation, TOP_LEFT for missing or invalid values
+     */
+    public static Orientation fromTag(long tag) {
+        return Arrays.stream(values()).filter(o -> o.tag == tag).findFirst().orElse(TOP_LEFT);
+    }
+
+    /**
+     * @param description orientation description from a probe, may be null
+     * @return the orientation, TOP_LEFT for missing or unknown descriptions
+     */
+    public static Orientation fromDescription(String description) {
+        return Arrays.stream(values()).filter(o -> o.description.equals(description)).findFirst()
+                .orElse(TOP_LEFT);
+    }
+
+    public int getTag() {
+        return tag;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    /**
+     * @return clockwise rotation in degrees which makes the image upright, or null if it is mirrored
+     */
+    public Integer getRotation() {
+        return rotation;
+    }
+
+    /**
+     * @return ImageMagick/GraphicsMagick operators which make the image upright, empty for TOP_LEFT
+     */
+    public List<String> getOperators() {
+        return operators;
+    }
+}
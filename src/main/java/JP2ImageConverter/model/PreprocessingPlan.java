@@ -0,0 +1,38 @@
+package JP2ImageConverter.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The complete set of preprocessing operations for one image, worked out before any of them run, so that they can
+ * be issued as a single ImageMagick or GraphicsMagick invocation.
+ * @param fileName the image to preprocess
+ * @param operations descriptions of the planned operations, in order
+ * @param command the tool invocation without its output file, empty if the image only needs to be linked
+ * @param outputExtension extension of the preprocessed image, which selects the format the tool writes
+ */
+public record PreprocessingPlan(String fileName, List<String> operations, List<String> command,
+                                String outputExtension) {
+
+    public PreprocessingPlan {
+        operations = List.copyOf(operations);
+        command = List.copyOf(command);
+    }
+
+    /**
+     * @return true if the image is passed to kdu_compress through a symlink without being converted
+     */
+    public boolean isLink() {
+        return command.isEmpty();
+    }
+
+    /**
+     * @param outputFile the preprocessed image to write
+     * @return the complete tool invocation
+     */
+    public List<String> commandFor(String outputFile) {
+        List<String> fullCommand = new ArrayList<>(command);
+        fullCommand.add(outputFile);
+        return fullCommand;
+    }
+}
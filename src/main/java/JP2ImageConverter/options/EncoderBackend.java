@@ -0,0 +1,13 @@
+package JP2ImageConverter.options;
+
+/**
+ * JPEG 2000 encoders which can run the conversions
+ */
+public enum EncoderBackend {
+    // Kakadu kdu_compress
+    KAKADU,
+    // Grok grk_compress
+    GROK,
+    // OpenJPEG opj_compress
+    OPENJPEG
+}
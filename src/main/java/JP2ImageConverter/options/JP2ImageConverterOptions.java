@@ -3,6 +3,7 @@ package JP2ImageConverter.options;
 import picocli.CommandLine.Option;
 
 import java.nio.file.Path;
+import java.util.List;
 
 /**
  * Options for JP2ImageConverter
@@ -24,6 +25,81 @@ public class JP2ImageConverterOptions {
             defaultValue = "")
     private String sourceFormat;
 
+    @Option(names = {"--probe-cache"},
+            description = "Optional. File used to cache image metadata and types between runs. " +
+                    "Unchanged files are not probed again.")
+    private Path probeCache;
+
+    @Option(names = {"--conversion-cache"},
+            description = "Optional. Directory used to cache converted JP2s by source file content. " +
+                    "Duplicate images are copied from the cache instead of being converted again.")
+    private Path conversionCache;
+
+    @Option(names = {"--recovery-memo"},
+            description = "Optional. File used to remember which kdu_compress recoveries worked for which kinds " +
+                    "of images between runs. Later images of the same kind are recovered before their first encode.")
+    private Path recoveryMemo;
+
+    @Option(names = {"--encoding-profiles"},
+            description = "Optional. Properties file of named kdu_compress encoding profiles, as " +
+                    "<name> = <kdu_compress options>, added to the built in profiles.")
+    private Path encodingProfiles;
+
+    @Option(names = {"--encoding-profile"},
+            description = "Encoding profile for kdu_compress: default, archival-master, access-fast, " +
+                    "thumbnail-small or a profile from --encoding-profiles. A line of a file list may name its own " +
+                    "profile after a tab. Default: default.",
+            defaultValue = "default")
+    private String encodingProfile;
+
+    @Option(names = {"--derivatives"},
+            split = ",",
+            description = "Optional. Comma separated encoding profiles to encode every image with, from the same " +
+                    "preprocessed intermediate at the same time. Outputs are named <image>_<profile>.jp2.")
+    private List<String> derivatives;
+
+    @Option(names = {"--preview-size"},
+            description = "Optional. Also write a JPEG preview of every image, <image>_preview.jpg, with this " +
+                    "longest side in pixels, from the same preprocessed intermediate as the JP2s.",
+            defaultValue = "0")
+    private int previewSize;
+
+    @Option(names = {"--encoder"},
+            description = "JPEG 2000 encoder: ${COMPLETION-CANDIDATES}. Grok and OpenJPEG are given the encoding " +
+                    "profile translated from kdu_compress options. Default: kakadu.",
+            defaultValue = "kakadu")
+    private EncoderBackend encoder;
+
+    @Option(names = {"--htj2k"},
+            description = "Optional. Encode with the High-Throughput JPEG 2000 (HTJ2K) block coder. Outputs are " +
+                    "named .jph, or .jp2 with -Djp24u.htj2k.extension=jp2.")
+    private boolean htj2k;
+
+    @Option(names = {"--format"},
+            description = "Output format for list and list_all: ${COMPLETION-CANDIDATES}. Default: text.",
+            defaultValue = "text")
+    private OutputFormat outputFormat;
+
+    @Option(names = {"--fused-preprocessing"},
+            description = "Optional. Plan all preprocessing of an image up front and run it as a single " +
+                    "ImageMagick/GraphicsMagick invocation instead of writing a temporary image after each step.")
+    private boolean fusedPreprocessing;
+
+    @Option(names = {"--stream-preprocessing"},
+            description = "Optional. Stream PPM intermediates (JPEG, CR2, RW2) to kdu_compress through a named " +
+                    "pipe, so that decoding overlaps encoding and the intermediate is never written to disk.")
+    private boolean streamPreprocessing;
+
+    @Option(names = {"--explain"},
+            description = "Optional. Print the tools, intermediate formats and Kakadu arguments each conversion " +
+                    "would use, with an estimated cost, without converting anything.")
+    private boolean explain;
+
+    @Option(names = {"--fast-tmp-dir"},
+            description = "Optional. Fast directory (tmpfs or local NVMe) for intermediate images. Intermediates " +
+                    "spill to the regular temporary directory when it is over its budget.")
+    private Path fastTmpDir;
+
     public String getFileName() {
         return fileName;
     }
@@ -47,4 +123,116 @@ public class JP2ImageConverterOptions {
     public void setSourceFormat(String sourceFormat) {
         this.sourceFormat = sourceFormat;
     }
+
+    public Path getProbeCache() {
+        return probeCache;
+    }
+
+    public void setProbeCache(Path probeCache) {
+        this.probeCache = probeCache;
+    }
+
+    public Path getConversionCache() {
+        return conversionCache;
+    }
+
+    public void setConversionCache(Path conversionCache) {
+        this.conversionCache = conversionCache;
+    }
+
+    public Path getRecoveryMemo() {
+        return recoveryMemo;
+    }
+
+    public void setRecoveryMemo(Path recoveryMemo) {
+        this.recoveryMemo = recoveryMemo;
+    }
+
+    public Path getEncodingProfiles() {
+        return encodingProfiles;
+    }
+
+    public void setEncodingProfiles(Path encodingProfiles) {
+        this.encodingProfiles = encodingProfiles;
+    }
+
+    public String getEncodingProfile() {
+        return encodingProfile;
+    }
+
+    public void setEncodingProfile(String encodingProfile) {
+        this.encodingProfile = encodingProfile;
+    }
+
+    public List<String> getDerivatives() {
+        return derivatives;
+    }
+
+    public void setDerivatives(List<String> derivatives) {
+        this.derivatives = derivatives;
+    }
+
+    public int getPreviewSize() {
+        return previewSize;
+    }
+
+    public void setPreviewSize(int previewSize) {
+        this.previewSize = previewSize;
+    }
+
+    public EncoderBackend getEncoder() {
+        return encoder;
+    }
+
+    public void setEncoder(EncoderBackend encoder) {
+        this.encoder = encoder;
+    }
+
+    public boolean isHtj2k() {
+        return htj2k;
+    }
+
+    public void setHtj2k(boolean htj2k) {
+        this.htj2k = htj2k;
+    }
+
+    public OutputFormat getOutputFormat() {
+        return outputFormat;
+    }
+
+    public void setOutputFormat(OutputFormat outputFormat) {
+        this.outputFormat = outputFormat;
+    }
+
+    public boolean isFusedPreprocessing() {
+        return fusedPreprocessing;
+    }
+
+    public void setFusedPreprocessing(boolean fusedPreprocessing) {
+        this.fusedPreprocessing = fusedPreprocessing;
+    }
+
+    public boolean isStreamPreprocessing() {
+        return streamPreprocessing;
+    }
+
+    public void setStreamPreprocessing(boolean streamPreprocessing) {
+        this.streamPreprocessing = streamPreprocessing;
+    }
+
+    public boolean isExplain() {
+        return explain;
+    }
+
+    public void setExplain(boolean explain) {
+        this.explain = explain;
+    }
+
+    public Path getFastTmpDir() {
+        return fastTmpDir;
+    }
+
+    public void setFastTmpDir(Path fastTmpDir) {
+        this.fastTmpDir = fastTmpDir;
+    }
 }
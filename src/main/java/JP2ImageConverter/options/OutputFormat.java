@@ -0,0 +1,13 @@
+package JP2ImageConverter.options;
+
+/**
+ * Output formats for listing image color fields and attributes
+ */
+public enum OutputFormat {
+    // tab separated key:value pairs, one image per line
+    TEXT,
+    // one JSON object per image
+    JSONL,
+    // comma separated values with a header row
+    CSV
+}
@@ -1,7 +1,12 @@
 package JP2ImageConverter.services;
 
 import JP2ImageConverter.errors.CommandException;
+import JP2ImageConverter.options.OutputFormat;
 import JP2ImageConverter.util.CommandUtility;
+import JP2ImageConverter.util.FieldsWriter;
+import JP2ImageConverter.util.HeaderMetadataReader;
+import JP2ImageConverter.util.ImageTypeClassifier;
+import JP2ImageConverter.util.LatencyStats;
 import com.drew.imaging.ImageMetadataReader;
 import com.drew.imaging.ImageProcessingException;
 import com.drew.metadata.Metadata;
@@ -10,10 +15,12 @@ import com.drew.metadata.exif.ExifInteropDirectory;
 import com.drew.metadata.exif.ExifSubIFDDirectory;
 import com.drew.metadata.file.FileSystemDirectory;
 import com.drew.metadata.icc.IccDirectory;
+import org.apache.commons.io.FilenameUtils;
 import org.slf4j.Logger;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.PrintStream;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
@@ -49,12 +56,29 @@ public class ColorFieldsService {
     public static final String ORIENTATION = "Orientation";
     public static final String ORIENTATION_DEFAULT = "Top, left side (Horizontal / normal)";
 
+    // fields of the identify attributes, in the order they are requested
+    public static final List<String> MAGICK_FIELDS = List.of("Dimensions", "Channels", "Bit-depth", "Alpha channel",
+            "Color Space", "Profiles", "ICC Profile", "ICM Profile", "Type");
+    public static final String MAGICK_FRAMES = "MagickFrames";
+
+    private ProbeCacheService probeCacheService;
+    private OutputFormat outputFormat = OutputFormat.TEXT;
+
     /**
      * Use metadata-extractor to return list of EXIF and ICC Profile fields
+     * TIFF, JPEG and PSD metadata is read from the file header only when possible
      * @param fileName an image file
      * @return map of metadata fields
      */
     public Map<String,String> extractMetadataFields(String fileName) throws Exception {
+        if (probeCacheService != null) {
+            Map<String, String> cachedMetadata = probeCacheService.getMetadata(fileName);
+            if (cachedMetadata != null) {
+                cachedMetadata.put(IMAGE_FILE_NAME, fileName);
+                return cachedMetadata;
+            }
+        }
+
         String fileSize = null;
         String fileModifiedDate = null;
         String dateTimeOriginal = null;
@@ -65,10 +89,14 @@ public class ColorFieldsService {
         String interopIndex = null;
         String photometricInterpretation = null;
         String orientation = null;
+        boolean metadataRead = false;
 
         File imageFile = new File(fileName);
         try {
-            Metadata metadata = ImageMetadataReader.readMetadata(imageFile);
+            Metadata metadata = HeaderMetadataReader.read(imageFile);
+            if (metadata == null) {
+                metadata = ImageMetadataReader.readMetadata(imageFile);
+            }
 
             // ICC Profile Tag(s): ICCProfileName, ColorSpace, AToB0
             if (metadata.containsDirectoryOfType(IccDirectory.class)) {
@@ -125,9 +153,10 @@ public class ColorFieldsService {
                     orientation = exifIFD0Directory.getDescription(ExifIFD0Directory.TAG_ORIENTATION).trim();
                 }
             }
+            metadataRead = true;
         } catch (ImageProcessingException | IOException e) {
             log.error("Error reading image metadata for file {}", fileName, e);
-            System.out.println("Error reading image metadata for file " + fileName);
+            System.err.println("Error reading image metadata for file " + fileName);
         }
 
         // image metadata: ImageFileName, FileSize, FileModifiedDate, DateTimeOriginal, DateTimeDigitized,
@@ -145,6 +174,10 @@ public class ColorFieldsService {
         imageMetadata.put(PHOTOMETRIC_INTERPRETATION, photometricInterpretation);
         imageMetadata.put(ORIENTATION, orientation);
 
+        if (probeCacheService != null && metadataRead) {
+            probeCacheService.putMetadata(fileName, imageMetadata);
+        }
+
         return imageMetadata;
     }
 
@@ -154,6 +187,13 @@ public class ColorFieldsService {
      * @return list of color attributes
      */
     public String identify(String fileName) throws Exception {
+        if (probeCacheService != null) {
+            String cachedAttributes = probeCacheService.getValue(fileName, ProbeCacheService.IDENTIFY);
+            if (cachedAttributes != null) {
+                return cachedAttributes;
+            }
+        }
+
         String identify = "identify";
         String quiet = "-quiet";
         String format = "-format";
@@ -161,17 +201,39 @@ public class ColorFieldsService {
                 "Alpha channel: %A;Color Space: %[colorspace];Profiles: %[profiles];" +
                 "ICC Profile: %[profile:icc];ICM Profile: %[profile:icm];Type: %[type];";
         List<String> command = Arrays.asList(identify, quiet, format, options, fileName);
-        String attributes = CommandUtility.executeCommand(command);
+        String attributes = "\"" + CommandUtility.executeCommand(command) + "\"";
 
-        return "\"" + attributes + "\"";
+        if (probeCacheService != null) {
+            probeCacheService.putValue(fileName, ProbeCacheService.IDENTIFY, attributes);
+        }
+
+        return attributes;
     }
 
     /**
-     * Run ImageMagick identify command and return type (https://imagemagick.org/script/command-line-options.php#type)
+     * Return the image type (https://imagemagick.org/script/command-line-options.php#type)
+     * The type is classified in Java from the image header and a sample of the pixels when possible,
+     * otherwise the ImageMagick identify command is run
      * @param fileName an image file
      * @return imageType the image type (colorspace)
      */
     public String identifyType(String fileName) {
+        if (probeCacheService != null) {
+            String cachedType = probeCacheService.getValue(fileName, ProbeCacheService.TYPE);
+            if (cachedType != null) {
+                return cachedType;
+            }
+        }
+
+        String imageType = ImageTypeClassifier.classify(fileName);
+        if (imageType != null) {
+            log.debug("Classified image type of {} as {}", fileName, imageType);
+            if (probeCacheService != null) {
+                probeCacheService.putValue(fileName, ProbeCacheService.TYPE, imageType);
+            }
+            return imageType;
+        }
+
         String colorspace = null;
         String identify = "identify";
         String quiet = "-quiet";
@@ -185,7 +247,57 @@ public class ColorFieldsService {
             log.warn("Colorspace not identified: {}", e.getMessage());
         }
 
-        return colorspace != null ? colorspace.trim() : null;
+        String type = colorspace != null ? colorspace.trim() : null;
+        if (probeCacheService != null) {
+            probeCacheService.putValue(fileName, ProbeCacheService.TYPE, type);
+        }
+        return type;
+    }
+
+    /**
+     * Split identify attributes into separate fields named Magick + attribute name, for example MagickBitDepth.
+     * Images with several frames report the attributes of the first frame and the number of frames.
+     * @param attributes attributes returned by identify
+     * @return map of attribute fields
+     */
+    public static Map<String, String> splitMagickIdentify(String attributes) {
+        Map<String, String> fields = new LinkedHashMap<>();
+        for (String name : MAGICK_FIELDS) {
+            fields.put(magickFieldName(name), null);
+        }
+        int frames = 0;
+        if (attributes != null) {
+            String unquoted = attributes.replaceAll("^\"|\"$", "");
+            String firstField = null;
+            for (String attribute : unquoted.split(";")) {
+                int separator = attribute.indexOf(": ");
+                String name = separator < 0 ? attribute.replace(":", "").trim() : attribute.substring(0, separator);
+                if (name.isEmpty()) {
+                    continue;
+                }
+                if (firstField == null) {
+                    firstField = name;
+                }
+                if (name.equals(firstField)) {
+                    frames++;
+                }
+                if (frames == 1) {
+                    fields.put(magickFieldName(name), separator < 0 ? "" : attribute.substring(separator + 2).trim());
+                }
+            }
+        }
+        fields.put(MAGICK_FRAMES, String.valueOf(frames));
+        return fields;
+    }
+
+    private static String magickFieldName(String attributeName) {
+        StringBuilder fieldName = new StringBuilder("Magick");
+        for (String part : attributeName.split("[^A-Za-z0-9]+")) {
+            if (!part.isEmpty()) {
+                fieldName.append(Character.toUpperCase(part.charAt(0))).append(part.substring(1));
+            }
+        }
+        return fieldName.toString();
     }
 
     /**
@@ -194,6 +306,13 @@ public class ColorFieldsService {
      * @return list with EXIF and ImageMagick runtimes
      */
     public List<Long> listFields(String fileName) throws Exception {
+        FieldsWriter writer = new FieldsWriter(outputFormat, System.out);
+        List<Long> runtimes = listFields(fileName, writer, null);
+        writer.flush();
+        return runtimes;
+    }
+
+    private List<Long> listFields(String fileName, FieldsWriter writer, LatencyStats latencyStats) throws Exception {
         // get EXIF fields and ImageMagick attributes
         Instant exifStart = Instant.now();
         Map<String, String> imageMetadata = extractMetadataFields(fileName);
@@ -204,13 +323,23 @@ public class ColorFieldsService {
         Instant imageMagickEnd = Instant.now();
 
         // add ImageMagick attributes to map with EXIF fields
-        imageMetadata.put(MAGICK_IDENTIFY, attributes);
+        if (outputFormat == OutputFormat.TEXT) {
+            imageMetadata.put(MAGICK_IDENTIFY, attributes);
+        } else {
+            imageMetadata.putAll(splitMagickIdentify(attributes));
+        }
 
         // print all image metadata
-        for (Map.Entry<String, String> entry : imageMetadata.entrySet()) {
-            System.out.print(entry.getKey() + ":" + entry.getValue() + "\t");
+        writer.write(imageMetadata);
+
+        if (latencyStats != null) {
+            String format = FilenameUtils.getExtension(fileName).toLowerCase();
+            String colorSpace = imageMetadata.get(COLOR_SPACE) != null ?
+                    imageMetadata.get(COLOR_SPACE) : imageMetadata.get(PHOTOMETRIC_INTERPRETATION);
+            latencyStats.record("exif", format, colorSpace, Duration.between(exifStart, exifEnd).toNanos());
+            latencyStats.record("identify", format, colorSpace,
+                    Duration.between(imageMagickStart, imageMagickEnd).toNanos());
         }
-        System.out.println();
 
         // return list with EXIF and ImageMagick runtimes
         // for calculating total EXIF runtime and total ImageMagick runtime
@@ -234,30 +363,45 @@ public class ColorFieldsService {
 
         Instant start = Instant.now();
         List<String> listOfFiles = Files.readAllLines(Paths.get(fileName), StandardCharsets.UTF_8);
+        FieldsWriter writer = new FieldsWriter(outputFormat, System.out);
+        LatencyStats latencyStats = new LatencyStats();
+        // keep machine readable output free of messages and runtime data
+        PrintStream messages = outputFormat == OutputFormat.TEXT ? System.out : System.err;
 
         Iterator<String> itr = listOfFiles.iterator();
         while (itr.hasNext()) {
             String imageFileName = itr.next();
             if (Files.exists(Paths.get(imageFileName))) {
                 filesProcessed++;
-                List<Long> runtimes = listFields(imageFileName);
+                List<Long> runtimes = listFields(imageFileName, writer, latencyStats);
                 totalExifRuntime = totalExifRuntime + runtimes.get(0).intValue();
                 totalImageMagickRuntime = totalImageMagickRuntime + runtimes.get(1).intValue();
             } else {
                 log.info(imageFileName + " does not exist.");
-                System.out.println(imageFileName + " does not exist.");
+                writer.flush();
+                messages.println(imageFileName + " does not exist.");
             }
         }
+        writer.flush();
 
         Instant end = Instant.now();
         Long overallRuntime = Duration.between(start, end).toMillis();
         Long runtimePerFile = overallRuntime / filesProcessed;
 
         // after run completed, print runtime data
-        System.out.println("Number of Files Processed: " + filesProcessed);
-        System.out.println("Total Overall Runtime: " + overallRuntime + " milliseconds");
-        System.out.println("Average Runtime per File: " + runtimePerFile + " milliseconds/file");
-        System.out.println("Total Exif Runtime: " + totalExifRuntime + " milliseconds");
-        System.out.println("Total ImageMagick Identify Runtime: " + totalImageMagickRuntime + " milliseconds");
+        messages.println("Number of Files Processed: " + filesProcessed);
+        messages.println("Total Overall Runtime: " + overallRuntime + " milliseconds");
+        messages.println("Average Runtime per File: " + runtimePerFile + " milliseconds/file");
+        messages.println("Total Exif Runtime: " + totalExifRuntime + " milliseconds");
+        messages.println("Total ImageMagick Identify Runtime: " + totalImageMagickRuntime + " milliseconds");
+        latencyStats.print(messages);
+    }
+
+    public void setProbeCacheService(ProbeCacheService probeCacheService) {
+        this.probeCacheService = probeCacheService;
+    }
+
+    public void setOutputFormat(OutputFormat outputFormat) {
+        this.outputFormat = outputFormat == null ? OutputFormat.TEXT : outputFormat;
     }
 }
@@ -0,0 +1,176 @@
+package JP2ImageConverter.services;
+
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Content addressed cache of converted JP2s. Source files are identified by the SHA-256 digest of their content,
+ * so byte identical duplicates under different names are converted once. Cached JP2s are stored with the
+ * encoding parameters they were produced with and are copied into the output path on a hit. Outputs never share
+ * a file with the cache, so later changes to an output can not corrupt the cached JP2.
+ */
+public class ConversionCacheService implements AutoCloseable {
+    private static final Logger log = getLogger(ConversionCacheService.class);
+    private static final int DIGEST_BUFFER_SIZE = 1024 * 1024;
+    private static final String JP2_SUFFIX = ".jp2";
+    private static final String PARAMS_SUFFIX = ".params";
+
+    private final Path cacheDir;
+    private final ExecutorService digestExecutor;
+    private final Map<String, CompletableFuture<String>> digests = new ConcurrentHashMap<>();
+    private int hits;
+    private int misses;
+
+    /**
+     * @param cacheDir directory holding the cached JP2s, created if it does not exist
+     */
+    public ConversionCacheService(Path cacheDir) throws IOException {
+        this.cacheDir = cacheDir;
+        Files.createDirectories(cacheDir);
+        int threads = Integer.getInteger("jp24u.conversioncache.digestThreads", 2);
+        this.digestExecutor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "jp24u-digest");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Start computing the digest of a source file in the background, so that it is ready when the file is converted
+     * @param fileName a source image file
+     */
+    public void prefetchDigest(String fileName) {
+        digests.computeIfAbsent(key(fileName),
+                k -> CompletableFuture.supplyAsync(() -> computeDigest(fileName), digestExecutor));
+    }
+
+    /**
+     * Get the content digest of a source file, waiting for a prefetched digest if one was started
+     * @param fileName a source image file
+     * @return hex encoded SHA-256 digest of the file content
+     */
+    public String getDigest(String fileName) throws IOException {
+        prefetchDigest(fileName);
+        try {
+            return digests.remove(key(fileName)).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException ioException) {
+                throw ioException;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Copy a cached JP2 into the output path if one was produced from the same content with the same parameters
+     * @param digest content digest of the source file
+     * @param parameters the encoding parameters
+     * @param outputFile the output JP2
+     * @return true if the output was restored from the cache
+     */
+    public boolean restore(String digest, String parameters, Path outputFile) throws IOException {
+        Path cachedJp2 = entry(digest, parameters, JP2_SUFFIX);
+        Path cachedParams = entry(digest, parameters, PARAMS_SUFFIX);
+        if (!Files.exists(cachedJp2) || !Files.exists(cachedParams)
+                || !Files.readString(cachedParams, StandardCharsets.UTF_8).equals(parameters)) {
+            misses++;
+            return false;
+        }
+        // copy rather than hard link, an output sharing the cache entry's inode would let tools editing or
+        // overwriting the output in place modify the cached JP2 for every later duplicate
+        Files.deleteIfExists(outputFile);
+        Files.copy(cachedJp2, outputFile);
+        hits++;
+        log.info("Reused cached JP2 {} for {}", cachedJp2, outputFile);
+        return true;
+    }
+
+    /**
+     * Copy a newly produced JP2 into the cache
+     * @param digest content digest of the source file
+     * @param parameters the encoding parameters
+     * @param outputFile the output JP2
+     */
+    public void store(String digest, String parameters, Path outputFile) throws IOException {
+        Path cachedJp2 = entry(digest, parameters, JP2_SUFFIX);
+        Files.createDirectories(cachedJp2.getParent());
+        // copy instead of linking, so that a later conversion overwriting the output can not change the cache
+        Path tmpJp2 = Files.createTempFile(cachedJp2.getParent(), digest, JP2_SUFFIX);
+        Path tmpParams = Files.createTempFile(cachedJp2.getParent(), digest, PARAMS_SUFFIX);
+        try {
+            Files.copy(outputFile, tmpJp2, StandardCopyOption.REPLACE_EXISTING);
+            Files.writeString(tmpParams, parameters, StandardCharsets.UTF_8);
+            Files.move(tmpJp2, cachedJp2, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Files.move(tmpParams, entry(digest, parameters, PARAMS_SUFFIX), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmpJp2);
+            Files.deleteIfExists(tmpParams);
+        }
+    }
+
+    @Override
+    public void close() {
+        log.info("Conversion cache {}: {} hits, {} misses", cacheDir, hits, misses);
+        digestExecutor.shutdownNow();
+    }
+
+    private Path entry(String digest, String parameters, String suffix) {
+        String parametersDigest = hex(sha256(parameters.getBytes(StandardCharsets.UTF_8))).substring(0, 16);
+        return cacheDir.resolve(digest.substring(0, 2)).resolve(digest + "-" + parametersDigest + suffix);
+    }
+
+    private static String key(String fileName) {
+        return Path.of(fileName).toAbsolutePath().normalize().toString();
+    }
+
+    private static String computeDigest(String fileName) {
+        MessageDigest digest = newDigest();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(DIGEST_BUFFER_SIZE);
+        try (FileChannel channel = FileChannel.open(Path.of(fileName), StandardOpenOption.READ)) {
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        } catch (IOException e) {
+            throw new CompletionException(e);
+        }
+        return hex(digest.digest());
+    }
+
+    private static byte[] sha256(byte[] bytes) {
+        return newDigest().digest(bytes);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        return HexFormat.of().formatHex(bytes);
+    }
+}
@@ -0,0 +1,193 @@
+package JP2ImageConverter.services;
+
+import JP2ImageConverter.model.EncodingProfile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+/**
+ * Registry of named kdu_compress encoding profiles. The built in profiles (default, archival-master, access-fast,
+ * thumbnail-small) are read from encoding-profiles.properties, and a profiles file in the same format can add
+ * profiles or replace them by name. Every profile is validated when it is loaded, so a mistyped option fails
+ * the run before any image is converted instead of failing kdu_compress for every image.
+ */
+public class EncodingProfileService {
+    public static final String DEFAULT_PROFILE = "default";
+    private static final String BUILT_IN_PROFILES = "/encoding-profiles.properties";
+
+    private static final Pattern INTEGER = Pattern.compile("\\d+");
+    private static final Pattern YES_NO = Pattern.compile("yes|no");
+    private static final Pattern SIZES = Pattern.compile("\\{\\d+,\\d+}(,\\{\\d+,\\d+})*");
+    private static final Pattern RATES = Pattern.compile("(-|\\d*\\.?\\d+)(,(-|\\d*\\.?\\d+))*");
+    private static final Pattern SLOPES = Pattern.compile("\\d+(,\\d+)*");
+    private static final Pattern ANY = Pattern.compile("\\S+");
+    // code-stream attributes profiles may set, with the values kdu_compress accepts for them
+    private static final Map<String, Pattern> ATTRIBUTES = Map.ofEntries(
+            Map.entry("Clevels", INTEGER),
+            Map.entry("Clayers", INTEGER),
+            Map.entry("Cprecincts", SIZES),
+            Map.entry("Cblk", SIZES),
+            Map.entry("Stiles", SIZES),
+            Map.entry("Corder", Pattern.compile("LRCP|RLCP|RPCL|PCRL|CPRL")),
+            Map.entry("Creversible", YES_NO),
+            Map.entry("Cycc", YES_NO),
+            Map.entry("Cuse_sop", YES_NO),
+            Map.entry("Cuse_eph", YES_NO),
+            Map.entry("Cmodes", ANY),
+            Map.entry("Cplex", ANY),
+            Map.entry("Qstep", Pattern.compile("\\d*\\.?\\d+")),
+            Map.entry("Qguard", INTEGER),
+            Map.entry("Sprofile", ANY),
+            Map.entry("ORGgen_plt", YES_NO),
+            Map.entry("ORGgen_tlm", INTEGER),
+            Map.entry("ORGtparts", Pattern.compile("[RLC](\\|[RLC])*")));
+    // command line switches profiles may use, with the values they take
+    private static final Map<String, Pattern> SWITCHES = Map.of(
+            "-rate", RATES,
+            "-slope", SLOPES,
+            "-flush_period", INTEGER,
+            "-num_threads", INTEGER,
+            "-tolerance", Pattern.compile("\\d*\\.?\\d+"));
+    private static final Set<String> FLAGS = Set.of("-no_weights", "-precise", "-fastest", "-full");
+
+    private static final String HT_MODE = "HT";
+    // HT has no post-compression rate control, Cplex lets kdu_compress estimate the slopes for a -rate target
+    private static final String HT_COMPLEXITY = "Cplex={6,EST,0.25,-1}";
+
+    private final Map<String, EncodingProfile> profiles = new TreeMap<>();
+
+    /**
+     * Create a registry holding the built in profiles
+     */
+    public EncodingProfileService() {
+        try (InputStream in = EncodingProfileService.class.getResourceAsStream(BUILT_IN_PROFILES)) {
+            if (in == null) {
+                throw new IllegalStateException("Missing " + BUILT_IN_PROFILES);
+            }
+            load(new String(in.readAllBytes(), StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Add the profiles of a profiles file, replacing built in profiles with the same names
+     * @param profilesFile a properties file of profile names and kdu_compress options
+     */
+    public void load(Path profilesFile) throws IOException {
+        load(Files.readString(profilesFile, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Get a profile by name
+     * @param name the profile name
+     * @return the profile
+     */
+    public EncodingProfile get(String name) {
+        EncodingProfile profile = profiles.get(name);
+        if (profile == null) {
+            throw new IllegalArgumentException("Unknown encoding profile " + name + ", available profiles: "
+                    + String.join(", ", profiles.keySet()));
+        }
+        return profile;
+    }
+
+    /**
+     * @return names of all profiles
+     */
+    public Set<String> getNames() {
+        return Collections.unmodifiableSet(profiles.keySet());
+    }
+
+    /**
+     * Check the options of a profile
+     * @param name the profile name, for error messages
+     * @param options the kdu_compress options
+     */
+    public static void validate(String name, List<String> options) {
+        if (options.isEmpty()) {
+            throw new IllegalArgumentException("Encoding profile " + name + " has no options");
+        }
+        for (int i = 0; i < options.size(); i++) {
+            String option = options.get(i);
+            if (FLAGS.contains(option)) {
+                continue;
+            }
+            if (SWITCHES.containsKey(option)) {
+                if (i + 1 >= options.size() || !SWITCHES.get(option).matcher(options.get(i + 1)).matches()) {
+                    throw new IllegalArgumentException("Encoding profile " + name + ": invalid value for "
+                            + option + (i + 1 < options.size() ? ": " + options.get(i + 1) : ""));
+                }
+                i++;
+                continue;
+            }
+            int equals = option.indexOf('=');
+            // attributes may be qualified by component or tile, such as Clevels:C0=5
+            String attribute = equals < 0 ? option : option.substring(0, equals).replaceFirst(":.*", "");
+            if (equals < 0 || !ATTRIBUTES.containsKey(attribute)) {
+                throw new IllegalArgumentException("Encoding profile " + name + ": unsupported option " + option);
+            }
+            if (!ATTRIBUTES.get(attribute).matcher(option.substring(equals + 1)).matches()) {
+                throw new IllegalArgumentException("Encoding profile " + name + ": invalid value in " + option);
+            }
+        }
+    }
+
+    /**
+     * Get the options of a profile for a High-Throughput JPEG 2000 (HTJ2K) encode
+     * @param profile the profile
+     * @return the profile options with Cmodes=HT, and Cplex when the profile targets a -rate
+     */
+    public static List<String> htj2kOptions(EncodingProfile profile) {
+        List<String> options = new ArrayList<>();
+        boolean rate = false;
+        boolean complexity = false;
+        for (String option : profile.options()) {
+            if (option.startsWith("Cmodes")) {
+                List<String> modes = Arrays.asList(option.substring(option.indexOf('=') + 1).split("\\|"));
+                if (!modes.contains(HT_MODE)) {
+                    throw new IllegalArgumentException("Encoding profile " + profile.name()
+                            + " sets " + option + ", which can not be combined with HTJ2K");
+                }
+            }
+            rate |= option.equals("-rate");
+            complexity |= option.startsWith("Cplex");
+            options.add(option);
+        }
+        if (options.stream().noneMatch(o -> o.startsWith("Cmodes"))) {
+            options.add("Cmodes=" + HT_MODE);
+        }
+        if (rate && !complexity) {
+            options.add(HT_COMPLEXITY);
+        }
+        return options;
+    }
+
+    private void load(String properties) throws IOException {
+        Properties loaded = new Properties();
+        try (Reader reader = new StringReader(properties)) {
+            loaded.load(reader);
+        }
+        for (String name : loaded.stringPropertyNames()) {
+            String value = loaded.getProperty(name).trim();
+            List<String> options = value.isEmpty() ? List.of() : Arrays.asList(value.split("\\s+"));
+            validate(name, options);
+            profiles.put(name, new EncodingProfile(name, options));
+        }
+    }
+}
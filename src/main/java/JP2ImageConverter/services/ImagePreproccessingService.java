@@ -1,15 +1,28 @@
 package JP2ImageConverter.services;
 
+import JP2ImageConverter.model.ImageProbe;
+import JP2ImageConverter.model.Orientation;
+import JP2ImageConverter.model.PreprocessingPlan;
 import JP2ImageConverter.util.CommandUtility;
+import JP2ImageConverter.util.FifoPipeline;
+import JP2ImageConverter.util.ImageHeaderReader;
+import JP2ImageConverter.util.ImageIODecoder;
+import JP2ImageConverter.util.RawJpegExtractor;
+import JP2ImageConverter.util.TempWorkspace;
+import JP2ImageConverter.util.TiffStripDecoder;
 import org.apache.commons.io.FilenameUtils;
 import org.slf4j.Logger;
 
+import java.awt.image.BufferedImage;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
 
 import static org.slf4j.LoggerFactory.getLogger;
@@ -26,11 +39,18 @@ public class ImagePreproccessingService {
     private static final String CONVERT = "convert";
     private static final String DCRAW = "dcraw";
     private static final String EXIFTOOL = "exiftool";
+    // recorded in place of commands for images decoded in the JVM
+    private static final String IMAGEIO = "imageio";
+    private static final String TIFF_DECODER = "tiffdecode";
+    private static final String JPG_FROM_RAW = "jpgfromraw";
 
     public Path tmpDir = Paths.get(System.getProperty("java.io.tmpdir"));
     public Path tmpFilesDir = tmpDir.resolve("JP2ImageConverter");
     private static final String AUTO_ORIENT = "-auto-orient";
 
+    private List<List<String>> recordedCommands;
+    private TempWorkspace tempWorkspace;
+
     public ImagePreproccessingService() {
         try {
             initializeTempImageFilesDir();
@@ -56,7 +76,7 @@ public class ImagePreproccessingService {
 
         List<String> command = Arrays.asList(GM, CONVERT, AUTO_ORIENT, fileName, colorSpace, colorSpaceOptions,
                 profile, profileOptions, temporaryFile);
-        CommandUtility.executeCommand(command);
+        executeCommand(command);
 
         return temporaryFile;
     }
@@ -74,7 +94,7 @@ public class ImagePreproccessingService {
 
         List<String> command = Arrays.asList(CONVERT, AUTO_ORIENT, fileName, colorSpace, colorSpaceOptions,
                 temporaryFile);
-        CommandUtility.executeCommand(command);
+        executeCommand(command);
 
         return temporaryFile;
     }
@@ -93,11 +113,43 @@ public class ImagePreproccessingService {
         String temporaryFile = String.valueOf(prepareTempPath(fileName, ".tif"));
 
         List<String> command = Arrays.asList(GM, CONVERT, AUTO_ORIENT, inputFile, temporaryFile);
-        CommandUtility.executeCommand(command);
+        executeCommand(command);
 
         return temporaryFile;
     }
 
+    /**
+     * Decode the first frame of PNG, GIF and BMP images in the JVM and write it to a temporary PPM, or PGM if the
+     * image is gray, instead of starting GraphicsMagick to write a TIFF
+     * @param fileName an image file
+     * @return temporaryFile a temporary PPM/PGM file
+     */
+    public String convertToPnmWithImageIO(String fileName) throws Exception {
+        if (recordedCommands != null) {
+            // the image is not decoded when explaining a conversion, predict gray images from the header
+            ImageHeaderReader.Header header = ImageHeaderReader.read(fileName);
+            String extension = header != null && header.channels() == 1 ? ".pgm" : ".ppm";
+            String temporaryFile = String.valueOf(prepareTempPath(fileName, extension));
+            recordedCommands.add(List.of(IMAGEIO, fileName + "[0]", temporaryFile));
+            return temporaryFile;
+        }
+        BufferedImage image = ImageIODecoder.readFirstFrame(fileName);
+        boolean gray = ImageIODecoder.isGray(image);
+        Path temporaryFile = prepareTempPath(fileName, gray ? ".pgm" : ".ppm");
+        try {
+            ImageIODecoder.writePnm(image, gray, temporaryFile);
+        } catch (Exception e) {
+            Files.deleteIfExists(temporaryFile);
+            throw e;
+        } finally {
+            if (tempWorkspace != null) {
+                tempWorkspace.settle();
+            }
+        }
+
+        return temporaryFile.toString();
+    }
+
     /**
      * Run ImageMagick convert and convert PSD images to TIFF
      * GraphicsMagick doesn't support PSD
@@ -114,7 +166,7 @@ public class ImagePreproccessingService {
         String temporaryFile = String.valueOf(prepareTempPath(fileName, ".tif"));
 
         List<String> command = Arrays.asList(CONVERT, AUTO_ORIENT, importFile, colorspace, colorspaceOptions, temporaryFile);
-        CommandUtility.executeCommand(command);
+        executeCommand(command);
 
         return temporaryFile;
     }
@@ -132,7 +184,7 @@ public class ImagePreproccessingService {
         String temporaryFile = String.valueOf(prepareTempPath(fileName, ".tif"));
 
         List<String> command = Arrays.asList(CONVERT, AUTO_ORIENT, strip, importFile, temporaryFile);
-        CommandUtility.executeCommand(command);
+        executeCommand(command);
 
         return temporaryFile;
     }
@@ -148,11 +200,49 @@ public class ImagePreproccessingService {
         String temporaryFile = String.valueOf(prepareTempPath(fileName, ".ppm"));
 
         List<String> command = Arrays.asList(CONVERT, AUTO_ORIENT, importFile, temporaryFile);
-        CommandUtility.executeCommand(command);
+        executeCommand(command);
+
+        return temporaryFile;
+    }
+
+    /**
+     * Run ImageMagick convert and convert JPEG images to PPM, turning them upright with the operators of a known
+     * orientation instead of the orientation in the JPEG
+     * @param fileName an image file
+     * @param orientation orientation of the image
+     * @return temporaryFile a temporary PPM file
+     */
+    public String convertToPpmWithIm(String fileName, Orientation orientation) throws Exception {
+        String temporaryFile = String.valueOf(prepareTempPath(fileName, ".ppm"));
+
+        List<String> command = new ArrayList<>();
+        command.add(CONVERT);
+        command.add(fileName);
+        command.addAll(orientation.getOperators());
+        command.add(temporaryFile);
+        executeCommand(command);
 
         return temporaryFile;
     }
 
+    /**
+     * Run ImageMagick convert and write a downscaled JPEG preview of an image
+     * @param fileName an image file, the intermediate the outputs of the image are encoded from
+     * @param orientation orientation of the image, TOP_LEFT if it is upright
+     * @param size longest side of the preview in pixels, smaller images are not enlarged
+     * @param previewFile the JPEG file to write
+     */
+    public void createPreviewWithIm(String fileName, Orientation orientation, int size, String previewFile)
+            throws Exception {
+        List<String> command = new ArrayList<>();
+        command.add(CONVERT);
+        // the first frame of the image
+        command.add(fileName + "[0]");
+        command.addAll(orientation.getOperators());
+        command.addAll(Arrays.asList("-thumbnail", size + "x" + size + ">", "-quality", "85", previewFile));
+        executeCommand(command);
+    }
+
     /**
      * Run GraphicsMagick convert and convert CR2 images to PPM
      * Converting CR2 to temporary TIFFs results in YCrCb colorspaces
@@ -164,7 +254,7 @@ public class ImagePreproccessingService {
         String temporaryFile = String.valueOf(prepareTempPath(fileName, ".ppm"));
 
         List<String> command = Arrays.asList(GM, CONVERT, AUTO_ORIENT, importFile, temporaryFile);
-        CommandUtility.executeCommand(command);
+        executeCommand(command);
 
         return temporaryFile;
     }
@@ -181,15 +271,38 @@ public class ImagePreproccessingService {
         String temporaryFile = String.valueOf(prepareTempPath(fileName, ".jpeg"));
 
         List<String> command = Arrays.asList(EXIFTOOL, b, jpgFromRaw, inputFile);
-        CommandUtility.executeCommandWriteToFile(command, temporaryFile);
+        executeCommandWriteToFile(command, temporaryFile);
 
         // Next, copy over orientation info from the original NEF/NRW to the new JPEG
         List<String> command2 = Arrays.asList(EXIFTOOL, "-overwrite_original", "-tagsfromfile", inputFile, "-orientation", temporaryFile);
-        CommandUtility.executeCommand(command2);
+        executeCommand(command2);
 
         return temporaryFile;
     }
 
+    /**
+     * Copy the JPEG embedded in a NEF or NRW image to a temporary file without running Exiftool
+     * @param fileName an NEF or NRW image file
+     * @param preview location of the embedded JPEG
+     * @return temporaryFile a temporary JPEG file
+     */
+    public String extractJpgFromRaw(String fileName, RawJpegExtractor.Preview preview) throws Exception {
+        Path temporaryFile = prepareTempPath(fileName, ".jpeg");
+        if (recordedCommands != null) {
+            recordedCommands.add(List.of(JPG_FROM_RAW, fileName, temporaryFile.toString()));
+            return temporaryFile.toString();
+        }
+        try {
+            RawJpegExtractor.extract(fileName, preview, temporaryFile);
+        } finally {
+            if (tempWorkspace != null) {
+                tempWorkspace.settle();
+            }
+        }
+
+        return temporaryFile.toString();
+    }
+
     /**
      * Convert a PCD image to a temporary TIFF
      * @param fileName filename of the pcd file
@@ -202,7 +315,7 @@ public class ImagePreproccessingService {
         String temporaryFile = String.valueOf(prepareTempPath(fileName, ".tif"));
 
         List<String> command = Arrays.asList(GM, CONVERT, AUTO_ORIENT, inputFile, temporaryFile);
-        CommandUtility.executeCommand(command);
+        executeCommand(command);
 
         return temporaryFile;
     }
@@ -216,7 +329,7 @@ public class ImagePreproccessingService {
     public String convertToPpmWithDcraw(String fileName) throws Exception {
         String temporaryFile = prepareTempPath(fileName, ".ppm").toString();
         List<String> dcrawCommand = Arrays.asList(DCRAW, "-c", "-w", fileName);
-        CommandUtility.executeCommandWriteToFile(dcrawCommand, temporaryFile);
+        executeCommandWriteToFile(dcrawCommand, temporaryFile);
 
         return temporaryFile;
     }
@@ -231,7 +344,7 @@ public class ImagePreproccessingService {
         String temporaryFile = String.valueOf(prepareTempPath(fileName, ".tif"));
 
         List<String> command = Arrays.asList(CONVERT, AUTO_ORIENT, "-alpha", "off", fileName, temporaryFile);
-        CommandUtility.executeCommand(command);
+        executeCommand(command);
 
         return temporaryFile;
     }
@@ -248,7 +361,7 @@ public class ImagePreproccessingService {
 
         List<String> command = Arrays.asList(GM, CONVERT, AUTO_ORIENT, "-type", "TrueColor",
                 "-colorspace", "sRGB", fileName, temporaryFile);
-        CommandUtility.executeCommand(command);
+        executeCommand(command);
 
         return temporaryFile;
     }
@@ -271,7 +384,8 @@ public class ImagePreproccessingService {
         }
 
         if (imageFormats.contains(fileNameExtension)) {
-            inputFile = convertToTifWithGm(fileName);
+            inputFile = ImageIODecoder.canDecode(fileName, fileNameExtension) ?
+                    convertToPnmWithImageIO(fileName) : convertToTifWithGm(fileName);
         } else if (fileNameExtension.matches("psd")) {
             inputFile = flattenSetColorspaceConvertToTifWithIm(fileName);
         } else if (fileNameExtension.matches("jp2") || fileNameExtension.matches("heic")
@@ -287,12 +401,21 @@ public class ImagePreproccessingService {
             inputFile = convertToPpmWithDcraw(fileName);
         } else if (fileNameExtension.matches("nef") || fileNameExtension.matches("nrw")) {
             // convert NEF/NRW to JPEG, then convert JPEG to PPM
-            String tempJpeg = convertToJpgWithExiftool(fileName);
-            inputFile = convertToPpmWithIm(tempJpeg);
+            RawJpegExtractor.Preview preview = RawJpegExtractor.locate(fileName);
+            String tempJpeg;
+            if (preview != null) {
+                // the embedded JPEG has no orientation of its own, apply the one of the raw image
+                tempJpeg = extractJpgFromRaw(fileName, preview);
+                inputFile = convertToPpmWithIm(tempJpeg, preview.orientation());
+            } else {
+                tempJpeg = convertToJpgWithExiftool(fileName);
+                inputFile = convertToPpmWithIm(tempJpeg);
+            }
             // delete temp JPEG after temp PPM is created
             Files.deleteIfExists(Path.of(tempJpeg));
         } else if (fileNameExtension.matches("tiff") || fileNameExtension.matches("tif")) {
-            inputFile = linkToTiff(fileName);
+            String extension = TiffStripDecoder.outputExtension(fileName);
+            inputFile = extension == null ? linkToTiff(fileName) : decompressTiff(fileName, extension);
         } else {
             log.info("JP2 conversion for the following file format not supported: {}", fileNameExtension);
             throw new Exception("JP2 conversion for the following file format not supported: " + fileNameExtension);
@@ -335,6 +458,155 @@ public class ImagePreproccessingService {
         return inputFile;
     }
 
+    /**
+     * Plan all preprocessing of an image up front, so that format conversion, frame selection, orientation,
+     * color space, profile, type and alpha changes are done by one tool invocation instead of writing and reading
+     * a full resolution temporary image after each step. The operations are the same as
+     * convertToTiff followed by convertColorSpaces, removeAlphaChannel or correctOrientation, decided from
+     * the original image instead of the intermediate one.
+     * @param fileName an image file
+     * @param sourceFormat normalized source format
+     * @param colorSpace color space of the original image
+     * @param type image type of the original image
+     * @param probe probe of the original image
+     * @return the plan, or null if the image needs tools which can not be fused (exiftool, dcraw) or a color space
+     * which is not supported
+     */
+    public PreprocessingPlan planPreprocessing(String fileName, String sourceFormat, String colorSpace, String type,
+                                               ImageProbe probe) {
+        Set<String> imageFormats = new HashSet<>(Arrays.asList("png", "gif", "pct", "bmp", "crw", "raf", "dng"));
+        Set<String> colorSpaces = new HashSet<>(Arrays.asList("rgb", "srgb", "rgb palette", "gray"));
+        Set<String> unusualColorSpaces = new HashSet<>(Arrays.asList("cmyk", "ycbcr", "atob0", "color filter array"));
+        String format = sourceFormat.isEmpty() ? FilenameUtils.getExtension(fileName).toLowerCase() : sourceFormat;
+        String imageType = type == null ? "" : type;
+        List<String> operations = new ArrayList<>();
+        List<String> settings = new ArrayList<>();
+        List<String> operators = new ArrayList<>();
+        String tool;
+        String input = fileName;
+        String extension = "tif";
+        String decodedColorSpace = colorSpace;
+
+        // format conversion, as in convertToTiff
+        if (imageFormats.contains(format)) {
+            tool = GM;
+            input = fileName + "[0]";
+            operations.add("decode first frame");
+        } else if (format.equals("psd")) {
+            tool = CONVERT;
+            input = fileName + "[0]";
+            operators.addAll(Arrays.asList("-colorspace", "sRGB"));
+            decodedColorSpace = "sRGB";
+            operations.add("decode flattened layer");
+            operations.add("convert to sRGB");
+        } else if (format.equals("jp2") || format.equals("heic") || format.equals("jpf")) {
+            tool = CONVERT;
+            settings.add("-strip");
+            operations.add("decode");
+            operations.add("strip profiles");
+        } else if (format.equals("jpeg")) {
+            tool = CONVERT;
+            extension = "ppm";
+            operations.add("decode");
+        } else if (format.equals("cr2")) {
+            tool = GM;
+            extension = "ppm";
+            operations.add("decode");
+        } else if (format.equals("pcd")) {
+            tool = GM;
+            input = fileName + "[6]";
+            operations.add("decode highest resolution");
+        } else if (format.equals("tiff") || format.equals("tif")) {
+            tool = null;
+        } else {
+            return null;
+        }
+        // GraphicsMagick writes palette images to palette TIFFs
+        if (GM.equals(tool) && extension.equals("tif") && imageType.contains("Palette")) {
+            decodedColorSpace = "RGB Palette";
+        }
+
+        // color space correction, as in convertColorSpaces
+        String space = decodedColorSpace.toLowerCase();
+        boolean colorCorrected = true;
+        if (space.contains("rgb palette") && imageType.toLowerCase().contains("palette")) {
+            tool = tool == null ? GM : tool;
+            operators.addAll(Arrays.asList("-type", "TrueColor", "-colorspace", "sRGB"));
+            extension = "tif";
+            operations.add("convert palette to TrueColor sRGB");
+        } else if (space.contains("cielab")) {
+            // GraphicsMagick doesn't support CIELab
+            if (GM.equals(tool)) {
+                return null;
+            }
+            tool = CONVERT;
+            operators.addAll(Arrays.asList("-colorspace", "sRGB"));
+            extension = "tif";
+            operations.add("convert CIELab to sRGB");
+        } else if (space.contains("ycbcr") && extension.equals("tif")) {
+            tool = tool == null ? GM : tool;
+            extension = "ppm";
+            operations.add("convert YCbCr to RGB PPM");
+        } else if (unusualColorSpaces.contains(space)) {
+            tool = tool == null ? GM : tool;
+            // ImageMagick's RGB is linear, GraphicsMagick's RGB is sRGB
+            operators.addAll(Arrays.asList("-colorspace", GM.equals(tool) ? "rgb" : "sRGB", "+profile", "\"*\""));
+            extension = "tif";
+            operations.add("convert " + decodedColorSpace + " to RGB");
+            operations.add("strip profiles");
+        } else if (colorSpaces.contains(space)) {
+            colorCorrected = false;
+        } else {
+            return null;
+        }
+
+        Map<String, String> metadata = probe.metadata();
+        boolean rgbMetadata = Objects.equals(metadata.get(ColorFieldsService.PHOTOMETRIC_INTERPRETATION), "RGB")
+                || Objects.equals(metadata.get(ColorFieldsService.COLOR_SPACE), "RGB");
+        if (!colorCorrected && rgbMetadata && imageType.contains("GrayscaleAlpha")) {
+            // strip alpha channel from grayscale images incorrectly identified as sRGB
+            tool = tool == null ? CONVERT : tool;
+            operators.addAll(GM.equals(tool) ? List.of("+matte") : List.of("-alpha", "off"));
+            extension = "tif";
+            operations.add("remove alpha channel");
+        } else if (!colorCorrected && tool == null && probe.orientation() != null
+                && !ColorFieldsService.ORIENTATION_DEFAULT.equals(probe.orientation())) {
+            tool = GM;
+            extension = FilenameUtils.getExtension(fileName);
+        }
+
+        if (tool == null) {
+            operations.add("link");
+            return new PreprocessingPlan(fileName, operations, List.of(), extension);
+        }
+        operations.add("auto-orient");
+        List<String> command = new ArrayList<>();
+        if (GM.equals(tool)) {
+            command.add(GM);
+        }
+        command.add(CONVERT);
+        command.add(AUTO_ORIENT);
+        command.addAll(settings);
+        command.add(input);
+        command.addAll(operators);
+        return new PreprocessingPlan(fileName, operations, command, extension);
+    }
+
+    /**
+     * Run a preprocessing plan with a single tool invocation
+     * @param plan the preprocessing plan
+     * @return path to the preprocessed image
+     */
+    public String runPreprocessingPlan(PreprocessingPlan plan) throws Exception {
+        if (plan.isLink()) {
+            return linkToTiff(plan.fileName());
+        }
+        String temporaryFile = String.valueOf(prepareTempPath(plan.fileName(), "." + plan.outputExtension()));
+        executeCommand(plan.commandFor(temporaryFile));
+
+        return temporaryFile;
+    }
+
     /**
      * Create a temporary image file with correct orientation
      * @param fileName an image file
@@ -346,7 +618,7 @@ public class ImagePreproccessingService {
         String temporaryFile = String.valueOf(prepareTempPath(fileName, "." + extension));
 
         List<String> command = Arrays.asList(GM, CONVERT, AUTO_ORIENT, fileName, temporaryFile);
-        CommandUtility.executeCommand(command);
+        executeCommand(command);
 
         return temporaryFile;
     }
@@ -355,7 +627,7 @@ public class ImagePreproccessingService {
         // For now, we will just strip out the ICC Profile
         var temporaryFile = prepareTempPath(fileName, ".tif").toString();
         var clearProfileCommand = Arrays.asList(EXIFTOOL, "-icc_profile=", fileName, "-o", temporaryFile);
-        CommandUtility.executeCommand(clearProfileCommand);
+        executeCommand(clearProfileCommand);
         return temporaryFile;
     }
 
@@ -366,12 +638,158 @@ public class ImagePreproccessingService {
      */
     public String linkToTiff(String fileName) throws Exception {
         Path target = Paths.get(fileName).toAbsolutePath();
-        Path link = prepareTempPath(fileName, ".tif");
+        // links take no space, so they are never placed in the temporary workspace
+        Path link = Files.createTempFile(tmpFilesDir, TempWorkspace.tempFilePrefix(fileName), ".tif");
+        Files.delete(link);
         Files.createSymbolicLink(link, target);
 
         return link.toAbsolutePath().toString();
     }
 
+    /**
+     * Decompress an LZW, Deflate or PackBits compressed or tiled TIFF to a temporary PPM/PGM which kdu_compress
+     * reads directly, or to an uncompressed TIFF which keeps its ICC profile, resolution and orientation.
+     * Falls back to a symbolic link if the TIFF can not be decoded.
+     * @param fileName a TIFF file
+     * @param extension ".ppm", ".pgm" or ".tif"
+     * @return a path to a PPM/PGM, or to a TIFF
+     */
+    public String decompressTiff(String fileName, String extension) throws Exception {
+        Path temporaryFile = prepareTempPath(fileName, extension);
+        if (recordedCommands != null) {
+            recordedCommands.add(List.of(TIFF_DECODER, fileName, temporaryFile.toString()));
+            return temporaryFile.toString();
+        }
+        try {
+            TiffStripDecoder.decode(fileName, temporaryFile);
+        } catch (Exception e) {
+            log.warn("Unable to decompress {}, passing it to kdu_compress as it is: {}", fileName, e.getMessage());
+            Files.deleteIfExists(temporaryFile);
+            return linkToTiff(fileName);
+        } finally {
+            if (tempWorkspace != null) {
+                tempWorkspace.settle();
+            }
+        }
+
+        return temporaryFile.toString();
+    }
+
+    /**
+     * @param fileName an image file
+     * @param sourceFormat file extension/mimetype override
+     * @return true if the image is converted to a PPM by a single command, which can write into a named pipe
+     */
+    public boolean canStreamToPpm(String fileName, String sourceFormat) {
+        return ppmCommand(fileName, sourceFormat) != null;
+    }
+
+    /**
+     * Create a named pipe in tmpFilesDir, which a PPM of an image is streamed through to kdu_compress
+     * @param fileName an image file
+     * @return the path of the pipe
+     */
+    public String createPpmFifo(String fileName) throws Exception {
+        // the pipe holds no data, so it is never placed in the temporary workspace
+        Path fifo = Files.createTempFile(tmpFilesDir, TempWorkspace.tempFilePrefix(fileName), ".ppm");
+        Files.delete(fifo);
+        FifoPipeline.createFifo(fifo);
+        return fifo.toString();
+    }
+
+    /**
+     * Convert an image to PPM into a named pipe while the consumer reads the PPM from it
+     * @param fileName an image file
+     * @param sourceFormat file extension/mimetype override
+     * @param fifo the pipe from createPpmFifo
+     * @param consumer command reading the pipe
+     * @return output of the consumer
+     */
+    public String streamToPpm(String fileName, String sourceFormat, String fifo, List<String> consumer) {
+        List<String> command = ppmCommand(fileName, sourceFormat);
+        if (command == null) {
+            throw new IllegalArgumentException("No PPM conversion to stream for " + fileName);
+        }
+        if (command.getFirst().equals(DCRAW)) {
+            return FifoPipeline.run(command, fifo, consumer, Path.of(fifo));
+        }
+        List<String> producer = new ArrayList<>(command);
+        producer.add(fifo);
+        return FifoPipeline.run(producer, null, consumer, Path.of(fifo));
+    }
+
+    /**
+     * The command convertToTiff uses to write a PPM, without its output file, as convertToPpmWithIm,
+     * convertToPpmWithGm and convertToPpmWithDcraw run it. dcraw writes to its standard output.
+     */
+    private List<String> ppmCommand(String fileName, String sourceFormat) {
+        String format = sourceFormat.isEmpty() ? FilenameUtils.getExtension(fileName).toLowerCase() : sourceFormat;
+        return switch (format) {
+            case "jpeg" -> Arrays.asList(CONVERT, AUTO_ORIENT, fileName);
+            case "cr2" -> Arrays.asList(GM, CONVERT, AUTO_ORIENT, fileName);
+            case "rw2" -> Arrays.asList(DCRAW, "-c", "-w", fileName);
+            default -> null;
+        };
+    }
+
+    /**
+     * @param colorSpace an image color space
+     * @param type an image type
+     * @return true if convertColorSpaces passes images with this color space through unchanged
+     */
+    public boolean keepsColorSpace(String colorSpace, String type) {
+        Set<String> colorSpaces = new HashSet<>(Arrays.asList("rgb", "srgb", "rgb palette", "gray"));
+        String space = colorSpace.toLowerCase();
+        return colorSpaces.contains(space)
+                && !(space.contains("rgb palette") && type.toLowerCase().contains("palette"));
+    }
+
+    /**
+     * Record preprocessing commands instead of running them, for explaining conversions without converting
+     * @param recordedCommands list the commands are added to, or null to run commands again
+     */
+    public void setRecordedCommands(List<List<String>> recordedCommands) {
+        this.recordedCommands = recordedCommands;
+    }
+
+    /**
+     * @param tempWorkspace accounts for the space of intermediates, or null to create all of them in tmpFilesDir
+     */
+    public void setTempWorkspace(TempWorkspace tempWorkspace) {
+        this.tempWorkspace = tempWorkspace;
+    }
+
+    private void executeCommand(List<String> command) {
+        if (recordedCommands != null) {
+            recordedCommands.add(List.copyOf(command));
+            return;
+        }
+        try {
+            CommandUtility.executeCommand(command);
+        } finally {
+            if (tempWorkspace != null) {
+                tempWorkspace.settle();
+            }
+        }
+    }
+
+    private void executeCommandWriteToFile(List<String> command, String temporaryFile) {
+        if (recordedCommands != null) {
+            List<String> redirectedCommand = new ArrayList<>(command);
+            redirectedCommand.add(">");
+            redirectedCommand.add(temporaryFile);
+            recordedCommands.add(List.copyOf(redirectedCommand));
+            return;
+        }
+        try {
+            CommandUtility.executeCommandWriteToFile(command, temporaryFile);
+        } finally {
+            if (tempWorkspace != null) {
+                tempWorkspace.settle();
+            }
+        }
+    }
+
     /**
      * Create tmp image files directory for temporary files
      * @return tmpImageFilesDirectoryPath
@@ -389,7 +807,10 @@ public class ImagePreproccessingService {
      * @return tmpImageFilesDirectoryPath
      */
     private Path prepareTempPath(String fileName, String extension) throws Exception {
-        Path tempPath = Files.createTempFile(tmpFilesDir, FilenameUtils.getName(fileName), extension);
+        if (tempWorkspace != null) {
+            return tempWorkspace.createTempPath(fileName, extension, tmpFilesDir);
+        }
+        Path tempPath = Files.createTempFile(tmpFilesDir, TempWorkspace.tempFilePrefix(fileName), extension);
         // delete temporary path so that it can be written over by whatever utility has requested a path
         Files.delete(tempPath);
         return tempPath;
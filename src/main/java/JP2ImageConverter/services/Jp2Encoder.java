@@ -0,0 +1,47 @@
+package JP2ImageConverter.services;
+
+import JP2ImageConverter.model.ImageProbe;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A JPEG 2000 encoder command line tool. Conversions are planned as kdu_compress commands and encoding profiles
+ * are written as kdu_compress options, each encoder translates a planned command into a command of its own tool.
+ */
+public interface Jp2Encoder {
+
+    /**
+     * @return name of the encoder tool
+     */
+    String getName();
+
+    /**
+     * @return true if the encoder can rotate its input with kdu_compress -rotate, otherwise images are turned
+     * upright before they are encoded
+     */
+    boolean supportsRotation();
+
+    /**
+     * @return true if the encoder can read its input from a named pipe
+     */
+    boolean supportsStreaming();
+
+    /**
+     * Translate a kdu_compress command
+     * @param kakaduCommand the kdu_compress command
+     * @param probe probe of the encoded image, with its resolved color space, or null if it is not known
+     * @return the command of the encoder
+     */
+    List<String> translate(List<String> kakaduCommand, ImageProbe probe);
+
+    /**
+     * Check that the encoder can use the options of an encoding profile
+     * @param options kdu_compress options of the profile
+     */
+    default void checkOptions(List<String> options) {
+        List<String> command = new ArrayList<>(List.of("kdu_compress"));
+        command.addAll(options);
+        translate(command, null);
+    }
+}
@@ -0,0 +1,33 @@
+package JP2ImageConverter.services;
+
+import JP2ImageConverter.model.ImageProbe;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Kakadu kdu_compress, which runs the planned commands as they are
+ */
+public class KakaduEncoder implements Jp2Encoder {
+    public static final String KDU_COMPRESS = "kdu_compress";
+
+    @Override
+    public String getName() {
+        return KDU_COMPRESS;
+    }
+
+    @Override
+    public boolean supportsRotation() {
+        return true;
+    }
+
+    @Override
+    public boolean supportsStreaming() {
+        return true;
+    }
+
+    @Override
+    public List<String> translate(List<String> kakaduCommand, ImageProbe probe) {
+        return new ArrayList<>(kakaduCommand);
+    }
+}
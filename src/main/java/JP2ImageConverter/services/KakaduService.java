@@ -1,23 +1,42 @@
 package JP2ImageConverter.services;
 
 import JP2ImageConverter.errors.CommandException;
+import JP2ImageConverter.model.ConversionPlan;
+import JP2ImageConverter.model.EncodingProfile;
+import JP2ImageConverter.model.ImageProbe;
+import JP2ImageConverter.model.Orientation;
+import JP2ImageConverter.model.PreprocessingPlan;
 import JP2ImageConverter.util.CommandUtility;
+import JP2ImageConverter.util.IccProfileValidator;
+import JP2ImageConverter.util.ImageHeaderReader;
+import JP2ImageConverter.util.Jp2Validator;
+import JP2ImageConverter.util.LatencyStats;
+import JP2ImageConverter.util.TempWorkspace;
+import JP2ImageConverter.util.VoidImageDetector;
 import org.apache.commons.io.FilenameUtils;
 import org.slf4j.Logger;
 
 import java.io.File;
+import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static JP2ImageConverter.services.ColorFieldsService.PHOTOMETRIC_INTERPRETATION;
 import static org.slf4j.LoggerFactory.getLogger;
@@ -84,19 +103,36 @@ public class KakaduService {
 
     private ColorFieldsService colorFieldsService;
     private ImagePreproccessingService imagePreproccessingService;
+    private ConversionCacheService conversionCacheService;
+    private RecoveryMemoService recoveryMemoService;
+    private EncodingProfileService encodingProfileService;
+    private String encodingProfile = EncodingProfileService.DEFAULT_PROFILE;
+    private boolean htj2k;
+    private Jp2Encoder encoder = new KakaduEncoder();
+    private List<String> derivatives = List.of();
+    private int previewSize;
+    private LatencyStats latencyStats;
+    private boolean fusedPreprocessing;
+    private boolean streamPreprocessing;
+    private boolean explain;
+    // off while benchmarking, so that every image is encoded every way
+    private boolean skipVoidImages = true;
+    private List<ConversionPlan> conversionPlans;
 
     /**
-     * Get color space from EXIF fields
-     * @param preprocessedImageMetadata Extracted metadata from the preprocessed image
-     * @param originalImageMetadata Extracted metadata from the original image
-     * @param originalImage the original input image
+     * Get color space from the probes of the preprocessed and original images
+     * @param preprocessedProbe probe of the preprocessed image
+     * @param originalProbe probe of the original image
      * @return colorSpace
      */
-    public Map<String, String> getColorInfo(Map<String, String> preprocessedImageMetadata,
-                                Map<String, String> originalImageMetadata,
-                                String originalImage) {
+    public Map<String, String> getColorInfo(ImageProbe preprocessedProbe, ImageProbe originalProbe) {
+        return resolveColorInfo(preprocessedProbe.metadata(), originalProbe.metadata(), originalProbe.type());
+    }
+
+    private Map<String, String> resolveColorInfo(Map<String, String> preprocessedImageMetadata,
+                                                 Map<String, String> originalImageMetadata,
+                                                 String imageType) {
         String colorSpace;
-        var imageType = colorFieldsService.identifyType(originalImage);
 
         // Identify image type for grayscale images and set color space to gray.
         // Check 2 EXIF fields (ColorSpace and PhotometricInterpretation) for color space information.
@@ -146,6 +182,55 @@ public class KakaduService {
         return colorFieldsService.extractMetadataFields(fileName);
     }
 
+    /**
+     * Probe an image once: extract its metadata, identify its type and read its header
+     * @param fileName an image file
+     * @param sourceFormat normalized source format
+     * @return the image probe
+     */
+    protected ImageProbe probeImage(String fileName, String sourceFormat) throws Exception {
+        var metadata = extractMetadata(fileName, sourceFormat);
+        var imageType = colorFieldsService.identifyType(fileName);
+        return ImageProbe.of(fileName, sourceFormat, metadata, imageType, ImageHeaderReader.read(fileName));
+    }
+
+    /**
+     * Probe the preprocessed image. The probe is inferred from the original probe wherever the preprocessing
+     * makes it predictable: symlinks to the original are identical to it and PPM/PGM files carry no metadata.
+     * Only images rewritten by an external tool have their metadata extracted again.
+     * @param originalProbe probe of the original image
+     * @param inputFile the preprocessed image
+     * @return the probe of the preprocessed image
+     */
+    protected ImageProbe probeIntermediate(ImageProbe originalProbe, String inputFile) throws Exception {
+        if (inputFile.equals(originalProbe.fileName()) || isLinkTo(inputFile, originalProbe.fileName())) {
+            return originalProbe.withFileName(inputFile);
+        }
+        var extension = FilenameUtils.getExtension(inputFile).toLowerCase();
+        if (explain && !Files.exists(Path.of(inputFile))) {
+            // intermediates are not written when explaining a conversion, predict them from the original
+            return extension.equals("ppm") || extension.equals("pgm") ?
+                    originalProbe.withoutMetadata(inputFile, extension) : originalProbe.withFileName(inputFile);
+        }
+        if (extension.equals("ppm") || extension.equals("pgm")) {
+            var header = ImageHeaderReader.read(inputFile);
+            return ImageProbe.of(inputFile, extension, Collections.emptyMap(), originalProbe.type(), header);
+        }
+        var metadata = extractMetadata(inputFile, "");
+        return ImageProbe.of(inputFile, SOURCE_FORMATS.getOrDefault(extension, extension), metadata,
+                originalProbe.type(), ImageHeaderReader.read(inputFile));
+    }
+
+    private boolean isLinkTo(String link, String target) {
+        try {
+            Path linkPath = Path.of(link);
+            return Files.isSymbolicLink(linkPath) && Files.readSymbolicLink(linkPath)
+                    .equals(Paths.get(target).toAbsolutePath());
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
     /**
      * Run kdu_compress and convert image to JP2
      * @param sourceFileName an image file
@@ -153,120 +238,604 @@ public class KakaduService {
      * @param sourceFormat file extension/mimetype override
      */
     public void kduCompress(String sourceFileName, Path outputPath, String sourceFormat) throws Exception {
-        // list of intermediate files to delete after JP2 is created
-        List<String> intermediateFiles = new ArrayList<>();
+        kduCompress(sourceFileName, outputPath, sourceFormat, encodingProfile);
+    }
+
+    /**
+     * Run kdu_compress with the options of an encoding profile and convert image to JP2.
+     * The conversion is planned first (outputs, preprocessed intermediate, recoveries and the encoder command of
+     * every output) and then executed.
+     * @param sourceFileName an image file
+     * @param outputPath destination for converted files
+     * @param sourceFormat file extension/mimetype override
+     * @param profileName name of the encoding profile
+     */
+    public void kduCompress(String sourceFileName, Path outputPath, String sourceFormat, String profileName)
+            throws Exception {
+        Conversion conversion = new Conversion(sourceFileName, explain);
+        if (explain) {
+            imagePreproccessingService.setRecordedCommands(conversion.recordedCommands);
+        }
 
         try {
-            // override source file type detection with user-inputted image file type
-            String fileName = sourceFileName;
-            sourceFormat = getSourceFormat(fileName, sourceFormat);
+            planOutputs(conversion, outputPath, sourceFormat, profileName);
+            if (restoreFromCache(conversion)) {
+                return;
+            }
+            conversion.timer.skip();
 
-            // Create a symlink to the original file in order to add a file extension
-            fileName = linkToOriginal(fileName, sourceFormat, intermediateFiles);
+            preprocess(conversion);
+            // the pipe can only be read by kdu_compress, so a streamed image is sampled from the original
+            String sampledFile = conversion.fifo != null ? conversion.fileName : conversion.inputFile;
+            boolean voidImage = !explain && skipVoidImages && isVoidGrayImage(sampledFile, conversion.encodedProbe());
+            conversion.timer.lap("void detection");
+            if (voidImage) {
+                return;
+            }
+            prepareEncoderInput(conversion);
+            planCommands(conversion);
 
-            String kduCompress = "kdu_compress";
-            String input = "-i";
+            if (explain) {
+                printConversionPlan(conversion);
+                return;
+            }
+            encodeOutputs(conversion);
+        } finally {
+            if (explain) {
+                imagePreproccessingService.setRecordedCommands(null);
+            }
+            conversion.timer.skip();
+            // delete intermediate files and symlinks after JP2 generated
+            for (String intermediateFile : conversion.intermediateFiles) {
+                Files.deleteIfExists(Path.of(intermediateFile));
+            }
+            conversion.timer.lap("cleanup");
+            conversion.timer.recordTo(latencyStats, conversion.sourceFormat, conversion.colorSpace);
+        }
+    }
+
+    /**
+     * Resolve the source format of an image and name its outputs, one for each derivative profile
+     */
+    private void planOutputs(Conversion conversion, Path outputPath, String sourceFormat, String profileName)
+            throws Exception {
+        // override source file type detection with user-inputted image file type
+        conversion.sourceFormat = getSourceFormat(conversion.sourceFileName, sourceFormat);
+
+        // Create a symlink to the original file in order to add a file extension
+        conversion.fileName = linkToOriginal(conversion.sourceFileName, conversion.sourceFormat,
+                conversion.intermediateFiles);
+
+        // with derivatives, every profile writes its own output named after the profile
+        conversion.derivativeMode = !derivatives.isEmpty() || previewSize > 0;
+        conversion.outputProfiles = derivatives.isEmpty() ? List.of(profileName) : derivatives;
+        for (String outputProfile : conversion.outputProfiles) {
+            conversion.outputFiles.add(getOutputFile(conversion.fileName, outputPath,
+                    derivatives.isEmpty() ? "" : "_" + outputProfile, getOutputExtension()));
+        }
+        conversion.previewFile = previewSize > 0 ?
+                getOutputFile(conversion.fileName, outputPath, "_preview", ".jpg") : null;
+        conversion.kakaduOptions = kakaduOptions(conversion.outputProfiles.get(0));
+    }
+
+    /**
+     * Copy the output of a byte identical duplicate of an already converted image from the conversion cache
+     * @return true if the output was restored from the cache
+     */
+    private boolean restoreFromCache(Conversion conversion) throws Exception {
+        if (conversionCacheService == null || explain || conversion.derivativeMode) {
+            return false;
+        }
+        conversion.digest = conversionCacheService.getDigest(conversion.sourceFileName);
+        conversion.cacheParameters = conversion.sourceFormat + " " + String.join(" ", conversion.kakaduOptions);
+        if (!(encoder instanceof KakaduEncoder)) {
+            conversion.cacheParameters += " " + encoder.getName();
+        }
+        boolean restored = conversionCacheService.restore(conversion.digest, conversion.cacheParameters,
+                Path.of(conversion.outputFile()));
+        conversion.timer.lap("cache lookup");
+        return restored;
+    }
+
+    /**
+     * Preprocess an image into the intermediate kdu_compress reads, with a single fused tool invocation, through a
+     * named pipe or as a temporary TIFF, and probe it for its color space
+     */
+    private void preprocess(Conversion conversion) throws Exception {
+        String fileName = conversion.fileName;
+        String sourceFormat = conversion.sourceFormat;
+        LatencyStats.Timer timer = conversion.timer;
+        ImageProbe originalProbe = null;
+        PreprocessingPlan plan = null;
+        if (fusedPreprocessing) {
+            // Probe the original and plan all of its preprocessing as a single tool invocation
+            originalProbe = probeImage(fileName, sourceFormat);
+            conversion.colorInfo = getColorInfo(originalProbe, originalProbe);
+            // a TIFF which only needs rotating is passed to kdu_compress as it is
+            List<String> rotation = sourceFormat.equals("tiff") ?
+                    kakaduOrientationOptions(originalProbe.orientation()) : null;
+            plan = imagePreproccessingService.planPreprocessing(fileName, sourceFormat,
+                    conversion.colorInfo.get(COLOR_SPACE), conversion.colorInfo.get(COLOR_TYPE),
+                    rotation == null ? originalProbe : originalProbe.withOrientation(null));
+            if (rotation != null && plan != null && plan.isLink()) {
+                conversion.orientationOptions.addAll(rotation);
+            }
+            timer.lap("probe");
+        }
+
+        String fifo = null;
+        if (plan == null && streamPreprocessing && !explain && !conversion.derivativeMode
+                && encoder.supportsStreaming() && imagePreproccessingService.canStreamToPpm(fileName, sourceFormat)) {
+            // Stream the PPM to kdu_compress if nothing but kdu_compress needs to read it
+            if (originalProbe == null) {
+                originalProbe = probeImage(fileName, sourceFormat);
+            }
+            var predictedProbe = originalProbe.withoutMetadata(fileName, "ppm");
+            var predictedColorInfo = getColorInfo(predictedProbe, originalProbe);
+            if (imagePreproccessingService.keepsColorSpace(predictedColorInfo.get(COLOR_SPACE),
+                    predictedColorInfo.get(COLOR_TYPE))) {
+                fifo = createFifo(fileName);
+            }
+            if (fifo != null) {
+                conversion.intermediateFiles.add(fifo);
+                conversion.preprocessedProbe = predictedProbe.withFileName(fifo);
+                conversion.colorInfo = predictedColorInfo;
+            }
+            timer.lap("probe");
+        }
+
+        String inputFile;
+        if (plan != null) {
+            log.debug("Preprocessing {}: {}", fileName, String.join(", ", plan.operations()));
+            inputFile = imagePreproccessingService.runPreprocessingPlan(plan);
+            conversion.intermediateFiles.add(inputFile);
+            timer.lap("preprocess fused " + sourceFormat);
+        } else if (fifo != null) {
+            inputFile = fifo;
+        } else {
             // preprocess non-TIFF images and convert them to temporary TIFFs before kdu_compress
-            String inputFile = imagePreproccessingService.convertToTiff(fileName, sourceFormat);
+            inputFile = imagePreproccessingService.convertToTiff(fileName, sourceFormat);
             // Only add the temporary TIFF to intermediate files if it is different from the original file
             if (!fileName.equals(inputFile)) {
-                intermediateFiles.add(inputFile);
+                conversion.intermediateFiles.add(inputFile);
             }
-            String output = "-o";
-            String outputFile;
-            String outputDefaultFilename = FilenameUtils.getBaseName(fileName) + ".jp2";
-
-            // if the output path is a directory
-            if (Files.isDirectory(outputPath)) {
-                outputFile = outputPath + "/" + outputDefaultFilename;
-                // if the output path is a file
-            } else if (Files.exists(outputPath.getParent())) {
-                outputFile = outputPath + ".jp2";
-            } else {
-                throw new Exception(outputPath + " does not exist.");
+            timer.lap("preprocess convert " + sourceFormat);
+
+            // Probe the original once, infer the preprocessed probe where possible
+            if (originalProbe == null) {
+                originalProbe = probeImage(fileName, sourceFormat);
             }
+            conversion.preprocessedProbe = probeIntermediate(originalProbe, inputFile);
+            conversion.colorInfo = getColorInfo(conversion.preprocessedProbe, originalProbe);
+            timer.lap("probe");
+        }
+        conversion.inputFile = inputFile;
+        conversion.originalProbe = originalProbe;
+        conversion.plan = plan;
+        conversion.fifo = fifo;
+        conversion.colorSpace = conversion.colorInfo.get(COLOR_SPACE);
+    }
 
-            String clevels = "Clevels=6";
-            String clayers = "Clayers=6";
-            String cprecincts = "Cprecincts={256,256},{256,256},{128,128}";
-            String stiles = "Stiles={512,512}";
-            String corder = "Corder=RPCL";
-            String orggenplt = "ORGgen_plt=yes";
-            String orgtparts = "ORGtparts=R";
-            String cblk = "Cblk={64,64}";
-            String cusesop = "Cuse_sop=yes";
-            String cuseeph = "Cuse_eph=yes";
-            String flushPeriod = "-flush_period";
-            String flushPeriodOptions = "1024";
-            String rate = "-rate";
-            String rateOptions = "3";
-            String weights = "-no_weights";
-            String jp2Space;
-            String jp2SpaceOptions;
-            String noPalette;
-
-            // Perform corrections to the input image
-            var originalImageMetadata = extractMetadata(fileName, sourceFormat);
-            var preprocessedImageMetadata = originalImageMetadata;
-            if (!fileName.equals(inputFile)) {
-                preprocessedImageMetadata = extractMetadata(inputFile, "");
+    /**
+     * Correct the intermediate for kdu_compress and apply the recoveries which worked for earlier images like this
+     * one. Recoveries are applied once for all outputs of the image, before any of them is encoded.
+     */
+    private void prepareEncoderInput(Conversion conversion) throws Exception {
+        if (conversion.fifo != null) {
+            return;
+        }
+        if (conversion.plan == null) {
+            conversion.inputFile = correctInputImage(conversion.inputFile, conversion.fileName,
+                    conversion.sourceFormat, conversion.colorInfo, conversion.preprocessedProbe,
+                    conversion.intermediateFiles, conversion.orientationOptions, conversion.timer);
+        }
+        boolean tiffInput = FilenameUtils.isExtension(conversion.inputFile.toLowerCase(), "tif", "tiff");
+        // recoveries which worked for earlier images like this one are applied before the first encode
+        if (recoveryMemoService != null && !explain) {
+            conversion.recoverySignature = RecoveryMemoService.signature(
+                    tiffInput ? IccProfileValidator.readProfile(conversion.inputFile) : null, conversion.sourceFormat,
+                    conversion.originalProbe.bitDepth(), Objects.requireNonNullElse(
+                            conversion.originalProbe.metadata().get(PHOTOMETRIC_INTERPRETATION),
+                            conversion.colorSpace));
+            conversion.knownRecoveries = recoveryMemoService.lookup(conversion.recoverySignature);
+        }
+        // kdu_compress rejects truncated ICC curves, strip the profile instead of failing the first encode
+        if (tiffInput && (conversion.knownRecoveries.contains(RecoveryMemoService.Recovery.STRIP_ICC_PROFILE)
+                || IccProfileValidator.isEnabled() && IccProfileValidator.hasTruncatedCurve(conversion.inputFile))) {
+            log.warn("Invalid ICC profile in {}, encoding without ICC profile", conversion.fileName);
+            conversion.inputFile = imagePreproccessingService.handleIccProfile(conversion.inputFile);
+            conversion.intermediateFiles.add(conversion.inputFile);
+            conversion.timer.lap("preprocess icc profile");
+        }
+    }
+
+    /**
+     * Plan the kdu_compress command of every output, and run each by the selected encoder
+     */
+    private void planCommands(Conversion conversion) {
+        String kduCompress = "kdu_compress";
+        String input = "-i";
+        String output = "-o";
+        String jp2Space;
+        String jp2SpaceOptions;
+        String noPalette;
+        List<String> command = new ArrayList<>(Arrays.asList(kduCompress, input, conversion.inputFile, output,
+                conversion.outputFile()));
+        command.addAll(conversion.kakaduOptions);
+        command.addAll(conversion.orientationOptions);
+
+        // for GIF images: add no_palette to command
+        if (FilenameUtils.getExtension(conversion.fileName).equalsIgnoreCase("gif")
+                || conversion.sourceFormat.equals("gif")) {
+            noPalette = "-no_palette";
+            command.add(noPalette);
+        }
+
+        // for grayscale images: add jp2Space to command
+        if (conversion.colorSpace.equalsIgnoreCase("gray")) {
+            jp2Space = "-jp2_space";
+            jp2SpaceOptions = "sLUM";
+            command.add(jp2Space);
+            command.add(jp2SpaceOptions);
+        }
+
+        if (conversion.knownRecoveries.contains(RecoveryMemoService.Recovery.NO_PALETTE)
+                && !command.contains("-no_palette")) {
+            command.add("-no_palette");
+        }
+
+        // the other outputs differ from the first only in their output file and profile options
+        conversion.commands.add(command);
+        List<String> sharedOptions = command.subList(5 + conversion.kakaduOptions.size(), command.size());
+        for (int i = 1; i < conversion.outputFiles.size(); i++) {
+            List<String> derivativeCommand = new ArrayList<>(
+                    Arrays.asList(kduCompress, input, conversion.inputFile, output, conversion.outputFiles.get(i)));
+            derivativeCommand.addAll(kakaduOptions(conversion.outputProfiles.get(i)));
+            derivativeCommand.addAll(sharedOptions);
+            conversion.commands.add(derivativeCommand);
+        }
+        // commands are planned for kdu_compress and run by the selected encoder
+        ImageProbe encodedProbe = conversion.encodedProbe();
+        for (int i = 0; i < conversion.commands.size(); i++) {
+            conversion.commands.set(i, encoder.translate(conversion.commands.get(i), encodedProbe));
+        }
+        // kdu_compress rotates the image it encodes, the preview is rotated by ImageMagick
+        conversion.previewOrientation = conversion.orientationOptions.isEmpty() ? Orientation.TOP_LEFT :
+                Orientation.fromDescription(conversion.originalProbe.orientation());
+    }
+
+    /**
+     * Print the tools, intermediate formats and encoder commands of a planned conversion, without encoding
+     */
+    private void printConversionPlan(Conversion conversion) throws Exception {
+        conversion.recordedCommands.addAll(conversion.commands);
+        if (conversion.previewFile != null) {
+            imagePreproccessingService.createPreviewWithIm(conversion.inputFile, conversion.previewOrientation,
+                    previewSize, conversion.previewFile);
+        }
+        ConversionPlan conversionPlan = new ConversionPlan(conversion.sourceFileName, conversion.sourceFormat,
+                Files.size(Path.of(conversion.sourceFileName)), conversion.originalProbe, conversion.colorSpace,
+                conversion.recordedCommands);
+        conversionPlan.print(System.out);
+        if (conversionPlans != null) {
+            conversionPlans.add(conversionPlan);
+        }
+    }
+
+    /**
+     * Execute the planned commands, verify the outputs, delete void outputs and store the output in the conversion
+     * cache
+     */
+    private void encodeOutputs(Conversion conversion) throws Exception {
+        LatencyStats.Timer timer = conversion.timer;
+        String outputFile = conversion.outputFile();
+        timer.skip();
+        if (conversion.fifo != null) {
+            encodeStreamed(conversion.fileName, conversion.sourceFormat, conversion.fifo,
+                    conversion.commands.get(0), conversion.intermediateFiles);
+            timer.lap("encode streamed " + conversion.sourceFormat);
+        } else if (conversion.derivativeMode) {
+            encodeDerivatives(conversion);
+            timer.lap("encode derivatives");
+        } else {
+            encode(conversion.commands.get(0), conversion.intermediateFiles, conversion.recoverySignature);
+            timer.lap("encode");
+        }
+        for (String encodedFile : conversion.outputFiles) {
+            verifyOutput(encodedFile);
+        }
+        if (skipVoidImages) {
+            deleteTinyGrayVoidImages(outputFile, conversion.encodedProbe());
+        }
+        // small derivatives are judged by the first output, a void image keeps none of its outputs
+        if (conversion.derivativeMode && !Files.exists(Path.of(outputFile))) {
+            for (String encodedFile : conversion.outputFiles) {
+                Files.deleteIfExists(Path.of(encodedFile));
+            }
+            if (conversion.previewFile != null) {
+                Files.deleteIfExists(Path.of(conversion.previewFile));
+            }
+        }
+        timer.lap("verify");
+        if (conversionCacheService != null && Files.exists(Path.of(outputFile))) {
+            conversionCacheService.store(conversion.digest, conversion.cacheParameters, Path.of(outputFile));
+            timer.lap("cache store");
+        }
+    }
+
+    /**
+     * Determine the output JP2 file name
+     * @param fileName the source image file
+     * @param outputPath destination for converted files, a directory or a file name without extension
+     * @param suffix added to the name of the output, empty for the only output of an image
+     * @param extension extension of the output
+     * @return the output JP2 file
+     */
+    private String getOutputFile(String fileName, Path outputPath, String suffix, String extension)
+            throws Exception {
+        String outputDefaultFilename = FilenameUtils.getBaseName(fileName) + suffix + extension;
+
+        // if the output path is a directory
+        if (Files.isDirectory(outputPath)) {
+            return outputPath + "/" + outputDefaultFilename;
+            // if the output path is a file
+        } else if (Files.exists(outputPath.getParent())) {
+            return outputPath + suffix + extension;
+        } else {
+            throw new Exception(outputPath + " does not exist.");
+        }
+    }
+
+    /**
+     * HTJ2K outputs are named .jph unless jp24u.htj2k.extension=jp2, for viewers which only open .jp2 files.
+     * The box structure of both is the same, kdu_compress writes a JPH file for a .jph output.
+     * @return extension of the output files
+     */
+    private String getOutputExtension() {
+        if (!htj2k) {
+            return ".jp2";
+        }
+        String extension = System.getProperty("jp24u.htj2k.extension", "jph");
+        if (!extension.equals("jph") && !extension.equals("jp2")) {
+            throw new IllegalArgumentException("Invalid jp24u.htj2k.extension " + extension + ", expected jph or jp2");
+        }
+        return "." + extension;
+    }
+
+    /**
+     * @param profileName name of an encoding profile
+     * @return kdu_compress encoding options of the profile, with the HTJ2K block coder if it was selected
+     */
+    private List<String> kakaduOptions(String profileName) {
+        if (encodingProfileService == null) {
+            encodingProfileService = new EncodingProfileService();
+        }
+        EncodingProfile profile = encodingProfileService.get(profileName);
+        return htj2k ? EncodingProfileService.htj2kOptions(profile) : profile.options();
+    }
+
+    /**
+     * Map an EXIF orientation onto kdu_compress -rotate, which rotates the image as it is encoded.
+     * Disabled with jp24u.kakadu.orientation=false, and for encoders which can not rotate their input.
+     * @param orientation orientation description from a probe, may be null
+     * @return the options, empty for the default orientation, or null if kdu_compress can not express the
+     * orientation (mirrored or unknown) and a corrected temporary image is needed
+     */
+    private List<String> kakaduOrientationOptions(String orientation) {
+        if (orientation == null || ColorFieldsService.ORIENTATION_DEFAULT.equals(orientation)) {
+            return Collections.emptyList();
+        }
+        if (!encoder.supportsRotation()
+                || !Boolean.parseBoolean(System.getProperty("jp24u.kakadu.orientation", "true"))) {
+            return null;
+        }
+        Orientation parsed = Orientation.fromDescription(orientation);
+        if (!parsed.getDescription().equals(orientation) || parsed.getRotation() == null) {
+            return null;
+        }
+        return Arrays.asList("-rotate", String.valueOf(parsed.getRotation()));
+    }
+
+    /**
+     * Create a named pipe for streaming the PPM of an image to kdu_compress
+     * @return the pipe, or null if it could not be created
+     */
+    private String createFifo(String fileName) {
+        try {
+            return imagePreproccessingService.createPpmFifo(fileName);
+        } catch (Exception e) {
+            log.warn("Unable to create a named pipe for {}, converting through a temporary file: {}", fileName,
+                    e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Run the PPM conversion and kdu_compress side by side through a named pipe. The recoveries of
+     * performKakaduCommandWithRecovery need a PPM on disk, so if streaming fails the image is converted
+     * through a temporary file and encoded again.
+     */
+    private void encodeStreamed(String fileName, String sourceFormat, String fifo, List<String> command,
+                                List<String> intermediateFiles) throws Exception {
+        try {
+            log.debug("Streaming {} to kakadu command: {}", fileName, command);
+            imagePreproccessingService.streamToPpm(fileName, sourceFormat, fifo, command);
+        } catch (CommandException e) {
+            log.warn("Streaming {} to kdu_compress failed, converting through a temporary file: {}", fileName,
+                    e.getMessage());
+            String inputFile = imagePreproccessingService.convertToTiff(fileName, sourceFormat);
+            intermediateFiles.add(inputFile);
+            command.set(command.indexOf(fifo), inputFile);
+            performKakaduCommandWithRecovery(command, intermediateFiles, true, new ArrayList<>());
+        }
+    }
+
+    /**
+     * Run kdu_compress for one output, recording the recovery which made it succeed
+     * @param command the kdu_compress command
+     * @param intermediateFiles receives the intermediate files of the encode
+     * @param recoverySignature signature of the image in the recovery memo, null if there is no memo
+     */
+    private void encode(List<String> command, List<String> intermediateFiles, String recoverySignature)
+            throws Exception {
+        List<RecoveryMemoService.Recovery> recoveries = new ArrayList<>();
+        performKakaduCommandWithRecovery(command, intermediateFiles, true, recoveries);
+        if (recoverySignature != null) {
+            for (RecoveryMemoService.Recovery recovery : recoveries) {
+                recoveryMemoService.record(recoverySignature, recovery);
             }
-            var colorInfo = getColorInfo(preprocessedImageMetadata, originalImageMetadata, fileName);
-            var colorSpace = colorInfo.get(COLOR_SPACE);
-            inputFile = correctInputImage(inputFile, fileName, sourceFormat, colorInfo, preprocessedImageMetadata, intermediateFiles);
-
-            List<String> command = new ArrayList<>(Arrays.asList(kduCompress, input, inputFile, output, outputFile,
-                    clevels, clayers, cprecincts, stiles, corder, orggenplt, orgtparts, cblk, cusesop, cuseeph,
-                    flushPeriod, flushPeriodOptions, rate, rateOptions, weights));
-
-            // for GIF images: add no_palette to command
-            if (FilenameUtils.getExtension(fileName).equalsIgnoreCase("gif") || sourceFormat.equals("gif")) {
-                noPalette = "-no_palette";
-                command.add(noPalette);
+        }
+    }
+
+    /**
+     * Encode all outputs of an image and write its preview at the same time, all reading the same intermediate.
+     * Waits for every encode to finish before returning, also when one fails, so the intermediate is only deleted
+     * once nothing reads it anymore. A known kdu_compress failure is recovered from once for all outputs, before
+     * the outputs which failed are encoded again.
+     * @param conversion the planned conversion, with a command for each output
+     */
+    private void encodeDerivatives(Conversion conversion) throws Exception {
+        List<List<String>> commands = conversion.commands;
+        List<Callable<Object>> tasks = new ArrayList<>();
+        for (List<String> command : commands) {
+            tasks.add(() -> {
+                log.debug("Performing kakadu command: {}", command);
+                return CommandUtility.executeCommand(command);
+            });
+        }
+        if (conversion.previewFile != null) {
+            tasks.add(() -> {
+                imagePreproccessingService.createPreviewWithIm(conversion.inputFile, conversion.previewOrientation,
+                        previewSize, conversion.previewFile);
+                return null;
+            });
+        }
+        List<Exception> failures = runConcurrently(tasks);
+
+        // the outputs which failed with the same known kdu_compress failure are retried
+        RecoveryMemoService.Recovery recovery = null;
+        CommandException recoverable = null;
+        List<List<String>> retried = new ArrayList<>();
+        for (int i = 0; i < failures.size(); i++) {
+            Exception failure = failures.get(i);
+            if (failure == null) {
+                continue;
+            }
+            RecoveryMemoService.Recovery needed = i < commands.size() && failure instanceof CommandException e ?
+                    recoveryFor(e) : null;
+            if (needed == null || recovery != null && recovery != needed) {
+                throw failure;
             }
+            recovery = needed;
+            recoverable = (CommandException) failure;
+            retried.add(commands.get(i));
+        }
+        if (recovery == null) {
+            return;
+        }
 
-            // for grayscale images: add jp2Space to command
-            if (colorSpace.equalsIgnoreCase("gray")) {
-                jp2Space = "-jp2_space";
-                jp2SpaceOptions = "sLUM";
-                command.add(jp2Space);
-                command.add(jp2SpaceOptions);
+        applyRecovery(recovery, retried, conversion.intermediateFiles, recoverable);
+        List<Callable<Object>> retries = new ArrayList<>();
+        for (List<String> command : retried) {
+            retries.add(() -> {
+                log.debug("Performing kakadu command: {}", command);
+                return CommandUtility.executeCommand(command);
+            });
+        }
+        for (Exception failure : runConcurrently(retries)) {
+            if (failure != null) {
+                throw failure;
             }
+        }
+        if (conversion.recoverySignature != null) {
+            recoveryMemoService.record(conversion.recoverySignature, recovery);
+        }
+    }
 
-            performKakaduCommandWithRecovery(command, intermediateFiles, true);
-            deleteTinyGrayVoidImages(outputFile);
-        } finally {
-            // delete intermediate files and symlinks after JP2 generated
-            for (String intermediateFile : intermediateFiles) {
-                Files.deleteIfExists(Path.of(intermediateFile));
+    /**
+     * Run tasks on their own threads and wait for all of them to finish
+     * @param tasks the tasks
+     * @return the failure of each task, null for the tasks which succeeded
+     */
+    private List<Exception> runConcurrently(List<Callable<Object>> tasks) throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(tasks.size(), runnable -> {
+            Thread thread = new Thread(runnable, "jp24u-derivative");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            List<Exception> failures = new ArrayList<>();
+            for (Future<Object> result : executor.invokeAll(tasks)) {
+                try {
+                    result.get();
+                    failures.add(null);
+                } catch (ExecutionException e) {
+                    failures.add(e.getCause() instanceof Exception cause ? cause : e);
+                }
             }
+            return failures;
+        } finally {
+            executor.shutdownNow();
         }
     }
 
-    private void performKakaduCommandWithRecovery(List<String> command, List<String> intermediateFiles, boolean retry) throws Exception {
+    /**
+     * Run kdu_compress, retrying once with a recovery for known failures
+     * @param recoveries receives the recovery which made kdu_compress succeed, if any
+     */
+    private void performKakaduCommandWithRecovery(List<String> command, List<String> intermediateFiles, boolean retry,
+                                                  List<RecoveryMemoService.Recovery> recoveries) throws Exception {
         try {
             log.debug("Performing kakadu command: {}", command);
             CommandUtility.executeCommand(command);
         } catch (CommandException e) {
-            var output = e.getOutput();
-            if (retry) {
-                if (output.contains("ICC profile") && output.contains("reproduction curve appears to have been truncated")) {
-                    log.warn("Invalid ICC profile, retrying without ICC profile: {}", e.getMessage());
-                    var inputIndex = command.indexOf("-i") + 1;
-                    var modifiedTmpPath = imagePreproccessingService.handleIccProfile(command.get(inputIndex));
-                    command.set(inputIndex, modifiedTmpPath);
-                    intermediateFiles.add(modifiedTmpPath);
-                    performKakaduCommandWithRecovery(command, intermediateFiles, false);
-                    return;
-                } else if (output.contains("no_palette") && output.contains("to avoid nasty palettization effects")) {
-                    // rarely, there is a TIFF that requires -no_palatte to generate a JP2
-                    log.warn("Optimizing palette error, retrying with -no_palette: {}", e.getMessage());
-                    command.add("-no_palette");
-                    performKakaduCommandWithRecovery(command, intermediateFiles, false);
-                    return;
-                }
+            RecoveryMemoService.Recovery recovery = retry ? recoveryFor(e) : null;
+            if (recovery == null) {
+                throw e;
+            }
+            applyRecovery(recovery, List.of(command), intermediateFiles, e);
+            performKakaduCommandWithRecovery(command, intermediateFiles, false, recoveries);
+            recoveries.add(recovery);
+        }
+    }
+
+    /**
+     * @param e a failed kdu_compress command
+     * @return the recovery for a known kdu_compress failure, or null if the failure is not known
+     */
+    private static RecoveryMemoService.Recovery recoveryFor(CommandException e) {
+        var output = e.getOutput();
+        if (output.contains("ICC profile") && output.contains("reproduction curve appears to have been truncated")) {
+            return RecoveryMemoService.Recovery.STRIP_ICC_PROFILE;
+        } else if (output.contains("no_palette") && output.contains("to avoid nasty palettization effects")) {
+            return RecoveryMemoService.Recovery.NO_PALETTE;
+        }
+        return null;
+    }
+
+    /**
+     * Change failed kdu_compress commands, which all read the same input, so that they can be run again
+     * @param recovery the recovery for the failure
+     * @param commands the failed commands
+     * @param intermediateFiles receives the intermediate files of the recovery
+     * @param e the failure
+     */
+    private void applyRecovery(RecoveryMemoService.Recovery recovery, List<List<String>> commands,
+                               List<String> intermediateFiles, CommandException e) throws Exception {
+        if (recovery == RecoveryMemoService.Recovery.STRIP_ICC_PROFILE) {
+            log.warn("Invalid ICC profile, retrying without ICC profile: {}", e.getMessage());
+            List<String> first = commands.get(0);
+            var modifiedTmpPath = imagePreproccessingService.handleIccProfile(first.get(first.indexOf("-i") + 1));
+            intermediateFiles.add(modifiedTmpPath);
+            for (List<String> command : commands) {
+                command.set(command.indexOf("-i") + 1, modifiedTmpPath);
+            }
+        } else {
+            // rarely, there is a TIFF that requires -no_palatte to generate a JP2
+            log.warn("Optimizing palette error, retrying with -no_palette: {}", e.getMessage());
+            for (List<String> command : commands) {
+                command.add("-no_palette");
             }
-            throw e;
         }
     }
 
@@ -292,21 +861,27 @@ public class KakaduService {
      * @param fileName
      * @param sourceFormat
      * @param colorInfo
-     * @param metadata extracted metadata from the source image
+     * @param probe probe of the preprocessed image
      * @param intermediateFiles
+     * @param orientationOptions receives the kdu_compress options which turn the image upright, when Kakadu
+     *                           corrects the orientation instead of a temporary image
+     * @param timer records the time taken by the correction that was applied
      * @return
      * @throws Exception
      */
     private String correctInputImage(String inputFile, String fileName, String sourceFormat, Map<String, String> colorInfo,
-                                     Map<String, String> metadata, List<String> intermediateFiles) throws Exception {
+                                     ImageProbe probe, List<String> intermediateFiles,
+                                     List<String> orientationOptions, LatencyStats.Timer timer) throws Exception {
         var fileBeforeColorConversion = inputFile;
-        var orientation = metadata.get(ColorFieldsService.ORIENTATION);
+        var metadata = probe.metadata();
+        var orientation = probe.orientation();
         // convert unusual color spaces to temporary TIFF before kduCompress
         // unusual color spaces: CMYK, YcbCr, AtoB0, Color Filter Array, CIELab
         inputFile = imagePreproccessingService.convertColorSpaces(colorInfo.get(COLOR_SPACE),
                 colorInfo.get(COLOR_TYPE), inputFile);
         if (!fileBeforeColorConversion.equals(inputFile)) {
             intermediateFiles.add(inputFile);
+            timer.lap("preprocess colorspace");
             return inputFile;
         }
         // Strip alpha channel from grayscale images incorrectly identified as sRGB
@@ -315,6 +890,7 @@ public class KakaduService {
                 && colorInfo.get(COLOR_TYPE).contains("GrayscaleAlpha")) {
             inputFile = imagePreproccessingService.removeAlphaChannel(inputFile);
             intermediateFiles.add(inputFile);
+            timer.lap("preprocess alpha");
             return inputFile;
         }
         // Create a temporary TIFF with the correct orientation if no color space conversion was done
@@ -323,8 +899,17 @@ public class KakaduService {
                 sourceFormat : SOURCE_FORMATS.get(FilenameUtils.getExtension(fileName));
         if (orientation != null && format != null && format.equals("tiff")
                 && !ColorFieldsService.ORIENTATION_DEFAULT.equals(orientation)) {
+            List<String> rotation = kakaduOrientationOptions(orientation);
+            if (rotation != null) {
+                orientationOptions.addAll(rotation);
+                timer.lap("preprocess none");
+                return inputFile;
+            }
             inputFile = imagePreproccessingService.correctOrientation(fileName);
             intermediateFiles.add(inputFile);
+            timer.lap("preprocess orientation");
+        } else {
+            timer.lap("preprocess none");
         }
 
         return inputFile;
@@ -332,33 +917,229 @@ public class KakaduService {
 
     /**
      * Iterate through list of image files and run kdu_compress to convert all images to JP2s
+     * A line may name the encoding profile of its image after a tab, other images use the selected profile.
      * @param fileName a list of image files
      * @param outputPath destination for converted files
      * @param sourceFormat file extension/mimetype override
      */
     public void fileListKduCompress(String fileName, Path outputPath, String sourceFormat) throws Exception {
-        List<String> listOfFiles = Files.readAllLines(Paths.get(fileName), StandardCharsets.UTF_8);
-
-        Iterator<String> itr = listOfFiles.iterator();
-        while (itr.hasNext()) {
-            String imageFileName = itr.next();
-            if (Files.exists(Paths.get(imageFileName))) {
-                kduCompress(imageFileName, outputPath, sourceFormat);
-            } else {
-                throw new Exception(imageFileName + " does not exist. Not processing file list further.");
+        List<String> listOfFiles = new ArrayList<>();
+        List<String> profileNames = new ArrayList<>();
+        for (String line : Files.readAllLines(Paths.get(fileName), StandardCharsets.UTF_8)) {
+            String[] fields = line.split("\t", 2);
+            listOfFiles.add(fields[0]);
+            profileNames.add(fields.length > 1 && !fields[1].isBlank() ? fields[1].trim() : encodingProfile);
+        }
+        // fail on unknown profiles and profiles the encoder can not use before converting anything
+        profileNames.forEach(profileName -> encoder.checkOptions(kakaduOptions(profileName)));
+
+        int lookahead = Integer.getInteger("jp24u.conversioncache.lookahead", 2);
+        int filesProcessed = 0;
+        Instant start = Instant.now();
+        latencyStats = new LatencyStats();
+        conversionPlans = explain ? new ArrayList<>() : null;
+        try {
+            for (int i = 0; i < listOfFiles.size(); i++) {
+                String imageFileName = listOfFiles.get(i);
+                // digest the next files in the background while this one is converted
+                if (conversionCacheService != null && !explain) {
+                    for (int next = i + 1; next <= i + lookahead && next < listOfFiles.size(); next++) {
+                        if (Files.exists(Paths.get(listOfFiles.get(next)))) {
+                            conversionCacheService.prefetchDigest(listOfFiles.get(next));
+                        }
+                    }
+                }
+                if (Files.exists(Paths.get(imageFileName))) {
+                    kduCompress(imageFileName, outputPath, sourceFormat, profileNames.get(i));
+                    filesProcessed++;
+                } else {
+                    throw new Exception(imageFileName + " does not exist. Not processing file list further.");
+                }
+            }
+
+            if (explain) {
+                ConversionPlan.printSummary(conversionPlans, System.out);
+                return;
+            }
+
+            // after run completed, print runtime data
+            Long overallRuntime = Duration.between(start, Instant.now()).toMillis();
+            System.out.println("Number of Files Processed: " + filesProcessed);
+            System.out.println("Total Overall Runtime: " + overallRuntime + " milliseconds");
+            latencyStats.print(System.out);
+        } finally {
+            latencyStats = null;
+            conversionPlans = null;
+        }
+    }
+
+    /**
+     * Compare the selected encoding profile as encoded by kdu_compress, by kdu_compress with HTJ2K and, if another
+     * encoder was selected, by that encoder on a list of image files. Each image is encoded every way into a
+     * temporary directory, and each output is decoded by kdu_expand at a quarter of its resolution for the center
+     * of the image, the request an image viewer makes when it opens an image.
+     * Prints the encode time, output size and region decode time of every image and the totals of every encoder.
+     * Every image is encoded, without the conversion cache, recovery memo or void image detection.
+     * @param fileName a list of image files
+     * @param sourceFormat file extension/mimetype override
+     */
+    public void benchmark(String fileName, String sourceFormat) throws Exception {
+        if (!derivatives.isEmpty() || previewSize > 0) {
+            throw new IllegalArgumentException("Derivatives and previews can not be benchmarked, " +
+                    "benchmark each encoding profile on its own");
+        }
+        List<String> listOfFiles = Files.readAllLines(Paths.get(fileName), StandardCharsets.UTF_8).stream()
+                .map(line -> line.split("\t", 2)[0]).filter(line -> !line.isBlank()).toList();
+        kakaduOptions(encodingProfile);
+        boolean selectedHtj2k = htj2k;
+        Jp2Encoder selectedEncoder = encoder;
+        List<Jp2Encoder> encoders = new ArrayList<>(List.of(new KakaduEncoder(), new KakaduEncoder()));
+        List<String> labels = new ArrayList<>(List.of("kdu_compress", "kdu_compress HT"));
+        if (!(selectedEncoder instanceof KakaduEncoder)) {
+            selectedEncoder.checkOptions(kakaduOptions(encodingProfile));
+            encoders.add(selectedEncoder);
+            labels.add(selectedEncoder.getName());
+        }
+        long[] encodeNanos = new long[encoders.size()];
+        long[] sizes = new long[encoders.size()];
+        long[] decodeNanos = new long[encoders.size()];
+        ConversionCacheService selectedConversionCache = conversionCacheService;
+        RecoveryMemoService selectedRecoveryMemo = recoveryMemoService;
+        Path benchmarkDir = Files.createTempDirectory(tmpDir, "benchmark");
+        System.out.println(String.format("%-40s %-16s %12s %14s %12s", "File", "Encoder", "Encode (ms)",
+                "Size (bytes)", "Region (ms)"));
+        try {
+            conversionCacheService = null;
+            recoveryMemoService = null;
+            skipVoidImages = false;
+            for (String imageFileName : listOfFiles) {
+                if (!Files.exists(Paths.get(imageFileName))) {
+                    throw new Exception(imageFileName + " does not exist. Not processing file list further.");
+                }
+                for (int variant = 0; variant < encoders.size(); variant++) {
+                    encoder = encoders.get(variant);
+                    htj2k = variant == 1;
+                    long start = System.nanoTime();
+                    kduCompress(imageFileName, benchmarkDir, sourceFormat, encodingProfile);
+                    long encode = System.nanoTime() - start;
+                    // the output is named after the source or its link, and is the only file in the directory
+                    Path outputFile;
+                    try (var files = Files.list(benchmarkDir)) {
+                        outputFile = files.findFirst().orElse(null);
+                    }
+                    long size = outputFile != null ? Files.size(outputFile) : 0;
+                    long decode = size > 0 ? timeRegionDecode(outputFile.toString(), benchmarkDir) : 0;
+                    if (outputFile != null) {
+                        Files.delete(outputFile);
+                    }
+                    encodeNanos[variant] += encode;
+                    sizes[variant] += size;
+                    decodeNanos[variant] += decode;
+                    System.out.println(String.format("%-40s %-16s %12.1f %14d %12.1f",
+                            FilenameUtils.getName(imageFileName), labels.get(variant), encode / 1e6, size,
+                            decode / 1e6));
+                }
+            }
+            for (int variant = 0; variant < encoders.size(); variant++) {
+                System.out.println(String.format("%-40s %-16s %12.1f %14d %12.1f", "Total", labels.get(variant),
+                        encodeNanos[variant] / 1e6, sizes[variant], decodeNanos[variant] / 1e6));
             }
+        } finally {
+            htj2k = selectedHtj2k;
+            encoder = selectedEncoder;
+            conversionCacheService = selectedConversionCache;
+            recoveryMemoService = selectedRecoveryMemo;
+            skipVoidImages = true;
+            try (var files = Files.list(benchmarkDir)) {
+                for (Path file : files.toList()) {
+                    Files.deleteIfExists(file);
+                }
+            }
+            Files.deleteIfExists(benchmarkDir);
         }
     }
 
     /**
-     * After JP2 generated, delete tiny gray images less than 10kB
+     * Decode the center of an output at reduced resolution with kdu_expand
+     * @param outputFile the output JP2 or JPH
+     * @param workDir directory for the decoded region
+     * @return decode time in nanoseconds
+     */
+    protected long timeRegionDecode(String outputFile, Path workDir) throws Exception {
+        Path region = workDir.resolve("region.tif");
+        List<String> command = List.of("kdu_expand", "-i", outputFile, "-o", region.toString(),
+                "-region", "{0.25,0.25},{0.5,0.5}", "-reduce", "2");
+        long start = System.nanoTime();
+        try {
+            CommandUtility.executeCommand(command);
+            return System.nanoTime() - start;
+        } finally {
+            Files.deleteIfExists(region);
+        }
+    }
+
+    /**
+     * Detect blank gray frames before they are encoded, from a decimated sample of the preprocessed image which
+     * is confirmed by a pass over every pixel. Only when enabled with jp24u.void.detect=true, otherwise blank
+     * frames are encoded and deleteTinyGrayVoidImages deletes the tiny gray outputs.
+     * @param inputFile the preprocessed image
+     * @param probe probe of the image, with its resolved color space and type
+     * @return true if the image is void and should not be encoded
+     */
+    protected boolean isVoidGrayImage(String inputFile, ImageProbe probe) {
+        if (!VoidImageDetector.isEnabled() || !probe.isGray()) {
+            return false;
+        }
+        VoidImageDetector.Sample sample = VoidImageDetector.sample(inputFile);
+        if (sample == null) {
+            return false;
+        }
+        // the sample can step over thin strokes, so a void sample is confirmed from every pixel
+        boolean isVoid = sample.isVoid() && VoidImageDetector.isUniform(inputFile);
+        log.info("{} void image {}: {} sampled pixels, variance {}, entropy {} bits",
+                isVoid ? "Skipping" : "Not a", probe.fileName(), sample.pixels(),
+                String.format("%.2f", sample.variance()), String.format("%.2f", sample.entropy()));
+        return isVoid;
+    }
+
+    /**
+     * Check the structure of the encoded JP2, a corrupt output is deleted
      * @param outputFile the output JP2
      */
-    public void deleteTinyGrayVoidImages(String outputFile) throws Exception {
-        File output = new File(outputFile);
-        if (output.length() < 10000 && colorFieldsService.identifyType(outputFile).contains("Gray")) {
-            log.warn("Deleting tiny gray image: {}", outputFile);
+    protected void verifyOutput(String outputFile) throws Exception {
+        if (!Files.exists(Path.of(outputFile))) {
+            return;
+        }
+        Jp2Validator.Result jp2 = Jp2Validator.read(outputFile);
+        if (jp2 == null || !jp2.isValid()) {
             Files.deleteIfExists(Path.of(outputFile));
+            throw new Exception("Encoded JP2 " + outputFile + " is corrupt: "
+                    + (jp2 == null ? "not a JP2 file" : String.join(", ", jp2.problems())));
+        }
+        // a kdu_compress without HT support may ignore the block coder instead of failing
+        if (htj2k && !jp2.highThroughput()) {
+            Files.deleteIfExists(Path.of(outputFile));
+            throw new Exception("Encoded " + outputFile + " does not use the HTJ2K block coder");
+        }
+        log.debug("Verified {}: {}x{}, {} components, {}{}", outputFile, jp2.width(), jp2.height(),
+                jp2.components(), jp2.colorSpace(), jp2.highThroughput() ? ", HTJ2K" : "");
+    }
+
+    /**
+     * After JP2 generated, delete tiny gray images less than 10kB.
+     * The color of the output is read from the JP2 header, or taken from the probe of the encoded image
+     * if the header can not be read.
+     * @param outputFile the output JP2
+     * @param encodedProbe probe of the image that was encoded, with its resolved color space and type
+     */
+    public void deleteTinyGrayVoidImages(String outputFile, ImageProbe encodedProbe) throws Exception {
+        File output = new File(outputFile);
+        if (output.length() < 10000) {
+            Jp2Validator.Result jp2 = Jp2Validator.read(outputFile);
+            if (jp2 != null ? jp2.isGray() : encodedProbe.isGray()) {
+                log.warn("Deleting tiny gray image: {}", outputFile);
+                Files.deleteIfExists(Path.of(outputFile));
+            }
         }
     }
 
@@ -369,7 +1150,9 @@ public class KakaduService {
             return fileName;
         }
         Path target = Paths.get(fileName).toAbsolutePath();
-        Path link = Files.createTempFile(tmpDir, FilenameUtils.getName(fileName), "." + sourceFormat);
+        // links are created with the other temporaries, in a directory whose orphans can be reclaimed
+        Path linkDir = Files.createDirectories(imagePreproccessingService.tmpFilesDir);
+        Path link = Files.createTempFile(linkDir, TempWorkspace.tempFilePrefix(fileName), "." + sourceFormat);
         Files.delete(link);
         Files.createSymbolicLink(link, target);
         var linkPath = link.toAbsolutePath().toString();
@@ -386,4 +1169,126 @@ public class KakaduService {
     public void setImagePreproccessingService(ImagePreproccessingService imagePreproccessingService) {
         this.imagePreproccessingService = imagePreproccessingService;
     }
+
+    public void setConversionCacheService(ConversionCacheService conversionCacheService) {
+        this.conversionCacheService = conversionCacheService;
+    }
+
+    public void setRecoveryMemoService(RecoveryMemoService recoveryMemoService) {
+        this.recoveryMemoService = recoveryMemoService;
+    }
+
+    public void setEncodingProfileService(EncodingProfileService encodingProfileService) {
+        this.encodingProfileService = encodingProfileService;
+    }
+
+    /**
+     * @param encodingProfile name of the encoding profile used for images without a profile of their own
+     */
+    public void setEncodingProfile(String encodingProfile) {
+        this.encodingProfile = encodingProfile;
+    }
+
+    /**
+     * @param htj2k true to encode with the High-Throughput JPEG 2000 (HTJ2K) block coder
+     */
+    public void setHtj2k(boolean htj2k) {
+        this.htj2k = htj2k;
+    }
+
+    /**
+     * @param encoder the encoder which runs the planned kdu_compress commands
+     */
+    public void setEncoder(Jp2Encoder encoder) {
+        this.encoder = encoder;
+    }
+
+    /**
+     * @param derivatives names of the encoding profiles every image is encoded with, each output named after its
+     *                    profile, empty for one output with the selected profile
+     */
+    public void setDerivatives(List<String> derivatives) {
+        this.derivatives = derivatives == null ? List.of() : List.copyOf(derivatives);
+    }
+
+    /**
+     * @param previewSize longest side in pixels of a JPEG preview written next to the outputs, 0 for no preview
+     */
+    public void setPreviewSize(int previewSize) {
+        this.previewSize = previewSize;
+    }
+
+    /**
+     * @param fusedPreprocessing true to plan all preprocessing of an image up front and run it as a single
+     *                           ImageMagick/GraphicsMagick invocation
+     */
+    public void setFusedPreprocessing(boolean fusedPreprocessing) {
+        this.fusedPreprocessing = fusedPreprocessing;
+    }
+
+    /**
+     * @param streamPreprocessing true to stream PPM intermediates to kdu_compress through a named pipe instead of
+     *                            writing them to disk first
+     */
+    public void setStreamPreprocessing(boolean streamPreprocessing) {
+        this.streamPreprocessing = streamPreprocessing;
+    }
+
+    /**
+     * @param explain true to print the tools, intermediate formats and Kakadu arguments each conversion would use,
+     *                with an estimate of its cost, instead of converting
+     */
+    public void setExplain(boolean explain) {
+        this.explain = explain;
+    }
+
+    /**
+     * State of the conversion of one image, filled in as the conversion is planned and read as it is executed
+     */
+    private static class Conversion {
+        private final String sourceFileName;
+        // list of intermediate files to delete after JP2 is created
+        private final List<String> intermediateFiles = new ArrayList<>();
+        private final LatencyStats.Timer timer = new LatencyStats.Timer();
+        // commands are only recorded when explaining the conversion
+        private final List<List<String>> recordedCommands;
+        private String fileName;
+        private String sourceFormat;
+        private boolean derivativeMode;
+        private List<String> outputProfiles;
+        private final List<String> outputFiles = new ArrayList<>();
+        private String previewFile;
+        private List<String> kakaduOptions;
+        private String digest;
+        private String cacheParameters;
+        private PreprocessingPlan plan;
+        private String fifo;
+        private String inputFile;
+        private ImageProbe originalProbe;
+        private ImageProbe preprocessedProbe;
+        private Map<String, String> colorInfo;
+        private String colorSpace;
+        // kdu_compress options which turn the image upright, instead of a rotated temporary copy
+        private final List<String> orientationOptions = new ArrayList<>();
+        private String recoverySignature;
+        private Set<RecoveryMemoService.Recovery> knownRecoveries = Collections.emptySet();
+        private final List<List<String>> commands = new ArrayList<>();
+        private Orientation previewOrientation;
+
+        Conversion(String sourceFileName, boolean explain) {
+            this.sourceFileName = sourceFileName;
+            this.recordedCommands = explain ? new ArrayList<>() : null;
+        }
+
+        String outputFile() {
+            return outputFiles.get(0);
+        }
+
+        /**
+         * @return probe of the image that is encoded, with its resolved color space and type
+         */
+        ImageProbe encodedProbe() {
+            return originalProbe.withColor(colorSpace, colorInfo.get(COLOR_TYPE));
+        }
+    }
 }
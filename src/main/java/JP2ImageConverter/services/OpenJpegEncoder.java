@@ -0,0 +1,167 @@
+package JP2ImageConverter.services;
+
+import JP2ImageConverter.model.ImageProbe;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * OpenJPEG opj_compress, or Grok grk_compress which takes the same options and encodes with many more threads.
+ * kdu_compress options are mapped onto their opj_compress equivalents:
+ * Clevels to -n, Cprecincts to -c, Cblk to -b, Stiles to -t, Corder to -p, Cuse_sop/Cuse_eph to -SOP/-EPH,
+ * ORGgen_plt to -PLT, ORGgen_tlm to -TLM, ORGtparts to -TP, Cycc=no to -mct 0, -num_threads to the thread option,
+ * and Clayers with -rate to a -r compression ratio for each layer. kdu_compress sizes are {height,width},
+ * opj_compress sizes are width first. Options without an equivalent fail the conversion, apart from those which
+ * only tune kdu_compress (-flush_period, -no_weights, -precise, -fastest, -tolerance, -no_palette, -jp2_space).
+ */
+public class OpenJpegEncoder implements Jp2Encoder {
+    public static final OpenJpegEncoder OPENJPEG = new OpenJpegEncoder("opj_compress", "-threads");
+    public static final OpenJpegEncoder GROK = new OpenJpegEncoder("grk_compress", "-H");
+
+    // kdu_compress switches which only tune kdu_compress, with the number of values they take
+    private static final Set<String> IGNORED_FLAGS = Set.of("-no_weights", "-precise", "-fastest", "-full",
+            "-no_palette");
+    private static final Set<String> IGNORED_SWITCHES = Set.of("-flush_period", "-tolerance", "-jp2_space");
+    private static final int DEFAULT_BIT_DEPTH = 8;
+
+    private final String tool;
+    private final String threadsOption;
+
+    /**
+     * @param tool name of the encoder tool
+     * @param threadsOption option of the tool which sets the number of threads
+     */
+    public OpenJpegEncoder(String tool, String threadsOption) {
+        this.tool = tool;
+        this.threadsOption = threadsOption;
+    }
+
+    @Override
+    public String getName() {
+        return tool;
+    }
+
+    @Override
+    public boolean supportsRotation() {
+        return false;
+    }
+
+    @Override
+    public boolean supportsStreaming() {
+        return false;
+    }
+
+    @Override
+    public List<String> translate(List<String> kakaduCommand, ImageProbe probe) {
+        List<String> command = new ArrayList<>();
+        command.add(tool);
+        boolean reversible = false;
+        int layers = 1;
+        String rates = null;
+        for (int i = 1; i < kakaduCommand.size(); i++) {
+            String option = kakaduCommand.get(i);
+            if (option.equals("-i") || option.equals("-o")) {
+                command.add(option);
+                command.add(kakaduCommand.get(++i));
+            } else if (option.equals("-rate")) {
+                rates = kakaduCommand.get(++i);
+            } else if (option.equals("-num_threads")) {
+                command.add(threadsOption);
+                command.add(kakaduCommand.get(++i));
+            } else if (IGNORED_FLAGS.contains(option)) {
+                continue;
+            } else if (IGNORED_SWITCHES.contains(option)) {
+                i++;
+            } else if (option.startsWith("-") || !option.contains("=") || option.contains(":")) {
+                throw unsupported(option);
+            } else {
+                String attribute = option.substring(0, option.indexOf('='));
+                String value = option.substring(option.indexOf('=') + 1);
+                switch (attribute) {
+                    case "Clevels" -> command.addAll(List.of("-n", String.valueOf(Integer.parseInt(value) + 1)));
+                    case "Clayers" -> layers = Integer.parseInt(value);
+                    case "Cprecincts" -> command.addAll(List.of("-c", sizes(value, "[", "]")));
+                    case "Cblk" -> command.addAll(List.of("-b", sizes(value, "", "")));
+                    case "Stiles" -> command.addAll(List.of("-t", sizes(value, "", "")));
+                    case "Corder" -> command.addAll(List.of("-p", value));
+                    case "Creversible" -> reversible = value.equals("yes");
+                    case "Cycc" -> {
+                        if (value.equals("no")) {
+                            command.addAll(List.of("-mct", "0"));
+                        }
+                    }
+                    case "Cuse_sop" -> addIf(command, value, "-SOP");
+                    case "Cuse_eph" -> addIf(command, value, "-EPH");
+                    case "ORGgen_plt" -> addIf(command, value, "-PLT");
+                    case "ORGgen_tlm" -> command.add("-TLM");
+                    // opj_compress divides tiles by one of resolution, layer or component
+                    case "ORGtparts" -> {
+                        if (value.length() != 1) {
+                            throw unsupported(option);
+                        }
+                        command.addAll(List.of("-TP", value));
+                    }
+                    default -> throw unsupported(option);
+                }
+            }
+        }
+        if (!reversible) {
+            // kdu_compress defaults to the irreversible 9/7 wavelet, opj_compress to the reversible 5/3 wavelet
+            command.add("-I");
+        }
+        if (rates != null) {
+            command.addAll(List.of("-r", ratios(rates, layers, probe)));
+        }
+        return command;
+    }
+
+    /**
+     * Map kdu_compress -rate bits per pixel onto opj_compress -r compression ratios, one for each layer.
+     * A single rate is the rate of the last layer, and each layer before it has half the rate of the next, as
+     * kdu_compress spaces layers without rates of their own.
+     */
+    private String ratios(String rates, int layers, ImageProbe probe) {
+        int bitsPerPixel = (probe != null && probe.isGray() ? 1 : 3)
+                * (probe != null && probe.bitDepth() > 0 ? probe.bitDepth() : DEFAULT_BIT_DEPTH);
+        List<BigDecimal> ratios = new ArrayList<>();
+        for (String rate : rates.split(",")) {
+            // "-" is everything that is left, a lossless layer
+            ratios.add(rate.equals("-") ? BigDecimal.ONE : BigDecimal.valueOf(bitsPerPixel / Double.parseDouble(rate)));
+        }
+        if (ratios.size() == 1) {
+            BigDecimal last = ratios.get(0);
+            for (int layer = 1; layer < layers; layer++) {
+                ratios.add(last.multiply(BigDecimal.valueOf(1L << layer)));
+            }
+        }
+        return String.join(",", ratios.stream().sorted(Comparator.reverseOrder())
+                .map(ratio -> ratio.setScale(2, RoundingMode.HALF_UP).stripTrailingZeros().toPlainString())
+                .toList());
+    }
+
+    /**
+     * @return kdu_compress {height,width} sizes as opj_compress width,height sizes, each between open and close
+     */
+    private static String sizes(String value, String open, String close) {
+        List<String> sizes = new ArrayList<>();
+        for (String size : value.substring(1, value.length() - 1).split("},\\{")) {
+            String[] dimensions = size.split(",");
+            sizes.add(open + dimensions[1] + "," + dimensions[0] + close);
+        }
+        return String.join(",", sizes);
+    }
+
+    private static void addIf(List<String> command, String value, String option) {
+        if (value.equals("yes")) {
+            command.add(option);
+        }
+    }
+
+    private IllegalArgumentException unsupported(String option) {
+        return new IllegalArgumentException(tool + " has no equivalent of kdu_compress " + option);
+    }
+}
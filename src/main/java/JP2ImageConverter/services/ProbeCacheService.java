@@ -0,0 +1,554 @@
+package JP2ImageConverter.services;
+
+import org.slf4j.Logger;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Persistent cache of image probe results (metadata fields, image type and identify attributes),
+ * keyed by canonical path, file size, modification time and inode.
+ * Entries are appended to a single cache file which is memory mapped for lookups.
+ * When the file grows past its size limit it is compacted, keeping the most recently used entries.
+ * Several processes may share a cache file: appends and compactions hold a lock on it, records appended by other
+ * processes are indexed before each append, and a compacted file replaces the old one under a new generation number,
+ * which is also stamped on the old file so that processes still reading it reopen the cache file.
+ */
+public class ProbeCacheService implements AutoCloseable {
+    private static final Logger log = getLogger(ProbeCacheService.class);
+
+    public static final String METADATA = "metadata";
+    public static final String TYPE = "type";
+    public static final String IDENTIFY = "identify";
+
+    private static final int MAGIC = 0x4A503243;
+    private static final int VERSION = 3;
+    // magic, version and generation
+    private static final int FILE_HEADER_LENGTH = 16;
+    private static final int GENERATION_OFFSET = 8;
+    // length and checksum fields before each record body
+    private static final int RECORD_HEADER_LENGTH = 8;
+    private static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+    // the cache file is mapped into a single buffer with int offsets, so it has to stay well under 2 GB
+    private static final long MAX_BYTES_LIMIT = 1024L * 1024 * 1024;
+    private static final long DEFAULT_MIN_AGE_SECONDS = 60;
+
+    private final Path cacheFile;
+    private final long maxBytes;
+    private final long minAgeMillis;
+    private FileChannel channel;
+    private final Map<String, Entry> index = new HashMap<>();
+    private MappedByteBuffer mapped;
+    // generation of the open cache file, and the end of the records indexed from it, 0 before it is loaded
+    private long generation;
+    private long indexedEnd;
+    private long liveBytes;
+    private long clock;
+    private int hits;
+    private int misses;
+
+    /**
+     * Open or create a probe cache file
+     * The size limit is set by the jp24u.probecache.maxBytes system property (at most 1 GB), files modified less than
+     * jp24u.probecache.minAge seconds ago (such as temporary files) are never cached
+     * @param cacheFile the cache file
+     */
+    public ProbeCacheService(Path cacheFile) throws IOException {
+        this.cacheFile = cacheFile;
+        this.maxBytes = Math.min(Long.getLong("jp24u.probecache.maxBytes", DEFAULT_MAX_BYTES), MAX_BYTES_LIMIT);
+        this.minAgeMillis = Long.getLong("jp24u.probecache.minAge", DEFAULT_MIN_AGE_SECONDS) * 1000;
+        if (cacheFile.getParent() != null) {
+            Files.createDirectories(cacheFile.getParent());
+        }
+        this.channel = FileChannel.open(cacheFile, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        FileLock lock = lock();
+        try {
+            if (needsCompaction()) {
+                compact();
+            }
+        } finally {
+            release(lock);
+        }
+    }
+
+    /**
+     * Get the cached metadata fields of an image file
+     * @param fileName an image file
+     * @return a copy of the cached metadata fields, or null if the file is not cached or has changed
+     */
+    public synchronized Map<String, String> getMetadata(String fileName) {
+        List<String> values = get(fileName, METADATA);
+        if (values == null) {
+            return null;
+        }
+        Map<String, String> metadata = new LinkedHashMap<>();
+        for (int i = 0; i + 1 < values.size(); i += 2) {
+            metadata.put(values.get(i), values.get(i + 1));
+        }
+        return metadata;
+    }
+
+    /**
+     * Cache the metadata fields of an image file
+     * @param fileName an image file
+     * @param metadata metadata fields
+     */
+    public synchronized void putMetadata(String fileName, Map<String, String> metadata) {
+        List<String> values = new ArrayList<>();
+        for (Map.Entry<String, String> field : metadata.entrySet()) {
+            values.add(field.getKey());
+            values.add(field.getValue());
+        }
+        put(fileName, METADATA, values);
+    }
+
+    /**
+     * Get a cached single value for an image file
+     * @param fileName an image file
+     * @param name the kind of value (TYPE or IDENTIFY)
+     * @return the cached value, or null if the file is not cached or has changed
+     */
+    public synchronized String getValue(String fileName, String name) {
+        List<String> values = get(fileName, name);
+        return values == null || values.isEmpty() ? null : values.get(0);
+    }
+
+    /**
+     * Cache a single value for an image file
+     * @param fileName an image file
+     * @param name the kind of value (TYPE or IDENTIFY)
+     * @param value the value, null values are not cached
+     */
+    public synchronized void putValue(String fileName, String name, String value) {
+        if (value != null) {
+            put(fileName, name, List.of(value));
+        }
+    }
+
+    /**
+     * Compact the cache file if needed and close it
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        log.debug("Probe cache {}: {} hits, {} misses", cacheFile, hits, misses);
+        if (channel.isOpen()) {
+            FileLock lock = lock();
+            try {
+                if (needsCompaction()) {
+                    compact();
+                }
+            } finally {
+                release(lock);
+            }
+            mapped = null;
+            channel.close();
+        }
+    }
+
+    private List<String> get(String fileName, String name) {
+        try {
+            FileKey key = FileKey.of(fileName);
+            String indexKey = name + '\0' + key.path();
+            Entry entry = index.get(indexKey);
+            // another process may have replaced the cache file by a compacted one, or cached the file
+            if (isReplaced() || (entry == null || !entry.matches(key)) && channel.size() > indexedEnd) {
+                release(lock());
+                entry = index.get(indexKey);
+            }
+            if (entry == null || !entry.matches(key)) {
+                misses++;
+                return null;
+            }
+            List<String> values = decode(readRecord(entry.position())).values();
+            entry.lastUsed = ++clock;
+            hits++;
+            return values;
+        } catch (IOException e) {
+            log.debug("Probe cache lookup failed for {}: {}", fileName, e.getMessage());
+            misses++;
+            return null;
+        }
+    }
+
+    private void put(String fileName, String name, List<String> values) {
+        try {
+            FileKey key = FileKey.of(fileName);
+            if (System.currentTimeMillis() - key.modified() < minAgeMillis) {
+                return;
+            }
+            byte[] body = encode(new Record(name, key, values));
+            if (RECORD_HEADER_LENGTH + body.length > maxBytes / 4) {
+                log.debug("Not caching {} probe of {}, {} bytes is too large", name, fileName, body.length);
+                return;
+            }
+            ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_LENGTH + body.length);
+            record.putInt(body.length).putInt(checksum(body)).put(body).flip();
+
+            FileLock lock = lock();
+            try {
+                long position = channel.size();
+                while (record.hasRemaining()) {
+                    channel.write(record, position + record.position());
+                }
+                indexedEnd = channel.size();
+                String indexKey = name + '\0' + key.path();
+                Entry previous = index.put(indexKey, new Entry(position, record.limit(), key, ++clock));
+                liveBytes += record.limit() - (previous == null ? 0 : previous.length());
+                if (channel.size() > maxBytes) {
+                    compact();
+                }
+            } finally {
+                release(lock);
+            }
+        } catch (IOException e) {
+            log.warn("Unable to cache probe of {}: {}", fileName, e.getMessage());
+        }
+    }
+
+    /**
+     * Lock the cache file, reopening it if another process has replaced it by a compacted one, and index the
+     * records appended since it was last indexed
+     * @return the lock, released with release
+     */
+    private FileLock lock() throws IOException {
+        FileLock lock = channel.lock();
+        while (isReplaced()) {
+            log.debug("Probe cache {} was compacted by another process, reopening it", cacheFile);
+            lock.release();
+            channel.close();
+            channel = FileChannel.open(cacheFile, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            mapped = null;
+            indexedEnd = 0;
+            lock = channel.lock();
+        }
+        if (indexedEnd == 0) {
+            load();
+        } else {
+            scan();
+        }
+        return lock;
+    }
+
+    /**
+     * Release a lock, unless compaction has already closed the channel it was held on
+     */
+    private static void release(FileLock lock) throws IOException {
+        if (lock.isValid()) {
+            lock.release();
+        }
+    }
+
+    /**
+     * @return true if the open cache file has been replaced, its generation no longer matches the loaded one
+     */
+    private boolean isReplaced() {
+        // the mapping is shared, so it shows a generation stamped by another process
+        return indexedEnd != 0 && mapped.getLong(GENERATION_OFFSET) != generation;
+    }
+
+    /**
+     * Read the header of the cache file and index the latest record for each file, starting over with an empty
+     * cache file if it has another version. Called with the cache file locked.
+     */
+    private void load() throws IOException {
+        index.clear();
+        liveBytes = 0;
+        if (channel.size() < FILE_HEADER_LENGTH) {
+            reset(0);
+            return;
+        }
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_LENGTH);
+        channel.read(header, 0);
+        if (header.getInt(0) != MAGIC) {
+            throw new IOException("Not a probe cache file: " + cacheFile);
+        }
+        if (header.getInt(4) != VERSION || channel.size() > MAX_BYTES_LIMIT) {
+            log.info("Discarding probe cache {}, version {} of {} bytes", cacheFile, header.getInt(4),
+                    channel.size());
+            reset(0);
+            return;
+        }
+        generation = header.getLong(GENERATION_OFFSET);
+        indexedEnd = FILE_HEADER_LENGTH;
+        remap();
+        scan();
+        log.debug("Loaded {} probe cache entries from {}", index.size(), cacheFile);
+    }
+
+    /**
+     * Index the records after the last indexed one, truncating any partially written record left at the end of
+     * the file. Called with the cache file locked, so no other process is appending a record.
+     */
+    private void scan() throws IOException {
+        long end = channel.size();
+        if (end == indexedEnd) {
+            return;
+        }
+        remap();
+        long position = indexedEnd;
+        while (position + RECORD_HEADER_LENGTH <= end) {
+            int length = mapped.getInt((int) position);
+            if (length <= 0 || position + RECORD_HEADER_LENGTH + length > end) {
+                break;
+            }
+            byte[] body = new byte[length];
+            mapped.get((int) position + RECORD_HEADER_LENGTH, body);
+            if (checksum(body) != mapped.getInt((int) position + 4)) {
+                break;
+            }
+            Record record = decode(body);
+            int recordLength = RECORD_HEADER_LENGTH + length;
+            Entry previous = index.put(record.name() + '\0' + record.key().path(),
+                    new Entry(position, recordLength, record.key(), ++clock));
+            liveBytes += recordLength - (previous == null ? 0 : previous.length());
+            position += recordLength;
+        }
+        if (position < end) {
+            log.warn("Truncating probe cache {} at {} of {} bytes", cacheFile, position, end);
+            channel.truncate(position);
+            remap();
+        }
+        indexedEnd = position;
+    }
+
+    /**
+     * Rewrite the cache file with the most recently used entries, dropping superseded records
+     * and least recently used entries until the file is under three quarters of its size limit.
+     * Called with the cache file locked and indexed. The compacted file is written to a temporary file and moved
+     * over the cache file, then the generation of the compacted file is stamped on the old one, so that other
+     * processes holding it open notice it was replaced.
+     */
+    private void compact() throws IOException {
+        List<Map.Entry<String, Entry>> entries = new ArrayList<>(index.entrySet());
+        entries.sort(Comparator.comparingLong((Map.Entry<String, Entry> e) -> e.getValue().lastUsed).reversed());
+        long budget = maxBytes * 3 / 4 - FILE_HEADER_LENGTH;
+        List<Map.Entry<String, Entry>> kept = new ArrayList<>();
+        long keptBytes = 0;
+        for (Map.Entry<String, Entry> entry : entries) {
+            if (keptBytes + entry.getValue().length() > budget) {
+                break;
+            }
+            kept.add(entry);
+            keptBytes += entry.getValue().length();
+        }
+        // least recently used first, so that file order approximates use order on the next load
+        kept.sort(Comparator.comparingLong(e -> e.getValue().lastUsed));
+
+        long nextGeneration = generation + 1;
+        Path directory = cacheFile.toAbsolutePath().getParent();
+        Path tmpFile = Files.createTempFile(directory, cacheFile.getFileName() + ".", ".tmp");
+        Map<String, Entry> compacted = new HashMap<>();
+        try {
+            try {
+                Files.setPosixFilePermissions(tmpFile, Files.getPosixFilePermissions(cacheFile));
+            } catch (UnsupportedOperationException e) {
+                // not a POSIX file system, the compacted file keeps the default permissions
+            }
+            try (FileChannel out = FileChannel.open(tmpFile, StandardOpenOption.WRITE)) {
+                out.write(header(nextGeneration));
+                for (Map.Entry<String, Entry> entry : kept) {
+                    Entry value = entry.getValue();
+                    long position = out.position();
+                    byte[] record = new byte[value.length()];
+                    mappedFor(value.position() + value.length()).get((int) value.position(), record);
+                    out.write(ByteBuffer.wrap(record));
+                    compacted.put(entry.getKey(), new Entry(position, value.length(), value.key(), value.lastUsed));
+                }
+            }
+            Files.move(tmpFile, cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmpFile);
+        }
+        channel.write(ByteBuffer.allocate(Long.BYTES).putLong(0, nextGeneration), GENERATION_OFFSET);
+        log.info("Compacted probe cache {} from {} to {} entries", cacheFile, index.size(), compacted.size());
+
+        // the open channel still refers to the replaced file, closing it releases its lock
+        channel.close();
+        channel = FileChannel.open(cacheFile, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        index.clear();
+        index.putAll(compacted);
+        liveBytes = keptBytes;
+        generation = nextGeneration;
+        indexedEnd = FILE_HEADER_LENGTH + keptBytes;
+        remap();
+    }
+
+    /**
+     * Start over with an empty cache file
+     */
+    private void reset(long newGeneration) throws IOException {
+        channel.truncate(0);
+        channel.write(header(newGeneration), 0);
+        generation = newGeneration;
+        indexedEnd = FILE_HEADER_LENGTH;
+        remap();
+    }
+
+    private static ByteBuffer header(long generation) {
+        return ByteBuffer.allocate(FILE_HEADER_LENGTH).putInt(MAGIC).putInt(VERSION).putLong(generation).flip();
+    }
+
+    private MappedByteBuffer mappedFor(long end) throws IOException {
+        if (mapped == null || end > mapped.capacity()) {
+            remap();
+        }
+        return mapped;
+    }
+
+    private byte[] readRecord(long position) throws IOException {
+        MappedByteBuffer buffer = mappedFor(position + RECORD_HEADER_LENGTH);
+        int length = buffer.getInt((int) position);
+        buffer = mappedFor(position + RECORD_HEADER_LENGTH + length);
+        byte[] body = new byte[length];
+        buffer.get((int) position + RECORD_HEADER_LENGTH, body);
+        if (checksum(body) != buffer.getInt((int) position + 4)) {
+            throw new IOException("Corrupt probe cache record at " + position);
+        }
+        return body;
+    }
+
+    private void remap() throws IOException {
+        mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+
+    /**
+     * @return true if the cache file is over its size limit or mostly made of superseded records
+     */
+    private boolean needsCompaction() throws IOException {
+        long size = channel.size();
+        return size > maxBytes || size - FILE_HEADER_LENGTH - liveBytes > size / 2;
+    }
+
+    private static byte[] encode(Record record) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            writeString(out, record.name());
+            writeString(out, record.key().path());
+            out.writeLong(record.key().size());
+            out.writeLong(record.key().modified());
+            out.writeLong(record.key().inode());
+            out.writeInt(record.values().size());
+            for (String value : record.values()) {
+                out.writeBoolean(value != null);
+                if (value != null) {
+                    writeString(out, value);
+                }
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Record decode(byte[] body) throws IOException {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(body))) {
+            String name = readString(in);
+            FileKey key = new FileKey(readString(in), in.readLong(), in.readLong(), in.readLong());
+            int count = in.readInt();
+            List<String> values = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                values.add(in.readBoolean() ? readString(in) : null);
+            }
+            return new Record(name, key, values);
+        }
+    }
+
+    /**
+     * Write a string as length prefixed UTF-8, unlike writeUTF it is not limited to 64 KB
+     */
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > in.available()) {
+            throw new IOException("Corrupt probe cache string of " + length + " bytes");
+        }
+        return new String(in.readNBytes(length), StandardCharsets.UTF_8);
+    }
+
+    private static int checksum(byte[] body) {
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Identity of a file version: canonical path, size, modification time and inode (0 if not available)
+     */
+    record FileKey(String path, long size, long modified, long inode) {
+        static FileKey of(String fileName) throws IOException {
+            Path path = Path.of(new File(fileName).getCanonicalPath());
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            long inode = 0;
+            try {
+                Object ino = Files.getAttribute(path, "unix:ino");
+                if (ino instanceof Number number) {
+                    inode = number.longValue();
+                }
+            } catch (UnsupportedOperationException | IllegalArgumentException e) {
+                // not a unix file system, size and modification time still identify the file version
+            }
+            return new FileKey(path.toString(), attributes.size(), attributes.lastModifiedTime().toMillis(), inode);
+        }
+    }
+
+    private record Record(String name, FileKey key, List<String> values) {
+    }
+
+    private static class Entry {
+        private final long position;
+        private final int length;
+        private final FileKey key;
+        private long lastUsed;
+
+        Entry(long position, int length, FileKey key, long lastUsed) {
+            this.position = position;
+            this.length = length;
+            this.key = key;
+            this.lastUsed = lastUsed;
+        }
+
+        long position() {
+            return position;
+        }
+
+        int length() {
+            return length;
+        }
+
+        FileKey key() {
+            return key;
+        }
+
+        boolean matches(FileKey other) {
+            return key.equals(other);
+        }
+    }
+}
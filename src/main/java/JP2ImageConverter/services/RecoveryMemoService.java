@@ -0,0 +1,184 @@
+package JP2ImageConverter.services;
+
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Persistent memo of the kdu_compress recoveries which worked for a kind of source image, so that later images
+ * of the same kind get the recovery before their first encode instead of after a failed one. Images are
+ * identified by a signature of their ICC profile, format, bit depth and photometric interpretation, since whole
+ * collections from one scanner share the same profile and quirks.
+ * The memo file has one tab separated line per signature: the signature, the recoveries and the number of
+ * failed encodes they have saved.
+ */
+public class RecoveryMemoService implements AutoCloseable {
+    private static final Logger log = getLogger(RecoveryMemoService.class);
+    private static final String NO_PROFILE = "none";
+
+    /**
+     * Recoveries applied by KakaduService when kdu_compress fails
+     */
+    public enum Recovery {
+        // encode a copy of the image without its ICC profile
+        STRIP_ICC_PROFILE,
+        // encode with -no_palette
+        NO_PALETTE
+    }
+
+    private final Path memoFile;
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+    private int retriesSaved;
+    private boolean modified;
+
+    /**
+     * Open or create a recovery memo file
+     * @param memoFile the memo file
+     */
+    public RecoveryMemoService(Path memoFile) throws IOException {
+        this.memoFile = memoFile;
+        if (memoFile.getParent() != null) {
+            Files.createDirectories(memoFile.getParent());
+        }
+        if (Files.exists(memoFile)) {
+            load();
+        }
+    }
+
+    /**
+     * Build the signature of a source image
+     * @param iccProfile the ICC profile kdu_compress reads, may be null
+     * @param format normalized source format
+     * @param bitDepth bits per sample, 0 if unknown
+     * @param photometric photometric interpretation or color space, may be null
+     * @return the signature
+     */
+    public static String signature(byte[] iccProfile, String format, int bitDepth, String photometric) {
+        String profile = iccProfile == null ? NO_PROFILE : HexFormat.of().formatHex(sha256(iccProfile), 0, 8);
+        return String.join("/", format, String.valueOf(bitDepth),
+                photometric == null ? "unknown" : photometric.replaceAll("\\s", "_"), profile);
+    }
+
+    /**
+     * Get the recoveries which worked for earlier images with a signature, counting them as saved retries
+     * @param signature the image signature
+     * @return the recoveries, empty if none are known
+     */
+    public synchronized Set<Recovery> lookup(String signature) {
+        Entry entry = entries.get(signature);
+        if (entry == null || entry.recoveries.isEmpty()) {
+            return EnumSet.noneOf(Recovery.class);
+        }
+        entry.retriesSaved++;
+        retriesSaved++;
+        modified = true;
+        return EnumSet.copyOf(entry.recoveries);
+    }
+
+    /**
+     * Remember a recovery which made kdu_compress succeed
+     * @param signature the image signature
+     * @param recovery the recovery
+     */
+    public synchronized void record(String signature, Recovery recovery) {
+        Entry entry = entries.computeIfAbsent(signature, s -> new Entry(EnumSet.noneOf(Recovery.class), 0));
+        if (entry.recoveries.add(recovery)) {
+            log.info("Learned recovery {} for images with signature {}", recovery, signature);
+            modified = true;
+            // written right away, so that a stopped run keeps what it learned
+            save();
+        }
+    }
+
+    /**
+     * @return number of failed encodes avoided in this run
+     */
+    public synchronized int getRetriesSaved() {
+        return retriesSaved;
+    }
+
+    @Override
+    public synchronized void close() {
+        log.info("Recovery memo {}: {} signatures, {} retries saved", memoFile, entries.size(), retriesSaved);
+        if (modified) {
+            save();
+        }
+    }
+
+    private void load() throws IOException {
+        for (String line : Files.readAllLines(memoFile, StandardCharsets.UTF_8)) {
+            String[] fields = line.split("\t");
+            if (fields.length != 3) {
+                continue;
+            }
+            try {
+                Set<Recovery> recoveries = EnumSet.noneOf(Recovery.class);
+                for (String recovery : fields[1].split(",")) {
+                    recoveries.add(Recovery.valueOf(recovery));
+                }
+                entries.put(fields[0], new Entry(recoveries, Long.parseLong(fields[2])));
+            } catch (IllegalArgumentException e) {
+                log.debug("Skipping invalid recovery memo line in {}: {}", memoFile, line);
+            }
+        }
+    }
+
+    private void save() {
+        List<String> lines = new ArrayList<>();
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            List<String> recoveries = entry.getValue().recoveries.stream().map(Enum::name).toList();
+            lines.add(entry.getKey() + "\t" + String.join(",", recoveries) + "\t" + entry.getValue().retriesSaved);
+        }
+        Path parent = memoFile.toAbsolutePath().getParent();
+        Path tmpFile = null;
+        try {
+            tmpFile = Files.createTempFile(parent, memoFile.getFileName().toString(), ".tmp");
+            Files.write(tmpFile, lines, StandardCharsets.UTF_8);
+            Files.move(tmpFile, memoFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            modified = false;
+        } catch (IOException e) {
+            log.warn("Unable to save recovery memo {}: {}", memoFile, e.getMessage());
+        } finally {
+            if (tmpFile != null) {
+                try {
+                    Files.deleteIfExists(tmpFile);
+                } catch (IOException e) {
+                    log.debug("Unable to delete {}: {}", tmpFile, e.getMessage());
+                }
+            }
+        }
+    }
+
+    private static byte[] sha256(byte[] bytes) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(bytes);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static class Entry {
+        private final Set<Recovery> recoveries;
+        private long retriesSaved;
+
+        private Entry(Set<Recovery> recoveries, long retriesSaved) {
+            this.recoveries = recoveries;
+            this.retriesSaved = retriesSaved;
+        }
+    }
+}
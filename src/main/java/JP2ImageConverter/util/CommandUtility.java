@@ -35,16 +35,22 @@ public class CommandUtility {
      * @return command output
      */
     public static String executeCommand(List<String> command) {
+        return executeCommand(command, newWatchdog());
+    }
+
+    /**
+     * Run a given command under a watchdog, which can be used to stop it from another thread
+     * @param command the command to be executed
+     * @param watchdog the watchdog from newWatchdog
+     * @return command output
+     */
+    public static String executeCommand(List<String> command, ExecuteWatchdog watchdog) {
         log.debug("Executing command with timeout {}s: {}", MAX_TIMEOUT_SECONDS, String.join(" ", command));
         CommandLine cmdLine = CommandLine.parse(command.getFirst());
         command.subList(1, command.size()).forEach(arg -> cmdLine.addArgument(arg, false));
 
         DefaultExecutor executor = DefaultExecutor.builder().get();
-        ExecuteWatchdog watchdog = null;
-        if (MAX_TIMEOUT_SECONDS > 0) {
-            watchdog = EscalatingExecuteWatchdog.create(Duration.ofSeconds(MAX_TIMEOUT_SECONDS));
-            executor.setWatchdog(watchdog);
-        }
+        executor.setWatchdog(watchdog);
 
         ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
         ByteArrayOutputStream errorStream = new ByteArrayOutputStream();
@@ -73,16 +79,24 @@ public class CommandUtility {
      * @param command
      */
     public static void executeCommandWriteToFile(List<String> command, String temporaryFile) {
+        executeCommandWriteToFile(command, temporaryFile, newWatchdog());
+    }
+
+    /**
+     * Run a given command under a watchdog, which can be used to stop it from another thread, and write the
+     * output to a file
+     * @param command the command to be executed
+     * @param temporaryFile the file the output is written to
+     * @param watchdog the watchdog from newWatchdog
+     */
+    public static void executeCommandWriteToFile(List<String> command, String temporaryFile,
+                                                 ExecuteWatchdog watchdog) {
         log.debug("Executing command with timeout {}s: {}", MAX_TIMEOUT_SECONDS, String.join(" ", command));
         CommandLine cmdLine = CommandLine.parse(command.getFirst());
         cmdLine.addArguments(command.subList(1, command.size()).toArray(new String[0]));
 
         DefaultExecutor executor = DefaultExecutor.builder().get();
-        ExecuteWatchdog watchdog = null;
-        if (MAX_TIMEOUT_SECONDS > 0) {
-            watchdog = EscalatingExecuteWatchdog.create(Duration.ofSeconds(MAX_TIMEOUT_SECONDS));
-            executor.setWatchdog(watchdog);
-        }
+        executor.setWatchdog(watchdog);
 
         ByteArrayOutputStream errorStream = new ByteArrayOutputStream();
 
@@ -102,4 +116,12 @@ public class CommandUtility {
             throw new CommandException("Command failed to execute", command, temporaryFile + "\n" + errorStream, e);
         }
     }
+
+    /**
+     * @return a watchdog which kills a command after the jp24u.subcommand.timeout
+     */
+    public static EscalatingExecuteWatchdog newWatchdog() {
+        return MAX_TIMEOUT_SECONDS > 0 ? EscalatingExecuteWatchdog.create(Duration.ofSeconds(MAX_TIMEOUT_SECONDS)) :
+                EscalatingExecuteWatchdog.createWithoutTimeout();
+    }
 }
@@ -16,19 +16,42 @@ public class EscalatingExecuteWatchdog extends ExecuteWatchdog {
     private static final Duration ESCALATION_DELAY = Duration.ofSeconds(2);
 
     private Process monitoredProcess;
+    private boolean stopped;
 
-    private EscalatingExecuteWatchdog(Duration timeout) {
-        super(timeout.toMillis());
+    private EscalatingExecuteWatchdog(long timeoutMillis) {
+        super(timeoutMillis);
     }
 
     public static EscalatingExecuteWatchdog create(Duration timeout) {
-        return new EscalatingExecuteWatchdog(timeout);
+        return new EscalatingExecuteWatchdog(timeout.toMillis());
+    }
+
+    /**
+     * @return a watchdog which never times out, but can still be stopped
+     */
+    public static EscalatingExecuteWatchdog createWithoutTimeout() {
+        return new EscalatingExecuteWatchdog(INFINITE_TIMEOUT);
     }
 
     @Override
     public synchronized void start(final Process processToMonitor) {
         this.monitoredProcess = processToMonitor;
         super.start(processToMonitor);
+        if (stopped) {
+            processToMonitor.destroyForcibly();
+        }
+    }
+
+    /**
+     * Kill the process, or kill it as soon as it starts, without waiting for it. Used when a process running
+     * alongside it has failed.
+     */
+    public synchronized void stop() {
+        stopped = true;
+        if (monitoredProcess != null && monitoredProcess.isAlive()) {
+            log.debug("Stopping process");
+            monitoredProcess.destroyForcibly();
+        }
     }
 
     @Override
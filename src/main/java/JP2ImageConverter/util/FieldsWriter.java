@@ -0,0 +1,142 @@
+package JP2ImageConverter.util;
+
+import JP2ImageConverter.options.OutputFormat;
+
+import java.io.BufferedWriter;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes one line of image fields per image as text, JSON lines or CSV through a single buffered writer,
+ * which is flushed every jp24u.output.flushRows lines rather than after every field
+ */
+public class FieldsWriter implements Flushable {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int DEFAULT_FLUSH_ROWS = 1000;
+
+    private final OutputFormat format;
+    private final Writer writer;
+    private final int flushRows;
+    private int pendingRows;
+    private List<String> columns;
+
+    /**
+     * @param format the output format
+     * @param out the stream to write to, it is flushed but never closed
+     */
+    public FieldsWriter(OutputFormat format, OutputStream out) {
+        this.format = format == null ? OutputFormat.TEXT : format;
+        this.writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), BUFFER_SIZE);
+        this.flushRows = Math.max(1, Integer.getInteger("jp24u.output.flushRows", DEFAULT_FLUSH_ROWS));
+    }
+
+    /**
+     * Write the fields of one image.
+     * CSV columns are taken from the first image written, fields missing from later images are left empty.
+     * @param fields field names and values, values may be null
+     */
+    public void write(Map<String, String> fields) throws IOException {
+        switch (format) {
+            case JSONL -> writeJson(fields);
+            case CSV -> writeCsv(fields);
+            default -> writeText(fields);
+        }
+        writer.write(System.lineSeparator());
+        if (++pendingRows >= flushRows) {
+            flush();
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        writer.flush();
+        pendingRows = 0;
+    }
+
+    private void writeText(Map<String, String> fields) throws IOException {
+        for (Map.Entry<String, String> entry : fields.entrySet()) {
+            writer.write(entry.getKey() + ":" + entry.getValue() + "\t");
+        }
+    }
+
+    private void writeJson(Map<String, String> fields) throws IOException {
+        writer.write('{');
+        boolean first = true;
+        for (Map.Entry<String, String> entry : fields.entrySet()) {
+            if (!first) {
+                writer.write(',');
+            }
+            first = false;
+            writeJsonString(entry.getKey());
+            writer.write(':');
+            if (entry.getValue() == null) {
+                writer.write("null");
+            } else {
+                writeJsonString(entry.getValue());
+            }
+        }
+        writer.write('}');
+    }
+
+    private void writeJsonString(String value) throws IOException {
+        writer.write('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"' -> writer.write("\\\"");
+                case '\\' -> writer.write("\\\\");
+                case '\n' -> writer.write("\\n");
+                case '\r' -> writer.write("\\r");
+                case '\t' -> writer.write("\\t");
+                default -> {
+                    if (c < 0x20) {
+                        writer.write(String.format("\\u%04x", (int) c));
+                    } else {
+                        writer.write(c);
+                    }
+                }
+            }
+        }
+        writer.write('"');
+    }
+
+    private void writeCsv(Map<String, String> fields) throws IOException {
+        if (columns == null) {
+            columns = new ArrayList<>(fields.keySet());
+            for (int i = 0; i < columns.size(); i++) {
+                if (i > 0) {
+                    writer.write(',');
+                }
+                writeCsvValue(columns.get(i));
+            }
+            writer.write(System.lineSeparator());
+        }
+        for (int i = 0; i < columns.size(); i++) {
+            if (i > 0) {
+                writer.write(',');
+            }
+            String value = fields.get(columns.get(i));
+            if (value != null) {
+                writeCsvValue(value);
+            }
+        }
+    }
+
+    private void writeCsvValue(String value) throws IOException {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0
+                && value.indexOf('\r') < 0) {
+            writer.write(value);
+            return;
+        }
+        writer.write('"');
+        writer.write(value.replace("\"", "\"\""));
+        writer.write('"');
+    }
+}
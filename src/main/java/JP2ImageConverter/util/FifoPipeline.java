@@ -0,0 +1,101 @@
+package JP2ImageConverter.util;
+
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Runs a producer command writing into a named pipe (FIFO) and a consumer command reading from it at the same
+ * time, so that the intermediate image is never written to disk. When either command fails or times out, the
+ * other one is stopped, and the failure that happened first is thrown.
+ */
+public class FifoPipeline {
+    private static final Logger log = getLogger(FifoPipeline.class);
+    private static final long JOIN_MILLIS = 100;
+
+    private FifoPipeline() {
+    }
+
+    /**
+     * Create a named pipe
+     * @param fifo path of the pipe, which must not exist
+     */
+    public static void createFifo(Path fifo) {
+        CommandUtility.executeCommand(List.of("mkfifo", fifo.toString()));
+    }
+
+    /**
+     * Run the producer and the consumer side by side
+     * @param producer command writing into the pipe
+     * @param producerOutput the pipe, if the producer writes to its standard output, or null if the pipe is one
+     *                       of its arguments
+     * @param consumer command reading from the pipe
+     * @param fifo the pipe
+     * @return output of the consumer
+     */
+    public static String run(List<String> producer, String producerOutput, List<String> consumer, Path fifo) {
+        AtomicReference<RuntimeException> failure = new AtomicReference<>();
+        EscalatingExecuteWatchdog producerWatchdog = CommandUtility.newWatchdog();
+        EscalatingExecuteWatchdog consumerWatchdog = CommandUtility.newWatchdog();
+
+        Thread producerThread = Thread.ofPlatform().daemon().name("fifo-producer").start(() -> {
+            try {
+                if (producerOutput == null) {
+                    CommandUtility.executeCommand(producer, producerWatchdog);
+                } else {
+                    CommandUtility.executeCommandWriteToFile(producer, producerOutput, producerWatchdog);
+                }
+            } catch (RuntimeException e) {
+                failure.compareAndSet(null, e);
+                consumerWatchdog.stop();
+            }
+        });
+
+        String output = null;
+        try {
+            output = CommandUtility.executeCommand(consumer, consumerWatchdog);
+        } catch (RuntimeException e) {
+            failure.compareAndSet(null, e);
+        }
+
+        boolean interrupted = false;
+        while (producerThread.isAlive()) {
+            if (failure.get() != null) {
+                producerWatchdog.stop();
+                // a producer writing through this JVM may be blocked opening the pipe, which needs a reader
+                release(fifo);
+            }
+            try {
+                producerThread.join(JOIN_MILLIS);
+            } catch (InterruptedException e) {
+                interrupted = true;
+                failure.compareAndSet(null, new IllegalStateException("Interrupted while streaming " + fifo));
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        return output;
+    }
+
+    /**
+     * Open and close the pipe for reading and writing, which does not block on Linux, to unblock a writer
+     * waiting for a reader. Further writes fail with a broken pipe.
+     */
+    private static void release(Path fifo) {
+        try (RandomAccessFile pipe = new RandomAccessFile(fifo.toFile(), "rw")) {
+            log.debug("Released {}", fifo);
+        } catch (IOException e) {
+            log.debug("Unable to release {}: {}", fifo, e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,312 @@
+package JP2ImageConverter.util;
+
+import com.drew.imaging.jpeg.JpegSegmentType;
+import com.drew.imaging.tiff.TiffProcessingException;
+import com.drew.imaging.tiff.TiffReader;
+import com.drew.lang.BufferBoundsException;
+import com.drew.lang.ByteArrayReader;
+import com.drew.lang.RandomAccessReader;
+import com.drew.metadata.Metadata;
+import com.drew.metadata.exif.ExifIFD0Directory;
+import com.drew.metadata.exif.ExifInteropDirectory;
+import com.drew.metadata.exif.ExifReader;
+import com.drew.metadata.exif.ExifSubIFDDirectory;
+import com.drew.metadata.exif.ExifTiffHandler;
+import com.drew.metadata.file.FileSystemMetadataReader;
+import com.drew.metadata.icc.IccDirectory;
+import com.drew.metadata.icc.IccReader;
+import com.drew.metadata.photoshop.PhotoshopReader;
+import org.slf4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Reads the EXIF IFD0, SubIFD, Interop and ICC metadata of TIFF, JPEG and PSD files from memory mapped windows
+ * of the file header, skipping maker notes, XMP, IPTC and Photoshop resources and the image data.
+ * The directories produced are the same ones ImageMetadataReader produces for the tags ColorFieldsService uses.
+ */
+public class HeaderMetadataReader {
+    private static final Logger log = getLogger(HeaderMetadataReader.class);
+    // maximum number of bytes mapped per file, files needing more are read with ImageMetadataReader
+    private static final long DEFAULT_WINDOW = 16L * 1024 * 1024;
+    // files are mapped in pages of this size as the parser touches them
+    private static final int PAGE_SIZE = 256 * 1024;
+
+    private static final int TAG_MAKERNOTE = 0x927C;
+    private static final int TAG_IPTC_NAA = 0x83BB;
+    private static final int TAG_PHOTOSHOP_SETTINGS = 0x8649;
+    private static final int TAG_APPLICATION_NOTES = 0x02BC;
+
+    private static final int PSD_RESOURCE_ICC_PROFILE = 0x040F;
+    private static final int PSD_RESOURCE_EXIF_DATA_1 = 0x0422;
+    private static final int PSD_RESOURCE_EXIF_DATA_3 = 0x0423;
+
+    private static final int APP1 = 0xE1;
+    private static final int APP2 = 0xE2;
+    private static final int APP13 = 0xED;
+    private static final String ICC_PREAMBLE = "ICC_PROFILE";
+    private static final String PHOTOSHOP_PREAMBLE = "Photoshop 3.0";
+
+    private HeaderMetadataReader() {
+    }
+
+    /**
+     * Read the metadata used by ColorFieldsService from the header of an image file
+     * The window size is set by the jp24u.metadata.window system property, 0 disables the header reader
+     * @param file an image file
+     * @return the metadata, or null if the format is not supported or the metadata does not fit in the window
+     */
+    public static Metadata read(File file) {
+        long window = Long.getLong("jp24u.metadata.window", DEFAULT_WINDOW);
+        if (window <= 0) {
+            return null;
+        }
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            WindowReader reader = new WindowReader(channel, window);
+            if (reader.getLength() < 4) {
+                return null;
+            }
+            Metadata metadata = new Metadata();
+            byte[] magic = reader.getBytes(0, 4);
+            if (TiffIfdReader.isTiff(magic) && magic[0] == magic[1] && (magic[2] == 42 || magic[3] == 42)) {
+                new TiffReader().processTiff(reader, new HeaderTiffHandler(metadata), 0);
+            } else if ((magic[0] & 0xFF) == 0xFF && (magic[1] & 0xFF) == 0xD8 && (magic[2] & 0xFF) == 0xFF) {
+                readJpeg(reader, metadata);
+            } else if (magic[0] == '8' && magic[1] == 'B' && magic[2] == 'P' && magic[3] == 'S') {
+                readPsd(reader, metadata);
+            } else {
+                return null;
+            }
+            new FileSystemMetadataReader().read(file, metadata);
+            log.debug("Read header metadata for {} from {} mapped bytes", file, reader.mappedBytes);
+            return metadata;
+        } catch (IOException | TiffProcessingException | RuntimeException e) {
+            log.debug("Header metadata not read for {}: {}", file, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Read the APP1 EXIF, APP2 ICC and APP13 Photoshop segments before the first scan,
+     * in the same order ImageMetadataReader processes them
+     */
+    private static void readJpeg(WindowReader reader, Metadata metadata) throws IOException, TiffProcessingException {
+        List<byte[]> exifSegments = new ArrayList<>();
+        List<byte[]> iccSegments = new ArrayList<>();
+        List<byte[]> photoshopSegments = new ArrayList<>();
+        reader.setMotorolaByteOrder(true);
+        long length = reader.getLength();
+        int position = 2;
+        while (position + 4 <= length) {
+            if ((reader.getByte(position) & 0xFF) != 0xFF) {
+                throw new IOException("Invalid JPEG marker at " + position);
+            }
+            int marker = reader.getByte(position + 1) & 0xFF;
+            if (marker == 0xFF) {
+                position++;
+                continue;
+            }
+            // start of scan or end of image, no more metadata segments
+            if (marker == 0xDA || marker == 0xD9) {
+                break;
+            }
+            int segmentLength = reader.getUInt16(position + 2);
+            if (segmentLength < 2) {
+                throw new IOException("Invalid JPEG segment length at " + position);
+            }
+            if (marker == APP1 || marker == APP2 || marker == APP13) {
+                byte[] segment = reader.getBytes(position + 4, segmentLength - 2);
+                if (marker == APP1 && ExifReader.startsWithJpegExifPreamble(segment)) {
+                    exifSegments.add(segment);
+                } else if (marker == APP2 && startsWith(segment, ICC_PREAMBLE)) {
+                    iccSegments.add(segment);
+                } else if (marker == APP13 && startsWith(segment, PHOTOSHOP_PREAMBLE)) {
+                    photoshopSegments.add(segment);
+                }
+            }
+            position += 2 + segmentLength;
+        }
+
+        for (byte[] segment : exifSegments) {
+            new TiffReader().processTiff(new ByteArrayReader(segment), new HeaderTiffHandler(metadata),
+                    ExifReader.JPEG_SEGMENT_PREAMBLE.length());
+        }
+        if (!iccSegments.isEmpty()) {
+            new IccReader().readJpegSegments(iccSegments, metadata, JpegSegmentType.APP2);
+        }
+        if (!photoshopSegments.isEmpty()) {
+            new PhotoshopReader().readJpegSegments(photoshopSegments, metadata, JpegSegmentType.APPD);
+        }
+    }
+
+    /**
+     * Read the ICC profile and EXIF image resources of a PSD file, skipping all other resources
+     */
+    private static void readPsd(WindowReader reader, Metadata metadata) throws IOException, TiffProcessingException {
+        reader.setMotorolaByteOrder(true);
+        // 26 byte file header, then the color mode data section
+        long colorModeLength = reader.getUInt32(26);
+        long resourcesStart = 30 + colorModeLength + 4;
+        long resourcesEnd = resourcesStart + reader.getUInt32(Math.toIntExact(30 + colorModeLength));
+        int position = Math.toIntExact(resourcesStart);
+        while (position + 12 <= resourcesEnd) {
+            String signature = reader.getString(position, 4, StandardCharsets.US_ASCII);
+            if (!signature.equals("8BIM")) {
+                throw new IOException("Invalid PSD image resource signature " + signature);
+            }
+            int id = reader.getUInt16(position + 4);
+            // pascal string name, padded to an even length including the length byte
+            int nameLength = reader.getUInt8(position + 6);
+            int dataStart = position + 6 + ((nameLength + 2) & ~1);
+            int dataLength = Math.toIntExact(reader.getUInt32(dataStart));
+            dataStart += 4;
+            if (id == PSD_RESOURCE_ICC_PROFILE) {
+                new IccReader().extract(new ByteArrayReader(reader.getBytes(dataStart, dataLength)), metadata);
+            } else if (id == PSD_RESOURCE_EXIF_DATA_1 || id == PSD_RESOURCE_EXIF_DATA_3) {
+                new TiffReader().processTiff(new ByteArrayReader(reader.getBytes(dataStart, dataLength)),
+                        new HeaderTiffHandler(metadata), 0);
+            }
+            position = dataStart + ((dataLength + 1) & ~1);
+        }
+    }
+
+    private static boolean startsWith(byte[] segment, String preamble) {
+        if (segment.length < preamble.length()) {
+            return false;
+        }
+        return new String(segment, 0, preamble.length(), StandardCharsets.US_ASCII).equals(preamble);
+    }
+
+    /**
+     * EXIF handler which only descends into the directories ColorFieldsService reads,
+     * and stops following IFD chains once they have all been found
+     */
+    private static class HeaderTiffHandler extends ExifTiffHandler {
+        HeaderTiffHandler(Metadata metadata) {
+            super(metadata, null);
+        }
+
+        @Override
+        public boolean tryEnterSubIfd(int tagId) {
+            if (tagId == ExifIFD0Directory.TAG_GPS_INFO_OFFSET) {
+                return false;
+            }
+            return super.tryEnterSubIfd(tagId);
+        }
+
+        @Override
+        public boolean hasFollowerIfd() {
+            if (_metadata.containsDirectoryOfType(ExifIFD0Directory.class)
+                    && _metadata.containsDirectoryOfType(ExifSubIFDDirectory.class)
+                    && _metadata.containsDirectoryOfType(ExifInteropDirectory.class)
+                    && _metadata.containsDirectoryOfType(IccDirectory.class)) {
+                return false;
+            }
+            return super.hasFollowerIfd();
+        }
+
+        @Override
+        public boolean customProcessTag(int tagOffset, Set<Integer> processedIfdOffsets, int tiffHeaderOffset,
+                                        RandomAccessReader reader, int tagId, int byteCount) throws IOException {
+            // skip maker notes, IPTC, Photoshop and XMP blocks, they are never read
+            if (tagId == TAG_MAKERNOTE || tagId == TAG_IPTC_NAA || tagId == TAG_PHOTOSHOP_SETTINGS
+                    || tagId == TAG_APPLICATION_NOTES) {
+                return true;
+            }
+            return super.customProcessTag(tagOffset, processedIfdOffsets, tiffHeaderOffset, reader, tagId,
+                    byteCount);
+        }
+    }
+
+    /**
+     * Random access reader over a file which maps pages of the file as they are read,
+     * up to a maximum number of mapped bytes
+     */
+    private static class WindowReader extends RandomAccessReader {
+        private final FileChannel channel;
+        private final long length;
+        private final long window;
+        private final Map<Long, MappedByteBuffer> pages = new HashMap<>();
+        private long mappedBytes;
+
+        WindowReader(FileChannel channel, long window) throws IOException {
+            this.channel = channel;
+            this.length = channel.size();
+            this.window = window;
+        }
+
+        @Override
+        public int toUnshiftedOffset(int localOffset) {
+            return localOffset;
+        }
+
+        @Override
+        public byte getByte(int index) throws IOException {
+            validateIndex(index, 1);
+            long page = index / PAGE_SIZE;
+            return page(page).get((int) (index - page * PAGE_SIZE));
+        }
+
+        @Override
+        public byte[] getBytes(int index, int count) throws IOException {
+            validateIndex(index, count);
+            byte[] bytes = new byte[count];
+            int copied = 0;
+            while (copied < count) {
+                long position = (long) index + copied;
+                long page = position / PAGE_SIZE;
+                int offset = (int) (position - page * PAGE_SIZE);
+                MappedByteBuffer buffer = page(page);
+                int length = Math.min(count - copied, buffer.capacity() - offset);
+                buffer.get(offset, bytes, copied, length);
+                copied += length;
+            }
+            return bytes;
+        }
+
+        @Override
+        protected void validateIndex(int index, int bytesRequested) throws IOException {
+            if (!isValidIndex(index, bytesRequested)) {
+                throw new BufferBoundsException(index, bytesRequested, length);
+            }
+        }
+
+        @Override
+        protected boolean isValidIndex(int index, int bytesRequested) {
+            return bytesRequested >= 0 && index >= 0 && (long) index + bytesRequested <= length;
+        }
+
+        @Override
+        public long getLength() {
+            return length;
+        }
+
+        private MappedByteBuffer page(long page) throws IOException {
+            MappedByteBuffer buffer = pages.get(page);
+            if (buffer == null) {
+                long start = page * PAGE_SIZE;
+                long size = Math.min(PAGE_SIZE, length - start);
+                if (mappedBytes + size > window) {
+                    throw new IOException("Metadata exceeds the header window of " + window + " bytes");
+                }
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+                pages.put(page, buffer);
+                mappedBytes += size;
+            }
+            return buffer;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package JP2ImageConverter.util;
+
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Checks the tone reproduction curves of the ICC profile embedded in a TIFF before it is encoded.
+ * kdu_compress rejects profiles whose curves are truncated ("reproduction curve appears to have been truncated"),
+ * so such TIFFs are better stripped of their profile before the first encode than after a failed one.
+ * Disabled with jp24u.icc.validate=false.
+ */
+public class IccProfileValidator {
+    private static final Logger log = getLogger(IccProfileValidator.class);
+    private static final int HEADER_SIZE = 128;
+    private static final int TAG_ENTRY_SIZE = 12;
+    private static final Set<String> CURVE_TAGS = Set.of("rTRC", "gTRC", "bTRC", "kTRC");
+    // number of s15Fixed16 parameters of each parametric curve function type
+    private static final int[] PARAMETRIC_CURVE_PARAMETERS = {1, 3, 4, 5, 7};
+
+    private IccProfileValidator() {
+    }
+
+    /**
+     * @return true if ICC profiles should be validated before encoding
+     */
+    public static boolean isEnabled() {
+        return Boolean.parseBoolean(System.getProperty("jp24u.icc.validate", "true"));
+    }
+
+    /**
+     * Check the ICC profile embedded in a TIFF
+     * @param fileName a TIFF file
+     * @return true if the TIFF has an ICC profile with a truncated or unreadable tone reproduction curve, false if
+     * the profile is valid, absent or the file is not a readable TIFF
+     */
+    public static boolean hasTruncatedCurve(String fileName) {
+        byte[] profile = readProfile(fileName);
+        if (profile == null) {
+            return false;
+        }
+        String problem = findTruncatedCurve(profile);
+        if (problem != null) {
+            log.info("Invalid ICC profile in {}: {}", fileName, problem);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Read the ICC profile embedded in a TIFF
+     * @param fileName a TIFF file
+     * @return the profile, or null if the TIFF has none or the file is not a readable TIFF
+     */
+    public static byte[] readProfile(String fileName) {
+        try (FileChannel channel = FileChannel.open(Path.of(fileName), StandardOpenOption.READ)) {
+            TiffIfdReader reader = new TiffIfdReader(channel);
+            TiffIfdReader.Entry entry = reader.readFirstIfd().entries().get(TiffIfdReader.TAG_ICC_PROFILE);
+            return entry == null ? null : reader.getBytes(entry);
+        } catch (IOException | RuntimeException e) {
+            log.debug("Unable to read ICC profile of {}: {}", fileName, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Check the tone reproduction curves of an ICC profile
+     * @param profile the ICC profile
+     * @return a description of the first truncated curve, or null if all curves are complete
+     */
+    public static String findTruncatedCurve(byte[] profile) {
+        if (profile.length < HEADER_SIZE + 4) {
+            return "profile of " + profile.length + " bytes has no tag table";
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(profile);
+        // the declared size may be smaller than the TIFF field, never larger
+        long size = Math.min(buffer.getInt(0) & 0xFFFFFFFFL, profile.length);
+        long tagCount = buffer.getInt(HEADER_SIZE) & 0xFFFFFFFFL;
+        if (HEADER_SIZE + 4 + tagCount * TAG_ENTRY_SIZE > size) {
+            return "tag table of " + tagCount + " tags exceeds the profile";
+        }
+        for (int i = 0; i < tagCount; i++) {
+            int entry = HEADER_SIZE + 4 + i * TAG_ENTRY_SIZE;
+            String signature = new String(profile, entry, 4, StandardCharsets.US_ASCII);
+            if (!CURVE_TAGS.contains(signature)) {
+                continue;
+            }
+            long offset = buffer.getInt(entry + 4) & 0xFFFFFFFFL;
+            long length = buffer.getInt(entry + 8) & 0xFFFFFFFFL;
+            if (length < 12 || offset + length > size) {
+                return signature + " of " + length + " bytes at " + offset + " exceeds the profile";
+            }
+            long required = curveLength(buffer, (int) offset);
+            if (required < 0) {
+                return signature + " has an unsupported curve type";
+            }
+            if (required > length) {
+                return signature + " needs " + required + " bytes but has " + length;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the number of bytes a curv or para curve needs, or -1 for other types and unknown functions
+     */
+    private static long curveLength(ByteBuffer buffer, int offset) {
+        String type = new String(buffer.array(), offset, 4, StandardCharsets.US_ASCII);
+        if (type.equals("curv")) {
+            return 12 + 2 * (buffer.getInt(offset + 8) & 0xFFFFFFFFL);
+        } else if (type.equals("para")) {
+            int function = buffer.getShort(offset + 8) & 0xFFFF;
+            return function < PARAMETRIC_CURVE_PARAMETERS.length ?
+                    12 + 4L * PARAMETRIC_CURVE_PARAMETERS[function] : -1;
+        }
+        return -1;
+    }
+}
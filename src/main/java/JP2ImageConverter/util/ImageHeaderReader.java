@@ -0,0 +1,271 @@
+package JP2ImageConverter.util;
+
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Reads image dimensions, bit depth, channel count and color model from the header of an image file
+ * without decoding the image or launching an external tool.
+ * Supported formats: TIFF (including BigTIFF and TIFF based raw formats), PNG, JPEG, GIF, BMP, PSD, PGM, PPM
+ */
+public class ImageHeaderReader {
+    private static final Logger log = getLogger(ImageHeaderReader.class);
+    // JPEG headers are scanned for a SOF marker up to this many bytes into the file
+    private static final int MAX_JPEG_SCAN = 1024 * 1024;
+
+    private ImageHeaderReader() {
+    }
+
+    /**
+     * Read the header of an image file
+     * @param fileName an image file
+     * @return the image header, or null if the format is not recognized or the header cannot be read
+     */
+    public static Header read(String fileName) {
+        try (FileChannel channel = FileChannel.open(Path.of(fileName), StandardOpenOption.READ)) {
+            byte[] magic = new byte[12];
+            ByteBuffer magicBuffer = ByteBuffer.wrap(magic);
+            channel.read(magicBuffer, 0);
+            if (TiffIfdReader.isTiff(magic)) {
+                return readTiff(channel);
+            } else if ((magic[0] & 0xFF) == 0x89 && magic[1] == 'P' && magic[2] == 'N' && magic[3] == 'G') {
+                return readPng(channel);
+            } else if ((magic[0] & 0xFF) == 0xFF && (magic[1] & 0xFF) == 0xD8) {
+                return readJpeg(channel);
+            } else if (magic[0] == 'G' && magic[1] == 'I' && magic[2] == 'F') {
+                return readGif(channel);
+            } else if (magic[0] == 'B' && magic[1] == 'M') {
+                return readBmp(channel);
+            } else if (magic[0] == '8' && magic[1] == 'B' && magic[2] == 'P' && magic[3] == 'S') {
+                return readPsd(channel);
+            } else if (magic[0] == 'P' && (magic[1] == '5' || magic[1] == '6')) {
+                return readPnm(channel);
+            }
+        } catch (IOException | RuntimeException e) {
+            log.debug("Unable to read image header for {}: {}", fileName, e.getMessage());
+        }
+        return null;
+    }
+
+    private static Header readTiff(FileChannel channel) throws IOException {
+        TiffIfdReader reader = new TiffIfdReader(channel);
+        TiffIfdReader.Ifd ifd = reader.readFirstIfd();
+        int width = (int) reader.getLong(ifd, TiffIfdReader.TAG_IMAGE_WIDTH, 0);
+        int height = (int) reader.getLong(ifd, TiffIfdReader.TAG_IMAGE_LENGTH, 0);
+        int bitDepth = (int) reader.getLong(ifd, TiffIfdReader.TAG_BITS_PER_SAMPLE, 1);
+        int channels = (int) reader.getLong(ifd, TiffIfdReader.TAG_SAMPLES_PER_PIXEL, 1);
+        int photometric = (int) reader.getLong(ifd, TiffIfdReader.TAG_PHOTOMETRIC_INTERPRETATION, -1);
+        ColorModel colorModel = switch (photometric) {
+            case 0, 1 -> ColorModel.GRAY;
+            case 2 -> ColorModel.RGB;
+            case 3 -> ColorModel.PALETTE;
+            case 5 -> ColorModel.CMYK;
+            case 6 -> ColorModel.YCBCR;
+            case 8, 9, 10 -> ColorModel.LAB;
+            default -> ColorModel.UNKNOWN;
+        };
+        int colorChannels = switch (colorModel) {
+            case GRAY, PALETTE -> 1;
+            case CMYK -> 4;
+            default -> 3;
+        };
+        boolean alpha = channels > colorChannels && ifd.contains(TiffIfdReader.TAG_EXTRA_SAMPLES);
+        return new Header("tiff", width, height, bitDepth, channels, colorModel, alpha);
+    }
+
+    private static Header readPng(FileChannel channel) throws IOException {
+        // IHDR is always the first chunk: width, height, bit depth, colour type
+        ByteBuffer ihdr = read(channel, 16, 13, ByteOrder.BIG_ENDIAN);
+        int colorType = ihdr.get(9) & 0xFF;
+        int channels = switch (colorType) {
+            case 0 -> 1;
+            case 2, 3 -> 3;
+            case 4 -> 2;
+            case 6 -> 4;
+            default -> throw new IOException("Unknown PNG colour type " + colorType);
+        };
+        ColorModel colorModel = switch (colorType) {
+            case 0, 4 -> ColorModel.GRAY;
+            case 3 -> ColorModel.PALETTE;
+            default -> ColorModel.RGB;
+        };
+        boolean alpha = colorType == 4 || colorType == 6
+                || (colorType == 0 || colorType == 2) && hasPngTransparency(channel);
+        return new Header("png", ihdr.getInt(0), ihdr.getInt(4), ihdr.get(8) & 0xFF, channels, colorModel, alpha);
+    }
+
+    /**
+     * A tRNS chunk makes one gray level or RGB color of a gray or truecolor PNG transparent, which ImageMagick
+     * reports as an alpha channel. It comes before the image data.
+     * @return true if the PNG has a tRNS chunk
+     */
+    private static boolean hasPngTransparency(FileChannel channel) throws IOException {
+        long position = 8;
+        while (position + 8 <= channel.size()) {
+            ByteBuffer chunk = read(channel, position, 8, ByteOrder.BIG_ENDIAN);
+            String type = new String(chunk.array(), 4, 4, StandardCharsets.US_ASCII);
+            if (type.equals("tRNS")) {
+                return true;
+            } else if (type.equals("IDAT") || type.equals("IEND")) {
+                return false;
+            }
+            position += 12L + (chunk.getInt(0) & 0xFFFFFFFFL);
+        }
+        return false;
+    }
+
+    private static Header readJpeg(FileChannel channel) throws IOException {
+        long position = 2;
+        long limit = Math.min(channel.size(), MAX_JPEG_SCAN);
+        while (position + 4 <= limit) {
+            ByteBuffer marker = read(channel, position, 4, ByteOrder.BIG_ENDIAN);
+            if ((marker.get(0) & 0xFF) != 0xFF) {
+                throw new IOException("Invalid JPEG marker at " + position);
+            }
+            int code = marker.get(1) & 0xFF;
+            // fill bytes
+            if (code == 0xFF) {
+                position++;
+                continue;
+            }
+            int length = marker.getShort(2) & 0xFFFF;
+            // SOF0-SOF15, excluding DHT (C4), JPG (C8) and DAC (CC)
+            if (code >= 0xC0 && code <= 0xCF && code != 0xC4 && code != 0xC8 && code != 0xCC) {
+                ByteBuffer sof = read(channel, position + 4, 6, ByteOrder.BIG_ENDIAN);
+                int components = sof.get(5) & 0xFF;
+                ColorModel colorModel = switch (components) {
+                    case 1 -> ColorModel.GRAY;
+                    case 3 -> ColorModel.YCBCR;
+                    case 4 -> ColorModel.CMYK;
+                    default -> ColorModel.UNKNOWN;
+                };
+                return new Header("jpeg", sof.getShort(3) & 0xFFFF, sof.getShort(1) & 0xFFFF,
+                        sof.get(0) & 0xFF, components, colorModel, false);
+            }
+            if (code == 0xDA || code == 0xD9) {
+                break;
+            }
+            position += 2 + length;
+        }
+        throw new IOException("No JPEG frame header found");
+    }
+
+    private static Header readGif(FileChannel channel) throws IOException {
+        // logical screen descriptor, palette entries are always 8 bit RGB
+        ByteBuffer screen = read(channel, 6, 5, ByteOrder.LITTLE_ENDIAN);
+        return new Header("gif", screen.getShort(0) & 0xFFFF, screen.getShort(2) & 0xFFFF, 8, 3,
+                ColorModel.PALETTE, false);
+    }
+
+    private static Header readBmp(FileChannel channel) throws IOException {
+        ByteBuffer info = read(channel, 14, 16, ByteOrder.LITTLE_ENDIAN);
+        int headerSize = info.getInt(0);
+        int width;
+        int height;
+        int bitCount;
+        if (headerSize == 12) {
+            width = info.getShort(4) & 0xFFFF;
+            height = info.getShort(6) & 0xFFFF;
+            bitCount = info.getShort(10) & 0xFFFF;
+        } else {
+            width = info.getInt(4);
+            height = Math.abs(info.getInt(8));
+            bitCount = info.getShort(14) & 0xFFFF;
+        }
+        int channels = bitCount == 32 ? 4 : 3;
+        int bitDepth = bitCount <= 8 ? bitCount : 8;
+        return new Header("bmp", width, height, bitDepth, channels,
+                bitCount <= 8 ? ColorModel.PALETTE : ColorModel.RGB, false);
+    }
+
+    private static Header readPsd(FileChannel channel) throws IOException {
+        ByteBuffer header = read(channel, 12, 14, ByteOrder.BIG_ENDIAN);
+        int channels = header.getShort(0) & 0xFFFF;
+        int height = header.getInt(2);
+        int width = header.getInt(6);
+        int bitDepth = header.getShort(10) & 0xFFFF;
+        int mode = header.getShort(12) & 0xFFFF;
+        ColorModel colorModel = switch (mode) {
+            case 0, 1, 8 -> ColorModel.GRAY;
+            case 2 -> ColorModel.PALETTE;
+            case 3 -> ColorModel.RGB;
+            case 4 -> ColorModel.CMYK;
+            case 9 -> ColorModel.LAB;
+            default -> ColorModel.UNKNOWN;
+        };
+        return new Header("psd", width, height, bitDepth, channels, colorModel, false);
+    }
+
+    private static Header readPnm(FileChannel channel) throws IOException {
+        // binary PGM (P5) or PPM (P6): magic, width, height and maxval as whitespace separated ASCII fields,
+        // with optional comments
+        ByteBuffer header = read(channel, 0, (int) Math.min(channel.size(), 512), ByteOrder.BIG_ENDIAN);
+        int channels = header.get(1) == '5' ? 1 : 3;
+        int[] values = new int[3];
+        int position = 2;
+        for (int i = 0; i < values.length; i++) {
+            while (position < header.limit()) {
+                byte b = header.get(position);
+                if (b == '#') {
+                    while (position < header.limit() && header.get(position) != '\n') {
+                        position++;
+                    }
+                } else if (Character.isWhitespace(b)) {
+                    position++;
+                } else {
+                    break;
+                }
+            }
+            int value = 0;
+            while (position < header.limit() && Character.isDigit(header.get(position))) {
+                value = value * 10 + (header.get(position) - '0');
+                position++;
+            }
+            values[i] = value;
+        }
+        int bitDepth = 32 - Integer.numberOfLeadingZeros(values[2]);
+        return new Header(channels == 1 ? "pgm" : "ppm", values[0], values[1], bitDepth, channels,
+                channels == 1 ? ColorModel.GRAY : ColorModel.RGB, false);
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int length, ByteOrder order)
+            throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(order);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+        }
+        return buffer.flip();
+    }
+
+    /**
+     * Header fields of an image
+     * @param format the detected file format
+     * @param width width in pixels
+     * @param height height in pixels
+     * @param bitDepth bits per sample
+     * @param channels samples per pixel, palette images count as their expanded channels
+     * @param colorModel how the samples encode color
+     * @param alpha true if the header declares an alpha channel
+     */
+    public record Header(String format, int width, int height, int bitDepth, int channels, ColorModel colorModel,
+                         boolean alpha) {
+    }
+
+    /**
+     * Color models declared by image headers
+     */
+    public enum ColorModel {
+        GRAY, RGB, PALETTE, CMYK, YCBCR, LAB, UNKNOWN
+    }
+}
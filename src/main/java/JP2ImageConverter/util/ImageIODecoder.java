@@ -0,0 +1,238 @@
+package JP2ImageConverter.util;
+
+import com.drew.imaging.ImageMetadataReader;
+import com.drew.metadata.Metadata;
+import com.drew.metadata.exif.ExifIFD0Directory;
+import com.drew.metadata.icc.IccDirectory;
+import org.slf4j.Logger;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.Set;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Decodes the first frame of PNG, GIF and BMP images with ImageIO and writes it as a PPM, or a PGM if every pixel
+ * is gray, for kdu_compress. Palettes are expanded and alpha channels dropped, as GraphicsMagick would for a TIFF.
+ * Rows are converted and written one at a time through a single row buffer.
+ * The ImageIO PNG, GIF and BMP readers decode sequentially, so reading the frame in bands of rows would decode it
+ * again for every band; the whole frame is decoded once instead. It is held in the heap while the gray check and
+ * the PNM writer pass over it, so images whose decoded frame would take more than jp24u.decode.maxHeapPercent
+ * (default 25) percent of the maximum heap are left to GraphicsMagick, as are images over
+ * jp24u.decode.maxMegapixels and images with an ICC profile or a non default EXIF orientation.
+ * The in JVM path is disabled with jp24u.decode.inJvm=false.
+ */
+public class ImageIODecoder {
+    private static final Logger log = getLogger(ImageIODecoder.class);
+    private static final Set<String> FORMATS = Set.of("png", "gif", "bmp");
+    private static final long DEFAULT_MAX_MEGAPIXELS = 50;
+    private static final long DEFAULT_MAX_HEAP_PERCENT = 25;
+    private static final int ORIENTATION_DEFAULT = 1;
+
+    private ImageIODecoder() {
+    }
+
+    /**
+     * Check whether an image can be decoded without an external tool, from its header and metadata
+     * @param fileName an image file
+     * @param format normalized source format
+     * @return true if the image can be decoded in the JVM
+     */
+    public static boolean canDecode(String fileName, String format) {
+        if (!Boolean.parseBoolean(System.getProperty("jp24u.decode.inJvm", "true")) || !FORMATS.contains(format)) {
+            return false;
+        }
+        long maxPixels = Long.getLong("jp24u.decode.maxMegapixels", DEFAULT_MAX_MEGAPIXELS) * 1000000;
+        ImageHeaderReader.Header header = ImageHeaderReader.read(fileName);
+        if (header == null || header.width() <= 0 || header.height() <= 0
+                || (long) header.width() * header.height() > maxPixels) {
+            return false;
+        }
+        long maxFrameBytes = Runtime.getRuntime().maxMemory() / 100
+                * Long.getLong("jp24u.decode.maxHeapPercent", DEFAULT_MAX_HEAP_PERCENT);
+        if (decodedBytes(header) > maxFrameBytes) {
+            log.debug("Decoded frame of {} would not fit in {} bytes of heap", fileName, maxFrameBytes);
+            return false;
+        }
+        try {
+            Metadata metadata = ImageMetadataReader.readMetadata(new File(fileName));
+            if (metadata.containsDirectoryOfType(IccDirectory.class)) {
+                return false;
+            }
+            ExifIFD0Directory exif = metadata.getFirstDirectoryOfType(ExifIFD0Directory.class);
+            return exif == null || !exif.containsTag(ExifIFD0Directory.TAG_ORIENTATION)
+                    || exif.getInt(ExifIFD0Directory.TAG_ORIENTATION) == ORIENTATION_DEFAULT;
+        } catch (Exception e) {
+            log.debug("Unable to read metadata of {}: {}", fileName, e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * @return bytes of the decoded frame, palettes counted as expanded
+     */
+    private static long decodedBytes(ImageHeaderReader.Header header) {
+        return (long) header.width() * header.height() * Math.max(1, header.channels())
+                * (header.bitDepth() > 8 ? 2 : 1);
+    }
+
+    /**
+     * Decode the first frame of an image
+     * @param fileName an image file
+     * @return the decoded frame
+     */
+    public static BufferedImage readFirstFrame(String fileName) throws IOException {
+        try (ImageInputStream stream = ImageIO.createImageInputStream(new File(fileName))) {
+            Iterator<ImageReader> readers = stream == null ? null : ImageIO.getImageReaders(stream);
+            if (readers == null || !readers.hasNext()) {
+                throw new IOException("No ImageIO reader for " + fileName);
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(stream, true, true);
+                return reader.read(0);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * @param image a decoded image
+     * @return true if the red, green and blue values of every pixel are equal. The pass stops at the first
+     * colored pixel, so only gray images stored as RGB are read to the end.
+     */
+    public static boolean isGray(BufferedImage image) {
+        Rows rows = new Rows(image);
+        if (rows.channels == 1) {
+            return true;
+        }
+        int[] row = new int[image.getWidth() * 3];
+        for (int y = 0; y < image.getHeight(); y++) {
+            rows.read(y, row);
+            for (int i = 0; i < row.length; i += 3) {
+                if (row[i] != row[i + 1] || row[i] != row[i + 2]) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Write an image as a binary PPM, or a PGM if gray is set or the image has a single channel
+     * @param image a decoded image
+     * @param gray write only the first channel of each pixel
+     * @param output the file to write
+     */
+    public static void writePnm(BufferedImage image, boolean gray, Path output) throws IOException {
+        Rows rows = new Rows(image);
+        int width = image.getWidth();
+        boolean pgm = gray || rows.channels == 1;
+        int outputChannels = pgm ? 1 : 3;
+        int bytesPerSample = rows.maxValue > 255 ? 2 : 1;
+        int[] row = new int[width * rows.channels];
+        byte[] buffer = new byte[width * outputChannels * bytesPerSample];
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(output))) {
+            String header = (pgm ? "P5" : "P6") + "\n" + width + " " + image.getHeight() + "\n" + rows.maxValue
+                    + "\n";
+            out.write(header.getBytes(StandardCharsets.US_ASCII));
+            for (int y = 0; y < image.getHeight(); y++) {
+                rows.read(y, row);
+                int position = 0;
+                for (int x = 0; x < width; x++) {
+                    for (int c = 0; c < outputChannels; c++) {
+                        int value = row[x * rows.channels + c];
+                        if (bytesPerSample == 2) {
+                            buffer[position++] = (byte) (value >>> 8);
+                        }
+                        buffer[position++] = (byte) value;
+                    }
+                }
+                out.write(buffer);
+            }
+        }
+    }
+
+    /**
+     * Reads rows of an image as gray or RGB samples, without alpha. Gray and RGB images are read from the raster,
+     * keeping up to 16 bits per sample, palettes are expanded and any other image is converted to 8 bit sRGB.
+     */
+    private static class Rows {
+        private final BufferedImage image;
+        private final Raster raster;
+        private final IndexColorModel palette;
+        private final boolean direct;
+        private final int channels;
+        private final int maxValue;
+        private final int shift;
+        private final int[] samples;
+
+        private Rows(BufferedImage image) {
+            this.image = image;
+            this.raster = image.getRaster();
+            this.palette = image.getColorModel() instanceof IndexColorModel icm ? icm : null;
+            int colorSpaceType = image.getColorModel().getColorSpace().getType();
+            int bits = raster.getSampleModel().getSampleSize(0);
+            this.direct = palette == null && image.getColorModel() instanceof ComponentColorModel
+                    && (colorSpaceType == ColorSpace.TYPE_GRAY || colorSpaceType == ColorSpace.TYPE_RGB)
+                    && bits <= 16;
+            if (direct) {
+                this.channels = image.getColorModel().getNumColorComponents();
+                // samples under 8 bits are scaled up, as GraphicsMagick does
+                this.shift = Math.max(0, 8 - bits);
+                this.maxValue = bits > 8 ? 65535 : 255;
+            } else {
+                this.channels = 3;
+                this.shift = 0;
+                this.maxValue = 255;
+            }
+            this.samples = new int[image.getWidth() * raster.getNumBands()];
+        }
+
+        private void read(int y, int[] row) {
+            int width = image.getWidth();
+            if (direct) {
+                raster.getPixels(0, y, width, 1, samples);
+                int bands = raster.getNumBands();
+                for (int x = 0; x < width; x++) {
+                    for (int c = 0; c < channels; c++) {
+                        int value = samples[x * bands + c];
+                        row[x * channels + c] = shift == 0 ? value : value * 255 / ((1 << (8 - shift)) - 1);
+                    }
+                }
+            } else if (palette != null) {
+                raster.getSamples(0, y, width, 1, 0, samples);
+                for (int x = 0; x < width; x++) {
+                    int index = samples[x];
+                    row[x * 3] = palette.getRed(index);
+                    row[x * 3 + 1] = palette.getGreen(index);
+                    row[x * 3 + 2] = palette.getBlue(index);
+                }
+            } else {
+                image.getRGB(0, y, width, 1, samples, 0, width);
+                for (int x = 0; x < width; x++) {
+                    int argb = samples[x];
+                    row[x * 3] = (argb >> 16) & 0xFF;
+                    row[x * 3 + 1] = (argb >> 8) & 0xFF;
+                    row[x * 3 + 2] = argb & 0xFF;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,348 @@
+package JP2ImageConverter.util;
+
+import JP2ImageConverter.util.ImageHeaderReader.Header;
+import org.apache.commons.io.FilenameUtils;
+import org.slf4j.Logger;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.Set;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Classifies images into ImageMagick image types (https://imagemagick.org/script/command-line-options.php#type)
+ * in Java, from header fields and, for RGB images, a bounded strided sample of the pixels.
+ * Returns the same type names identify -format %[type] reports: Bilevel, Grayscale, GrayscaleAlpha, Palette,
+ * PaletteAlpha, TrueColor, TrueColorAlpha, ColorSeparation and ColorSeparationAlpha.
+ * A colored sample pixel proves an image is in color, but a gray sample does not prove it is gray, so an RGB image
+ * is only classified as gray from its header, its palette or every one of its pixels. Uncompressed TIFFs are read
+ * in full for that; other RGB images with a gray sample are left to identify unless the sample was the whole
+ * image.
+ */
+public class ImageTypeClassifier {
+    private static final Logger log = getLogger(ImageTypeClassifier.class);
+    // number of rows and columns sampled when checking whether an RGB image only contains gray pixels
+    private static final int SAMPLE_GRID = 64;
+    // maximum width and height of the subsampled image decoded with ImageIO
+    private static final int MAX_DECODED_SAMPLE = 512;
+    // TIFF based raw formats have a thumbnail in IFD0, so only real TIFFs are classified from their header
+    private static final Set<String> TIFF_EXTENSIONS = Set.of("tif", "tiff");
+
+    private ImageTypeClassifier() {
+    }
+
+    /**
+     * Classify the image type of an image file
+     * @param fileName an image file
+     * @return the image type, or null if it cannot be determined without ImageMagick
+     */
+    public static String classify(String fileName) {
+        Header header = ImageHeaderReader.read(fileName);
+        if (header == null || header.format().equals("psd")
+                || (header.format().equals("tiff")
+                    && !TIFF_EXTENSIONS.contains(FilenameUtils.getExtension(fileName).toLowerCase()))) {
+            return null;
+        }
+
+        try {
+            return switch (header.colorModel()) {
+                case CMYK -> header.alpha() ? "ColorSeparationAlpha" : "ColorSeparation";
+                case GRAY -> grayType(header);
+                case PALETTE -> paletteType(fileName, header);
+                case RGB, YCBCR -> trueColorType(fileName, header);
+                default -> null;
+            };
+        } catch (IOException | RuntimeException e) {
+            log.debug("Unable to classify image type for {}: {}", fileName, e.getMessage());
+            return null;
+        }
+    }
+
+    private static String grayType(Header header) {
+        if (header.alpha()) {
+            return "GrayscaleAlpha";
+        }
+        return header.bitDepth() == 1 ? "Bilevel" : "Grayscale";
+    }
+
+    private static String paletteType(String fileName, Header header) throws IOException {
+        PaletteInfo palette = switch (header.format()) {
+            case "tiff" -> readTiffPalette(fileName);
+            case "png" -> readPngPalette(fileName);
+            case "gif" -> readGifPalette(fileName);
+            default -> null;
+        };
+        if (palette == null) {
+            // palettes we don't parse are expanded by ImageIO and sampled like RGB images
+            Boolean gray = isGray(fileName, header);
+            if (gray == null) {
+                return null;
+            }
+            return gray ? "Grayscale" : "Palette";
+        }
+        if (palette.gray()) {
+            return palette.alpha() ? "GrayscaleAlpha" : "Grayscale";
+        }
+        return palette.alpha() ? "PaletteAlpha" : "Palette";
+    }
+
+    private static String trueColorType(String fileName, Header header) throws IOException {
+        Boolean gray = isGray(fileName, header);
+        if (gray == null) {
+            return null;
+        }
+        if (gray) {
+            return header.alpha() ? "GrayscaleAlpha" : "Grayscale";
+        }
+        return header.alpha() ? "TrueColorAlpha" : "TrueColor";
+    }
+
+    /**
+     * Check the pixels of an RGB image for color, a strided sample first
+     * @return false if a pixel has color, true if every pixel is gray, or null if the sampled pixels are gray but
+     * the others could not be checked
+     */
+    private static Boolean isGray(String fileName, Header header) throws IOException {
+        if (header.format().equals("tiff")) {
+            Boolean gray = sampleUncompressedTiff(fileName, SAMPLE_GRID);
+            if (gray != null) {
+                // a gray sample is confirmed by every pixel
+                return gray ? sampleUncompressedTiff(fileName, Integer.MAX_VALUE) : false;
+            }
+        }
+        return sampleWithImageIO(fileName, header);
+    }
+
+    /**
+     * Sample pixels directly from the strips of an uncompressed, chunky 8 or 16 bit RGB TIFF
+     * @param grid number of rows and columns sampled, every pixel if the image is no larger
+     * @return whether the sampled pixels are all gray, or null if the TIFF can't be sampled directly
+     */
+    private static Boolean sampleUncompressedTiff(String fileName, int grid) throws IOException {
+        try (FileChannel channel = FileChannel.open(Path.of(fileName), StandardOpenOption.READ)) {
+            TiffIfdReader reader = new TiffIfdReader(channel);
+            TiffIfdReader.Ifd ifd = reader.readFirstIfd();
+            long compression = reader.getLong(ifd, TiffIfdReader.TAG_COMPRESSION, 1);
+            long planar = reader.getLong(ifd, TiffIfdReader.TAG_PLANAR_CONFIGURATION, 1);
+            long photometric = reader.getLong(ifd, TiffIfdReader.TAG_PHOTOMETRIC_INTERPRETATION, -1);
+            int bitDepth = (int) reader.getLong(ifd, TiffIfdReader.TAG_BITS_PER_SAMPLE, 1);
+            if (compression != 1 || planar != 1 || photometric != 2 || (bitDepth != 8 && bitDepth != 16)
+                    || !ifd.contains(TiffIfdReader.TAG_STRIP_OFFSETS)) {
+                return null;
+            }
+            long width = reader.getLong(ifd, TiffIfdReader.TAG_IMAGE_WIDTH, 0);
+            long height = reader.getLong(ifd, TiffIfdReader.TAG_IMAGE_LENGTH, 0);
+            int samples = (int) reader.getLong(ifd, TiffIfdReader.TAG_SAMPLES_PER_PIXEL, 3);
+            long rowsPerStrip = Math.min(reader.getLong(ifd, TiffIfdReader.TAG_ROWS_PER_STRIP, height), height);
+            long[] stripOffsets = reader.getLongs(ifd, TiffIfdReader.TAG_STRIP_OFFSETS);
+            int bytesPerSample = bitDepth / 8;
+            int pixelBytes = samples * bytesPerSample;
+            long rowBytes = width * pixelBytes;
+
+            if (samples < 3 || rowBytes > Integer.MAX_VALUE) {
+                return null;
+            }
+            // each sampled row is read whole
+            ByteBuffer row = ByteBuffer.allocate((int) rowBytes).order(reader.getByteOrder());
+            long yStep = Math.max(1, height / grid);
+            long xStep = Math.max(1, width / grid);
+            for (long y = 0; y < height; y += yStep) {
+                int strip = (int) (y / rowsPerStrip);
+                if (strip >= stripOffsets.length) {
+                    return null;
+                }
+                long rowStart = stripOffsets[strip] + (y % rowsPerStrip) * rowBytes;
+                row.clear();
+                while (row.hasRemaining()) {
+                    if (channel.read(row, rowStart + row.position()) < 0) {
+                        return null;
+                    }
+                }
+                for (long x = 0; x < width; x += xStep) {
+                    int pixel = (int) (x * pixelBytes);
+                    int r = sample(row, pixel, 0, bytesPerSample);
+                    int g = sample(row, pixel, 1, bytesPerSample);
+                    int b = sample(row, pixel, 2, bytesPerSample);
+                    if (r != g || g != b) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+    }
+
+    private static int sample(ByteBuffer row, int pixel, int index, int bytesPerSample) {
+        return bytesPerSample == 1 ? row.get(pixel + index) & 0xFF : row.getShort(pixel + index * 2) & 0xFFFF;
+    }
+
+    /**
+     * Decode a subsampled copy of the first frame with ImageIO and check it for color
+     * @return false if a sampled pixel has color, true if the image is gray and was decoded in full, or null
+     * if the sampled pixels are gray
+     */
+    private static Boolean sampleWithImageIO(String fileName, Header header) throws IOException {
+        try (ImageInputStream input = ImageIO.createImageInputStream(new File(fileName))) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) {
+                throw new IOException("No ImageIO reader for " + fileName);
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                ImageReadParam param = reader.getDefaultReadParam();
+                int xStep = Math.max(1, header.width() / MAX_DECODED_SAMPLE);
+                int yStep = Math.max(1, header.height() / MAX_DECODED_SAMPLE);
+                param.setSourceSubsampling(xStep, yStep, 0, 0);
+                var image = reader.read(0, param);
+                Boolean gray = xStep == 1 && yStep == 1 ? Boolean.TRUE : null;
+                if (image.getColorModel().getNumColorComponents() == 1) {
+                    // the decoder found a gray image, whatever the header said
+                    return true;
+                }
+                Raster raster = image.getRaster();
+                // palette images are expanded to RGB before checking the colors
+                if (image.getColorModel() instanceof IndexColorModel) {
+                    for (int y = 0; y < image.getHeight(); y++) {
+                        for (int x = 0; x < image.getWidth(); x++) {
+                            int rgb = image.getRGB(x, y);
+                            if (((rgb >> 16) & 0xFF) != ((rgb >> 8) & 0xFF) || ((rgb >> 8) & 0xFF) != (rgb & 0xFF)) {
+                                return false;
+                            }
+                        }
+                    }
+                    return gray;
+                }
+                int[] pixel = new int[raster.getNumBands()];
+                for (int y = 0; y < raster.getHeight(); y++) {
+                    for (int x = 0; x < raster.getWidth(); x++) {
+                        raster.getPixel(x, y, pixel);
+                        if (pixel[0] != pixel[1] || pixel[1] != pixel[2]) {
+                            return false;
+                        }
+                    }
+                }
+                return gray;
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    private static PaletteInfo readTiffPalette(String fileName) throws IOException {
+        try (FileChannel channel = FileChannel.open(Path.of(fileName), StandardOpenOption.READ)) {
+            TiffIfdReader reader = new TiffIfdReader(channel);
+            TiffIfdReader.Ifd ifd = reader.readFirstIfd();
+            long[] colorMap = reader.getLongs(ifd, TiffIfdReader.TAG_COLOR_MAP);
+            if (colorMap.length == 0 || colorMap.length % 3 != 0) {
+                return null;
+            }
+            // the color map holds all red values, then all green values, then all blue values
+            int entries = colorMap.length / 3;
+            boolean gray = true;
+            for (int i = 0; i < entries && gray; i++) {
+                gray = colorMap[i] == colorMap[entries + i] && colorMap[i] == colorMap[2 * entries + i];
+            }
+            long samples = reader.getLong(ifd, TiffIfdReader.TAG_SAMPLES_PER_PIXEL, 1);
+            return new PaletteInfo(gray, samples > 1);
+        }
+    }
+
+    private static PaletteInfo readPngPalette(String fileName) throws IOException {
+        try (FileChannel channel = FileChannel.open(Path.of(fileName), StandardOpenOption.READ)) {
+            long position = 8;
+            Boolean gray = null;
+            boolean alpha = false;
+            ByteBuffer chunkHeader = ByteBuffer.allocate(8).order(ByteOrder.BIG_ENDIAN);
+            // PLTE and tRNS both come before the image data
+            while (position + 8 <= channel.size()) {
+                chunkHeader.clear();
+                channel.read(chunkHeader, position);
+                int length = chunkHeader.getInt(0);
+                String type = new String(chunkHeader.array(), 4, 4, StandardCharsets.US_ASCII);
+                if (type.equals("PLTE")) {
+                    ByteBuffer palette = ByteBuffer.allocate(length);
+                    channel.read(palette, position + 8);
+                    gray = isGrayPalette(palette.array(), length / 3);
+                } else if (type.equals("tRNS")) {
+                    alpha = true;
+                } else if (type.equals("IDAT") || type.equals("IEND")) {
+                    break;
+                }
+                position += 12L + (length & 0xFFFFFFFFL);
+            }
+            return gray == null ? null : new PaletteInfo(gray, alpha);
+        }
+    }
+
+    private static PaletteInfo readGifPalette(String fileName) throws IOException {
+        try (FileChannel channel = FileChannel.open(Path.of(fileName), StandardOpenOption.READ)) {
+            ByteBuffer screen = ByteBuffer.allocate(7);
+            channel.read(screen, 6);
+            int packed = screen.get(4) & 0xFF;
+            if ((packed & 0x80) == 0) {
+                // no global color table, colors are in the local tables of each frame
+                return null;
+            }
+            int entries = 1 << ((packed & 0x07) + 1);
+            ByteBuffer table = ByteBuffer.allocate(entries * 3);
+            channel.read(table, 13);
+            boolean gray = isGrayPalette(table.array(), entries);
+
+            // look for a graphic control extension with a transparent color before the first frame
+            boolean alpha = false;
+            long position = 13L + entries * 3;
+            ByteBuffer block = ByteBuffer.allocate(8);
+            while (position < channel.size()) {
+                block.clear();
+                channel.read(block, position);
+                int introducer = block.get(0) & 0xFF;
+                if (introducer != 0x21) {
+                    break;
+                }
+                int label = block.get(1) & 0xFF;
+                if (label == 0xF9) {
+                    alpha = (block.get(3) & 0x01) != 0;
+                }
+                // skip the extension sub-blocks
+                position += 2;
+                while (position < channel.size()) {
+                    ByteBuffer size = ByteBuffer.allocate(1);
+                    channel.read(size, position);
+                    int blockSize = size.get(0) & 0xFF;
+                    position += 1 + blockSize;
+                    if (blockSize == 0) {
+                        break;
+                    }
+                }
+            }
+            return new PaletteInfo(gray, alpha);
+        }
+    }
+
+    private static boolean isGrayPalette(byte[] rgb, int entries) {
+        for (int i = 0; i < entries; i++) {
+            if (rgb[i * 3] != rgb[i * 3 + 1] || rgb[i * 3 + 1] != rgb[i * 3 + 2]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private record PaletteInfo(boolean gray, boolean alpha) {
+    }
+}
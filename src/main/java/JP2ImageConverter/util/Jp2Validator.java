@@ -0,0 +1,411 @@
+package JP2ImageConverter.util;
+
+import org.slf4j.Logger;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Reads the header of a JP2 or JPH file or raw JPEG 2000 codestream and checks its structure without decoding it.
+ * JPH files have the same box structure as JP2 files, with a High-Throughput (HTJ2K, Part 15) codestream.
+ * The file is memory mapped and only the ihdr and colr boxes, the SIZ, CAP and COD markers and the SOT marker of each
+ * tile-part are read, tile-part data is skipped using the tile-part lengths.
+ */
+public class Jp2Validator {
+    private static final Logger log = getLogger(Jp2Validator.class);
+
+    private static final int BOX_SIGNATURE = 0x6A502020; // 'jP  '
+    private static final int BOX_FILE_TYPE = 0x66747970; // 'ftyp'
+    private static final int BOX_HEADER = 0x6A703268; // 'jp2h'
+    private static final int BOX_IMAGE_HEADER = 0x69686472; // 'ihdr'
+    private static final int BOX_COLOR = 0x636F6C72; // 'colr'
+    private static final int BOX_CODESTREAM = 0x6A703263; // 'jp2c'
+    private static final int SIGNATURE = 0x0D0A870A;
+
+    private static final int SOC = 0xFF4F;
+    private static final int CAP = 0xFF50;
+    private static final int SIZ = 0xFF51;
+    private static final int COD = 0xFF52;
+    private static final int SOT = 0xFF90;
+    private static final int EOC = 0xFFD9;
+    // Pcap bit of Part 15 in the CAP marker, and the HT bit of the code-block style in the COD marker
+    private static final long CAP_PART_15 = 1L << (32 - 15);
+    private static final int CODE_BLOCK_STYLE_HT = 0x40;
+
+    private Jp2Validator() {
+    }
+
+    /**
+     * Read and validate a JP2 file or raw codestream
+     * @param fileName a JP2, JPH or J2K file
+     * @return the header fields and structural problems found, or null if the file is not JPEG 2000 or can not be read
+     */
+    public static Result read(String fileName) {
+        try (FileChannel channel = FileChannel.open(Path.of(fileName), StandardOpenOption.READ)) {
+            Input input = new Input(channel);
+            if (input.size() >= 12 && input.u32(0) == 12 && input.u32(4) == BOX_SIGNATURE
+                    && input.u32(8) == SIGNATURE) {
+                return new Parser(input).parseJp2();
+            } else if (input.size() >= 4 && input.u16(0) == SOC && input.u16(2) == SIZ) {
+                Parser parser = new Parser(input);
+                parser.parseCodestream(0, input.size());
+                return parser.result();
+            }
+        } catch (IOException | RuntimeException e) {
+            log.debug("Unable to read JPEG 2000 header for {}: {}", fileName, e.getMessage());
+        }
+        return null;
+    }
+
+    private static class Parser {
+        private final Input input;
+        private final List<String> problems = new ArrayList<>();
+        private int width;
+        private int height;
+        private int components;
+        private int bitDepth;
+        private String colorSpace;
+        private int levels;
+        private int layers;
+        private int tiles;
+        private boolean highThroughput;
+        private boolean codestreamFound;
+
+        private Parser(Input input) {
+            this.input = input;
+        }
+
+        private Result parseJp2() throws IOException {
+            long pos = 0;
+            boolean fileType = false;
+            boolean header = false;
+            while (pos < input.size()) {
+                if (input.size() - pos < 8) {
+                    problems.add("Truncated box header at offset " + pos);
+                    break;
+                }
+                long length = input.u32(pos);
+                int type = (int) input.u32(pos + 4);
+                long contentStart = pos + 8;
+                if (length == 1) {
+                    length = input.u64(pos + 8);
+                    contentStart = pos + 16;
+                } else if (length == 0) {
+                    length = input.size() - pos;
+                }
+                long end = pos + length;
+                if (length < contentStart - pos || end > input.size()) {
+                    problems.add("Truncated " + boxName(type) + " box at offset " + pos);
+                    end = input.size();
+                }
+                if (type == BOX_FILE_TYPE) {
+                    fileType = true;
+                } else if (type == BOX_HEADER) {
+                    header = true;
+                    parseHeaderBox(contentStart, end);
+                } else if (type == BOX_CODESTREAM && !codestreamFound) {
+                    parseCodestream(contentStart, end);
+                }
+                pos = end;
+            }
+            if (!fileType) {
+                problems.add("Missing ftyp box");
+            }
+            if (!header) {
+                problems.add("Missing jp2h box");
+            }
+            if (!codestreamFound) {
+                problems.add("Missing jp2c box");
+            }
+            return result();
+        }
+
+        private void parseHeaderBox(long pos, long end) throws IOException {
+            boolean imageHeader = false;
+            while (pos + 8 <= end) {
+                long length = input.u32(pos);
+                int type = (int) input.u32(pos + 4);
+                if (length < 8 || pos + length > end) {
+                    problems.add("Truncated " + boxName(type) + " box at offset " + pos);
+                    return;
+                }
+                if (type == BOX_IMAGE_HEADER && length >= 22) {
+                    imageHeader = true;
+                    height = (int) input.u32(pos + 8);
+                    width = (int) input.u32(pos + 12);
+                    components = input.u16(pos + 16);
+                    int bpc = input.u8(pos + 18);
+                    bitDepth = bpc == 0xFF ? 0 : (bpc & 0x7F) + 1;
+                } else if (type == BOX_COLOR && colorSpace == null && length >= 11) {
+                    colorSpace = readColorSpace(pos + 8, pos + length);
+                }
+                pos += length;
+            }
+            if (!imageHeader) {
+                problems.add("Missing ihdr box");
+            }
+        }
+
+        private String readColorSpace(long pos, long end) throws IOException {
+            int method = input.u8(pos);
+            if (method == 1 && end - pos >= 7) {
+                return switch ((int) input.u32(pos + 3)) {
+                    case 12 -> "CMYK";
+                    case 14 -> "Lab";
+                    case 16 -> "sRGB";
+                    case 17 -> "Gray";
+                    case 18 -> "sYCC";
+                    default -> "Unknown";
+                };
+            } else if ((method == 2 || method == 3) && end - pos >= 3 + 20) {
+                // data colour space signature of the embedded ICC profile header
+                String signature = new String(input.bytes(pos + 3 + 16, 4), StandardCharsets.US_ASCII).trim();
+                return signature.equals("GRAY") ? "Gray" : signature;
+            }
+            return "Unknown";
+        }
+
+        private void parseCodestream(long pos, long end) throws IOException {
+            codestreamFound = true;
+            if (end - pos < 4 || input.u16(pos) != SOC) {
+                problems.add("Missing SOC marker at offset " + pos);
+                return;
+            }
+            pos += 2;
+
+            // main header, up to the first tile-part
+            int[] tileParts = null;
+            int[] declaredTileParts = null;
+            boolean siz = false;
+            while (true) {
+                if (end - pos < 4) {
+                    problems.add("Truncated main header at offset " + pos);
+                    return;
+                }
+                int marker = input.u16(pos);
+                if (marker == SOT) {
+                    break;
+                }
+                if (marker == EOC) {
+                    problems.add("No tile-parts before EOC marker");
+                    return;
+                }
+                int length = input.u16(pos + 2);
+                if (marker < 0xFF00 || length < 2 || pos + 2 + length > end) {
+                    problems.add(String.format("Invalid marker 0x%04X in main header at offset %d", marker, pos));
+                    return;
+                }
+                if (marker == SIZ && length >= 41) {
+                    siz = true;
+                    long xsiz = input.u32(pos + 6);
+                    long ysiz = input.u32(pos + 10);
+                    long xosiz = input.u32(pos + 14);
+                    long yosiz = input.u32(pos + 18);
+                    long xtsiz = input.u32(pos + 22);
+                    long ytsiz = input.u32(pos + 26);
+                    long xtosiz = input.u32(pos + 30);
+                    long ytosiz = input.u32(pos + 34);
+                    int csiz = input.u16(pos + 38);
+                    int sizWidth = (int) (xsiz - xosiz);
+                    int sizHeight = (int) (ysiz - yosiz);
+                    int sizBitDepth = (input.u8(pos + 40) & 0x7F) + 1;
+                    if (width != 0 && (width != sizWidth || height != sizHeight || components != csiz)) {
+                        problems.add("Image header " + width + "x" + height + "x" + components
+                                + " does not match codestream " + sizWidth + "x" + sizHeight + "x" + csiz);
+                    }
+                    width = sizWidth;
+                    height = sizHeight;
+                    components = csiz;
+                    bitDepth = bitDepth == 0 ? sizBitDepth : bitDepth;
+                    if (xtsiz > 0 && ytsiz > 0) {
+                        long tilesX = (xsiz - xtosiz + xtsiz - 1) / xtsiz;
+                        long tilesY = (ysiz - ytosiz + ytsiz - 1) / ytsiz;
+                        if (tilesX * tilesY > 0 && tilesX * tilesY <= 65535) {
+                            tiles = (int) (tilesX * tilesY);
+                            tileParts = new int[tiles];
+                            declaredTileParts = new int[tiles];
+                        }
+                    }
+                    if (tileParts == null) {
+                        problems.add("Invalid tile grid in SIZ marker");
+                    }
+                } else if (marker == COD && length >= 12) {
+                    layers = input.u16(pos + 6);
+                    levels = input.u8(pos + 9);
+                    highThroughput |= (input.u8(pos + 12) & CODE_BLOCK_STYLE_HT) != 0;
+                } else if (marker == CAP && length >= 6) {
+                    highThroughput |= (input.u32(pos + 4) & CAP_PART_15) != 0;
+                }
+                pos += 2 + length;
+            }
+            if (!siz) {
+                problems.add("Missing SIZ marker");
+                return;
+            }
+
+            // tile-parts, skipped using their lengths
+            boolean eoc = false;
+            while (end - pos >= 2) {
+                int marker = input.u16(pos);
+                if (marker == EOC) {
+                    eoc = true;
+                    break;
+                }
+                if (marker != SOT || end - pos < 12) {
+                    problems.add(String.format("Expected SOT marker at offset %d, found 0x%04X", pos, marker));
+                    return;
+                }
+                int tile = input.u16(pos + 4);
+                long tilePartLength = input.u32(pos + 6);
+                int tilePart = input.u8(pos + 10);
+                int numberOfTileParts = input.u8(pos + 11);
+                if (tileParts == null || tile >= tiles) {
+                    problems.add("Tile index " + tile + " out of range at offset " + pos);
+                    return;
+                }
+                tileParts[tile]++;
+                if (numberOfTileParts != 0) {
+                    declaredTileParts[tile] = numberOfTileParts;
+                }
+                if (tilePartLength == 0) {
+                    // the last tile-part may extend to the EOC marker
+                    tilePartLength = end - pos - 2;
+                }
+                if (tilePartLength < 14 || pos + tilePartLength > end) {
+                    problems.add("Truncated tile-part " + tilePart + " of tile " + tile + " at offset " + pos);
+                    return;
+                }
+                pos += tilePartLength;
+            }
+            if (!eoc) {
+                problems.add("Missing EOC marker");
+            }
+            if (tileParts != null) {
+                for (int tile = 0; tile < tiles; tile++) {
+                    if (tileParts[tile] == 0) {
+                        problems.add("Missing tile " + tile);
+                    } else if (declaredTileParts[tile] > tileParts[tile]) {
+                        problems.add("Tile " + tile + " has " + tileParts[tile] + " of "
+                                + declaredTileParts[tile] + " tile-parts");
+                    }
+                }
+            }
+        }
+
+        private Result result() {
+            return new Result(width, height, components, bitDepth, colorSpace, levels, layers, tiles,
+                    highThroughput, List.copyOf(problems));
+        }
+
+        private static String boxName(int type) {
+            byte[] name = ByteBuffer.allocate(4).putInt(type).array();
+            return new String(name, StandardCharsets.US_ASCII);
+        }
+    }
+
+    /**
+     * Random access to the file, memory mapped unless it is too large for a single mapping
+     */
+    private static class Input {
+        private final FileChannel channel;
+        private final long size;
+        private final ByteBuffer mapped;
+        private final ByteBuffer scratch = ByteBuffer.allocate(8);
+
+        private Input(FileChannel channel) throws IOException {
+            this.channel = channel;
+            this.size = channel.size();
+            this.mapped = size <= Integer.MAX_VALUE ? channel.map(FileChannel.MapMode.READ_ONLY, 0, size) : null;
+        }
+
+        private long size() {
+            return size;
+        }
+
+        private int u8(long pos) throws IOException {
+            return read(pos, 1).get() & 0xFF;
+        }
+
+        private int u16(long pos) throws IOException {
+            return read(pos, 2).getShort() & 0xFFFF;
+        }
+
+        private long u32(long pos) throws IOException {
+            return read(pos, 4).getInt() & 0xFFFFFFFFL;
+        }
+
+        private long u64(long pos) throws IOException {
+            return read(pos, 8).getLong();
+        }
+
+        private byte[] bytes(long pos, int length) throws IOException {
+            if (pos < 0 || pos + length > size) {
+                throw new EOFException("Unexpected end of file at offset " + pos);
+            }
+            byte[] bytes = new byte[length];
+            if (mapped != null) {
+                mapped.get((int) pos, bytes);
+            } else {
+                channel.read(ByteBuffer.wrap(bytes), pos);
+            }
+            return bytes;
+        }
+
+        private ByteBuffer read(long pos, int length) throws IOException {
+            if (pos < 0 || pos + length > size) {
+                throw new EOFException("Unexpected end of file at offset " + pos);
+            }
+            if (mapped != null) {
+                return mapped.slice((int) pos, length);
+            }
+            scratch.clear().limit(length);
+            while (scratch.hasRemaining()) {
+                if (channel.read(scratch, pos + scratch.position()) < 0) {
+                    throw new EOFException("Unexpected end of file at offset " + pos);
+                }
+            }
+            return scratch.flip();
+        }
+    }
+
+    /**
+     * Header fields and structural problems of a JPEG 2000 file
+     * @param width width in pixels
+     * @param height height in pixels
+     * @param components number of components
+     * @param bitDepth bits per sample of the first component
+     * @param colorSpace color space from the colr box (sRGB, Gray, sYCC, CMYK, or the ICC profile color space),
+     *                   null for raw codestreams
+     * @param levels number of decomposition levels
+     * @param layers number of quality layers
+     * @param tiles number of tiles
+     * @param highThroughput true if the codestream uses the HTJ2K block coder
+     * @param problems structural problems found, empty if the file is intact
+     */
+    public record Result(int width, int height, int components, int bitDepth, String colorSpace, int levels,
+                         int layers, int tiles, boolean highThroughput, List<String> problems) {
+
+        /**
+         * @return true if no structural problems were found
+         */
+        public boolean isValid() {
+            return problems.isEmpty();
+        }
+
+        /**
+         * @return true if the image has a single component or a gray color space
+         */
+        public boolean isGray() {
+            return components == 1 || "Gray".equals(colorSpace);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package JP2ImageConverter.util;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Latency histograms for the stages of a batch, each broken down by source format and color space
+ */
+public class LatencyStats {
+    private static final String UNKNOWN = "unknown";
+
+    // histograms by stage in the order stages were first recorded, then by breakdown, "" for the whole stage
+    private final Map<String, Map<String, LatencyHistogram>> histograms = new LinkedHashMap<>();
+
+    /**
+     * Record the latency of a stage for one file
+     * @param stage name of the stage
+     * @param format source format of the file, may be null
+     * @param colorSpace color space of the file, may be null
+     * @param nanos the latency in nanoseconds
+     */
+    public void record(String stage, String format, String colorSpace, long nanos) {
+        histogram(stage, "").recordNanos(nanos);
+        histogram(stage, "format=" + (format == null || format.isEmpty() ? UNKNOWN : format)).recordNanos(nanos);
+        histogram(stage, "colorspace=" + (colorSpace == null || colorSpace.isEmpty() ? UNKNOWN : colorSpace))
+                .recordNanos(nanos);
+    }
+
+    /**
+     * Print count, p50, p90, p99 and max latency in milliseconds for every stage and breakdown
+     * @param out the stream to print to
+     */
+    public void print(PrintStream out) {
+        List<Map.Entry<String, LatencyHistogram>> entries = new ArrayList<>();
+        synchronized (histograms) {
+            for (Map.Entry<String, Map<String, LatencyHistogram>> stage : histograms.entrySet()) {
+                for (Map.Entry<String, LatencyHistogram> breakdown : stage.getValue().entrySet()) {
+                    String name = breakdown.getKey().isEmpty() ? stage.getKey() : "  " + breakdown.getKey();
+                    entries.add(Map.entry(name, breakdown.getValue()));
+                }
+            }
+        }
+        if (entries.isEmpty()) {
+            return;
+        }
+        out.println(String.format("%-40s %8s %10s %10s %10s %10s", "Latency (milliseconds)", "count",
+                "p50", "p90", "p99", "max"));
+        for (Map.Entry<String, LatencyHistogram> entry : entries) {
+            LatencyHistogram histogram = entry.getValue();
+            out.println(String.format("%-40s %8d %10.1f %10.1f %10.1f %10.1f", entry.getKey(), histogram.getCount(),
+                    histogram.getPercentileMicros(50) / 1000.0, histogram.getPercentileMicros(90) / 1000.0,
+                    histogram.getPercentileMicros(99) / 1000.0, histogram.getMaxMicros() / 1000.0));
+        }
+    }
+
+    private LatencyHistogram histogram(String stage, String breakdown) {
+        synchronized (histograms) {
+            return histograms.computeIfAbsent(stage, k -> new TreeMap<>())
+                    .computeIfAbsent(breakdown, k -> new LatencyHistogram());
+        }
+    }
+
+    /**
+     * Measures the consecutive stages of processing one file, to be recorded once the format and
+     * color space of the file are known
+     */
+    public static class Timer {
+        private final Map<String, Long> stageNanos = new LinkedHashMap<>();
+        private long lapStart = System.nanoTime();
+
+        /**
+         * End the current stage, the next stage starts now
+         * @param stage name of the stage that ended
+         */
+        public void lap(String stage) {
+            long now = System.nanoTime();
+            stageNanos.merge(stage, now - lapStart, Long::sum);
+            lapStart = now;
+        }
+
+        /**
+         * Start the next stage now without recording the time since the last lap
+         */
+        public void skip() {
+            lapStart = System.nanoTime();
+        }
+
+        /**
+         * Record all stages of the file
+         * @param latencyStats the batch statistics, nothing is recorded if null
+         * @param format source format of the file
+         * @param colorSpace color space of the file
+         */
+        public void recordTo(LatencyStats latencyStats, String format, String colorSpace) {
+            if (latencyStats != null) {
+                stageNanos.forEach((stage, nanos) -> latencyStats.record(stage, format, colorSpace, nanos));
+            }
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package JP2ImageConverter.util;
+
+import JP2ImageConverter.model.Orientation;
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Locates the full size JPEG embedded in a NEF/NRW (exiftool's JpgFromRaw) from the TIFF directories of the raw
+ * file and copies it out with FileChannel.transferTo, so the bytes are never copied through the JVM.
+ * The embedded JPEG is the largest JPEG referenced by a SubIFD of IFD0.
+ */
+public class RawJpegExtractor {
+    private static final Logger log = getLogger(RawJpegExtractor.class);
+
+    private RawJpegExtractor() {
+    }
+
+    /**
+     * Find the embedded JPEG of a raw file
+     * @param fileName a NEF or NRW file
+     * @return the location of the JPEG and the orientation of the raw image, or null if there is no embedded JPEG
+     */
+    public static Preview locate(String fileName) {
+        try (FileChannel channel = FileChannel.open(Path.of(fileName), StandardOpenOption.READ)) {
+            TiffIfdReader reader = new TiffIfdReader(channel);
+            TiffIfdReader.Ifd ifd0 = reader.readFirstIfd();
+            Orientation orientation = Orientation.fromTag(reader.getLong(ifd0, TiffIfdReader.TAG_ORIENTATION, 1));
+            long offset = 0;
+            long length = 0;
+            for (long subIfdOffset : reader.getLongs(ifd0, TiffIfdReader.TAG_SUB_IFDS)) {
+                TiffIfdReader.Ifd subIfd = reader.readIfd(subIfdOffset);
+                long jpegOffset = reader.getLong(subIfd, TiffIfdReader.TAG_JPEG_INTERCHANGE_FORMAT, 0);
+                long jpegLength = reader.getLong(subIfd, TiffIfdReader.TAG_JPEG_INTERCHANGE_FORMAT_LENGTH, 0);
+                if (jpegLength > length && jpegOffset > 0 && jpegOffset + jpegLength <= channel.size()
+                        && isJpeg(channel, jpegOffset)) {
+                    offset = jpegOffset;
+                    length = jpegLength;
+                }
+            }
+            return length > 0 ? new Preview(offset, length, orientation) : null;
+        } catch (IOException | RuntimeException e) {
+            log.debug("Unable to locate embedded JPEG in {}: {}", fileName, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Copy the embedded JPEG of a raw file to a file
+     * @param fileName a NEF or NRW file
+     * @param preview the location from locate
+     * @param output the JPEG file to write
+     */
+    public static void extract(String fileName, Preview preview, Path output) throws IOException {
+        try (FileChannel in = FileChannel.open(Path.of(fileName), StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(output, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                     StandardOpenOption.TRUNCATE_EXISTING)) {
+            long position = preview.offset();
+            long end = preview.offset() + preview.length();
+            while (position < end) {
+                long transferred = in.transferTo(position, end - position, out);
+                if (transferred <= 0) {
+                    throw new IOException("Embedded JPEG in " + fileName + " ends at " + position);
+                }
+                position += transferred;
+            }
+        }
+    }
+
+    private static boolean isJpeg(FileChannel channel, long offset) throws IOException {
+        ByteBuffer soi = ByteBuffer.allocate(2);
+        channel.read(soi, offset);
+        return (soi.get(0) & 0xFF) == 0xFF && (soi.get(1) & 0xFF) == 0xD8;
+    }
+
+    /**
+     * @param offset file offset of the embedded JPEG
+     * @param length length of the embedded JPEG in bytes
+     * @param orientation orientation of the raw image, which the embedded JPEG does not carry
+     */
+    public record Preview(long offset, long length, Orientation orientation) {
+    }
+}
@@ -0,0 +1,333 @@
+package JP2ImageConverter.util;
+
+import org.apache.commons.io.FilenameUtils;
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Accounts for the space used by temporary intermediate images. Intermediates are created in an optional fast
+ * directory (tmpfs or local NVMe) while their estimated sizes fit in its byte budget, and spill to the regular
+ * temporary directory otherwise. Sizes are estimated before an intermediate is written, from the pixel dimensions,
+ * channels and bit depth of the image it is converted from. Budget is returned once an intermediate has been
+ * written and deleted again.
+ * With a quota, an intermediate in the regular directory is only created once the files in that directory, including
+ * those of other processes, and the pending reservations leave room for it; otherwise the conversion waits for
+ * other processes or threads to free space, and fails at once if only its own intermediates are in the way.
+ * Temporary file names carry the host name and id of the process which created them, so that files left behind
+ * by killed runs on this host can be reclaimed.
+ */
+public class TempWorkspace implements AutoCloseable {
+    private static final Logger log = getLogger(TempWorkspace.class);
+    // uncompressed size relative to the file size, for images whose header can not be read
+    private static final int UNKNOWN_HEADER_EXPANSION = 4;
+    private static final String TAG = ".jp24u-";
+    private static final Pattern TAG_PATTERN = Pattern.compile(Pattern.quote(TAG) + "([^-]+)-(\\d+)-");
+    // dashes separate the parts of the tag, so they are replaced in the host name
+    private static final String HOST = hostName().replaceAll("[^A-Za-z0-9.]", "_");
+    private static final long POLL_MILLIS = 500;
+
+    private final Path fastDir;
+    private final long budget;
+    private final long quota;
+    private final Duration maxWait;
+    // intermediates in the fast directory and the bytes reserved for each
+    private final Map<Path, Reservation> reservations = new LinkedHashMap<>();
+    private int fastFiles;
+    private int spilledFiles;
+    private int waits;
+
+    /**
+     * @param fastDir fast directory for intermediates, created if it does not exist
+     * @param budget maximum bytes of intermediates kept in the fast directory at once
+     */
+    public TempWorkspace(Path fastDir, long budget) throws IOException {
+        this(fastDir, budget, 0, Duration.ZERO);
+    }
+
+    /**
+     * @param fastDir fast directory for intermediates, created if it does not exist, or null to only use the
+     *                regular temporary directory
+     * @param budget maximum bytes of intermediates kept in the fast directory at once
+     * @param quota maximum bytes of files in the regular temporary directory, 0 for no quota
+     * @param maxWait how long to wait for space in the regular temporary directory before failing
+     */
+    public TempWorkspace(Path fastDir, long budget, long quota, Duration maxWait) throws IOException {
+        this.fastDir = fastDir;
+        this.budget = budget;
+        this.quota = quota;
+        this.maxWait = maxWait;
+        if (fastDir != null) {
+            Files.createDirectories(fastDir);
+        }
+    }
+
+    /**
+     * Choose the directory for a new intermediate and create a temporary file path in it
+     * @param fileName the image the intermediate is converted from
+     * @param extension extension of the intermediate
+     * @param spillDir directory used when the fast directory is over budget
+     * @return the path of the intermediate, which does not exist yet
+     */
+    public synchronized Path createTempPath(String fileName, String extension, Path spillDir) throws IOException {
+        long estimate = estimateBytes(fileName);
+        Path dir;
+        if (fastDir != null && reconcile(fastDir)[0] + estimate <= budget) {
+            dir = fastDir;
+            fastFiles++;
+        } else {
+            dir = spillDir;
+            if (fastDir != null) {
+                spilledFiles++;
+                log.debug("Spilling intermediate of {} to {}: {} bytes estimated, over the {} byte budget",
+                        fileName, spillDir, estimate, budget);
+            }
+            awaitQuota(spillDir, estimate);
+        }
+        Path tempPath = Files.createTempFile(dir, tempFilePrefix(fileName), extension);
+        // delete temporary path so that it can be written over by whatever utility has requested a path
+        Files.delete(tempPath);
+        reservations.put(tempPath, new Reservation(estimate, Thread.currentThread()));
+        return tempPath;
+    }
+
+    /**
+     * Wait until an intermediate of the estimated size fits in the quota of the regular temporary directory.
+     * Files of other processes are counted at their size on disk, this process's intermediates at their
+     * reservation. Intermediates of other processes and of other conversion threads are freed as their conversions
+     * finish, but those of the calling thread are not freed while it waits, so if they alone leave no room the
+     * conversion fails at once instead of waiting.
+     */
+    private void awaitQuota(Path dir, long estimate) throws IOException {
+        if (quota <= 0) {
+            return;
+        }
+        long deadline = System.nanoTime() + maxWait.toNanos();
+        boolean waiting = false;
+        while (true) {
+            long[] own = reconcile(dir);
+            long foreign = Math.max(0, directorySize(dir) - own[1]);
+            if (foreign + own[0] + estimate <= quota) {
+                return;
+            }
+            if (own[2] + estimate > quota) {
+                throw new IOException("Intermediate of " + estimate + " bytes and the " + own[2]
+                        + " bytes of intermediates of the same conversion exceed the temporary space quota of "
+                        + quota + " bytes in " + dir);
+            }
+            if (System.nanoTime() > deadline) {
+                throw new IOException("Temporary space quota of " + quota + " bytes in " + dir
+                        + " still exceeded after waiting " + maxWait.toSeconds() + " seconds");
+            }
+            if (!waiting) {
+                waiting = true;
+                waits++;
+                log.info("Waiting for temporary space in {}: {} bytes needed, {} of {} bytes in use", dir,
+                        estimate, foreign + own[0], quota);
+            }
+            try {
+                wait(POLL_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for temporary space in " + dir, e);
+            }
+        }
+    }
+
+    /**
+     * Called after the tool writing intermediates has finished. Intermediates it wrote are tracked until they are
+     * deleted, reservations for intermediates it did not write are returned.
+     */
+    public synchronized void settle() {
+        Iterator<Map.Entry<Path, Reservation>> iterator = reservations.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Path, Reservation> reservation = iterator.next();
+            if (!reservation.getValue().written) {
+                if (Files.exists(reservation.getKey())) {
+                    reservation.getValue().written = true;
+                } else {
+                    iterator.remove();
+                }
+            }
+        }
+        notifyAll();
+    }
+
+    /**
+     * @return bytes reserved for intermediates currently in the fast directory
+     */
+    public synchronized long getUsedBytes() {
+        return fastDir == null ? 0 : reconcile(fastDir)[0];
+    }
+
+    /**
+     * Estimate the size of an uncompressed intermediate converted from an image
+     * @param fileName an image file
+     * @return estimated size in bytes
+     */
+    public static long estimateBytes(String fileName) {
+        ImageHeaderReader.Header header = ImageHeaderReader.read(fileName);
+        if (header != null && header.width() > 0 && header.height() > 0) {
+            int channels = Math.max(1, header.channels());
+            int bytesPerSample = header.bitDepth() > 8 ? 2 : 1;
+            return (long) header.width() * header.height() * channels * bytesPerSample;
+        }
+        try {
+            return Files.size(Path.of(fileName)) * UNKNOWN_HEADER_EXPANSION;
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Name prefix for a temporary file, tagged with the host name and id of this process
+     * @param fileName the image the temporary file is created for
+     * @return the prefix
+     */
+    public static String tempFilePrefix(String fileName) {
+        return FilenameUtils.getName(fileName) + TAG + HOST + "-" + ProcessHandle.current().pid() + "-";
+    }
+
+    /**
+     * Delete temporary files left behind by processes of this host which are no longer running. A file is also
+     * reclaimed if its process id has been reused by a process started after the file was last modified. Files of
+     * other hosts sharing the directory are left alone, as their process ids mean nothing here.
+     * @param dir a temporary directory owned by jp24u, never a shared directory such as java.io.tmpdir itself
+     * @return number of files deleted
+     */
+    public static int reclaimOrphans(Path dir) {
+        if (dir == null || !Files.isDirectory(dir)) {
+            return 0;
+        }
+        int reclaimed = 0;
+        long currentPid = ProcessHandle.current().pid();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) {
+                Matcher matcher = TAG_PATTERN.matcher(file.getFileName().toString());
+                if (!matcher.find()) {
+                    continue;
+                }
+                long pid = Long.parseLong(matcher.group(2));
+                if (matcher.group(1).equals(HOST) && pid != currentPid && isOrphan(file, pid)) {
+                    Files.deleteIfExists(file);
+                    reclaimed++;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            log.warn("Unable to reclaim temporary files in {}: {}", dir, e.getMessage());
+        }
+        if (reclaimed > 0) {
+            log.info("Reclaimed {} temporary files of stopped processes in {}", reclaimed, dir);
+        }
+        return reclaimed;
+    }
+
+    private static String hostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (IOException e) {
+            return "localhost";
+        }
+    }
+
+    private static boolean isOrphan(Path file, long pid) throws IOException {
+        Optional<ProcessHandle> process = ProcessHandle.of(pid);
+        if (process.isEmpty() || !process.get().isAlive()) {
+            return true;
+        }
+        Optional<Instant> started = process.get().info().startInstant();
+        Instant modified = Files.getLastModifiedTime(file, LinkOption.NOFOLLOW_LINKS).toInstant();
+        return started.isPresent() && started.get().isAfter(modified);
+    }
+
+    /**
+     * Forget written intermediates in a directory which have been deleted and total the rest, counting
+     * intermediates which grew beyond their estimate at their actual size
+     * @return bytes reserved in the directory, bytes of them already on disk, and bytes of them reserved by the
+     * calling thread
+     */
+    private long[] reconcile(Path dir) {
+        long used = 0;
+        long onDisk = 0;
+        long current = 0;
+        Iterator<Map.Entry<Path, Reservation>> iterator = reservations.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Path, Reservation> reservation = iterator.next();
+            if (!reservation.getKey().getParent().equals(dir)) {
+                continue;
+            }
+            long bytes = reservation.getValue().bytes;
+            if (reservation.getValue().written) {
+                try {
+                    long size = Files.size(reservation.getKey());
+                    onDisk += size;
+                    bytes = Math.max(bytes, size);
+                } catch (IOException e) {
+                    if (Files.notExists(reservation.getKey())) {
+                        iterator.remove();
+                        continue;
+                    }
+                }
+            }
+            used += bytes;
+            if (reservation.getValue().owner == Thread.currentThread()) {
+                current += bytes;
+            }
+        }
+        return new long[] {used, onDisk, current};
+    }
+
+    private static long directorySize(Path dir) throws IOException {
+        long size = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) {
+                if (Files.isRegularFile(file, LinkOption.NOFOLLOW_LINKS)) {
+                    try {
+                        size += Files.size(file);
+                    } catch (IOException e) {
+                        // deleted while listing
+                    }
+                }
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public void close() {
+        if (fastDir != null) {
+            log.info("Temporary workspace {}: {} intermediates, {} spilled to disk", fastDir, fastFiles,
+                    spilledFiles);
+        }
+        if (waits > 0) {
+            log.info("Waited for temporary space {} times", waits);
+        }
+    }
+
+    private static class Reservation {
+        private final long bytes;
+        // the conversion thread which the intermediate belongs to
+        private final Thread owner;
+        private boolean written;
+
+        private Reservation(long bytes, Thread owner) {
+            this.bytes = bytes;
+            this.owner = owner;
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package JP2ImageConverter.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Minimal reader for TIFF image file directories (classic TIFF and BigTIFF).
+ * Reads header fields with positional reads so the image data itself is never loaded.
+ */
+public class TiffIfdReader {
+    public static final int TAG_IMAGE_WIDTH = 256;
+    public static final int TAG_IMAGE_LENGTH = 257;
+    public static final int TAG_BITS_PER_SAMPLE = 258;
+    public static final int TAG_COMPRESSION = 259;
+    public static final int TAG_PHOTOMETRIC_INTERPRETATION = 262;
+    public static final int TAG_STRIP_OFFSETS = 273;
+    public static final int TAG_ORIENTATION = 274;
+    public static final int TAG_SAMPLES_PER_PIXEL = 277;
+    public static final int TAG_ROWS_PER_STRIP = 278;
+    public static final int TAG_STRIP_BYTE_COUNTS = 279;
+    public static final int TAG_X_RESOLUTION = 282;
+    public static final int TAG_Y_RESOLUTION = 283;
+    public static final int TAG_PLANAR_CONFIGURATION = 284;
+    public static final int TAG_RESOLUTION_UNIT = 296;
+    public static final int TAG_PREDICTOR = 317;
+    public static final int TAG_COLOR_MAP = 320;
+    public static final int TAG_TILE_WIDTH = 322;
+    public static final int TAG_TILE_LENGTH = 323;
+    public static final int TAG_TILE_OFFSETS = 324;
+    public static final int TAG_TILE_BYTE_COUNTS = 325;
+    public static final int TAG_SUB_IFDS = 330;
+    public static final int TAG_EXTRA_SAMPLES = 338;
+    public static final int TAG_SAMPLE_FORMAT = 339;
+    public static final int TAG_JPEG_INTERCHANGE_FORMAT = 513;
+    public static final int TAG_JPEG_INTERCHANGE_FORMAT_LENGTH = 514;
+    public static final int TAG_ICC_PROFILE = 34675;
+
+    // sizes in bytes of the TIFF field types, indexed by type id
+    private static final int[] TYPE_SIZES = {0, 1, 1, 2, 4, 8, 1, 1, 2, 4, 8, 4, 8, 4, 0, 0, 8, 8, 8};
+    // upper bound on the number of entries in one directory, to avoid reading garbage from corrupt files
+    private static final int MAX_ENTRIES = 4096;
+
+    private final FileChannel channel;
+    private final ByteOrder byteOrder;
+    private final boolean bigTiff;
+    private final long firstIfdOffset;
+
+    /**
+     * Read the TIFF header from the start of the channel
+     * @param channel an open channel to a TIFF file
+     * @throws IOException if the channel does not start with a TIFF header
+     */
+    public TiffIfdReader(FileChannel channel) throws IOException {
+        this.channel = channel;
+        ByteBuffer header = read(0, 16, ByteOrder.BIG_ENDIAN);
+        short marker = header.getShort(0);
+        if (marker == 0x4949) {
+            byteOrder = ByteOrder.LITTLE_ENDIAN;
+        } else if (marker == 0x4D4D) {
+            byteOrder = ByteOrder.BIG_ENDIAN;
+        } else {
+            throw new IOException("Not a TIFF file");
+        }
+        header.order(byteOrder);
+        int version = header.getShort(2) & 0xFFFF;
+        if (version == 42) {
+            bigTiff = false;
+            firstIfdOffset = header.getInt(4) & 0xFFFFFFFFL;
+        } else if (version == 43) {
+            bigTiff = true;
+            firstIfdOffset = header.getLong(8);
+        } else {
+            throw new IOException("Not a TIFF file, unknown version " + version);
+        }
+    }
+
+    /**
+     * @param magic the first bytes of a file
+     * @return true if the bytes start with a classic TIFF or BigTIFF header
+     */
+    public static boolean isTiff(byte[] magic) {
+        if (magic.length < 4) {
+            return false;
+        }
+        boolean intel = magic[0] == 'I' && magic[1] == 'I' && (magic[2] == 42 || magic[2] == 43) && magic[3] == 0;
+        boolean motorola = magic[0] == 'M' && magic[1] == 'M' && magic[2] == 0 && (magic[3] == 42 || magic[3] == 43);
+        return intel || motorola;
+    }
+
+    public ByteOrder getByteOrder() {
+        return byteOrder;
+    }
+
+    public boolean isBigTiff() {
+        return bigTiff;
+    }
+
+    /**
+     * @return the first image file directory (IFD0)
+     */
+    public Ifd readFirstIfd() throws IOException {
+        return readIfd(firstIfdOffset);
+    }
+
+    /**
+     * Read the image file directory at the given offset
+     * @param offset file offset of the directory
+     * @return the parsed directory
+     */
+    public Ifd readIfd(long offset) throws IOException {
+        if (offset <= 0 || offset >= channel.size()) {
+            throw new IOException("Invalid IFD offset " + offset);
+        }
+        int countSize = bigTiff ? 8 : 2;
+        int entrySize = bigTiff ? 20 : 12;
+        int inlineSize = bigTiff ? 8 : 4;
+        ByteBuffer countBuffer = read(offset, countSize, byteOrder);
+        long count = bigTiff ? countBuffer.getLong(0) : countBuffer.getShort(0) & 0xFFFF;
+        if (count > MAX_ENTRIES) {
+            throw new IOException("Invalid IFD entry count " + count);
+        }
+
+        ByteBuffer entries = read(offset + countSize, (int) count * entrySize + inlineSize, byteOrder);
+        Map<Integer, Entry> fields = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            int base = i * entrySize;
+            int tag = entries.getShort(base) & 0xFFFF;
+            int type = entries.getShort(base + 2) & 0xFFFF;
+            long valueCount = bigTiff ? entries.getLong(base + 4) : entries.getInt(base + 4) & 0xFFFFFFFFL;
+            int valueStart = base + (bigTiff ? 12 : 8);
+            byte[] inline = new byte[inlineSize];
+            entries.get(valueStart, inline);
+            long valueOffset = bigTiff ? entries.getLong(valueStart) : entries.getInt(valueStart) & 0xFFFFFFFFL;
+            fields.put(tag, new Entry(tag, type, valueCount, valueOffset, inline));
+        }
+        long next = bigTiff ? entries.getLong((int) count * entrySize) :
+                entries.getInt((int) count * entrySize) & 0xFFFFFFFFL;
+        return new Ifd(Collections.unmodifiableMap(fields), next);
+    }
+
+    /**
+     * Read the raw bytes of a field value, inline or out of line
+     * @param entry the directory entry
+     * @return value bytes in file byte order
+     */
+    public byte[] getBytes(Entry entry) throws IOException {
+        long length = entry.byteLength();
+        if (length > Integer.MAX_VALUE || length < 0) {
+            throw new IOException("Field " + entry.tag() + " too large");
+        }
+        if (length <= entry.inlineValue().length) {
+            byte[] value = new byte[(int) length];
+            System.arraycopy(entry.inlineValue(), 0, value, 0, (int) length);
+            return value;
+        }
+        ByteBuffer buffer = read(entry.valueOffset(), (int) length, byteOrder);
+        byte[] value = new byte[(int) length];
+        buffer.get(0, value);
+        return value;
+    }
+
+    /**
+     * Read an integer field value (BYTE, SHORT, LONG, LONG8 or IFD types) as an array of longs
+     * @param entry the directory entry
+     * @return the values
+     */
+    public long[] getLongs(Entry entry) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(getBytes(entry)).order(byteOrder);
+        long[] values = new long[(int) entry.count()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = switch (entry.type()) {
+                case 1, 2, 6, 7 -> buffer.get(i) & 0xFF;
+                case 3, 8 -> buffer.getShort(i * 2) & 0xFFFF;
+                case 4, 9, 13 -> buffer.getInt(i * 4) & 0xFFFFFFFFL;
+                case 16, 17, 18 -> buffer.getLong(i * 8);
+                default -> throw new IOException("Field " + entry.tag() + " is not an integer type");
+            };
+        }
+        return values;
+    }
+
+    /**
+     * Get the first integer value of a field
+     * @param ifd the directory
+     * @param tag the field tag
+     * @param defaultValue value returned when the field is absent
+     * @return the field value
+     */
+    public long getLong(Ifd ifd, int tag, long defaultValue) throws IOException {
+        Entry entry = ifd.entries().get(tag);
+        if (entry == null || entry.count() == 0) {
+            return defaultValue;
+        }
+        return getLongs(entry)[0];
+    }
+
+    /**
+     * Get all integer values of a field
+     * @param ifd the directory
+     * @param tag the field tag
+     * @return the values, or an empty array if the field is absent
+     */
+    public long[] getLongs(Ifd ifd, int tag) throws IOException {
+        Entry entry = ifd.entries().get(tag);
+        return entry == null ? new long[0] : getLongs(entry);
+    }
+
+    private ByteBuffer read(long position, int length, ByteOrder order) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(order);
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                throw new IOException("Unexpected end of TIFF file at " + (position + buffer.position()));
+            }
+        }
+        return buffer.flip();
+    }
+
+    /**
+     * A parsed image file directory
+     * @param entries fields by tag
+     * @param nextIfdOffset offset of the next directory, 0 if this is the last one
+     */
+    public record Ifd(Map<Integer, Entry> entries, long nextIfdOffset) {
+        public boolean contains(int tag) {
+            return entries.containsKey(tag);
+        }
+    }
+
+    /**
+     * A single directory entry
+     * @param tag field tag
+     * @param type field type
+     * @param count number of values
+     * @param valueOffset offset of the value when it does not fit inline
+     * @param inlineValue the raw value/offset bytes of the entry
+     */
+    public record Entry(int tag, int type, long count, long valueOffset, byte[] inlineValue) {
+        public long byteLength() {
+            int size = type < TYPE_SIZES.length ? TYPE_SIZES[type] : 0;
+            return size * count;
+        }
+    }
+}
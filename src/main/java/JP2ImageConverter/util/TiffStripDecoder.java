@@ -0,0 +1,673 @@
+package JP2ImageConverter.util;
+
+import org.slf4j.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.InflaterInputStream;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Decompresses LZW, Deflate and PackBits TIFFs, stripped or tiled, to a PPM or PGM which kdu_compress reads
+ * directly. Each strip or tile is read through one reused buffer and decompressed as a stream, so the heap holds one
+ * row of strips or one row of tiles at most, whatever the size of the image, and BigTIFFs are read the same way.
+ * Only chunky 8 or 16 bit gray and RGB images are decoded, extra samples such as alpha are dropped. A PPM carries no
+ * metadata, so images with an ICC profile, a resolution or an orientation other than top-left are decoded to an
+ * uncompressed TIFF instead, which keeps those fields for Kakadu. Disabled with jp24u.tiff.decode=false.
+ */
+public class TiffStripDecoder {
+    private static final Logger log = getLogger(TiffStripDecoder.class);
+    private static final int COMPRESSION_NONE = 1;
+    private static final int COMPRESSION_LZW = 5;
+    private static final int COMPRESSION_DEFLATE = 8;
+    private static final int COMPRESSION_PACKBITS = 32773;
+    private static final int COMPRESSION_OLD_DEFLATE = 32946;
+    private static final int PHOTOMETRIC_BLACK_IS_ZERO = 1;
+    private static final int PHOTOMETRIC_RGB = 2;
+    private static final int PREDICTOR_HORIZONTAL = 2;
+    private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+    private static final int CHUNK_BUFFER_SIZE = 64 * 1024;
+    private static final int OUTPUT_STRIP_SIZE = 1024 * 1024;
+    private static final int TYPE_SHORT = 3;
+    private static final int TYPE_LONG = 4;
+    private static final int TYPE_RATIONAL = 5;
+    private static final int TYPE_UNDEFINED = 7;
+    private static final int TYPE_LONG8 = 16;
+
+    private TiffStripDecoder() {
+    }
+
+    /**
+     * Check whether a TIFF should be decompressed before kdu_compress
+     * @param fileName a TIFF file
+     * @return ".ppm" or ".pgm" if the TIFF is compressed or tiled and can be decoded, ".tif" if it also has an ICC
+     * profile, a resolution or an orientation which kdu_compress needs, null if it should be passed to kdu_compress
+     * as it is
+     */
+    public static String outputExtension(String fileName) {
+        if (!Boolean.parseBoolean(System.getProperty("jp24u.tiff.decode", "true"))) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(Path.of(fileName), StandardOpenOption.READ)) {
+            TiffIfdReader reader = new TiffIfdReader(channel);
+            TiffIfdReader.Ifd ifd = reader.readFirstIfd();
+            Layout layout = Layout.read(reader, ifd);
+            if (layout == null || (layout.compression == COMPRESSION_NONE && !layout.tiled)) {
+                return null;
+            }
+            if (ifd.contains(TiffIfdReader.TAG_ICC_PROFILE) || hasResolution(reader, ifd)
+                    || reader.getLong(ifd, TiffIfdReader.TAG_ORIENTATION, 1) != 1) {
+                return ".tif";
+            }
+            return layout.colorChannels == 1 ? ".pgm" : ".ppm";
+        } catch (IOException | RuntimeException e) {
+            log.debug("Unable to read TIFF layout of {}: {}", fileName, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * @return true if the TIFF records a resolution in inches or centimeters, which kdu_compress writes to the JP2
+     */
+    private static boolean hasResolution(TiffIfdReader reader, TiffIfdReader.Ifd ifd) throws IOException {
+        return (ifd.contains(TiffIfdReader.TAG_X_RESOLUTION) || ifd.contains(TiffIfdReader.TAG_Y_RESOLUTION))
+                && reader.getLong(ifd, TiffIfdReader.TAG_RESOLUTION_UNIT, 2) != 1;
+    }
+
+    /**
+     * Decompress the first image of a TIFF to a PPM, a PGM for gray images, or an uncompressed TIFF with the ICC
+     * profile, resolution and orientation of the original if the output is named .tif
+     * @param fileName a TIFF file
+     * @param output the file to write
+     */
+    public static void decode(String fileName, Path output) throws IOException {
+        try (FileChannel channel = FileChannel.open(Path.of(fileName), StandardOpenOption.READ);
+             OutputStream out = new BufferedOutputStream(Files.newOutputStream(output), OUTPUT_BUFFER_SIZE)) {
+            TiffIfdReader reader = new TiffIfdReader(channel);
+            TiffIfdReader.Ifd ifd = reader.readFirstIfd();
+            Layout layout = Layout.read(reader, ifd);
+            if (layout == null) {
+                throw new IOException("Unsupported TIFF layout in " + fileName);
+            }
+            if (output.getFileName().toString().toLowerCase().endsWith(".tif")) {
+                writeTiffHeader(reader, ifd, layout, out);
+            } else {
+                String header = (layout.colorChannels == 1 ? "P5" : "P6") + "\n" + layout.width + " "
+                        + layout.height + "\n" + (layout.bytesPerSample == 2 ? 65535 : 255) + "\n";
+                out.write(header.getBytes(StandardCharsets.US_ASCII));
+            }
+            ChunkInputStream chunk = new ChunkInputStream(channel);
+            if (layout.tiled) {
+                decodeTiles(chunk, layout, out);
+            } else {
+                decodeStrips(chunk, layout, out);
+            }
+        }
+    }
+
+    /**
+     * Write the header and directory of a big endian, uncompressed, chunky TIFF which the decoded rows follow, with
+     * the ICC profile, resolution and orientation of the original. A BigTIFF is written if the image does not fit
+     * a classic TIFF.
+     */
+    private static void writeTiffHeader(TiffIfdReader reader, TiffIfdReader.Ifd ifd, Layout layout,
+                                        OutputStream output) throws IOException {
+        int rowBytes = layout.width * layout.colorChannels * layout.bytesPerSample;
+        int rowsPerStrip = Math.max(1, Math.min(layout.height, OUTPUT_STRIP_SIZE / rowBytes));
+        int strips = (layout.height + rowsPerStrip - 1) / rowsPerStrip;
+        TiffIfdReader.Entry icc = ifd.entries().get(TiffIfdReader.TAG_ICC_PROFILE);
+        byte[] profile = icc == null ? null : reader.getBytes(icc);
+        long imageBytes = (long) rowBytes * layout.height;
+        boolean bigTiff = imageBytes + (profile == null ? 0 : profile.length) + strips * 16L + 4096 > 0xFFFFFFFFL;
+        int offsetType = bigTiff ? TYPE_LONG8 : TYPE_LONG;
+        int offsetSize = bigTiff ? 8 : 4;
+
+        // fields by tag, as a directory lists them in ascending order
+        Map<Integer, Field> fields = new TreeMap<>();
+        fields.put(TiffIfdReader.TAG_IMAGE_WIDTH, Field.of(TYPE_LONG, layout.width));
+        fields.put(TiffIfdReader.TAG_IMAGE_LENGTH, Field.of(TYPE_LONG, layout.height));
+        long[] bitsPerSample = new long[layout.colorChannels];
+        Arrays.fill(bitsPerSample, layout.bytesPerSample * 8L);
+        fields.put(TiffIfdReader.TAG_BITS_PER_SAMPLE, Field.of(TYPE_SHORT, bitsPerSample));
+        fields.put(TiffIfdReader.TAG_COMPRESSION, Field.of(TYPE_SHORT, COMPRESSION_NONE));
+        fields.put(TiffIfdReader.TAG_PHOTOMETRIC_INTERPRETATION, Field.of(TYPE_SHORT,
+                layout.colorChannels == 1 ? PHOTOMETRIC_BLACK_IS_ZERO : PHOTOMETRIC_RGB));
+        fields.put(TiffIfdReader.TAG_SAMPLES_PER_PIXEL, Field.of(TYPE_SHORT, layout.colorChannels));
+        fields.put(TiffIfdReader.TAG_ROWS_PER_STRIP, Field.of(TYPE_LONG, rowsPerStrip));
+        fields.put(TiffIfdReader.TAG_PLANAR_CONFIGURATION, Field.of(TYPE_SHORT, 1));
+        long[] stripByteCounts = new long[strips];
+        for (int i = 0; i < strips; i++) {
+            stripByteCounts[i] = (long) Math.min(rowsPerStrip, layout.height - i * rowsPerStrip) * rowBytes;
+        }
+        fields.put(TiffIfdReader.TAG_STRIP_BYTE_COUNTS, Field.of(offsetType, stripByteCounts));
+        long orientation = reader.getLong(ifd, TiffIfdReader.TAG_ORIENTATION, 1);
+        if (orientation != 1) {
+            fields.put(TiffIfdReader.TAG_ORIENTATION, Field.of(TYPE_SHORT, orientation));
+        }
+        for (int tag : new int[] {TiffIfdReader.TAG_X_RESOLUTION, TiffIfdReader.TAG_Y_RESOLUTION}) {
+            TiffIfdReader.Entry entry = ifd.entries().get(tag);
+            if (entry != null && entry.count() > 0) {
+                fields.put(tag, resolution(reader, entry));
+            }
+        }
+        if (ifd.contains(TiffIfdReader.TAG_RESOLUTION_UNIT)) {
+            fields.put(TiffIfdReader.TAG_RESOLUTION_UNIT, Field.of(TYPE_SHORT,
+                    reader.getLong(ifd, TiffIfdReader.TAG_RESOLUTION_UNIT, 2)));
+        }
+        if (profile != null) {
+            fields.put(TiffIfdReader.TAG_ICC_PROFILE, new Field(TYPE_UNDEFINED, profile.length, profile));
+        }
+        // the strip offsets are known once the size of everything before the first strip is
+        fields.put(TiffIfdReader.TAG_STRIP_OFFSETS, new Field(offsetType, strips, new byte[strips * offsetSize]));
+
+        int inlineSize = bigTiff ? 8 : 4;
+        long position = (bigTiff ? 16 : 8) + (bigTiff ? 8 : 2) + fields.size() * (bigTiff ? 20L : 12L)
+                + (bigTiff ? 8 : 4);
+        Map<Integer, Long> valueOffsets = new TreeMap<>();
+        for (Map.Entry<Integer, Field> field : fields.entrySet()) {
+            int length = field.getValue().value.length;
+            if (length > inlineSize) {
+                valueOffsets.put(field.getKey(), position);
+                // values start on a word boundary
+                position += length + (length & 1);
+            }
+        }
+        ByteBuffer stripOffsets = ByteBuffer.wrap(fields.get(TiffIfdReader.TAG_STRIP_OFFSETS).value);
+        for (int i = 0; i < strips; i++) {
+            long offset = position + (long) i * rowsPerStrip * rowBytes;
+            if (bigTiff) {
+                stripOffsets.putLong(offset);
+            } else {
+                stripOffsets.putInt((int) offset);
+            }
+        }
+
+        DataOutputStream out = new DataOutputStream(output);
+        out.writeByte('M');
+        out.writeByte('M');
+        if (bigTiff) {
+            out.writeShort(43);
+            out.writeShort(8);
+            out.writeShort(0);
+            out.writeLong(16);
+            out.writeLong(fields.size());
+        } else {
+            out.writeShort(42);
+            out.writeInt(8);
+            out.writeShort(fields.size());
+        }
+        for (Map.Entry<Integer, Field> entry : fields.entrySet()) {
+            Field field = entry.getValue();
+            out.writeShort(entry.getKey());
+            out.writeShort(field.type);
+            if (bigTiff) {
+                out.writeLong(field.count);
+            } else {
+                out.writeInt((int) field.count);
+            }
+            Long valueOffset = valueOffsets.get(entry.getKey());
+            if (valueOffset == null) {
+                // inline values are left justified
+                out.write(field.value);
+                out.write(new byte[inlineSize - field.value.length]);
+            } else if (bigTiff) {
+                out.writeLong(valueOffset);
+            } else {
+                out.writeInt(valueOffset.intValue());
+            }
+        }
+        if (bigTiff) {
+            out.writeLong(0);
+        } else {
+            out.writeInt(0);
+        }
+        for (int tag : valueOffsets.keySet()) {
+            byte[] value = fields.get(tag).value;
+            out.write(value);
+            if ((value.length & 1) != 0) {
+                out.writeByte(0);
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * @return a resolution field as a big endian rational, integer resolutions have a denominator of 1
+     */
+    private static Field resolution(TiffIfdReader reader, TiffIfdReader.Entry entry) throws IOException {
+        ByteBuffer value = ByteBuffer.allocate(8);
+        if (entry.type() == TYPE_RATIONAL) {
+            ByteBuffer rational = ByteBuffer.wrap(reader.getBytes(entry)).order(reader.getByteOrder());
+            value.putInt(rational.getInt(0)).putInt(rational.getInt(4));
+        } else {
+            value.putInt((int) reader.getLongs(entry)[0]).putInt(1);
+        }
+        return new Field(TYPE_RATIONAL, 1, value.array());
+    }
+
+    private static void decodeStrips(ChunkInputStream chunk, Layout layout, OutputStream out) throws IOException {
+        byte[] row = new byte[layout.chunkRowBytes()];
+        byte[] outputRow = new byte[layout.width * layout.colorChannels * layout.bytesPerSample];
+        int y = 0;
+        for (int strip = 0; y < layout.height; strip++) {
+            int rows = Math.min(layout.chunkLength, layout.height - y);
+            try (InputStream in = openChunk(chunk, layout, strip)) {
+                for (int r = 0; r < rows; r++) {
+                    readRow(in, row, layout);
+                    convertRow(row, 0, layout.width, outputRow, 0, layout);
+                    out.write(outputRow);
+                }
+            }
+            y += rows;
+        }
+    }
+
+    private static void decodeTiles(ChunkInputStream chunk, Layout layout, OutputStream out) throws IOException {
+        int tilesAcross = (layout.width + layout.chunkWidth - 1) / layout.chunkWidth;
+        int outputRowBytes = layout.width * layout.colorChannels * layout.bytesPerSample;
+        byte[] tileRow = new byte[layout.chunkRowBytes()];
+        // one row of tiles, cropped to the image width
+        byte[] rows = new byte[layout.chunkLength * outputRowBytes];
+        int tilesDown = (layout.height + layout.chunkLength - 1) / layout.chunkLength;
+        for (int ty = 0; ty < tilesDown; ty++) {
+            int validRows = Math.min(layout.chunkLength, layout.height - ty * layout.chunkLength);
+            for (int tx = 0; tx < tilesAcross; tx++) {
+                int x = tx * layout.chunkWidth;
+                int validPixels = Math.min(layout.chunkWidth, layout.width - x);
+                try (InputStream in = openChunk(chunk, layout, ty * tilesAcross + tx)) {
+                    for (int r = 0; r < validRows; r++) {
+                        readRow(in, tileRow, layout);
+                        convertRow(tileRow, 0, validPixels, rows,
+                                r * outputRowBytes + x * layout.colorChannels * layout.bytesPerSample, layout);
+                    }
+                }
+            }
+            out.write(rows, 0, validRows * outputRowBytes);
+        }
+    }
+
+    private static InputStream openChunk(ChunkInputStream chunk, Layout layout, int index) throws IOException {
+        if (index >= layout.offsets.length || index >= layout.byteCounts.length) {
+            throw new IOException("Missing strip or tile " + index);
+        }
+        chunk.open(layout.offsets[index], layout.byteCounts[index]);
+        return switch (layout.compression) {
+            case COMPRESSION_LZW -> new LzwInputStream(chunk);
+            case COMPRESSION_DEFLATE, COMPRESSION_OLD_DEFLATE -> new InflaterInputStream(chunk);
+            case COMPRESSION_PACKBITS -> new PackBitsInputStream(chunk);
+            default -> chunk;
+        };
+    }
+
+    private static void readRow(InputStream in, byte[] row, Layout layout) throws IOException {
+        if (in.readNBytes(row, 0, row.length) != row.length) {
+            throw new IOException("Strip or tile ends before its last row");
+        }
+        if (layout.predictor != PREDICTOR_HORIZONTAL) {
+            return;
+        }
+        int spp = layout.samplesPerPixel;
+        if (layout.bytesPerSample == 1) {
+            for (int i = spp; i < row.length; i++) {
+                row[i] += row[i - spp];
+            }
+        } else {
+            ByteBuffer samples = ByteBuffer.wrap(row).order(layout.byteOrder);
+            for (int i = spp; i < row.length / 2; i++) {
+                samples.putShort(i * 2, (short) (samples.getShort(i * 2) + samples.getShort((i - spp) * 2)));
+            }
+        }
+    }
+
+    /**
+     * Copy the color samples of a decoded row to the output, dropping extra samples and writing 16 bit samples
+     * big endian as PPM requires
+     */
+    private static void convertRow(byte[] row, int pixelOffset, int pixels, byte[] output, int outputOffset,
+                                   Layout layout) {
+        int bytes = layout.bytesPerSample;
+        int inputPixelBytes = layout.samplesPerPixel * bytes;
+        int outputPixelBytes = layout.colorChannels * bytes;
+        boolean swap = bytes == 2 && layout.byteOrder == ByteOrder.LITTLE_ENDIAN;
+        if (!swap && inputPixelBytes == outputPixelBytes) {
+            System.arraycopy(row, pixelOffset * inputPixelBytes, output, outputOffset, pixels * outputPixelBytes);
+            return;
+        }
+        for (int x = 0; x < pixels; x++) {
+            int in = (pixelOffset + x) * inputPixelBytes;
+            int out = outputOffset + x * outputPixelBytes;
+            if (swap) {
+                for (int i = 0; i < outputPixelBytes; i += 2) {
+                    output[out + i] = row[in + i + 1];
+                    output[out + i + 1] = row[in + i];
+                }
+            } else {
+                System.arraycopy(row, in, output, out, outputPixelBytes);
+            }
+        }
+    }
+
+    /**
+     * The parts of the first image file directory needed to decode it
+     */
+    private record Layout(int width, int height, int samplesPerPixel, int colorChannels, int bytesPerSample,
+                          int compression, int predictor, boolean tiled, int chunkWidth, int chunkLength,
+                          long[] offsets, long[] byteCounts, ByteOrder byteOrder) {
+
+        /**
+         * @return the layout, or null if the image can not be decoded
+         */
+        private static Layout read(TiffIfdReader reader, TiffIfdReader.Ifd ifd) throws IOException {
+            int width = (int) reader.getLong(ifd, TiffIfdReader.TAG_IMAGE_WIDTH, 0);
+            int height = (int) reader.getLong(ifd, TiffIfdReader.TAG_IMAGE_LENGTH, 0);
+            int samplesPerPixel = (int) reader.getLong(ifd, TiffIfdReader.TAG_SAMPLES_PER_PIXEL, 1);
+            int bitsPerSample = (int) reader.getLong(ifd, TiffIfdReader.TAG_BITS_PER_SAMPLE, 1);
+            int compression = (int) reader.getLong(ifd, TiffIfdReader.TAG_COMPRESSION, COMPRESSION_NONE);
+            int photometric = (int) reader.getLong(ifd, TiffIfdReader.TAG_PHOTOMETRIC_INTERPRETATION, -1);
+            int planar = (int) reader.getLong(ifd, TiffIfdReader.TAG_PLANAR_CONFIGURATION, 1);
+            int predictor = (int) reader.getLong(ifd, TiffIfdReader.TAG_PREDICTOR, 1);
+            int sampleFormat = (int) reader.getLong(ifd, TiffIfdReader.TAG_SAMPLE_FORMAT, 1);
+            int colorChannels = photometric == PHOTOMETRIC_BLACK_IS_ZERO ? 1 : photometric == PHOTOMETRIC_RGB ? 3 : 0;
+            boolean supportedCompression = compression == COMPRESSION_NONE || compression == COMPRESSION_LZW
+                    || compression == COMPRESSION_DEFLATE || compression == COMPRESSION_OLD_DEFLATE
+                    || compression == COMPRESSION_PACKBITS;
+            if (width <= 0 || height <= 0 || colorChannels == 0 || samplesPerPixel < colorChannels
+                    || (bitsPerSample != 8 && bitsPerSample != 16) || planar != 1 || sampleFormat != 1
+                    || (predictor != 1 && predictor != PREDICTOR_HORIZONTAL) || !supportedCompression) {
+                return null;
+            }
+
+            boolean tiled = ifd.contains(TiffIfdReader.TAG_TILE_WIDTH);
+            int chunkWidth = tiled ? (int) reader.getLong(ifd, TiffIfdReader.TAG_TILE_WIDTH, 0) : width;
+            int chunkLength = (int) (tiled ? reader.getLong(ifd, TiffIfdReader.TAG_TILE_LENGTH, 0) :
+                    Math.min(height, reader.getLong(ifd, TiffIfdReader.TAG_ROWS_PER_STRIP, height)));
+            long[] offsets = reader.getLongs(ifd, tiled ? TiffIfdReader.TAG_TILE_OFFSETS :
+                    TiffIfdReader.TAG_STRIP_OFFSETS);
+            long[] byteCounts = reader.getLongs(ifd, tiled ? TiffIfdReader.TAG_TILE_BYTE_COUNTS :
+                    TiffIfdReader.TAG_STRIP_BYTE_COUNTS);
+            if (chunkWidth <= 0 || chunkLength <= 0 || offsets.length == 0 || offsets.length != byteCounts.length) {
+                return null;
+            }
+            return new Layout(width, height, samplesPerPixel, colorChannels, bitsPerSample / 8, compression,
+                    predictor, tiled, chunkWidth, chunkLength, offsets, byteCounts, reader.getByteOrder());
+        }
+
+        private int chunkRowBytes() {
+            return chunkWidth * samplesPerPixel * bytesPerSample;
+        }
+    }
+
+    /**
+     * A directory field with its value in big endian byte order
+     */
+    private record Field(int type, long count, byte[] value) {
+        private static Field of(int type, long... values) {
+            ByteBuffer buffer = ByteBuffer.allocate(values.length * (type == TYPE_SHORT ? 2 : type == TYPE_LONG ? 4 : 8));
+            for (long value : values) {
+                switch (type) {
+                    case TYPE_SHORT -> buffer.putShort((short) value);
+                    case TYPE_LONG -> buffer.putInt((int) value);
+                    default -> buffer.putLong(value);
+                }
+            }
+            return new Field(type, values.length, buffer.array());
+        }
+    }
+
+    /**
+     * Reads one strip or tile after another with positional reads into a single buffer. Closing it leaves the
+     * channel open for the next chunk.
+     */
+    private static class ChunkInputStream extends InputStream {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(CHUNK_BUFFER_SIZE);
+        private long position;
+        private long end;
+
+        private ChunkInputStream(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        private void open(long offset, long byteCount) {
+            position = offset;
+            end = offset + byteCount;
+            buffer.clear().flip();
+        }
+
+        /**
+         * @return the byte at an index of the buffered data without consuming it, or -1 past the end of the chunk
+         */
+        private int peek(int index) throws IOException {
+            if (!fill()) {
+                return -1;
+            }
+            return index < buffer.remaining() ? buffer.get(buffer.position() + index) & 0xFF : -1;
+        }
+
+        private boolean fill() throws IOException {
+            if (buffer.hasRemaining()) {
+                return true;
+            }
+            if (position >= end) {
+                return false;
+            }
+            buffer.clear().limit((int) Math.min(buffer.capacity(), end - position));
+            while (buffer.hasRemaining()) {
+                int read = channel.read(buffer, position);
+                if (read < 0) {
+                    throw new IOException("Strip or tile ends past the end of the file at " + position);
+                }
+                position += read;
+            }
+            buffer.flip();
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return fill() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            int count = Math.min(len, buffer.remaining());
+            buffer.get(b, off, count);
+            return count;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * PackBits run length decoding
+     */
+    private static class PackBitsInputStream extends InputStream {
+        private final InputStream in;
+        private int literal;
+        private int repeat;
+        private int repeated;
+
+        private PackBitsInputStream(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            while (literal == 0 && repeat == 0) {
+                int header = in.read();
+                if (header < 0) {
+                    return -1;
+                }
+                byte n = (byte) header;
+                if (n >= 0) {
+                    literal = n + 1;
+                } else if (n != -128) {
+                    repeated = in.read();
+                    if (repeated < 0) {
+                        return -1;
+                    }
+                    repeat = 1 - n;
+                }
+            }
+            if (literal > 0) {
+                literal--;
+                return in.read();
+            }
+            repeat--;
+            return repeated;
+        }
+    }
+
+    /**
+     * TIFF LZW decoding: codes are written most significant bit first and the code width grows one code early
+     */
+    private static class LzwInputStream extends InputStream {
+        private static final int CLEAR = 256;
+        private static final int END = 257;
+        private static final int FIRST_CODE = 258;
+        private static final int MAX_CODES = 4096;
+
+        private final InputStream in;
+        private final int[] prefix = new int[MAX_CODES];
+        private final byte[] suffix = new byte[MAX_CODES];
+        private final byte[] first = new byte[MAX_CODES];
+        private final int[] length = new int[MAX_CODES];
+        private final byte[] string = new byte[MAX_CODES];
+        private int stringPosition;
+        private int stringLength;
+        private int bits;
+        private int bitCount;
+        private int codeWidth = 9;
+        private int nextCode = FIRST_CODE;
+        private int previous = -1;
+        private boolean ended;
+
+        private LzwInputStream(ChunkInputStream in) throws IOException {
+            if (in.peek(0) == 0 && in.peek(1) > 0 && (in.peek(1) & 0x1) != 0) {
+                throw new IOException("Old style LZW is not supported");
+            }
+            this.in = in;
+            for (int i = 0; i < 256; i++) {
+                suffix[i] = (byte) i;
+                first[i] = (byte) i;
+                length[i] = 1;
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (stringPosition == stringLength && !decodeNext()) {
+                return -1;
+            }
+            return string[stringPosition++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int count = 0;
+            while (count < len) {
+                if (stringPosition == stringLength && !decodeNext()) {
+                    return count == 0 ? -1 : count;
+                }
+                int available = Math.min(len - count, stringLength - stringPosition);
+                System.arraycopy(string, stringPosition, b, off + count, available);
+                stringPosition += available;
+                count += available;
+            }
+            return count;
+        }
+
+        private boolean decodeNext() throws IOException {
+            if (ended) {
+                return false;
+            }
+            int code = readCode();
+            if (code == CLEAR) {
+                nextCode = FIRST_CODE;
+                codeWidth = 9;
+                previous = -1;
+                code = readCode();
+            }
+            if (code < 0 || code == END) {
+                ended = true;
+                return false;
+            }
+            if (previous == -1) {
+                if (code >= 256) {
+                    throw new IOException("Invalid LZW code " + code);
+                }
+                expand(code);
+            } else if (code < nextCode) {
+                expand(code);
+                add(previous, first[code]);
+            } else if (code == nextCode) {
+                add(previous, first[previous]);
+                expand(code);
+            } else {
+                throw new IOException("Invalid LZW code " + code);
+            }
+            previous = code;
+            return true;
+        }
+
+        private void expand(int code) {
+            stringLength = length[code];
+            stringPosition = 0;
+            for (int i = stringLength - 1; i >= 0; i--) {
+                string[i] = suffix[code];
+                code = prefix[code];
+            }
+        }
+
+        private void add(int code, byte next) {
+            if (nextCode >= MAX_CODES) {
+                return;
+            }
+            prefix[nextCode] = code;
+            suffix[nextCode] = next;
+            first[nextCode] = first[code];
+            length[nextCode] = length[code] + 1;
+            nextCode++;
+            if (nextCode + 1 >= 1 << codeWidth && codeWidth < 12) {
+                codeWidth++;
+            }
+        }
+
+        private int readCode() throws IOException {
+            while (bitCount < codeWidth) {
+                int b = in.read();
+                if (b < 0) {
+                    return -1;
+                }
+                bits = (bits << 8) | b;
+                bitCount += 8;
+            }
+            int code = (bits >>> (bitCount - codeWidth)) & ((1 << codeWidth) - 1);
+            bitCount -= codeWidth;
+            bits &= (1 << bitCount) - 1;
+            return code;
+        }
+    }
+}
@@ -0,0 +1,368 @@
+package JP2ImageConverter.util;
+
+import org.slf4j.Logger;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Detects blank (void) frames before they are encoded, from a decimated sample of the image pixels.
+ * PPM/PGM files are sampled directly from the mapped file, other formats are decoded by ImageIO with source
+ * subsampling. A frame is void when every color channel has a variance and a histogram entropy below the
+ * configured thresholds (jp24u.void.maxVariance and jp24u.void.maxEntropy, on an 8 bit scale). A decimated sample
+ * can step over thin strokes, so a frame is only skipped once a pass over every pixel confirms that no channel
+ * spans more than jp24u.void.maxRange levels. The pass reads PPM/PGM files in chunks and other formats in bands of
+ * rows, so it holds a band of at most jp24u.void.bandPixels pixels in the heap.
+ */
+public class VoidImageDetector {
+    private static final Logger log = getLogger(VoidImageDetector.class);
+    private static final double DEFAULT_MAX_VARIANCE = 2.0;
+    private static final double DEFAULT_MAX_ENTROPY = 1.0;
+    // the sample is at most this many pixels wide and high
+    private static final int DEFAULT_SAMPLE_SIZE = 512;
+    private static final int DEFAULT_MAX_RANGE = 32;
+    private static final int DEFAULT_BAND_PIXELS = 4 * 1024 * 1024;
+    private static final int CHUNK_SIZE = 1024 * 1024;
+    // PNM headers are a few numbers, comments aside
+    private static final int MAX_PNM_HEADER = 4096;
+
+    private VoidImageDetector() {
+    }
+
+    /**
+     * Detection is opt-in with jp24u.void.detect=true. Its thresholds are not calibrated against the size of the
+     * encoded JP2, so it may skip faint frames (pencil, microfilm) which encode to more than the 10 kB below which
+     * deleteTinyGrayVoidImages deletes a gray output.
+     * @return true if void detection is enabled with jp24u.void.detect=true
+     */
+    public static boolean isEnabled() {
+        return Boolean.parseBoolean(System.getProperty("jp24u.void.detect", "false"));
+    }
+
+    /**
+     * Sample the pixels of an image
+     * @param fileName an image file
+     * @return statistics of the sampled pixels, or null if the image can not be sampled
+     */
+    public static Sample sample(String fileName) {
+        int sampleSize = Math.max(1, Integer.getInteger("jp24u.void.sampleSize", DEFAULT_SAMPLE_SIZE));
+        try {
+            Stats stats = isPnm(fileName) ? samplePnm(fileName, sampleSize) : sampleImageIO(fileName, sampleSize);
+            return stats == null ? null : stats.toSample();
+        } catch (IOException | RuntimeException e) {
+            log.debug("Unable to sample pixels of {}: {}", fileName, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Confirm that a frame is void from every one of its pixels, after its sample has been found void
+     * @param fileName an image file
+     * @return true if no color channel spans more than jp24u.void.maxRange levels on an 8 bit scale, false if it
+     * does or the image can not be read
+     */
+    public static boolean isUniform(String fileName) {
+        int maxRange = Integer.getInteger("jp24u.void.maxRange", DEFAULT_MAX_RANGE);
+        try {
+            Range range = isPnm(fileName) ? rangePnm(fileName) : rangeImageIO(fileName);
+            return range != null && range.maxSpan() <= maxRange;
+        } catch (IOException | RuntimeException e) {
+            log.debug("Unable to read pixels of {}: {}", fileName, e.getMessage());
+            return false;
+        }
+    }
+
+    private static boolean isPnm(String fileName) throws IOException {
+        try (FileChannel channel = FileChannel.open(Path.of(fileName), StandardOpenOption.READ)) {
+            ByteBuffer magic = ByteBuffer.allocate(2);
+            channel.read(magic, 0);
+            return magic.get(0) == 'P' && (magic.get(1) == '5' || magic.get(1) == '6');
+        }
+    }
+
+    private static Stats samplePnm(String fileName, int sampleSize) throws IOException {
+        try (FileChannel channel = FileChannel.open(Path.of(fileName), StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            int channels = buffer.get(1) == '6' ? 3 : 1;
+            buffer.position(2);
+            int width = readPnmNumber(buffer);
+            int height = readPnmNumber(buffer);
+            int maxValue = readPnmNumber(buffer);
+            // a single whitespace character separates the header from the raster
+            buffer.get();
+            int dataOffset = buffer.position();
+            int bytesPerSample = maxValue > 255 ? 2 : 1;
+            long rowBytes = (long) width * channels * bytesPerSample;
+            if (width <= 0 || height <= 0 || maxValue <= 0 || dataOffset + rowBytes * height > buffer.capacity()) {
+                return null;
+            }
+
+            int step = step(width, height, sampleSize);
+            Stats stats = new Stats(channels);
+            for (long y = 0; y < height; y += step) {
+                for (long x = 0; x < width; x += step) {
+                    long pixel = dataOffset + y * rowBytes + x * channels * bytesPerSample;
+                    for (int c = 0; c < channels; c++) {
+                        int index = (int) (pixel + (long) c * bytesPerSample);
+                        int value = bytesPerSample == 2 ? buffer.getShort(index) & 0xFFFF : buffer.get(index) & 0xFF;
+                        stats.add(c, (int) ((long) value * 255 / maxValue));
+                    }
+                }
+            }
+            return stats;
+        }
+    }
+
+    private static Range rangePnm(String fileName) throws IOException {
+        try (FileChannel channel = FileChannel.open(Path.of(fileName), StandardOpenOption.READ)) {
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    Math.min(channel.size(), MAX_PNM_HEADER));
+            int channels = header.get(1) == '6' ? 3 : 1;
+            header.position(2);
+            int width = readPnmNumber(header);
+            int height = readPnmNumber(header);
+            int maxValue = readPnmNumber(header);
+            header.get();
+            long dataOffset = header.position();
+            int bytesPerSample = maxValue > 255 ? 2 : 1;
+            long dataBytes = (long) width * height * channels * bytesPerSample;
+            if (width <= 0 || height <= 0 || maxValue <= 0 || dataOffset + dataBytes > channel.size()) {
+                return null;
+            }
+
+            Range range = new Range(channels);
+            // whole pixels in each chunk, so a chunk starts with the first channel
+            int pixelBytes = channels * bytesPerSample;
+            ByteBuffer chunk = ByteBuffer.allocate(CHUNK_SIZE / pixelBytes * pixelBytes);
+            long position = dataOffset;
+            long end = dataOffset + dataBytes;
+            while (position < end) {
+                chunk.clear().limit((int) Math.min(chunk.capacity(), end - position));
+                while (chunk.hasRemaining()) {
+                    if (channel.read(chunk, position + chunk.position()) < 0) {
+                        return null;
+                    }
+                }
+                chunk.flip();
+                while (chunk.hasRemaining()) {
+                    for (int c = 0; c < channels; c++) {
+                        int value = bytesPerSample == 2 ? chunk.getShort() & 0xFFFF : chunk.get() & 0xFF;
+                        range.add(c, (int) ((long) value * 255 / maxValue));
+                    }
+                }
+                position += chunk.limit();
+            }
+            return range;
+        }
+    }
+
+    private static int readPnmNumber(MappedByteBuffer buffer) {
+        int c = buffer.get() & 0xFF;
+        while (Character.isWhitespace(c) || c == '#') {
+            if (c == '#') {
+                while (c != '\n' && c != '\r') {
+                    c = buffer.get() & 0xFF;
+                }
+            }
+            c = buffer.get() & 0xFF;
+        }
+        int value = 0;
+        while (c >= '0' && c <= '9') {
+            value = value * 10 + (c - '0');
+            c = buffer.get() & 0xFF;
+        }
+        // leave the terminating whitespace for the caller
+        buffer.position(buffer.position() - 1);
+        return value;
+    }
+
+    private static Stats sampleImageIO(String fileName, int sampleSize) throws IOException {
+        try (ImageInputStream stream = ImageIO.createImageInputStream(new File(fileName))) {
+            if (stream == null) {
+                return null;
+            }
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(stream, true, true);
+                int step = step(reader.getWidth(0), reader.getHeight(0), sampleSize);
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(step, step, 0, 0);
+                BufferedImage image = reader.read(0, param);
+                Raster raster = image.getRaster();
+                int channels = raster.getNumBands() - (image.getColorModel().hasAlpha() ? 1 : 0);
+                Stats stats = new Stats(channels);
+                for (int c = 0; c < channels; c++) {
+                    int bits = raster.getSampleModel().getSampleSize(c);
+                    int[] samples = raster.getSamples(0, 0, raster.getWidth(), raster.getHeight(), c, (int[]) null);
+                    for (int value : samples) {
+                        stats.add(c, bits > 8 ? value >>> (bits - 8) : value << (8 - bits));
+                    }
+                }
+                return stats;
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    private static Range rangeImageIO(String fileName) throws IOException {
+        try (ImageInputStream stream = ImageIO.createImageInputStream(new File(fileName))) {
+            if (stream == null) {
+                return null;
+            }
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(stream, false, true);
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                int bandRows = Math.max(1, Integer.getInteger("jp24u.void.bandPixels", DEFAULT_BAND_PIXELS) / width);
+                Range range = null;
+                for (int y = 0; y < height; y += bandRows) {
+                    ImageReadParam param = reader.getDefaultReadParam();
+                    param.setSourceRegion(new Rectangle(0, y, width, Math.min(bandRows, height - y)));
+                    BufferedImage band = reader.read(0, param);
+                    Raster raster = band.getRaster();
+                    int channels = raster.getNumBands() - (band.getColorModel().hasAlpha() ? 1 : 0);
+                    if (range == null) {
+                        range = new Range(channels);
+                    }
+                    for (int c = 0; c < channels; c++) {
+                        int bits = raster.getSampleModel().getSampleSize(c);
+                        int[] samples = raster.getSamples(0, 0, raster.getWidth(), raster.getHeight(), c,
+                                (int[]) null);
+                        for (int value : samples) {
+                            range.add(c, bits > 8 ? value >>> (bits - 8) : value << (8 - bits));
+                        }
+                    }
+                }
+                return range;
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    private static int step(int width, int height, int sampleSize) {
+        return Math.max(1, (Math.max(width, height) + sampleSize - 1) / sampleSize);
+    }
+
+    /**
+     * Per channel histograms of the 8 bit scaled sample values
+     */
+    private static class Stats {
+        private final long[][] histograms;
+
+        private Stats(int channels) {
+            histograms = new long[channels][256];
+        }
+
+        private void add(int channel, int value) {
+            histograms[channel][Math.min(255, Math.max(0, value))]++;
+        }
+
+        private Sample toSample() {
+            long count = 0;
+            double maxVariance = 0;
+            double maxEntropy = 0;
+            for (long[] histogram : histograms) {
+                long n = 0;
+                double sum = 0;
+                double sumOfSquares = 0;
+                for (int value = 0; value < 256; value++) {
+                    n += histogram[value];
+                    sum += (double) value * histogram[value];
+                    sumOfSquares += (double) value * value * histogram[value];
+                }
+                if (n == 0) {
+                    continue;
+                }
+                double mean = sum / n;
+                double entropy = 0;
+                for (long frequency : histogram) {
+                    if (frequency > 0) {
+                        double p = (double) frequency / n;
+                        entropy -= p * Math.log(p) / Math.log(2);
+                    }
+                }
+                count = n;
+                maxVariance = Math.max(maxVariance, sumOfSquares / n - mean * mean);
+                maxEntropy = Math.max(maxEntropy, entropy);
+            }
+            return count == 0 ? null : new Sample(count, histograms.length, maxVariance, maxEntropy);
+        }
+    }
+
+    /**
+     * Per channel lowest and highest of the 8 bit scaled values of every pixel
+     */
+    private static class Range {
+        private final int[] min;
+        private final int[] max;
+
+        private Range(int channels) {
+            min = new int[channels];
+            max = new int[channels];
+            Arrays.fill(min, Integer.MAX_VALUE);
+            Arrays.fill(max, Integer.MIN_VALUE);
+        }
+
+        private void add(int channel, int value) {
+            min[channel] = Math.min(min[channel], value);
+            max[channel] = Math.max(max[channel], value);
+        }
+
+        private int maxSpan() {
+            int span = 0;
+            for (int c = 0; c < min.length; c++) {
+                span = Math.max(span, max[c] - min[c]);
+            }
+            return span;
+        }
+    }
+
+    /**
+     * Statistics of a decimated pixel sample, values are scaled to 8 bits
+     * @param pixels number of sampled pixels
+     * @param channels number of color channels, alpha excluded
+     * @param variance highest variance of any channel
+     * @param entropy highest histogram entropy of any channel, in bits
+     */
+    public record Sample(long pixels, int channels, double variance, double entropy) {
+
+        /**
+         * @return true if the variance and entropy are within the jp24u.void.maxVariance and
+         * jp24u.void.maxEntropy thresholds
+         */
+        public boolean isVoid() {
+            double maxVariance = Double.parseDouble(System.getProperty("jp24u.void.maxVariance",
+                    String.valueOf(DEFAULT_MAX_VARIANCE)));
+            double maxEntropy = Double.parseDouble(System.getProperty("jp24u.void.maxEntropy",
+                    String.valueOf(DEFAULT_MAX_ENTROPY)));
+            return variance <= maxVariance && entropy <= maxEntropy;
+        }
+    }
+}
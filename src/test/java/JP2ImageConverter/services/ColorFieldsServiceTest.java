@@ -1,27 +1,37 @@
 package JP2ImageConverter.services;
 
+import JP2ImageConverter.options.OutputFormat;
 import JP2ImageConverter.util.CommandUtility;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.mockito.MockedStatic;
 import org.mockito.Mockito;
 
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
 import java.io.ByteArrayOutputStream;
 import java.io.PrintStream;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.never;
 import static org.mockito.MockitoAnnotations.openMocks;
 
 public class ColorFieldsServiceTest {
     private final ByteArrayOutputStream outputStreamCaptor = new ByteArrayOutputStream();
 
+    @TempDir
+    public Path tmpFolder;
+
     private AutoCloseable closeable;
 
     private ColorFieldsService service;
@@ -65,6 +75,26 @@ public class ColorFieldsServiceTest {
         }
     }
 
+    @Test
+    public void testExtractMetadataFieldsFromHeaderMatchesFullRead() throws Exception {
+        String[] testFiles = {"src/test/resources/DSC_0052.jpeg", "src/test/resources/obama_smoking.tiff",
+                "src/test/resources/invalid_icc_profile.tif", "src/test/resources/04OldWelllogo.psd"};
+
+        for (String testFile : testFiles) {
+            try {
+                System.setProperty("jp24u.metadata.window", "0");
+                Map<String, String> fullFields = service.extractMetadataFields(testFile);
+                System.clearProperty("jp24u.metadata.window");
+                Map<String, String> headerFields = service.extractMetadataFields(testFile);
+
+                assertEquals(new ArrayList<>(fullFields.keySet()), new ArrayList<>(headerFields.keySet()));
+                assertEquals(fullFields, headerFields);
+            } finally {
+                System.clearProperty("jp24u.metadata.window");
+            }
+        }
+    }
+
     @Test
     public void testMissingColorFields() throws Exception {
         String testFile = "src/test/resources/P0024_0066.tif";
@@ -109,6 +139,39 @@ public class ColorFieldsServiceTest {
         }
     }
 
+    @Test
+    public void testIdentifyTypeClassifiedInJava() throws Exception {
+        try (MockedStatic<CommandUtility> mockedStatic = Mockito.mockStatic(CommandUtility.class)) {
+            String testFile = "src/test/resources/obama_smoking.tiff";
+
+            ColorFieldsService service = new ColorFieldsService();
+            String imageType = service.identifyType(testFile);
+
+            assertEquals("GrayscaleAlpha", imageType);
+            mockedStatic.verify(() -> CommandUtility.executeCommand(anyList()), never());
+        }
+    }
+
+    @Test
+    public void testIdentifyTypeRgbImageWithOnlyGrayPixels() throws Exception {
+        Path testFile = tmpFolder.resolve("gray_rgb.png");
+        BufferedImage image = new BufferedImage(300, 200, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                int value = (x + y) % 256;
+                image.setRGB(x, y, (value << 16) | (value << 8) | value);
+            }
+        }
+        ImageIO.write(image, "png", testFile.toFile());
+
+        assertEquals("Grayscale", service.identifyType(testFile.toString()));
+
+        image.setRGB(150, 100, 0xFF0000);
+        ImageIO.write(image, "png", testFile.toFile());
+
+        assertEquals("TrueColor", service.identifyType(testFile.toString()));
+    }
+
     private void assertContains(String expected, String actual) {
         assertTrue(actual.contains(expected), "Expected string '" + expected + "' not found: " + actual);
     }
@@ -160,6 +223,46 @@ public class ColorFieldsServiceTest {
         }
     }
 
+    @Test
+    public void testSplitMagickIdentify() throws Exception {
+        Map<String, String> fields = ColorFieldsService.splitMagickIdentify("\"Dimensions: 2600x3650;" +
+                "Channels: srgb;Bit-depth: 16;Alpha channel: False;Color Space: sRGB;Profiles: icc,iptc,xmp;" +
+                "ICC Profile: Adobe RGB (1998);ICM Profile: ;Type: TrueColor;Dimensions: 114x160;Channels: srgb;" +
+                "Bit-depth: 8;Alpha channel: False;Color Space: sRGB;Profiles: ;ICC Profile: ;ICM Profile: ;" +
+                "Type: TrueColor;\"");
+
+        assertEquals("2600x3650", fields.get("MagickDimensions"));
+        assertEquals("16", fields.get("MagickBitDepth"));
+        assertEquals("False", fields.get("MagickAlphaChannel"));
+        assertEquals("sRGB", fields.get("MagickColorSpace"));
+        assertEquals("icc,iptc,xmp", fields.get("MagickProfiles"));
+        assertEquals("Adobe RGB (1998)", fields.get("MagickICCProfile"));
+        assertEquals("", fields.get("MagickICMProfile"));
+        assertEquals("TrueColor", fields.get("MagickType"));
+        assertEquals("2", fields.get(ColorFieldsService.MAGICK_FRAMES));
+    }
+
+    @Test
+    public void testAllFieldsJsonl() throws Exception {
+        try (MockedStatic<CommandUtility> mockedStatic = Mockito.mockStatic(CommandUtility.class)) {
+            String testFile = "src/test/resources/P0024_0066.tif";
+            mockedStatic.when(() -> CommandUtility.executeCommand(anyList()))
+                    .thenReturn("Dimensions: 5300x3841;Channels: gray;Bit-depth: 16;Alpha channel: False;" +
+                            "Color Space: Gray;Profiles: 8bim,xmp;ICC Profile: ;ICM Profile: ;Type: Grayscale;");
+
+            ColorFieldsService service = new ColorFieldsService();
+            service.setOutputFormat(OutputFormat.JSONL);
+            service.listFields(testFile);
+
+            String output = outputStreamCaptor.toString();
+            assertTrue(output.startsWith("{\"ImageFileName\":\"src/test/resources/P0024_0066.tif\","));
+            assertContains("\"MagickDimensions\":\"5300x3841\"", output);
+            assertContains("\"MagickType\":\"Grayscale\"", output);
+            assertContains("\"MagickFrames\":\"1\"", output);
+            assertFalse(output.contains(ColorFieldsService.MAGICK_IDENTIFY));
+        }
+    }
+
     @Test
     public void testListOfImportFiles() throws Exception {
         try (MockedStatic<CommandUtility> mockedStatic = Mockito.mockStatic(CommandUtility.class)) {
@@ -0,0 +1,72 @@
+package JP2ImageConverter.services;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ConversionCacheServiceTest {
+    private static final String DIGEST = "94ec9df0e28cfcc9e12d4d4dc000cfbd20f5d6ab335874a11a877f1905928652";
+
+    @TempDir
+    public Path tmpFolder;
+
+    private ConversionCacheService service;
+
+    @BeforeEach
+    public void setup() throws Exception {
+        service = new ConversionCacheService(tmpFolder.resolve("cache"));
+    }
+
+    @AfterEach
+    public void close() {
+        service.close();
+    }
+
+    @Test
+    public void testDigest() throws Exception {
+        String testFile = "src/test/resources/IMG_2377.jpeg";
+
+        service.prefetchDigest(testFile);
+        assertEquals(DIGEST, service.getDigest(testFile));
+        assertEquals(DIGEST, service.getDigest(testFile));
+    }
+
+    @Test
+    public void testStoreAndRestore() throws Exception {
+        Path converted = Files.writeString(tmpFolder.resolve("converted.jp2"), "jp2");
+        Path duplicate = tmpFolder.resolve("duplicate.jp2");
+
+        assertFalse(service.restore(DIGEST, "jpeg Clevels=6", duplicate));
+        service.store(DIGEST, "jpeg Clevels=6", converted);
+
+        assertFalse(service.restore(DIGEST, "jpeg Clevels=5", duplicate));
+        assertFalse(Files.exists(duplicate));
+        assertTrue(service.restore(DIGEST, "jpeg Clevels=6", duplicate));
+        assertEquals("jp2", Files.readString(duplicate));
+    }
+
+    @Test
+    public void testRestoredOutputDoesNotShareCacheEntry() throws Exception {
+        Path converted = Files.writeString(tmpFolder.resolve("converted.jp2"), "jp2");
+        Path duplicate = tmpFolder.resolve("duplicate.jp2");
+        service.store(DIGEST, "jpeg", converted);
+        assertTrue(service.restore(DIGEST, "jpeg", duplicate));
+
+        // modified in place, as by a metadata editor
+        Files.writeString(duplicate, "edited", StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+
+        Path other = tmpFolder.resolve("other.jp2");
+        assertTrue(service.restore(DIGEST, "jpeg", Paths.get(other.toString())));
+        assertEquals("jp2", Files.readString(other));
+    }
+}
@@ -0,0 +1,66 @@
+package JP2ImageConverter.services;
+
+import JP2ImageConverter.model.ConversionPlan;
+import JP2ImageConverter.model.ImageProbe;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ConversionPlanTest {
+    private static final List<String> KDU_COMPRESS = List.of("kdu_compress", "-i", "/tmp/image.ppm", "-o",
+            "/out/image.jp2", "Clevels=6");
+
+    @Test
+    public void testNefRoute() {
+        var probe = new ImageProbe("image.nef", "nef", 4000, 3000, 8, 3, null, "TrueColor", null, null, Map.of());
+        var plan = new ConversionPlan("image.nef", "nef", 30000000, probe, "sRGB", List.of(
+                List.of("exiftool", "-b", "-JpgFromRaw", "image.nef", ">", "/tmp/image.jpeg"),
+                List.of("exiftool", "-overwrite_original", "-tagsfromfile", "image.nef", "-orientation",
+                        "/tmp/image.jpeg"),
+                List.of("convert", "-auto-orient", "/tmp/image.jpeg", "/tmp/image.ppm"),
+                KDU_COMPRESS));
+
+        assertEquals("nef -> exiftool -> jpeg -> convert -> ppm -> kdu_compress -> jp2", plan.route());
+        // convert and kdu_compress each process the full image
+        assertEquals(2 * 12000000L, plan.pixelsProcessed());
+        // the extracted JPEG and the RGB PPM
+        assertEquals(10000000L + 36000000L, plan.temporaryBytes());
+        assertTrue(plan.estimatedSeconds() > 0);
+    }
+
+    @Test
+    public void testNefJpgFromRawRoute() {
+        var probe = new ImageProbe("image.nef", "nef", 4000, 3000, 8, 3, null, "TrueColor", null,
+                "Right side, top (Rotate 90 CW)", Map.of());
+        var plan = new ConversionPlan("image.nef", "nef", 30000000, probe, "sRGB", List.of(
+                List.of("jpgfromraw", "image.nef", "/tmp/image.jpeg"),
+                List.of("convert", "/tmp/image.jpeg", "-rotate", "90", "/tmp/image.ppm"),
+                KDU_COMPRESS));
+
+        assertEquals("nef -> jpgfromraw -> jpeg -> convert -> ppm -> kdu_compress -> jp2", plan.route());
+        // the embedded JPEG is copied without decoding it
+        assertEquals(2 * 12000000L, plan.pixelsProcessed());
+    }
+
+    @Test
+    public void testPrintSummary() {
+        var probe = new ImageProbe("image.jpeg", "jpeg", 1000, 1000, 8, 3, null, "TrueColor", null, null, Map.of());
+        var jpeg = new ConversionPlan("image.jpeg", "jpeg", 500000, probe, "sRGB", List.of(
+                List.of("convert", "-auto-orient", "image.jpeg", "/tmp/image.ppm"), KDU_COMPRESS));
+        var tiff = new ConversionPlan("image.tif", "tiff", 3000000, probe, "sRGB", List.of(KDU_COMPRESS));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ConversionPlan.printSummary(List.of(jpeg, tiff, jpeg), new PrintStream(out));
+        String output = out.toString();
+
+        assertTrue(output.startsWith("Planned 3 files: 5 tool runs, 6.0 MB temporary"), output);
+        assertTrue(output.indexOf("jpeg -> convert -> ppm") < output.indexOf("tiff -> kdu_compress -> jp2"), output);
+        assertTrue(output.matches("(?s).*\\s2 files  jpeg -> convert -> ppm -> kdu_compress -> jp2.*"), output);
+    }
+}
@@ -0,0 +1,104 @@
+package JP2ImageConverter.services;
+
+import JP2ImageConverter.model.EncodingProfile;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class EncodingProfileServiceTest {
+    @TempDir
+    public Path tmpFolder;
+
+    @Test
+    public void testBuiltInProfiles() {
+        EncodingProfileService service = new EncodingProfileService();
+
+        assertEquals(Set.of("access-fast", "archival-master", "default", "thumbnail-small"), service.getNames());
+        // the options kdu_compress was always run with
+        assertEquals(List.of("Clevels=6", "Clayers=6", "Cprecincts={256,256},{256,256},{128,128}",
+                "Stiles={512,512}", "Corder=RPCL", "ORGgen_plt=yes", "ORGtparts=R", "Cblk={64,64}", "Cuse_sop=yes",
+                "Cuse_eph=yes", "-flush_period", "1024", "-rate", "3", "-no_weights"),
+                service.get(EncodingProfileService.DEFAULT_PROFILE).options());
+        assertTrue(service.get("access-fast").options().contains("-slope"));
+    }
+
+    @Test
+    public void testLoadProfiles() throws Exception {
+        Path profiles = Files.writeString(tmpFolder.resolve("profiles.properties"),
+                "# access copies for the web\n"
+                + "web = Clevels=5 Clayers=3 Corder=RPCL Clevels:C0=5 -rate 2,1,0.5\n"
+                + "default = Clevels=6 -rate -\n");
+        EncodingProfileService service = new EncodingProfileService();
+
+        service.load(profiles);
+
+        assertEquals(List.of("Clevels=5", "Clayers=3", "Corder=RPCL", "Clevels:C0=5", "-rate", "2,1,0.5"),
+                service.get("web").options());
+        assertEquals(List.of("Clevels=6", "-rate", "-"), service.get("default").options());
+        assertEquals(List.of("Creversible=yes", "Clevels=6"), service.get("archival-master").options().subList(0, 2));
+    }
+
+    @Test
+    public void testUnknownProfile() {
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class,
+                () -> new EncodingProfileService().get("missing"));
+        assertTrue(e.getMessage().contains("available profiles: access-fast, archival-master, default"),
+                e.getMessage());
+    }
+
+    @Test
+    public void testInvalidProfiles() {
+        assertInvalid("unsupported option -o", "Clevels=6", "-o", "out.jp2");
+        assertInvalid("unsupported option Clevles=6", "Clevles=6");
+        assertInvalid("invalid value in Corder=XYZ", "Corder=XYZ");
+        assertInvalid("invalid value in Stiles={512}", "Stiles={512}");
+        assertInvalid("invalid value for -rate: fast", "-rate", "fast");
+        assertInvalid("invalid value for -slope", "Clevels=6", "-slope");
+        assertInvalid("has no options");
+    }
+
+    @Test
+    public void testInvalidProfileFile() throws Exception {
+        Path profiles = Files.writeString(tmpFolder.resolve("profiles.properties"), "fast = Clayers=one\n");
+        EncodingProfileService service = new EncodingProfileService();
+
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class, () -> service.load(profiles));
+        assertEquals("Encoding profile fast: invalid value in Clayers=one", e.getMessage());
+    }
+
+    @Test
+    public void testHtj2kOptions() {
+        EncodingProfileService service = new EncodingProfileService();
+
+        List<String> options = EncodingProfileService.htj2kOptions(service.get(EncodingProfileService.DEFAULT_PROFILE));
+        assertEquals(service.get(EncodingProfileService.DEFAULT_PROFILE).options(), options.subList(0, 15));
+        assertEquals(List.of("Cmodes=HT", "Cplex={6,EST,0.25,-1}"), options.subList(15, options.size()));
+        // no rate target, so no complexity control
+        assertTrue(EncodingProfileService.htj2kOptions(service.get("access-fast")).contains("Cmodes=HT"));
+        assertFalse(EncodingProfileService.htj2kOptions(service.get("access-fast")).stream()
+                .anyMatch(o -> o.startsWith("Cplex")));
+        // profiles which already set them are left alone
+        List<String> ht = List.of("Cmodes=HT|CAUSAL", "-rate", "2", "Cplex={6,EST,0.25,-1}");
+        assertEquals(ht, EncodingProfileService.htj2kOptions(new EncodingProfile("ht", ht)));
+
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class, () -> EncodingProfileService
+                .htj2kOptions(new EncodingProfile("bypass", List.of("Cmodes=BYPASS", "-rate", "3"))));
+        assertEquals("Encoding profile bypass sets Cmodes=BYPASS, which can not be combined with HTJ2K",
+                e.getMessage());
+    }
+
+    private void assertInvalid(String message, String... options) {
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class,
+                () -> EncodingProfileService.validate("test", List.of(options)));
+        assertTrue(e.getMessage().endsWith(message), e.getMessage());
+    }
+}
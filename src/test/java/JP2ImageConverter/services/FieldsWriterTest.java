@@ -0,0 +1,59 @@
+package JP2ImageConverter.services;
+
+import JP2ImageConverter.options.OutputFormat;
+import JP2ImageConverter.util.FieldsWriter;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class FieldsWriterTest {
+    private static final String NEWLINE = System.lineSeparator();
+
+    private Map<String, String> fields(String fileName, String colorSpace) {
+        Map<String, String> fields = new LinkedHashMap<>();
+        fields.put(ColorFieldsService.IMAGE_FILE_NAME, fileName);
+        fields.put(ColorFieldsService.COLOR_SPACE, colorSpace);
+        return fields;
+    }
+
+    @Test
+    public void testText() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FieldsWriter writer = new FieldsWriter(OutputFormat.TEXT, out);
+        writer.write(fields("image.tif", null));
+        writer.flush();
+
+        assertEquals("ImageFileName:image.tif\tColorSpace:null\t" + NEWLINE, out.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testJsonl() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FieldsWriter writer = new FieldsWriter(OutputFormat.JSONL, out);
+        writer.write(fields("dir/\"quoted\"\\image.tif", "RGB"));
+        writer.write(fields("image.tif", null));
+        writer.flush();
+
+        assertEquals("{\"ImageFileName\":\"dir/\\\"quoted\\\"\\\\image.tif\",\"ColorSpace\":\"RGB\"}" + NEWLINE +
+                "{\"ImageFileName\":\"image.tif\",\"ColorSpace\":null}" + NEWLINE,
+                out.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testCsv() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FieldsWriter writer = new FieldsWriter(OutputFormat.CSV, out);
+        writer.write(fields("image, copy.tif", "RGB"));
+        writer.write(fields("image \"2\".tif", null));
+        writer.flush();
+
+        assertEquals("ImageFileName,ColorSpace" + NEWLINE +
+                "\"image, copy.tif\",RGB" + NEWLINE +
+                "\"image \"\"2\"\".tif\"," + NEWLINE, out.toString(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,80 @@
+package JP2ImageConverter.services;
+
+import JP2ImageConverter.errors.CommandException;
+import JP2ImageConverter.util.FifoPipeline;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+public class FifoPipelineTest {
+    private static final Duration TIMEOUT = Duration.ofSeconds(20);
+
+    @TempDir
+    public Path tmpFolder;
+
+    private Path fifo;
+
+    @BeforeEach
+    public void setup() {
+        fifo = tmpFolder.resolve("image.ppm");
+        FifoPipeline.createFifo(fifo);
+    }
+
+    @Test
+    public void testStream() throws Exception {
+        Path output = tmpFolder.resolve("output.txt");
+
+        FifoPipeline.run(List.of("sh", "-c", "printf 'P6 1 1 255 abc' > \"$0\"", fifo.toString()), null,
+                List.of("sh", "-c", "cat \"$0\" > \"$1\"", fifo.toString(), output.toString()), fifo);
+
+        assertEquals("P6 1 1 255 abc", Files.readString(output));
+    }
+
+    @Test
+    public void testStreamStandardOutput() throws Exception {
+        Path output = tmpFolder.resolve("output.txt");
+
+        FifoPipeline.run(List.of("echo", "P5"), fifo.toString(),
+                List.of("sh", "-c", "cat \"$0\" > \"$1\"", fifo.toString(), output.toString()), fifo);
+
+        assertEquals("P5\n", Files.readString(output));
+    }
+
+    @Test
+    public void testProducerFailureStopsConsumer() {
+        // the consumer would wait for a writer forever
+        CommandException e = assertTimeoutPreemptively(TIMEOUT, () -> assertThrows(CommandException.class,
+                () -> FifoPipeline.run(List.of("sh", "-c", "exit 3"), null, List.of("cat", fifo.toString()), fifo)));
+
+        assertEquals(3, e.getExitCode());
+    }
+
+    @Test
+    public void testConsumerFailureStopsProducer() {
+        // the producer would wait for a reader forever
+        CommandException e = assertTimeoutPreemptively(TIMEOUT, () -> assertThrows(CommandException.class,
+                () -> FifoPipeline.run(List.of("sh", "-c", "cat /dev/zero > \"$0\"", fifo.toString()), null,
+                        List.of("sh", "-c", "exit 4"), fifo)));
+
+        assertEquals(4, e.getExitCode());
+    }
+
+    @Test
+    public void testConsumerFailureReleasesStandardOutputProducer() {
+        // the JVM opens the pipe for the producer's standard output and would wait for a reader forever
+        CommandException e = assertTimeoutPreemptively(TIMEOUT, () -> assertThrows(CommandException.class,
+                () -> FifoPipeline.run(List.of("cat", "/dev/zero"), fifo.toString(),
+                        List.of("sh", "-c", "exit 5"), fifo)));
+
+        assertEquals(5, e.getExitCode());
+    }
+}
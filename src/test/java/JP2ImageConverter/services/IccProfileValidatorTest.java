@@ -0,0 +1,109 @@
+package JP2ImageConverter.services;
+
+import JP2ImageConverter.util.IccProfileValidator;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class IccProfileValidatorTest {
+    @TempDir
+    public Path tmpFolder;
+
+    @Test
+    public void testCompleteCurves() {
+        assertNull(IccProfileValidator.findTruncatedCurve(profile(curve(256), 12 + 512)));
+        assertNull(IccProfileValidator.findTruncatedCurve(profile(parametricCurve(3), 12 + 20)));
+        // a single gamma value
+        assertNull(IccProfileValidator.findTruncatedCurve(profile(curve(1), 14)));
+    }
+
+    @Test
+    public void testTruncatedCurves() {
+        assertEquals("rTRC needs 524 bytes but has 268",
+                IccProfileValidator.findTruncatedCurve(profile(curve(256), 12 + 256)));
+        assertEquals("rTRC needs 32 bytes but has 24",
+                IccProfileValidator.findTruncatedCurve(profile(parametricCurve(3), 24)));
+    }
+
+    @Test
+    public void testCurveOutsideProfile() {
+        byte[] profile = profile(curve(256), 12 + 512);
+        ByteBuffer.wrap(profile).putInt(0, profile.length - 100);
+        assertEquals("rTRC of 524 bytes at 144 exceeds the profile", IccProfileValidator.findTruncatedCurve(profile));
+    }
+
+    @Test
+    public void testTiff() throws Exception {
+        Path truncated = writeTiff(tmpFolder.resolve("truncated.tif"), profile(curve(256), 12 + 256));
+        Path complete = writeTiff(tmpFolder.resolve("complete.tif"), profile(curve(256), 12 + 512));
+
+        assertTrue(IccProfileValidator.hasTruncatedCurve(truncated.toString()));
+        assertFalse(IccProfileValidator.hasTruncatedCurve(complete.toString()));
+        assertFalse(IccProfileValidator.hasTruncatedCurve("src/test/resources/obama_smoking.tiff"));
+        assertFalse(IccProfileValidator.hasTruncatedCurve(tmpFolder.resolve("missing.tif").toString()));
+    }
+
+    private static byte[] curve(int points) {
+        ByteBuffer curve = ByteBuffer.allocate(12 + 2 * points);
+        curve.put("curv".getBytes()).putInt(0).putInt(points);
+        for (int i = 0; i < points; i++) {
+            curve.putShort((short) (i * 65535 / Math.max(1, points - 1)));
+        }
+        return curve.array();
+    }
+
+    private static byte[] parametricCurve(int function) {
+        ByteBuffer curve = ByteBuffer.allocate(32);
+        curve.put("para".getBytes()).putInt(0).putShort((short) function).putShort((short) 0);
+        curve.putInt(0x00026666).putInt(0x0000F2A7).putInt(0x00000D59).putInt(0x00001394).putInt(0x0000A3D7);
+        return curve.array();
+    }
+
+    /**
+     * Build a profile with a single rTRC tag, whose tag table entry declares the given length
+     */
+    private static byte[] profile(byte[] curve, int declaredLength) {
+        int offset = 128 + 4 + 12;
+        ByteBuffer profile = ByteBuffer.allocate(offset + curve.length);
+        profile.putInt(0, profile.capacity());
+        profile.put(36, "acsp".getBytes());
+        profile.putInt(128, 1);
+        profile.put(132, "rTRC".getBytes()).putInt(136, offset).putInt(140, declaredLength);
+        profile.put(offset, curve);
+        return profile.array();
+    }
+
+    /**
+     * Write a little endian 1x1 gray TIFF with an ICC profile
+     */
+    private Path writeTiff(Path tiff, byte[] profile) throws Exception {
+        int[][] entries = {{256, 3, 1}, {257, 3, 1}, {258, 3, 8}, {259, 3, 1}, {262, 3, 1},
+                {273, 4, 8}, {277, 3, 1}, {278, 3, 1}, {279, 4, 1}};
+        int ifdOffset = 10;
+        int profileOffset = ifdOffset + 2 + (entries.length + 1) * 12 + 4;
+        ByteBuffer buffer = ByteBuffer.allocate(profileOffset + profile.length).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put((byte) 'I').put((byte) 'I').putShort((short) 42).putInt(ifdOffset).putShort((short) 0x7F00);
+        buffer.putShort((short) (entries.length + 1));
+        for (int[] entry : entries) {
+            buffer.putShort((short) entry[0]).putShort((short) entry[1]).putInt(1);
+            if (entry[1] == 3) {
+                buffer.putShort((short) entry[2]).putShort((short) 0);
+            } else {
+                buffer.putInt(entry[2]);
+            }
+        }
+        buffer.putShort((short) 34675).putShort((short) 7).putInt(profile.length).putInt(profileOffset);
+        buffer.putInt(0);
+        buffer.put(profile);
+        return Files.write(tiff, buffer.array());
+    }
+}
@@ -0,0 +1,121 @@
+package JP2ImageConverter.services;
+
+import JP2ImageConverter.util.ImageIODecoder;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ImageIODecoderTest {
+    @TempDir
+    public Path tmpFolder;
+
+    @AfterEach
+    public void tearDown() {
+        System.clearProperty("jp24u.decode.inJvm");
+    }
+
+    @Test
+    public void testRgbaPngToPpm() throws Exception {
+        BufferedImage image = new BufferedImage(3, 2, BufferedImage.TYPE_INT_ARGB);
+        image.setRGB(0, 0, 0x80FF0000);
+        image.setRGB(1, 0, 0xFF00FF00);
+        image.setRGB(2, 1, 0x000000FF);
+        Path png = tmpFolder.resolve("alpha.png");
+        ImageIO.write(image, "png", png.toFile());
+
+        BufferedImage decoded = ImageIODecoder.readFirstFrame(png.toString());
+        assertFalse(ImageIODecoder.isGray(decoded));
+        Path ppm = tmpFolder.resolve("alpha.ppm");
+        ImageIODecoder.writePnm(decoded, false, ppm);
+
+        byte[] expectedPixels = {
+                (byte) 0xFF, 0, 0, 0, (byte) 0xFF, 0, 0, 0, 0,
+                0, 0, 0, 0, 0, 0, 0, 0, (byte) 0xFF};
+        assertPnm("P6\n3 2\n255\n", expectedPixels, ppm);
+    }
+
+    @Test
+    public void testSixteenBitGrayPngToPgm() throws Exception {
+        BufferedImage image = new BufferedImage(2, 1, BufferedImage.TYPE_USHORT_GRAY);
+        image.getRaster().setSample(0, 0, 0, 0x1234);
+        image.getRaster().setSample(1, 0, 0, 0xFFFF);
+        Path png = tmpFolder.resolve("gray16.png");
+        ImageIO.write(image, "png", png.toFile());
+
+        BufferedImage decoded = ImageIODecoder.readFirstFrame(png.toString());
+        assertTrue(ImageIODecoder.isGray(decoded));
+        Path pgm = tmpFolder.resolve("gray16.pgm");
+        ImageIODecoder.writePnm(decoded, true, pgm);
+
+        assertPnm("P5\n2 1\n65535\n", new byte[] {0x12, 0x34, (byte) 0xFF, (byte) 0xFF}, pgm);
+    }
+
+    @Test
+    public void testPaletteGifExpanded() throws Exception {
+        String gif = "src/test/resources/CARTEZOO.GIF";
+        assertTrue(ImageIODecoder.canDecode(gif, "gif"));
+
+        BufferedImage decoded = ImageIODecoder.readFirstFrame(gif);
+        Path ppm = tmpFolder.resolve("CARTEZOO.ppm");
+        ImageIODecoder.writePnm(decoded, false, ppm);
+
+        byte[] pnm = Files.readAllBytes(ppm);
+        String header = "P6\n295 353\n255\n";
+        assertEquals(header.length() + 295 * 353 * 3, pnm.length);
+        int rgb = decoded.getRGB(100, 200);
+        int offset = header.length() + (200 * 295 + 100) * 3;
+        assertEquals((rgb >> 16) & 0xFF, pnm[offset] & 0xFF);
+        assertEquals((rgb >> 8) & 0xFF, pnm[offset + 1] & 0xFF);
+        assertEquals(rgb & 0xFF, pnm[offset + 2] & 0xFF);
+    }
+
+    @Test
+    public void testCanDecode() throws Exception {
+        BufferedImage image = new BufferedImage(4, 4, BufferedImage.TYPE_3BYTE_BGR);
+        Path bmp = tmpFolder.resolve("plain.bmp");
+        ImageIO.write(image, "bmp", bmp.toFile());
+
+        assertTrue(ImageIODecoder.canDecode(bmp.toString(), "bmp"));
+        assertFalse(ImageIODecoder.canDecode("src/test/resources/IMG_2377.jpeg", "jpeg"));
+        // embedded ICC profiles are kept by GraphicsMagick
+        assertFalse(ImageIODecoder.canDecode("src/test/resources/schoolphotos1.png", "png"));
+
+        System.setProperty("jp24u.decode.inJvm", "false");
+        assertFalse(ImageIODecoder.canDecode(bmp.toString(), "bmp"));
+    }
+
+    @Test
+    public void testCanDecodeWithinHeap() throws Exception {
+        BufferedImage image = new BufferedImage(400, 300, BufferedImage.TYPE_3BYTE_BGR);
+        Path bmp = tmpFolder.resolve("large.bmp");
+        ImageIO.write(image, "bmp", bmp.toFile());
+        assertTrue(ImageIODecoder.canDecode(bmp.toString(), "bmp"));
+
+        // the decoded frame would take more than no heap at all
+        System.setProperty("jp24u.decode.maxHeapPercent", "0");
+        try {
+            assertFalse(ImageIODecoder.canDecode(bmp.toString(), "bmp"));
+        } finally {
+            System.clearProperty("jp24u.decode.maxHeapPercent");
+        }
+    }
+
+    private void assertPnm(String expectedHeader, byte[] expectedPixels, Path pnm) throws Exception {
+        byte[] actual = Files.readAllBytes(pnm);
+        int headerLength = expectedHeader.length();
+        assertEquals(expectedHeader, new String(actual, 0, headerLength, StandardCharsets.US_ASCII));
+        assertArrayEquals(expectedPixels, Arrays.copyOfRange(actual, headerLength, actual.length));
+    }
+}
@@ -1,5 +1,6 @@
 package JP2ImageConverter.services;
 
+import JP2ImageConverter.model.ImageProbe;
 import JP2ImageConverter.util.CommandUtility;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
@@ -13,8 +14,10 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Map;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.anyList;
 import static org.mockito.MockitoAnnotations.openMocks;
@@ -246,6 +249,20 @@ public class ImagePreprocessingServiceTest {
         }
     }
 
+    @Test
+    public void testImagePreprocessingGifDecodedInJvm() throws Exception {
+        try (MockedStatic<CommandUtility> mockedStatic = Mockito.mockStatic(CommandUtility.class)) {
+            String testFile = "src/test/resources/CARTEZOO.GIF";
+
+            String outputFile = service.convertToTiff(testFile, "gif");
+
+            // gray palette expanded to a PGM without starting GraphicsMagick
+            assertTrue(outputFile.endsWith(".pgm"));
+            assertEquals("P5\n295 353\n255\n", Files.readString(Path.of(outputFile)).substring(0, 15));
+            mockedStatic.verifyNoInteractions();
+        }
+    }
+
     @Test
     public void testImagePreprocessingTiff() throws Exception {
         String testFile = "src/test/resources/E101_F8_0112.tif";
@@ -291,4 +308,66 @@ public class ImagePreprocessingServiceTest {
         assertTrue(result.contains("/E101_F8_0112.tif"));
         assertTrue(result.endsWith(".tif"));
     }
+
+    @Test
+    public void testPlanPreprocessingCmykJpeg() {
+        String testFile = tmpFolder.resolve("cmyk.jpeg").toString();
+        var probe = new ImageProbe(testFile, "jpeg", 10, 10, 8, 4, "CMYK", "ColorSeparation",
+                null, null, Map.of(ColorFieldsService.COLOR_SPACE, "CMYK"));
+
+        var plan = service.planPreprocessing(testFile, "jpeg", "CMYK", "ColorSeparation", probe);
+
+        assertEquals(Arrays.asList("convert", "-auto-orient", testFile, "-colorspace", "sRGB", "+profile", "\"*\""),
+                plan.command());
+        assertEquals("tif", plan.outputExtension());
+    }
+
+    @Test
+    public void testPlanPreprocessingPalettePng() {
+        String testFile = "src/test/resources/schoolphotos1.png";
+        var probe = new ImageProbe(testFile, "png", 10, 10, 8, 1, null, "Palette", null, null, Map.of());
+
+        var plan = service.planPreprocessing(testFile, "png", "sRGB", "Palette", probe);
+
+        assertEquals(Arrays.asList("gm", "convert", "-auto-orient", testFile + "[0]", "-type", "TrueColor",
+                "-colorspace", "sRGB"), plan.command());
+        assertEquals("tif", plan.outputExtension());
+    }
+
+    @Test
+    public void testPlanPreprocessingTiff() {
+        String testFile = "src/test/resources/obama_smoking.tiff";
+        var probe = new ImageProbe(testFile, "tiff", 10, 10, 8, 3, "RGB", "TrueColor", null,
+                ColorFieldsService.ORIENTATION_DEFAULT, Map.of(ColorFieldsService.PHOTOMETRIC_INTERPRETATION, "RGB"));
+
+        assertTrue(service.planPreprocessing(testFile, "tiff", "RGB", "TrueColor", probe).isLink());
+
+        var alphaPlan = service.planPreprocessing(testFile, "tiff", "RGB", "GrayscaleAlpha", probe);
+        assertEquals(Arrays.asList("convert", "-auto-orient", testFile, "-alpha", "off"), alphaPlan.command());
+        assertEquals("tif", alphaPlan.outputExtension());
+    }
+
+    @Test
+    public void testPlanPreprocessingNotFused() {
+        var probe = new ImageProbe("image.nef", "nef", 10, 10, 8, 3, null, "TrueColor", null, null, Map.of());
+        assertNull(service.planPreprocessing("image.nef", "nef", "sRGB", "TrueColor", probe));
+
+        var labProbe = new ImageProbe("image.png", "png", 10, 10, 8, 3, null, "TrueColor", null, null, Map.of());
+        assertNull(service.planPreprocessing("image.png", "png", "CIELab", "TrueColor", labProbe));
+    }
+
+    @Test
+    public void testRunPreprocessingPlan() throws Exception {
+        try (MockedStatic<CommandUtility> mockedStatic = Mockito.mockStatic(CommandUtility.class)) {
+            String testFile = "src/test/resources/IMG_2377.jpeg";
+            var probe = new ImageProbe(testFile, "jpeg", 10, 10, 8, 3, null, "TrueColor", null, null, Map.of());
+            var plan = service.planPreprocessing(testFile, "jpeg", "sRGB", "TrueColor", probe);
+
+            String outputFile = service.runPreprocessingPlan(plan);
+
+            assertTrue(outputFile.endsWith(".ppm"));
+            mockedStatic.verify(() -> CommandUtility.executeCommand(
+                    new ArrayList<>(Arrays.asList("convert", "-auto-orient", testFile, outputFile))));
+        }
+    }
 }
@@ -0,0 +1,98 @@
+package JP2ImageConverter.services;
+
+import JP2ImageConverter.util.ImageHeaderReader;
+import JP2ImageConverter.util.ImageTypeClassifier;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ImageTypeClassifierTest {
+    @TempDir
+    public Path tmpFolder;
+
+    @Test
+    public void testGraySampleOfLargeImageFallsBackToIdentify() throws Exception {
+        // subsampled every other pixel, the colored pixel is between the sampled ones
+        BufferedImage image = grayRgbImage(1100, 600);
+        image.setRGB(501, 301, 0xFF0000);
+        Path png = tmpFolder.resolve("colored_pixel.png");
+        ImageIO.write(image, "png", png.toFile());
+
+        assertNull(ImageTypeClassifier.classify(png.toString()));
+    }
+
+    @Test
+    public void testUncompressedTiffCheckedInFull() throws Exception {
+        BufferedImage image = grayRgbImage(1100, 600);
+        Path gray = tmpFolder.resolve("gray.tif");
+        ImageIO.write(image, "tiff", gray.toFile());
+        assertEquals("Grayscale", ImageTypeClassifier.classify(gray.toString()));
+
+        // off the 64 x 64 sample grid
+        image.setRGB(501, 301, 0xFF0000);
+        Path colored = tmpFolder.resolve("colored_pixel.tif");
+        ImageIO.write(image, "tiff", colored.toFile());
+        assertEquals("TrueColor", ImageTypeClassifier.classify(colored.toString()));
+    }
+
+    @Test
+    public void testPngTransparencyChunkIsAlpha() throws Exception {
+        Path gray = writeWithTransparency(new BufferedImage(20, 10, BufferedImage.TYPE_BYTE_GRAY), "gray.png");
+        assertTrue(ImageHeaderReader.read(gray.toString()).alpha());
+        assertEquals("GrayscaleAlpha", ImageTypeClassifier.classify(gray.toString()));
+
+        BufferedImage rgb = new BufferedImage(20, 10, BufferedImage.TYPE_INT_RGB);
+        rgb.setRGB(3, 3, 0xFF0000);
+        Path color = writeWithTransparency(rgb, "color.png");
+        assertTrue(ImageHeaderReader.read(color.toString()).alpha());
+        assertEquals("TrueColorAlpha", ImageTypeClassifier.classify(color.toString()));
+    }
+
+    private BufferedImage grayRgbImage(int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int value = (x + y) % 256;
+                image.setRGB(x, y, (value << 16) | (value << 8) | value);
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Write a PNG with a tRNS chunk after its IHDR chunk, which makes black transparent
+     */
+    private Path writeWithTransparency(BufferedImage image, String name) throws Exception {
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", png);
+        byte[] bytes = png.toByteArray();
+        // signature and IHDR chunk
+        int ihdrEnd = 8 + 12 + 13;
+        int samples = image.getRaster().getNumBands();
+        byte[] data = new byte[samples * 2];
+        ByteBuffer chunk = ByteBuffer.allocate(12 + data.length);
+        chunk.putInt(data.length).put("tRNS".getBytes(StandardCharsets.US_ASCII)).put(data);
+        CRC32 crc = new CRC32();
+        crc.update(chunk.array(), 4, 4 + data.length);
+        chunk.putInt((int) crc.getValue());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(Arrays.copyOf(bytes, ihdrEnd));
+        out.write(chunk.array());
+        out.write(bytes, ihdrEnd, bytes.length - ihdrEnd);
+        return Files.write(tmpFolder.resolve(name), out.toByteArray());
+    }
+}
@@ -0,0 +1,83 @@
+package JP2ImageConverter.services;
+
+import JP2ImageConverter.util.Jp2Validator;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class Jp2ValidatorTest {
+    @TempDir
+    public Path tmpFolder;
+
+    @Test
+    public void testReadValidJp2() {
+        var jp2 = Jp2Validator.read("src/test/resources/17.jp2");
+
+        assertTrue(jp2.isValid(), jp2.problems().toString());
+        assertEquals(1228, jp2.width());
+        assertEquals(1818, jp2.height());
+        assertEquals(3, jp2.components());
+        assertEquals(8, jp2.bitDepth());
+        assertEquals("RGB", jp2.colorSpace());
+        assertFalse(jp2.isGray());
+    }
+
+    @Test
+    public void testReadTruncatedJp2() throws Exception {
+        byte[] bytes = Files.readAllBytes(Paths.get("src/test/resources/17.jp2"));
+        Path truncated = tmpFolder.resolve("truncated.jp2");
+        Files.write(truncated, Arrays.copyOf(bytes, bytes.length / 2));
+
+        var jp2 = Jp2Validator.read(truncated.toString());
+
+        assertFalse(jp2.isValid());
+        assertEquals(1228, jp2.width());
+        assertTrue(jp2.problems().toString().contains("Truncated"), jp2.problems().toString());
+    }
+
+    @Test
+    public void testReadJp2MissingEoc() throws Exception {
+        byte[] bytes = Files.readAllBytes(Paths.get("src/test/resources/17.jp2"));
+        // drop the EOC marker at the end of the codestream
+        Path noEoc = tmpFolder.resolve("noeoc.jp2");
+        Files.write(noEoc, Arrays.copyOf(bytes, bytes.length - 2));
+
+        var jp2 = Jp2Validator.read(noEoc.toString());
+
+        assertFalse(jp2.isValid());
+        assertTrue(jp2.problems().toString().contains("Missing EOC marker"), jp2.problems().toString());
+    }
+
+    @Test
+    public void testReadHighThroughputCodestream() throws Exception {
+        byte[] bytes = Files.readAllBytes(Paths.get("src/test/resources/17.jp2"));
+        // mark the code-blocks of the COD marker as HT coded, as kdu_compress Cmodes=HT does
+        int cod = 0;
+        while ((bytes[cod] & 0xFF) != 0xFF || (bytes[cod + 1] & 0xFF) != 0x52) {
+            cod++;
+        }
+        bytes[cod + 12] |= 0x40;
+        Path jph = tmpFolder.resolve("17.jph");
+        Files.write(jph, bytes);
+
+        var jp2 = Jp2Validator.read(jph.toString());
+
+        assertTrue(jp2.isValid(), jp2.problems().toString());
+        assertTrue(jp2.highThroughput());
+        assertFalse(Jp2Validator.read("src/test/resources/17.jp2").highThroughput());
+    }
+
+    @Test
+    public void testReadNotJp2() {
+        assertNull(Jp2Validator.read("src/test/resources/IMG_2377.jpeg"));
+    }
+}
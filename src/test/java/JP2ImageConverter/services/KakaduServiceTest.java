@@ -1,5 +1,7 @@
 package JP2ImageConverter.services;
 
+import JP2ImageConverter.errors.CommandException;
+import JP2ImageConverter.model.ImageProbe;
 import JP2ImageConverter.util.CommandUtility;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
@@ -8,12 +10,26 @@ import org.junit.jupiter.api.io.TempDir;
 import org.mockito.MockedStatic;
 import org.mockito.Mockito;
 
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.plugins.tiff.BaselineTIFFTagSet;
+import javax.imageio.plugins.tiff.TIFFDirectory;
+import javax.imageio.plugins.tiff.TIFFField;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.image.BufferedImage;
 import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
@@ -21,6 +37,7 @@ import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.argThat;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
@@ -64,19 +81,54 @@ public class KakaduServiceTest {
         Map<String, String> imageMetadata = Map.of(ColorFieldsService.COLOR_SPACE, "Gray",
                 ColorFieldsService.PHOTOMETRIC_INTERPRETATION, "BlackIsZero");
         ColorFieldsService colorFieldsService = mock(ColorFieldsService.class);
-        when(colorFieldsService.extractMetadataFields(anyString())).thenReturn(imageMetadata);
-        when(colorFieldsService.identifyType(anyString())).thenReturn("Grayscale");
+        var probe = new ImageProbe(testFile, "tiff", 100, 100, 8, 1, "Gray", "Grayscale", null, null,
+                imageMetadata);
 
         try (MockedStatic<CommandUtility> mockedStatic = Mockito.mockStatic(CommandUtility.class)) {
-            mockedStatic.when(() -> CommandUtility.executeCommand(anyList()))
-                    .thenReturn("Grayscale");
-
             KakaduService service = new KakaduService();
             service.setColorFieldsService(colorFieldsService);
             service.setImagePreproccessingService(imagePreproccessingService);
-            var info = service.getColorInfo(imageMetadata, imageMetadata, testFile);
+            var info = service.getColorInfo(probe, probe);
             assertEquals("Gray", info.get(KakaduService.COLOR_SPACE));
             assertEquals("Grayscale", info.get(KakaduService.COLOR_TYPE));
+            // the type comes from the probe, identify is not run again
+            mockedStatic.verify(() -> CommandUtility.executeCommand(anyList()), times(0));
+            verify(colorFieldsService, times(0)).identifyType(anyString());
+        }
+    }
+
+    @Test
+    public void testKduCompressJpegCommandCount() throws Exception {
+        String testFile = "src/test/resources/IMG_2377.jpeg";
+
+        try (MockedStatic<CommandUtility> mockedStatic = Mockito.mockStatic(CommandUtility.class)) {
+            service.kduCompress(testFile, tmpFolder.resolve("IMG_2377"), "");
+
+            // ImageMagick converts the JPEG to a PPM and kdu_compress encodes it, the image is probed in Java
+            mockedStatic.verify(() -> CommandUtility.executeCommand(anyList()), times(2));
+            mockedStatic.verify(() -> CommandUtility.executeCommand(argThat(command -> command.get(0)
+                    .equals("kdu_compress"))), times(1));
+            mockedStatic.verify(() -> CommandUtility.executeCommand(argThat(command -> command.get(0)
+                    .equals("identify"))), times(0));
+        }
+    }
+
+    @Test
+    public void testKduCompressTiffCommandCount() throws Exception {
+        BufferedImage image = new BufferedImage(60, 40, BufferedImage.TYPE_3BYTE_BGR);
+        for (int x = 0; x < image.getWidth(); x++) {
+            image.setRGB(x, x % image.getHeight(), 0xFF0000 | x);
+        }
+        Path tif = tmpFolder.resolve("uncompressed.tif");
+        ImageIO.write(image, "tiff", tif.toFile());
+
+        try (MockedStatic<CommandUtility> mockedStatic = Mockito.mockStatic(CommandUtility.class)) {
+            service.kduCompress(tif.toString(), tmpFolder.resolve("uncompressed"), "");
+
+            // an uncompressed RGB TIFF is probed in Java and read by kdu_compress as it is
+            mockedStatic.verify(() -> CommandUtility.executeCommand(anyList()), times(1));
+            mockedStatic.verify(() -> CommandUtility.executeCommand(argThat(command -> command.get(0)
+                    .equals("kdu_compress"))), times(1));
         }
     }
 
@@ -115,6 +167,217 @@ public class KakaduServiceTest {
         }
     }
 
+    @Test
+    public void testKduCompressRotatedTiff() throws Exception {
+        String mockedTif = tmpFolder.resolve("mockedImage.tif").toString();
+        Map<String, String> imageMetadata = Map.of(ColorFieldsService.COLOR_SPACE, "RGB",
+                ColorFieldsService.ORIENTATION, "Right side, top (Rotate 90 CW)");
+        ColorFieldsService colorFieldsService = mock(ColorFieldsService.class);
+        when(colorFieldsService.extractMetadataFields(anyString())).thenReturn(imageMetadata);
+        when(colorFieldsService.identifyType(anyString())).thenReturn("TrueColor");
+        ImagePreproccessingService imagePreproccessingService = mock(ImagePreproccessingService.class);
+        when(imagePreproccessingService.convertToTiff(anyString(), anyString())).thenReturn(mockedTif);
+        when(imagePreproccessingService.convertColorSpaces(anyString(), anyString(), anyString())).thenReturn(mockedTif);
+
+        try (MockedStatic<CommandUtility> mockedStatic = Mockito.mockStatic(CommandUtility.class)) {
+            String mockedJp2 = tmpFolder.resolve("mockedImage.jp2").toString();
+
+            KakaduService service = new KakaduService();
+            service.setColorFieldsService(colorFieldsService);
+            service.setImagePreproccessingService(imagePreproccessingService);
+            service.kduCompress(mockedTif, tmpFolder.resolve("mockedImage"), "");
+
+            // kdu_compress rotates the TIFF, no rotated copy is written
+            mockedStatic.verify(() -> CommandUtility.executeCommand(
+                    new ArrayList<>(Arrays.asList("kdu_compress", "-i", mockedTif, "-o", mockedJp2,
+                            "Clevels=6", "Clayers=6",
+                            "Cprecincts={256,256},{256,256},{128,128}", "Stiles={512,512}", "Corder=RPCL",
+                            "ORGgen_plt=yes", "ORGtparts=R", "Cblk={64,64}", "Cuse_sop=yes", "Cuse_eph=yes",
+                            "-flush_period", "1024", "-rate", "3", "-no_weights", "-rotate", "90"))));
+            verify(imagePreproccessingService, times(0)).correctOrientation(anyString());
+        }
+    }
+
+    @Test
+    public void testKduCompressRotatedLzwTiff() throws Exception {
+        Path lzwTif = tmpFolder.resolve("rotated.tif");
+        writeLzwTiff(lzwTif, 6);
+        Map<String, String> imageMetadata = Map.of(ColorFieldsService.COLOR_SPACE, "RGB",
+                ColorFieldsService.ORIENTATION, "Right side, top (Rotate 90 CW)");
+        ColorFieldsService colorFieldsService = mock(ColorFieldsService.class);
+        when(colorFieldsService.extractMetadataFields(anyString())).thenReturn(imageMetadata);
+        when(colorFieldsService.identifyType(anyString())).thenReturn("TrueColor");
+
+        try (MockedStatic<CommandUtility> mockedStatic = Mockito.mockStatic(CommandUtility.class)) {
+            service.setColorFieldsService(colorFieldsService);
+            service.kduCompress(lzwTif.toString(), tmpFolder.resolve("rotated"), "");
+
+            // the decompressed TIFF keeps the orientation of the original, which kdu_compress rotates
+            mockedStatic.verify(() -> CommandUtility.executeCommand(argThat(command -> command.get(0)
+                    .equals("kdu_compress") && command.get(2).endsWith(".tif")
+                    && command.subList(command.size() - 2, command.size()).equals(List.of("-rotate", "90")))));
+        }
+    }
+
+    @Test
+    public void testKduCompressMirroredTiff() throws Exception {
+        String mockedTif = tmpFolder.resolve("mockedImage.tif").toString();
+        String mirroredTif = tmpFolder.resolve("mockedImage-upright.tif").toString();
+        Map<String, String> imageMetadata = Map.of(ColorFieldsService.COLOR_SPACE, "RGB",
+                ColorFieldsService.ORIENTATION, "Top, right side (Mirror horizontal)");
+        ColorFieldsService colorFieldsService = mock(ColorFieldsService.class);
+        when(colorFieldsService.extractMetadataFields(anyString())).thenReturn(imageMetadata);
+        when(colorFieldsService.identifyType(anyString())).thenReturn("TrueColor");
+        ImagePreproccessingService imagePreproccessingService = mock(ImagePreproccessingService.class);
+        when(imagePreproccessingService.convertToTiff(anyString(), anyString())).thenReturn(mockedTif);
+        when(imagePreproccessingService.convertColorSpaces(anyString(), anyString(), anyString())).thenReturn(mockedTif);
+        when(imagePreproccessingService.correctOrientation(mockedTif)).thenReturn(mirroredTif);
+
+        try (MockedStatic<CommandUtility> mockedStatic = Mockito.mockStatic(CommandUtility.class)) {
+            String mockedJp2 = tmpFolder.resolve("mockedImage.jp2").toString();
+
+            KakaduService service = new KakaduService();
+            service.setColorFieldsService(colorFieldsService);
+            service.setImagePreproccessingService(imagePreproccessingService);
+            service.kduCompress(mockedTif, tmpFolder.resolve("mockedImage"), "");
+
+            // kdu_compress can not flip its input
+            mockedStatic.verify(() -> CommandUtility.executeCommand(
+                    new ArrayList<>(Arrays.asList("kdu_compress", "-i", mirroredTif, "-o", mockedJp2,
+                            "Clevels=6", "Clayers=6",
+                            "Cprecincts={256,256},{256,256},{128,128}", "Stiles={512,512}", "Corder=RPCL",
+                            "ORGgen_plt=yes", "ORGtparts=R", "Cblk={64,64}", "Cuse_sop=yes", "Cuse_eph=yes",
+                            "-flush_period", "1024", "-rate", "3", "-no_weights"))));
+            verify(imagePreproccessingService, times(1)).correctOrientation(mockedTif);
+        }
+    }
+
+    @Test
+    public void testKduCompressAppliesLearnedRecovery() throws Exception {
+        String mockedTif = tmpFolder.resolve("mockedImage.tif").toString();
+        Map<String, String> imageMetadata = Map.of(ColorFieldsService.COLOR_SPACE, "RGB");
+        ColorFieldsService colorFieldsService = mock(ColorFieldsService.class);
+        when(colorFieldsService.extractMetadataFields(anyString())).thenReturn(imageMetadata);
+        when(colorFieldsService.identifyType(anyString())).thenReturn("TrueColor");
+        ImagePreproccessingService imagePreproccessingService = mock(ImagePreproccessingService.class);
+        when(imagePreproccessingService.convertToTiff(anyString(), anyString())).thenReturn(mockedTif);
+        when(imagePreproccessingService.convertColorSpaces(anyString(), anyString(), anyString())).thenReturn(mockedTif);
+
+        try (MockedStatic<CommandUtility> mockedStatic = Mockito.mockStatic(CommandUtility.class);
+             RecoveryMemoService recoveryMemo = new RecoveryMemoService(tmpFolder.resolve("memo.tsv"))) {
+            mockedStatic.when(() -> CommandUtility.executeCommand(anyList()))
+                    .thenThrow(new CommandException("kdu_compress failed", List.of("kdu_compress"),
+                            "use -no_palette to avoid nasty palettization effects", 1))
+                    .thenReturn("");
+
+            KakaduService service = new KakaduService();
+            service.setColorFieldsService(colorFieldsService);
+            service.setImagePreproccessingService(imagePreproccessingService);
+            service.setRecoveryMemoService(recoveryMemo);
+            // the first image fails and is retried, the second gets -no_palette right away
+            service.kduCompress(mockedTif, tmpFolder.resolve("first"), "");
+            service.kduCompress(mockedTif, tmpFolder.resolve("second"), "");
+
+            assertEquals(1, recoveryMemo.getRetriesSaved());
+            mockedStatic.verify(() -> CommandUtility.executeCommand(anyList()), times(3));
+        }
+    }
+
+    @Test
+    public void testKduCompressFileListWithEncodingProfile() throws Exception {
+        String mockedTif = tmpFolder.resolve("mockedImage.tif").toString();
+        Files.createFile(Path.of(mockedTif));
+        Path fileList = Files.writeString(tmpFolder.resolve("files.txt"), mockedTif + "\tthumbnail-small\n");
+        Map<String, String> imageMetadata = Map.of(ColorFieldsService.COLOR_SPACE, "RGB");
+        ColorFieldsService colorFieldsService = mock(ColorFieldsService.class);
+        when(colorFieldsService.extractMetadataFields(anyString())).thenReturn(imageMetadata);
+        when(colorFieldsService.identifyType(anyString())).thenReturn("TrueColor");
+        ImagePreproccessingService imagePreproccessingService = mock(ImagePreproccessingService.class);
+        when(imagePreproccessingService.convertToTiff(anyString(), anyString())).thenReturn(mockedTif);
+        when(imagePreproccessingService.convertColorSpaces(anyString(), anyString(), anyString())).thenReturn(mockedTif);
+
+        try (MockedStatic<CommandUtility> mockedStatic = Mockito.mockStatic(CommandUtility.class)) {
+            Path outputDir = Files.createDirectory(tmpFolder.resolve("output"));
+            String mockedJp2 = outputDir.resolve("mockedImage.jp2").toString();
+
+            KakaduService service = new KakaduService();
+            service.setColorFieldsService(colorFieldsService);
+            service.setImagePreproccessingService(imagePreproccessingService);
+            service.setEncodingProfile("access-fast");
+            service.fileListKduCompress(fileList.toString(), outputDir, "");
+
+            // the profile of the line wins over the profile of the batch
+            mockedStatic.verify(() -> CommandUtility.executeCommand(
+                    new ArrayList<>(Arrays.asList("kdu_compress", "-i", mockedTif, "-o", mockedJp2,
+                            "Clevels=4", "Clayers=1", "Stiles={256,256}", "Corder=RPCL", "ORGgen_plt=yes",
+                            "Cblk={32,32}", "-rate", "0.5", "-no_weights"))));
+        }
+    }
+
+    @Test
+    public void testKduCompressHtj2k() throws Exception {
+        String mockedTif = tmpFolder.resolve("mockedImage.tif").toString();
+        Map<String, String> imageMetadata = Map.of(ColorFieldsService.COLOR_SPACE, "RGB");
+        ColorFieldsService colorFieldsService = mock(ColorFieldsService.class);
+        when(colorFieldsService.extractMetadataFields(anyString())).thenReturn(imageMetadata);
+        when(colorFieldsService.identifyType(anyString())).thenReturn("TrueColor");
+        ImagePreproccessingService imagePreproccessingService = mock(ImagePreproccessingService.class);
+        when(imagePreproccessingService.convertToTiff(anyString(), anyString())).thenReturn(mockedTif);
+        when(imagePreproccessingService.convertColorSpaces(anyString(), anyString(), anyString())).thenReturn(mockedTif);
+
+        try (MockedStatic<CommandUtility> mockedStatic = Mockito.mockStatic(CommandUtility.class)) {
+            String mockedJph = tmpFolder.resolve("mockedImage.jph").toString();
+
+            KakaduService service = new KakaduService();
+            service.setColorFieldsService(colorFieldsService);
+            service.setImagePreproccessingService(imagePreproccessingService);
+            service.setEncodingProfile("thumbnail-small");
+            service.setHtj2k(true);
+            service.kduCompress(mockedTif, tmpFolder.resolve("mockedImage"), "");
+
+            mockedStatic.verify(() -> CommandUtility.executeCommand(
+                    new ArrayList<>(Arrays.asList("kdu_compress", "-i", mockedTif, "-o", mockedJph,
+                            "Clevels=4", "Clayers=1", "Stiles={256,256}", "Corder=RPCL", "ORGgen_plt=yes",
+                            "Cblk={32,32}", "-rate", "0.5", "-no_weights", "Cmodes=HT", "Cplex={6,EST,0.25,-1}"))));
+        }
+    }
+
+    @Test
+    public void testKduCompressWithGrok() throws Exception {
+        String mockedTif = tmpFolder.resolve("mockedImage.tif").toString();
+        Map<String, String> imageMetadata = Map.of(ColorFieldsService.COLOR_SPACE, "RGB");
+        ColorFieldsService colorFieldsService = mock(ColorFieldsService.class);
+        when(colorFieldsService.extractMetadataFields(anyString())).thenReturn(imageMetadata);
+        when(colorFieldsService.identifyType(anyString())).thenReturn("TrueColor");
+        ImagePreproccessingService imagePreproccessingService = mock(ImagePreproccessingService.class);
+        when(imagePreproccessingService.convertToTiff(anyString(), anyString())).thenReturn(mockedTif);
+        when(imagePreproccessingService.convertColorSpaces(anyString(), anyString(), anyString())).thenReturn(mockedTif);
+
+        try (MockedStatic<CommandUtility> mockedStatic = Mockito.mockStatic(CommandUtility.class)) {
+            String mockedJp2 = tmpFolder.resolve("mockedImage.jp2").toString();
+
+            KakaduService service = new KakaduService();
+            service.setColorFieldsService(colorFieldsService);
+            service.setImagePreproccessingService(imagePreproccessingService);
+            service.setEncoder(OpenJpegEncoder.GROK);
+            service.kduCompress(mockedTif, tmpFolder.resolve("mockedImage"), "");
+
+            mockedStatic.verify(() -> CommandUtility.executeCommand(
+                    new ArrayList<>(Arrays.asList("grk_compress", "-i", mockedTif, "-o", mockedJp2, "-n", "7",
+                            "-c", "[256,256],[256,256],[128,128]", "-t", "512,512", "-p", "RPCL", "-PLT", "-TP", "R",
+                            "-b", "64,64", "-SOP", "-EPH", "-I", "-r", "256,128,64,32,16,8"))));
+        }
+    }
+
+    @Test
+    public void testKduCompressFileListWithUnknownEncodingProfileFail() throws Exception {
+        Path fileList = Files.writeString(tmpFolder.resolve("files.txt"), "image.tif\tmissing\n");
+
+        Exception exception = assertThrows(IllegalArgumentException.class,
+                () -> service.fileListKduCompress(fileList.toString(), tmpFolder, ""));
+        assertTrue(exception.getMessage().startsWith("Unknown encoding profile missing"));
+    }
+
     @Test
     public void testKduCompressGrayColorspaceTiff() throws Exception {
         String mockedTif = tmpFolder.resolve("mockedImage.tif").toString();
@@ -338,6 +601,40 @@ public class KakaduServiceTest {
         }
     }
 
+    @Test
+    public void testKduCompressDuplicateFromConversionCache() throws Exception {
+        Path original = Files.copy(Paths.get("src/test/resources/IMG_2377.jpeg"), tmpFolder.resolve("original.jpeg"));
+        Path duplicate = Files.copy(original, tmpFolder.resolve("duplicate.jpeg"));
+        Path outputDir = Files.createDirectories(tmpFolder.resolve("output"));
+        // stands in for the JP2 written by kdu_compress
+        Files.copy(Paths.get("src/test/resources/17.jp2"), outputDir.resolve("original.jp2"));
+        Map<String, String> imageMetadata = Map.of(ColorFieldsService.COLOR_SPACE, "RGB");
+        ColorFieldsService colorFieldsService = mock(ColorFieldsService.class);
+        when(colorFieldsService.extractMetadataFields(anyString())).thenReturn(imageMetadata);
+        when(colorFieldsService.identifyType(anyString())).thenReturn("TrueColor");
+        ImagePreproccessingService imagePreproccessingService = mock(ImagePreproccessingService.class);
+        when(imagePreproccessingService.convertToTiff(anyString(), anyString())).thenReturn(original.toString());
+        when(imagePreproccessingService.convertColorSpaces(anyString(), anyString(), anyString()))
+                .thenReturn(original.toString());
+
+        try (MockedStatic<CommandUtility> mockedStatic = Mockito.mockStatic(CommandUtility.class);
+             ConversionCacheService conversionCacheService =
+                     new ConversionCacheService(tmpFolder.resolve("cache"))) {
+            mockedStatic.when(() -> CommandUtility.executeCommand(anyList())).thenReturn("");
+
+            KakaduService service = new KakaduService();
+            service.setColorFieldsService(colorFieldsService);
+            service.setImagePreproccessingService(imagePreproccessingService);
+            service.setConversionCacheService(conversionCacheService);
+            service.kduCompress(original.toString(), outputDir, "");
+            service.kduCompress(duplicate.toString(), outputDir, "");
+
+            mockedStatic.verify(() -> CommandUtility.executeCommand(anyList()), times(1));
+            verify(imagePreproccessingService, times(1)).convertToTiff(anyString(), anyString());
+            assertEquals(-1, Files.mismatch(Paths.get("src/test/resources/17.jp2"), outputDir.resolve("duplicate.jp2")));
+        }
+    }
+
     @Test
     public void testCreateLinkToOriginal() throws Exception {
         String testFile = "src/test/resources/IMG_2377_nofileext";
@@ -345,7 +642,7 @@ public class KakaduServiceTest {
         var intermediateFiles = new ArrayList<String>();
         String result = service.linkToOriginal(testFile, "jpeg", intermediateFiles);
 
-        assertTrue(result.contains(service.tmpDir.toString()));
+        assertTrue(result.startsWith(imagePreproccessingService.tmpFilesDir.toString()));
         assertTrue(result.contains("/IMG_2377_nofileext"));
         assertTrue(result.endsWith(".jpeg"));
         assertTrue(intermediateFiles.contains(result));
@@ -468,6 +765,251 @@ public class KakaduServiceTest {
         }
     }
 
+    @Test
+    public void testProbeIntermediateSymlinkReusesOriginalProbe() throws Exception {
+        Path testFilePath = tmpFolder.resolve("obama_smoking.tiff");
+        Files.copy(Paths.get("src/test/resources/obama_smoking.tiff"), testFilePath);
+        String testFile = testFilePath.toString();
+        Map<String, String> imageMetadata = Map.of(ColorFieldsService.PHOTOMETRIC_INTERPRETATION, "RGB");
+        ColorFieldsService colorFieldsService = mock(ColorFieldsService.class);
+        when(colorFieldsService.extractMetadataFields(anyString())).thenReturn(imageMetadata);
+        when(colorFieldsService.identifyType(anyString())).thenReturn("TrueColorAlpha");
+
+        KakaduService service = new KakaduService();
+        service.setColorFieldsService(colorFieldsService);
+        service.setImagePreproccessingService(imagePreproccessingService);
+        var originalProbe = service.probeImage(testFile, "tiff");
+        String link = imagePreproccessingService.linkToTiff(testFile);
+        var preprocessedProbe = service.probeIntermediate(originalProbe, link);
+
+        assertEquals(393, originalProbe.width());
+        assertEquals(387, originalProbe.height());
+        assertEquals(4, originalProbe.channels());
+        assertEquals("RGB", preprocessedProbe.colorSpace());
+        assertEquals(link, preprocessedProbe.fileName());
+        // metadata and type are only extracted once for the original image
+        verify(colorFieldsService, times(1)).extractMetadataFields(anyString());
+        verify(colorFieldsService, times(1)).identifyType(anyString());
+    }
+
+    @Test
+    public void testKduCompressSkipsVoidGrayImage() throws Exception {
+        Path pgm = tmpFolder.resolve("blank.pgm");
+        byte[] header = "P5\n100 100\n255\n".getBytes(StandardCharsets.US_ASCII);
+        byte[] pixels = new byte[100 * 100];
+        Arrays.fill(pixels, (byte) 200);
+        Files.write(pgm, header);
+        Files.write(pgm, pixels, StandardOpenOption.APPEND);
+        Path source = Files.copy(Paths.get("src/test/resources/schoolphotos1.png"), tmpFolder.resolve("blank.png"));
+        Map<String, String> imageMetadata = Map.of(ColorFieldsService.COLOR_SPACE, "Gray");
+        ColorFieldsService colorFieldsService = mock(ColorFieldsService.class);
+        when(colorFieldsService.extractMetadataFields(anyString())).thenReturn(imageMetadata);
+        when(colorFieldsService.identifyType(anyString())).thenReturn("Grayscale");
+        ImagePreproccessingService imagePreproccessingService = mock(ImagePreproccessingService.class);
+        when(imagePreproccessingService.convertToTiff(anyString(), anyString())).thenReturn(pgm.toString());
+
+        System.setProperty("jp24u.void.detect", "true");
+        try (MockedStatic<CommandUtility> mockedStatic = Mockito.mockStatic(CommandUtility.class)) {
+            KakaduService service = new KakaduService();
+            service.setColorFieldsService(colorFieldsService);
+            service.setImagePreproccessingService(imagePreproccessingService);
+            service.kduCompress(source.toString(), tmpFolder.resolve("blank"), "");
+
+            mockedStatic.verify(() -> CommandUtility.executeCommand(anyList()), times(0));
+            verify(imagePreproccessingService, times(0)).convertColorSpaces(anyString(), anyString(), anyString());
+        } finally {
+            System.clearProperty("jp24u.void.detect");
+        }
+    }
+
+    @Test
+    public void testKduCompressEncodesFaintGrayImageByDefault() throws Exception {
+        // faint pencil marks, 8 levels darker than the paper
+        Path pgm = tmpFolder.resolve("faint.pgm");
+        byte[] header = "P5\n100 100\n255\n".getBytes(StandardCharsets.US_ASCII);
+        byte[] pixels = new byte[100 * 100];
+        Arrays.fill(pixels, (byte) 200);
+        for (int x = 10; x < 90; x++) {
+            pixels[50 * 100 + x] = (byte) 192;
+        }
+        Files.write(pgm, header);
+        Files.write(pgm, pixels, StandardOpenOption.APPEND);
+        Path source = Files.copy(Paths.get("src/test/resources/schoolphotos1.png"), tmpFolder.resolve("faint.png"));
+        Map<String, String> imageMetadata = Map.of(ColorFieldsService.COLOR_SPACE, "Gray");
+        ColorFieldsService colorFieldsService = mock(ColorFieldsService.class);
+        when(colorFieldsService.extractMetadataFields(anyString())).thenReturn(imageMetadata);
+        when(colorFieldsService.identifyType(anyString())).thenReturn("Grayscale");
+        ImagePreproccessingService imagePreproccessingService = mock(ImagePreproccessingService.class);
+        when(imagePreproccessingService.convertToTiff(anyString(), anyString())).thenReturn(pgm.toString());
+
+        try (MockedStatic<CommandUtility> mockedStatic = Mockito.mockStatic(CommandUtility.class)) {
+            KakaduService service = new KakaduService();
+            service.setColorFieldsService(colorFieldsService);
+            service.setImagePreproccessingService(imagePreproccessingService);
+            service.kduCompress(source.toString(), tmpFolder.resolve("faint"), "");
+
+            // void detection is opt-in, only a tiny encoded output is deleted
+            mockedStatic.verify(() -> CommandUtility.executeCommand(argThat(command -> command.get(0)
+                    .equals("kdu_compress"))), times(1));
+        }
+    }
+
+    @Test
+    public void testBenchmarkEncodesVoidGrayImage() throws Exception {
+        Path source = Files.copy(Paths.get("src/test/resources/schoolphotos1.png"), tmpFolder.resolve("blank.png"));
+        Path fileList = Files.writeString(tmpFolder.resolve("files.txt"), source.toString());
+        Map<String, String> imageMetadata = Map.of(ColorFieldsService.COLOR_SPACE, "Gray");
+        ColorFieldsService colorFieldsService = mock(ColorFieldsService.class);
+        when(colorFieldsService.extractMetadataFields(anyString())).thenReturn(imageMetadata);
+        when(colorFieldsService.identifyType(anyString())).thenReturn("Grayscale");
+        ImagePreproccessingService imagePreproccessingService = mock(ImagePreproccessingService.class);
+        // the intermediate is deleted after every encode
+        when(imagePreproccessingService.convertToTiff(anyString(), anyString())).thenAnswer(invocation -> {
+            Path pgm = tmpFolder.resolve("blank.pgm");
+            byte[] pixels = new byte[100 * 100];
+            Arrays.fill(pixels, (byte) 200);
+            Files.write(pgm, "P5\n100 100\n255\n".getBytes(StandardCharsets.US_ASCII));
+            Files.write(pgm, pixels, StandardOpenOption.APPEND);
+            return pgm.toString();
+        });
+        var originalOut = System.out;
+
+        try (MockedStatic<CommandUtility> mockedStatic = Mockito.mockStatic(CommandUtility.class)) {
+            System.setOut(new PrintStream(new ByteArrayOutputStream()));
+            KakaduService service = new KakaduService();
+            service.tmpDir = tmpFolder;
+            service.setColorFieldsService(colorFieldsService);
+            service.setImagePreproccessingService(imagePreproccessingService);
+            service.setConversionCacheService(new ConversionCacheService(tmpFolder.resolve("cache")));
+            service.benchmark(fileList.toString(), "");
+
+            // encoded with and without HTJ2K, a void image is not skipped
+            mockedStatic.verify(() -> CommandUtility.executeCommand(argThat(command -> command.get(0)
+                    .equals("kdu_compress"))), times(2));
+        } finally {
+            System.setOut(originalOut);
+        }
+        try (var files = Files.list(tmpFolder.resolve("cache"))) {
+            assertEquals(0, files.count());
+        }
+    }
+
+    @Test
+    public void testBenchmarkWithDerivativesFail() throws Exception {
+        Path fileList = Files.writeString(tmpFolder.resolve("files.txt"), "src/test/resources/IMG_2377.jpeg");
+        service.setPreviewSize(256);
+
+        Exception exception = assertThrows(IllegalArgumentException.class,
+                () -> service.benchmark(fileList.toString(), ""));
+        assertContains("Derivatives and previews can not be benchmarked", exception.getMessage());
+    }
+
+    @Test
+    public void testKduCompressExplain() throws Exception {
+        String testFile = "src/test/resources/IMG_2377.jpeg";
+        Map<String, String> imageMetadata = Map.of(ColorFieldsService.COLOR_SPACE, "RGB");
+        ColorFieldsService colorFieldsService = mock(ColorFieldsService.class);
+        when(colorFieldsService.extractMetadataFields(anyString())).thenReturn(imageMetadata);
+        when(colorFieldsService.identifyType(anyString())).thenReturn("TrueColor");
+        ImagePreproccessingService imagePreproccessingService = new ImagePreproccessingService();
+        imagePreproccessingService.tmpFilesDir = tmpFolder;
+        var originalOut = System.out;
+        var outputStreamCaptor = new ByteArrayOutputStream();
+
+        try (MockedStatic<CommandUtility> mockedStatic = Mockito.mockStatic(CommandUtility.class)) {
+            System.setOut(new PrintStream(outputStreamCaptor));
+            KakaduService service = new KakaduService();
+            service.setColorFieldsService(colorFieldsService);
+            service.setImagePreproccessingService(imagePreproccessingService);
+            service.setExplain(true);
+            service.kduCompress(testFile, tmpFolder.resolve("IMG_2377"), "");
+
+            mockedStatic.verify(() -> CommandUtility.executeCommand(anyList()), times(0));
+        } finally {
+            System.setOut(originalOut);
+        }
+        String output = outputStreamCaptor.toString();
+        assertContains("Route: jpeg -> convert -> ppm -> kdu_compress -> jp2", output);
+        assertContains("1. convert -auto-orient " + testFile + " " + tmpFolder, output);
+        assertContains("2. kdu_compress -i " + tmpFolder, output);
+        assertContains("4032x3024 (12.2 MP)", output);
+        assertFalse(Files.exists(tmpFolder.resolve("IMG_2377.jp2")));
+    }
+
+    @Test
+    public void testKduCompressExplainDerivatives() throws Exception {
+        String testFile = "src/test/resources/IMG_2377.jpeg";
+        Map<String, String> imageMetadata = Map.of(ColorFieldsService.COLOR_SPACE, "RGB");
+        ColorFieldsService colorFieldsService = mock(ColorFieldsService.class);
+        when(colorFieldsService.extractMetadataFields(anyString())).thenReturn(imageMetadata);
+        when(colorFieldsService.identifyType(anyString())).thenReturn("TrueColor");
+        ImagePreproccessingService imagePreproccessingService = new ImagePreproccessingService();
+        imagePreproccessingService.tmpFilesDir = tmpFolder;
+        var originalOut = System.out;
+        var outputStreamCaptor = new ByteArrayOutputStream();
+
+        try (MockedStatic<CommandUtility> mockedStatic = Mockito.mockStatic(CommandUtility.class)) {
+            System.setOut(new PrintStream(outputStreamCaptor));
+            KakaduService service = new KakaduService();
+            service.setColorFieldsService(colorFieldsService);
+            service.setImagePreproccessingService(imagePreproccessingService);
+            service.setDerivatives(List.of("archival-master", "access-fast"));
+            service.setPreviewSize(256);
+            service.setExplain(true);
+            service.kduCompress(testFile, tmpFolder.resolve("IMG_2377"), "");
+
+            mockedStatic.verify(() -> CommandUtility.executeCommand(anyList()), times(0));
+        } finally {
+            System.setOut(originalOut);
+        }
+        String output = outputStreamCaptor.toString();
+        // one intermediate for all outputs
+        assertContains("Route: jpeg -> convert -> ppm -> kdu_compress -> jp2 -> kdu_compress -> jp2 -> convert -> jpg",
+                output);
+        assertContains("1. convert -auto-orient " + testFile + " " + tmpFolder, output);
+        assertContains("-o " + tmpFolder.resolve("IMG_2377_archival-master.jp2") + " Creversible=yes", output);
+        assertContains("-o " + tmpFolder.resolve("IMG_2377_access-fast.jp2") + " Clevels=6 Clayers=1", output);
+        assertContains("-thumbnail 256x256> -quality 85 " + tmpFolder.resolve("IMG_2377_preview.jpg"), output);
+        assertContains("Estimate: 4 tool runs", output);
+    }
+
+    @Test
+    public void testDeleteTinyGrayVoidImageFromProbe() throws Exception {
+        Path outputPath = tmpFolder.resolve("tiny.jp2");
+        Files.write(outputPath, new byte[100]);
+        ColorFieldsService colorFieldsService = mock(ColorFieldsService.class);
+        var probe = new ImageProbe(outputPath.toString(), "jp2", 10, 10, 8, 1, "Gray", "Grayscale",
+                null, null, Map.of());
+
+        KakaduService service = new KakaduService();
+        service.setColorFieldsService(colorFieldsService);
+        service.deleteTinyGrayVoidImages(outputPath.toString(), probe);
+
+        assertFalse(Files.exists(outputPath));
+        verify(colorFieldsService, times(0)).identifyType(anyString());
+    }
+
+    /**
+     * Write an LZW compressed RGB TIFF with an orientation
+     */
+    private void writeLzwTiff(Path tiff, int orientation) throws Exception {
+        BufferedImage image = new BufferedImage(60, 40, BufferedImage.TYPE_3BYTE_BGR);
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("tiff").next();
+        try (ImageOutputStream out = ImageIO.createImageOutputStream(tiff.toFile())) {
+            writer.setOutput(out);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionType("LZW");
+            TIFFDirectory directory = TIFFDirectory.createFromMetadata(writer.getDefaultImageMetadata(
+                    ImageTypeSpecifier.createFromRenderedImage(image), param));
+            directory.addTIFFField(new TIFFField(BaselineTIFFTagSet.getInstance()
+                    .getTag(BaselineTIFFTagSet.TAG_ORIENTATION), orientation));
+            writer.write(null, new IIOImage(image, null, directory.getAsMetadata()), param);
+        } finally {
+            writer.dispose();
+        }
+    }
+
     private void assertContains(String expected, String actual) {
         assertTrue(actual.contains(expected), "Expected string '" + expected + "' not found: " + actual);
     }
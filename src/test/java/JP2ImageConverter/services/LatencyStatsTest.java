@@ -0,0 +1,48 @@
+package JP2ImageConverter.services;
+
+import JP2ImageConverter.util.LatencyHistogram;
+import JP2ImageConverter.util.LatencyStats;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class LatencyStatsTest {
+    private static final long MILLIS = 1000000;
+
+    @Test
+    public void testHistogramPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.recordNanos(i * MILLIS);
+        }
+
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1000000, histogram.getMaxMicros());
+        assertEquals(500000, histogram.getPercentileMicros(50), 500000 * 0.07);
+        assertEquals(900000, histogram.getPercentileMicros(90), 900000 * 0.07);
+        assertEquals(990000, histogram.getPercentileMicros(99), 990000 * 0.07);
+        assertEquals(1000000, histogram.getPercentileMicros(100));
+    }
+
+    @Test
+    public void testPrintStagesByFormatAndColorSpace() {
+        LatencyStats latencyStats = new LatencyStats();
+        latencyStats.record("encode", "tiff", "RGB", 20 * MILLIS);
+        latencyStats.record("encode", "psd", "CMYK", 3000 * MILLIS);
+        latencyStats.record("probe", "tiff", null, 2 * MILLIS);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        latencyStats.print(new PrintStream(out));
+        String output = out.toString();
+
+        assertTrue(output.contains("Latency (milliseconds)"));
+        assertTrue(output.matches("(?s).*\\nencode +2 +20\\.\\d +3000\\.0 +3000\\.0 +3000\\.0.*"), output);
+        assertTrue(output.matches("(?s).*\\n  format=psd +1 +3000\\.0.*"), output);
+        assertTrue(output.matches("(?s).*\\n  colorspace=unknown +1 +2\\.0.*"), output);
+        assertTrue(output.indexOf("encode") < output.indexOf("probe"));
+    }
+}
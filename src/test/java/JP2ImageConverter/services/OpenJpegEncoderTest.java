@@ -0,0 +1,64 @@
+package JP2ImageConverter.services;
+
+import JP2ImageConverter.model.ImageProbe;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class OpenJpegEncoderTest {
+    private final EncodingProfileService encodingProfileService = new EncodingProfileService();
+
+    @Test
+    public void testTranslateDefaultProfile() {
+        List<String> command = OpenJpegEncoder.GROK.translate(kakaduCommand("default", "-jp2_space", "sLUM",
+                "-num_threads", "8"), null);
+
+        assertEquals(List.of("grk_compress", "-i", "in.tif", "-o", "out.jp2", "-n", "7",
+                "-c", "[256,256],[256,256],[128,128]", "-t", "512,512", "-p", "RPCL", "-PLT", "-TP", "R",
+                "-b", "64,64", "-SOP", "-EPH", "-H", "8", "-I", "-r", "256,128,64,32,16,8"), command);
+    }
+
+    @Test
+    public void testTranslateArchivalProfile() {
+        List<String> command = OpenJpegEncoder.OPENJPEG.translate(kakaduCommand("archival-master"), null);
+
+        // reversible and without a rate, so lossless
+        assertEquals("opj_compress", command.getFirst());
+        assertEquals(-1, command.indexOf("-I"));
+        assertEquals(-1, command.indexOf("-r"));
+    }
+
+    @Test
+    public void testTranslateRatesForProbe() {
+        ImageProbe probe = new ImageProbe("in.tif", "tiff", 100, 100, 16, 1, "Gray", "Grayscale", null, null, null);
+        List<String> command = new ArrayList<>(List.of("kdu_compress", "-i", "in.tif", "-o", "out.jp2",
+                "Clayers=3", "Stiles={256,512}", "-rate", "1,4,-"));
+
+        command = OpenJpegEncoder.OPENJPEG.translate(command, probe);
+
+        assertEquals(List.of("-t", "512,256"), command.subList(5, 7));
+        assertEquals(List.of("-r", "16,4,1"), command.subList(command.size() - 2, command.size()));
+    }
+
+    @Test
+    public void testTranslateUnsupportedOptionsFail() {
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class,
+                () -> OpenJpegEncoder.GROK.checkOptions(encodingProfileService.get("access-fast").options()));
+        assertEquals("grk_compress has no equivalent of kdu_compress -slope", e.getMessage());
+        assertThrows(IllegalArgumentException.class,
+                () -> OpenJpegEncoder.GROK.translate(kakaduCommand("default", "-rotate", "90"), null));
+        assertThrows(IllegalArgumentException.class, () -> OpenJpegEncoder.GROK.checkOptions(
+                EncodingProfileService.htj2kOptions(encodingProfileService.get("default"))));
+    }
+
+    private List<String> kakaduCommand(String profile, String... options) {
+        List<String> command = new ArrayList<>(List.of("kdu_compress", "-i", "in.tif", "-o", "out.jp2"));
+        command.addAll(encodingProfileService.get(profile).options());
+        command.addAll(List.of(options));
+        return command;
+    }
+}
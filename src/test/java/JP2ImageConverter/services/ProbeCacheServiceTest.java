@@ -0,0 +1,154 @@
+package JP2ImageConverter.services;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ProbeCacheServiceTest {
+    @TempDir
+    public Path tmpFolder;
+
+    private Path cacheFile;
+    private Path imageFile;
+
+    @BeforeEach
+    public void setup() throws Exception {
+        System.setProperty("jp24u.probecache.minAge", "0");
+        cacheFile = tmpFolder.resolve("probe.cache");
+        imageFile = Files.copy(Path.of("src/test/resources/IMG_2377.jpeg"), tmpFolder.resolve("IMG_2377.jpeg"));
+    }
+
+    @AfterEach
+    public void close() {
+        System.clearProperty("jp24u.probecache.minAge");
+        System.clearProperty("jp24u.probecache.maxBytes");
+    }
+
+    @Test
+    public void testCachedValuesSurviveReopen() throws Exception {
+        Map<String, String> metadata = new LinkedHashMap<>();
+        metadata.put(ColorFieldsService.IMAGE_FILE_NAME, imageFile.toString());
+        metadata.put(ColorFieldsService.ICC_PROFILE_NAME, null);
+        metadata.put(ColorFieldsService.COLOR_SPACE, "RGB");
+
+        try (ProbeCacheService probeCache = new ProbeCacheService(cacheFile)) {
+            probeCache.putMetadata(imageFile.toString(), metadata);
+            probeCache.putValue(imageFile.toString(), ProbeCacheService.TYPE, "TrueColor");
+        }
+
+        try (ProbeCacheService probeCache = new ProbeCacheService(cacheFile)) {
+            assertEquals(metadata, probeCache.getMetadata(imageFile.toString()));
+            assertEquals("TrueColor", probeCache.getValue(imageFile.toString(), ProbeCacheService.TYPE));
+            assertNull(probeCache.getValue(imageFile.toString(), ProbeCacheService.IDENTIFY));
+        }
+    }
+
+    @Test
+    public void testValueOver64KiBSurvivesReopen() throws Exception {
+        // identify output of a file with a large embedded profile
+        String identify = "Profile-icc: ".repeat(10000) + "\u00e9";
+
+        try (ProbeCacheService probeCache = new ProbeCacheService(cacheFile)) {
+            probeCache.putValue(imageFile.toString(), ProbeCacheService.IDENTIFY, identify);
+        }
+
+        try (ProbeCacheService probeCache = new ProbeCacheService(cacheFile)) {
+            assertEquals(identify, probeCache.getValue(imageFile.toString(), ProbeCacheService.IDENTIFY));
+        }
+    }
+
+    @Test
+    public void testModifiedFileIsNotReturned() throws Exception {
+        try (ProbeCacheService probeCache = new ProbeCacheService(cacheFile)) {
+            probeCache.putValue(imageFile.toString(), ProbeCacheService.TYPE, "TrueColor");
+            Files.setLastModifiedTime(imageFile, FileTime.fromMillis(System.currentTimeMillis() - 3600000));
+
+            assertNull(probeCache.getValue(imageFile.toString(), ProbeCacheService.TYPE));
+        }
+    }
+
+    @Test
+    public void testPartialRecordIsTruncated() throws Exception {
+        try (ProbeCacheService probeCache = new ProbeCacheService(cacheFile)) {
+            probeCache.putValue(imageFile.toString(), ProbeCacheService.TYPE, "Grayscale");
+        }
+        long size = Files.size(cacheFile);
+        Files.write(cacheFile, new byte[] {0, 0, 1, 0, 5}, StandardOpenOption.APPEND);
+
+        try (ProbeCacheService probeCache = new ProbeCacheService(cacheFile)) {
+            assertEquals("Grayscale", probeCache.getValue(imageFile.toString(), ProbeCacheService.TYPE));
+        }
+        assertEquals(size, Files.size(cacheFile));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEntriesEvicted() throws Exception {
+        System.setProperty("jp24u.probecache.maxBytes", "1000");
+
+        try (ProbeCacheService probeCache = new ProbeCacheService(cacheFile)) {
+            for (int i = 0; i < 50; i++) {
+                probeCache.putValue(imageFile.toString(), "value" + i, "TrueColor");
+            }
+            assertTrue(Files.size(cacheFile) <= 1000);
+        }
+
+        try (ProbeCacheService probeCache = new ProbeCacheService(cacheFile)) {
+            assertEquals("TrueColor", probeCache.getValue(imageFile.toString(), "value49"));
+            assertNull(probeCache.getValue(imageFile.toString(), "value0"));
+        }
+    }
+
+    @Test
+    public void testRecordsOfAnotherProcessAreFound() throws Exception {
+        try (ProbeCacheService first = new ProbeCacheService(cacheFile);
+             ProbeCacheService second = new ProbeCacheService(cacheFile)) {
+            first.putValue(imageFile.toString(), ProbeCacheService.TYPE, "TrueColor");
+
+            assertEquals("TrueColor", second.getValue(imageFile.toString(), ProbeCacheService.TYPE));
+        }
+    }
+
+    @Test
+    public void testCompactionByAnotherProcessIsFollowed() throws Exception {
+        System.setProperty("jp24u.probecache.maxBytes", "1000");
+
+        try (ProbeCacheService first = new ProbeCacheService(cacheFile);
+             ProbeCacheService second = new ProbeCacheService(cacheFile)) {
+            for (int i = 0; i < 50; i++) {
+                // the second cache indexes the record of the first before it appends and compacts
+                if (i == 48) {
+                    first.putValue(imageFile.toString(), "first", "Grayscale");
+                }
+                second.putValue(imageFile.toString(), "value" + i, "TrueColor");
+            }
+            // the first cache reopens the compacted file and appends to it, not to the replaced one
+            assertEquals("TrueColor", first.getValue(imageFile.toString(), "value49"));
+            first.putValue(imageFile.toString(), ProbeCacheService.TYPE, "Palette");
+        }
+
+        try (ProbeCacheService probeCache = new ProbeCacheService(cacheFile)) {
+            assertEquals("Grayscale", probeCache.getValue(imageFile.toString(), "first"));
+            assertEquals("TrueColor", probeCache.getValue(imageFile.toString(), "value49"));
+            assertEquals("Palette", probeCache.getValue(imageFile.toString(), ProbeCacheService.TYPE));
+        }
+        // compaction leaves no temporary files behind
+        try (Stream<Path> files = Files.list(tmpFolder)) {
+            assertEquals(List.of(cacheFile), files.filter(file -> file.getFileName().toString()
+                    .startsWith("probe.cache")).toList());
+        }
+    }
+}
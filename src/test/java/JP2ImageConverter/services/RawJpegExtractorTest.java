@@ -0,0 +1,105 @@
+package JP2ImageConverter.services;
+
+import JP2ImageConverter.model.Orientation;
+import JP2ImageConverter.util.RawJpegExtractor;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class RawJpegExtractorTest {
+    private static final byte[] THUMBNAIL = jpeg(40);
+    private static final byte[] JPG_FROM_RAW = jpeg(300);
+
+    @TempDir
+    public Path tmpFolder;
+
+    @Test
+    public void testExtractLargestJpeg() throws Exception {
+        Path raw = writeRaw(tmpFolder.resolve("image.nef"), 6, JPG_FROM_RAW);
+
+        RawJpegExtractor.Preview preview = RawJpegExtractor.locate(raw.toString());
+        assertEquals(JPG_FROM_RAW.length, preview.length());
+        assertEquals(Orientation.RIGHT_TOP, preview.orientation());
+
+        Path jpeg = tmpFolder.resolve("image.jpeg");
+        RawJpegExtractor.extract(raw.toString(), preview, jpeg);
+        assertArrayEquals(JPG_FROM_RAW, Files.readAllBytes(jpeg));
+    }
+
+    @Test
+    public void testNotJpeg() throws Exception {
+        byte[] notJpeg = Arrays.copyOf(JPG_FROM_RAW, JPG_FROM_RAW.length);
+        notJpeg[1] = 0;
+        Path raw = writeRaw(tmpFolder.resolve("image.nrw"), 1, notJpeg);
+
+        // only the thumbnail is left
+        RawJpegExtractor.Preview preview = RawJpegExtractor.locate(raw.toString());
+        assertEquals(THUMBNAIL.length, preview.length());
+        assertEquals(Orientation.TOP_LEFT, preview.orientation());
+    }
+
+    @Test
+    public void testNoEmbeddedJpeg() throws Exception {
+        assertNull(RawJpegExtractor.locate("src/test/resources/obama_smoking.tiff"));
+        assertNull(RawJpegExtractor.locate("src/test/resources/CARTEZOO.GIF"));
+    }
+
+    @Test
+    public void testOrientation() {
+        assertEquals(Orientation.LEFT_BOTTOM, Orientation.fromTag(8));
+        assertEquals(Orientation.TOP_LEFT, Orientation.fromTag(0));
+        assertEquals(Orientation.BOTTOM_RIGHT, Orientation.fromDescription("Bottom, right side (Rotate 180)"));
+        assertEquals(Orientation.TOP_LEFT, Orientation.fromDescription(null));
+        assertEquals(Integer.valueOf(270), Orientation.LEFT_BOTTOM.getRotation());
+        assertNull(Orientation.RIGHT_BOTTOM.getRotation());
+    }
+
+    private static byte[] jpeg(int length) {
+        byte[] jpeg = new byte[length];
+        for (int i = 0; i < length; i++) {
+            jpeg[i] = (byte) (i * 7);
+        }
+        jpeg[0] = (byte) 0xFF;
+        jpeg[1] = (byte) 0xD8;
+        return jpeg;
+    }
+
+    /**
+     * Write a little endian TIFF laid out like a NEF: IFD0 with an orientation and two SubIFDs, a thumbnail
+     * and the full size JPEG
+     */
+    private Path writeRaw(Path raw, int orientation, byte[] jpgFromRaw) throws Exception {
+        int ifd0 = 8;
+        int ifdSize = 2 + 2 * 12 + 4;
+        int subIfds = ifd0 + ifdSize;
+        int thumbnailIfd = subIfds + 8;
+        int jpegIfd = thumbnailIfd + ifdSize;
+        int thumbnail = jpegIfd + ifdSize;
+        int jpeg = thumbnail + THUMBNAIL.length;
+        ByteBuffer buffer = ByteBuffer.allocate(jpeg + jpgFromRaw.length).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put((byte) 'I').put((byte) 'I').putShort((short) 42).putInt(ifd0);
+
+        buffer.putShort((short) 2);
+        buffer.putShort((short) 274).putShort((short) 3).putInt(1).putShort((short) orientation).putShort((short) 0);
+        buffer.putShort((short) 330).putShort((short) 4).putInt(2).putInt(subIfds);
+        buffer.putInt(0);
+        buffer.putInt(thumbnailIfd).putInt(jpegIfd);
+        for (int[] location : new int[][] {{thumbnail, THUMBNAIL.length}, {jpeg, jpgFromRaw.length}}) {
+            buffer.putShort((short) 2);
+            buffer.putShort((short) 513).putShort((short) 4).putInt(1).putInt(location[0]);
+            buffer.putShort((short) 514).putShort((short) 4).putInt(1).putInt(location[1]);
+            buffer.putInt(0);
+        }
+        buffer.put(THUMBNAIL).put(jpgFromRaw);
+        return Files.write(raw, buffer.array());
+    }
+}
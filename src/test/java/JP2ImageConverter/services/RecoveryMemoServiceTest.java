@@ -0,0 +1,69 @@
+package JP2ImageConverter.services;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class RecoveryMemoServiceTest {
+    private static final byte[] PROFILE = {1, 2, 3, 4};
+
+    @TempDir
+    public Path tmpFolder;
+
+    @Test
+    public void testSignature() {
+        assertEquals("tiff/16/RGB/none", RecoveryMemoService.signature(null, "tiff", 16, "RGB"));
+        assertEquals("gif/8/RGB_Palette/none", RecoveryMemoService.signature(null, "gif", 8, "RGB Palette"));
+        String withProfile = RecoveryMemoService.signature(PROFILE, "tiff", 16, "RGB");
+        assertTrue(withProfile.matches("tiff/16/RGB/[0-9a-f]{16}"), withProfile);
+        assertNotEquals(withProfile, RecoveryMemoService.signature(new byte[] {1, 2, 3}, "tiff", 16, "RGB"));
+    }
+
+    @Test
+    public void testLookupRecordedRecovery() throws Exception {
+        String signature = RecoveryMemoService.signature(PROFILE, "tiff", 16, "RGB");
+        try (RecoveryMemoService memo = new RecoveryMemoService(tmpFolder.resolve("memo.tsv"))) {
+            assertTrue(memo.lookup(signature).isEmpty());
+
+            memo.record(signature, RecoveryMemoService.Recovery.STRIP_ICC_PROFILE);
+
+            assertEquals(Set.of(RecoveryMemoService.Recovery.STRIP_ICC_PROFILE), memo.lookup(signature));
+            assertTrue(memo.lookup(RecoveryMemoService.signature(null, "tiff", 16, "RGB")).isEmpty());
+            assertEquals(1, memo.getRetriesSaved());
+        }
+    }
+
+    @Test
+    public void testPersistedAcrossRuns() throws Exception {
+        Path memoFile = tmpFolder.resolve("memo/recoveries.tsv");
+        String signature = RecoveryMemoService.signature(null, "gif", 8, "RGB Palette");
+        try (RecoveryMemoService memo = new RecoveryMemoService(memoFile)) {
+            memo.record(signature, RecoveryMemoService.Recovery.NO_PALETTE);
+        }
+
+        try (RecoveryMemoService memo = new RecoveryMemoService(memoFile)) {
+            assertEquals(Set.of(RecoveryMemoService.Recovery.NO_PALETTE), memo.lookup(signature));
+            memo.lookup(signature);
+        }
+
+        assertEquals(signature + "\tNO_PALETTE\t2", Files.readString(memoFile).trim());
+    }
+
+    @Test
+    public void testInvalidLinesSkipped() throws Exception {
+        Path memoFile = tmpFolder.resolve("memo.tsv");
+        Files.writeString(memoFile, "tiff/8/RGB/none\tUNKNOWN\t1\nbroken\ngif/8/RGB/none\tNO_PALETTE\t5\n");
+
+        try (RecoveryMemoService memo = new RecoveryMemoService(memoFile)) {
+            assertTrue(memo.lookup("tiff/8/RGB/none").isEmpty());
+            assertEquals(Set.of(RecoveryMemoService.Recovery.NO_PALETTE), memo.lookup("gif/8/RGB/none"));
+        }
+    }
+}
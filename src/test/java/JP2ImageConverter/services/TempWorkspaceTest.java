@@ -0,0 +1,179 @@
+package JP2ImageConverter.services;
+
+import JP2ImageConverter.util.TempWorkspace;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TempWorkspaceTest {
+    @TempDir
+    public Path tmpFolder;
+
+    private Path fastDir;
+    private Path spillDir;
+    private String source;
+
+    @BeforeEach
+    public void setup() throws Exception {
+        fastDir = tmpFolder.resolve("fast");
+        spillDir = Files.createDirectories(tmpFolder.resolve("spill"));
+        Path pgm = tmpFolder.resolve("source.pgm");
+        Files.write(pgm, "P5\n100 100\n255\n".getBytes(StandardCharsets.US_ASCII));
+        Files.write(pgm, new byte[100 * 100], StandardOpenOption.APPEND);
+        source = pgm.toString();
+    }
+
+    @Test
+    public void testEstimateBytes() {
+        assertEquals(100 * 100, TempWorkspace.estimateBytes(source));
+        assertEquals(4032L * 3024 * 3, TempWorkspace.estimateBytes("src/test/resources/IMG_2377.jpeg"));
+    }
+
+    @Test
+    public void testSpillWhenOverBudget() throws Exception {
+        try (TempWorkspace workspace = new TempWorkspace(fastDir, 25000)) {
+            Path first = workspace.createTempPath(source, ".tif", spillDir);
+            Path second = workspace.createTempPath(source, ".tif", spillDir);
+            Path third = workspace.createTempPath(source, ".tif", spillDir);
+
+            assertEquals(fastDir, first.getParent());
+            assertEquals(fastDir, second.getParent());
+            assertEquals(spillDir, third.getParent());
+            assertEquals(20000, workspace.getUsedBytes());
+        }
+    }
+
+    @Test
+    public void testBudgetReturnedAfterDelete() throws Exception {
+        try (TempWorkspace workspace = new TempWorkspace(fastDir, 15000)) {
+            Path first = workspace.createTempPath(source, ".tif", spillDir);
+            Files.write(first, new byte[12000]);
+            workspace.settle();
+            // the intermediate grew beyond its estimate
+            assertEquals(12000, workspace.getUsedBytes());
+            assertEquals(spillDir, workspace.createTempPath(source, ".tif", spillDir).getParent());
+
+            Files.delete(first);
+            assertEquals(0, workspace.getUsedBytes());
+            assertEquals(fastDir, workspace.createTempPath(source, ".tif", spillDir).getParent());
+        }
+    }
+
+    @Test
+    public void testUnwrittenReservationReturned() throws Exception {
+        try (TempWorkspace workspace = new TempWorkspace(fastDir, 15000)) {
+            workspace.createTempPath(source, ".tif", spillDir);
+            assertEquals(10000, workspace.getUsedBytes());
+
+            // the tool failed without writing the intermediate
+            workspace.settle();
+            assertEquals(0, workspace.getUsedBytes());
+        }
+    }
+
+    @Test
+    public void testQuotaWaitsForOtherProcesses() throws Exception {
+        Path foreign = Files.write(spillDir.resolve("other.tif"), new byte[10000]);
+        try (TempWorkspace workspace = new TempWorkspace(null, 0, 15000, Duration.ofSeconds(30))) {
+            Thread cleanup = new Thread(() -> {
+                try {
+                    Thread.sleep(1000);
+                    Files.delete(foreign);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            cleanup.start();
+            long start = System.nanoTime();
+            Path tempPath = workspace.createTempPath(source, ".tif", spillDir);
+            cleanup.join();
+
+            assertEquals(spillDir, tempPath.getParent());
+            assertTrue(Duration.ofNanos(System.nanoTime() - start).toMillis() >= 900);
+        }
+    }
+
+    @Test
+    public void testQuotaTimesOut() throws Exception {
+        Files.write(spillDir.resolve("other.tif"), new byte[10000]);
+        try (TempWorkspace workspace = new TempWorkspace(null, 0, 15000, Duration.ofSeconds(1))) {
+            assertThrows(IOException.class, () -> workspace.createTempPath(source, ".tif", spillDir));
+        }
+    }
+
+    @Test
+    public void testQuotaExceededByOwnIntermediates() throws Exception {
+        try (TempWorkspace workspace = new TempWorkspace(null, 0, 15000, Duration.ofSeconds(30))) {
+            Path first = workspace.createTempPath(source, ".tif", spillDir);
+            Files.write(first, new byte[10000]);
+            workspace.settle();
+
+            // the thread's own intermediate is not freed while it waits, so it fails rather than waiting forever
+            long start = System.nanoTime();
+            assertThrows(IOException.class, () -> workspace.createTempPath(source, ".tif", spillDir));
+            assertTrue(Duration.ofNanos(System.nanoTime() - start).toSeconds() < 5);
+        }
+    }
+
+    @Test
+    public void testQuotaWaitsForOtherThreads() throws Exception {
+        CountDownLatch reserved = new CountDownLatch(1);
+        try (TempWorkspace workspace = new TempWorkspace(null, 0, 15000, Duration.ofSeconds(30))) {
+            Thread conversion = new Thread(() -> {
+                try {
+                    Path first = workspace.createTempPath(source, ".tif", spillDir);
+                    Files.write(first, new byte[10000]);
+                    workspace.settle();
+                    reserved.countDown();
+                    Thread.sleep(1000);
+                    Files.delete(first);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            conversion.start();
+            // the other thread's intermediate is written before this thread asks for space
+            reserved.await();
+            long start = System.nanoTime();
+            Path tempPath = workspace.createTempPath(source, ".tif", spillDir);
+            conversion.join();
+
+            assertEquals(spillDir, tempPath.getParent());
+            assertTrue(Duration.ofNanos(System.nanoTime() - start).toMillis() >= 500);
+        }
+    }
+
+    @Test
+    public void testReclaimOrphans() throws Exception {
+        Process process = new ProcessBuilder("true").start();
+        process.waitFor();
+        long stoppedPid = process.pid();
+
+        Path own = Files.createTempFile(spillDir, TempWorkspace.tempFilePrefix(source), ".tif");
+        String host = own.getFileName().toString().split("-")[1];
+        Path orphan = Files.createFile(spillDir.resolve("source.pgm.jp24u-" + host + "-" + stoppedPid + "-123.tif"));
+        // the same process id on another host sharing the directory
+        Path otherHost = Files.createFile(spillDir.resolve("source.pgm.jp24u-" + host + "x-" + stoppedPid
+                + "-123.tif"));
+        Path untagged = Files.createFile(spillDir.resolve("source.pgm123.tif"));
+
+        assertEquals(1, TempWorkspace.reclaimOrphans(spillDir));
+        assertFalse(Files.exists(orphan));
+        assertTrue(Files.exists(own));
+        assertTrue(Files.exists(otherHost));
+        assertTrue(Files.exists(untagged));
+    }
+}
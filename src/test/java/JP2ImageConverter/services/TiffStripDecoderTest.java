@@ -0,0 +1,273 @@
+package JP2ImageConverter.services;
+
+import JP2ImageConverter.util.TiffIfdReader;
+import JP2ImageConverter.util.TiffStripDecoder;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.plugins.tiff.BaselineTIFFTagSet;
+import javax.imageio.plugins.tiff.TIFFDirectory;
+import javax.imageio.plugins.tiff.TIFFField;
+import javax.imageio.plugins.tiff.TIFFTag;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class TiffStripDecoderTest {
+    @TempDir
+    public Path tmpFolder;
+
+    @AfterEach
+    public void tearDown() {
+        System.clearProperty("jp24u.tiff.decode");
+    }
+
+    @Test
+    public void testLzwStrips() throws Exception {
+        assertDecoded(rgbImage(BufferedImage.TYPE_3BYTE_BGR), "LZW", false);
+    }
+
+    @Test
+    public void testDeflateStrips() throws Exception {
+        assertDecoded(rgbImage(BufferedImage.TYPE_3BYTE_BGR), "ZLib", false);
+        assertDecoded(rgbImage(BufferedImage.TYPE_3BYTE_BGR), "Deflate", false);
+    }
+
+    @Test
+    public void testPackBitsTiles() throws Exception {
+        assertDecoded(rgbImage(BufferedImage.TYPE_3BYTE_BGR), "PackBits", true);
+    }
+
+    @Test
+    public void testLzwTilesWithAlpha() throws Exception {
+        assertDecoded(rgbImage(BufferedImage.TYPE_4BYTE_ABGR), "LZW", true);
+    }
+
+    @Test
+    public void testSixteenBitGray() throws Exception {
+        BufferedImage image = new BufferedImage(70, 45, BufferedImage.TYPE_USHORT_GRAY);
+        Random random = new Random(2);
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                image.getRaster().setSample(x, y, 0, random.nextInt(40) * 1000 + x);
+            }
+        }
+        assertDecoded(image, "LZW", false);
+    }
+
+    @Test
+    public void testHorizontalPredictor() throws Exception {
+        // 3x1 gray strip, stored as differences from the previous sample
+        Path tiff = writeTiff(tmpFolder.resolve("predictor.tif"), 3, 1, new byte[] {10, 5, (byte) 250}, 1,
+                2);
+        Path pgm = tmpFolder.resolve("predictor.pgm");
+
+        TiffStripDecoder.decode(tiff.toString(), pgm);
+
+        byte[] decoded = Files.readAllBytes(pgm);
+        String header = "P5\n3 1\n255\n";
+        assertEquals(header, new String(decoded, 0, header.length(), StandardCharsets.US_ASCII));
+        assertEquals(10, decoded[header.length()]);
+        assertEquals(15, decoded[header.length() + 1]);
+        assertEquals(9, decoded[header.length() + 2]);
+    }
+
+    @Test
+    public void testUncompressedStripsAreLinked() throws Exception {
+        Path tiff = writeTiff(tmpFolder.resolve("plain.tif"), 3, 1, new byte[] {1, 2, 3}, 1, 1);
+        assertNull(TiffStripDecoder.outputExtension(tiff.toString()));
+        // Kakadu reads the ICC profile from the TIFF
+        assertNull(TiffStripDecoder.outputExtension("src/test/resources/obama_smoking.tiff"));
+    }
+
+    @Test
+    public void testRotatedOrResolvedTiffsKeepTheirFields() throws Exception {
+        // a PackBits literal run of three samples
+        byte[] strip = {2, 1, 2, 3};
+        // a PPM has no orientation or resolution, an uncompressed TIFF keeps them for Kakadu
+        Path rotated = writeTiff(tmpFolder.resolve("rotated.tif"), 3, 1, strip, 32773, 1, new int[] {274, 3, 6});
+        assertEquals(".tif", TiffStripDecoder.outputExtension(rotated.toString()));
+        Path resolved = writeTiff(tmpFolder.resolve("resolved.tif"), 3, 1, strip, 32773, 1, new int[] {282, 4, 300},
+                new int[] {296, 3, 2});
+        assertEquals(".tif", TiffStripDecoder.outputExtension(resolved.toString()));
+        Path upright = writeTiff(tmpFolder.resolve("upright.tif"), 3, 1, strip, 32773, 1, new int[] {274, 3, 1},
+                new int[] {282, 4, 1}, new int[] {296, 3, 1});
+        assertEquals(".pgm", TiffStripDecoder.outputExtension(upright.toString()));
+    }
+
+    @Test
+    public void testIccProfileResolutionAndOrientationAreCopied() throws Exception {
+        BufferedImage image = rgbImage(BufferedImage.TYPE_3BYTE_BGR);
+        byte[] profile = new byte[301];
+        new Random(3).nextBytes(profile);
+        Path tiff = tmpFolder.resolve("tagged.tif");
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("tiff").next();
+        try (ImageOutputStream out = ImageIO.createImageOutputStream(tiff.toFile())) {
+            writer.setOutput(out);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionType("LZW");
+            TIFFDirectory directory = TIFFDirectory.createFromMetadata(writer.getDefaultImageMetadata(
+                    ImageTypeSpecifier.createFromRenderedImage(image), param));
+            BaselineTIFFTagSet tags = BaselineTIFFTagSet.getInstance();
+            directory.addTIFFField(new TIFFField(tags.getTag(BaselineTIFFTagSet.TAG_ORIENTATION), 8));
+            directory.addTIFFField(new TIFFField(tags.getTag(BaselineTIFFTagSet.TAG_X_RESOLUTION),
+                    TIFFTag.TIFF_RATIONAL, 1, new long[][] {{600, 1}}));
+            directory.addTIFFField(new TIFFField(tags.getTag(BaselineTIFFTagSet.TAG_Y_RESOLUTION),
+                    TIFFTag.TIFF_RATIONAL, 1, new long[][] {{1200, 2}}));
+            directory.addTIFFField(new TIFFField(tags.getTag(BaselineTIFFTagSet.TAG_RESOLUTION_UNIT),
+                    BaselineTIFFTagSet.RESOLUTION_UNIT_CENTIMETER));
+            directory.addTIFFField(new TIFFField(new TIFFTag("ICCProfile", 34675, 1 << TIFFTag.TIFF_UNDEFINED),
+                    TIFFTag.TIFF_UNDEFINED, profile.length, profile));
+            writer.write(null, new IIOImage(image, null, directory.getAsMetadata()), param);
+        } finally {
+            writer.dispose();
+        }
+        assertEquals(".tif", TiffStripDecoder.outputExtension(tiff.toString()));
+        Path decoded = tmpFolder.resolve("decoded.tif");
+
+        TiffStripDecoder.decode(tiff.toString(), decoded);
+
+        try (FileChannel channel = FileChannel.open(decoded, StandardOpenOption.READ)) {
+            TiffIfdReader reader = new TiffIfdReader(channel);
+            TiffIfdReader.Ifd ifd = reader.readFirstIfd();
+            assertEquals(1, reader.getLong(ifd, TiffIfdReader.TAG_COMPRESSION, 0));
+            assertEquals(8, reader.getLong(ifd, TiffIfdReader.TAG_ORIENTATION, 1));
+            assertEquals(3, reader.getLong(ifd, TiffIfdReader.TAG_RESOLUTION_UNIT, 0));
+            ByteBuffer yResolution = ByteBuffer.wrap(reader.getBytes(ifd.entries()
+                    .get(TiffIfdReader.TAG_Y_RESOLUTION))).order(reader.getByteOrder());
+            assertEquals(1200, yResolution.getInt(0));
+            assertEquals(2, yResolution.getInt(4));
+            assertArrayEquals(profile, reader.getBytes(ifd.entries().get(TiffIfdReader.TAG_ICC_PROFILE)));
+        }
+        Raster expected = ImageIO.read(tiff.toFile()).getRaster();
+        Raster actual = ImageIO.read(decoded.toFile()).getRaster();
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                for (int c = 0; c < 3; c++) {
+                    assertEquals(expected.getSample(x, y, c), actual.getSample(x, y, c));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testDisabled() throws Exception {
+        Path tiff = write(rgbImage(BufferedImage.TYPE_3BYTE_BGR), "LZW", false);
+        assertEquals(".ppm", TiffStripDecoder.outputExtension(tiff.toString()));
+
+        System.setProperty("jp24u.tiff.decode", "false");
+        assertNull(TiffStripDecoder.outputExtension(tiff.toString()));
+    }
+
+    private BufferedImage rgbImage(int type) {
+        // not a multiple of the tile size, so edge tiles are padded
+        BufferedImage image = new BufferedImage(150, 90, type);
+        Random random = new Random(1);
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                // runs for PackBits and LZW to compress, noise to keep them honest
+                int value = x / 7 * 20 + (random.nextInt(10) == 0 ? random.nextInt(256) : 0);
+                image.setRGB(x, y, 0xFF000000 | (value & 0xFF) << 16 | (y & 0xFF) << 8 | (x + y) & 0xFF);
+            }
+        }
+        return image;
+    }
+
+    private void assertDecoded(BufferedImage image, String compression, boolean tiled) throws Exception {
+        Path tiff = write(image, compression, tiled);
+        boolean gray = image.getRaster().getNumBands() == 1;
+        String extension = TiffStripDecoder.outputExtension(tiff.toString());
+        assertEquals(gray ? ".pgm" : ".ppm", extension);
+        Path pnm = tmpFolder.resolve("decoded" + extension);
+
+        TiffStripDecoder.decode(tiff.toString(), pnm);
+
+        Raster raster = ImageIO.read(tiff.toFile()).getRaster();
+        int channels = gray ? 1 : 3;
+        int bytesPerSample = raster.getSampleModel().getSampleSize(0) > 8 ? 2 : 1;
+        byte[] decoded = Files.readAllBytes(pnm);
+        String header = (gray ? "P5" : "P6") + "\n" + image.getWidth() + " " + image.getHeight() + "\n"
+                + (bytesPerSample == 2 ? 65535 : 255) + "\n";
+        assertEquals(header, new String(decoded, 0, header.length(), StandardCharsets.US_ASCII));
+        assertEquals(header.length() + image.getWidth() * image.getHeight() * channels * bytesPerSample,
+                decoded.length);
+        ByteBuffer samples = ByteBuffer.wrap(decoded, header.length(), decoded.length - header.length()).slice();
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                for (int c = 0; c < channels; c++) {
+                    int index = (y * image.getWidth() + x) * channels + c;
+                    int value = bytesPerSample == 2 ? samples.getShort(index * 2) & 0xFFFF : samples.get(index) & 0xFF;
+                    assertEquals(raster.getSample(x, y, c), value, "sample " + c + " at " + x + "," + y);
+                }
+            }
+        }
+    }
+
+    private Path write(BufferedImage image, String compression, boolean tiled) throws Exception {
+        Path tiff = tmpFolder.resolve(compression + (tiled ? "-tiled" : "") + ".tif");
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("tiff").next();
+        try (ImageOutputStream out = ImageIO.createImageOutputStream(tiff.toFile())) {
+            writer.setOutput(out);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionType(compression);
+            if (tiled) {
+                param.setTilingMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setTiling(64, 32, 0, 0);
+            }
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return tiff;
+    }
+
+    /**
+     * Write a little endian 8 bit gray TIFF with a single strip, extra entries are {tag, type, value}
+     */
+    private Path writeTiff(Path tiff, int width, int height, byte[] strip, int compression, int predictor,
+                           int[]... extraEntries) throws Exception {
+        List<int[]> entries = new ArrayList<>(List.of(new int[][] {
+                {256, 3, width}, {257, 3, height}, {258, 3, 8}, {259, 3, compression}, {262, 3, 1},
+                {273, 4, 8}, {277, 3, 1}, {278, 3, height}, {279, 4, strip.length}, {317, 3, predictor}}));
+        entries.addAll(List.of(extraEntries));
+        entries.sort(Comparator.comparingInt(entry -> entry[0]));
+        int ifdOffset = 8 + strip.length;
+        ByteBuffer buffer = ByteBuffer.allocate(ifdOffset + 2 + entries.size() * 12 + 4)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put((byte) 'I').put((byte) 'I').putShort((short) 42).putInt(ifdOffset).put(strip);
+        buffer.putShort((short) entries.size());
+        for (int[] entry : entries) {
+            buffer.putShort((short) entry[0]).putShort((short) entry[1]).putInt(1);
+            if (entry[1] == 3) {
+                buffer.putShort((short) entry[2]).putShort((short) 0);
+            } else {
+                buffer.putInt(entry[2]);
+            }
+        }
+        buffer.putInt(0);
+        return Files.write(tiff, buffer.array());
+    }
+}
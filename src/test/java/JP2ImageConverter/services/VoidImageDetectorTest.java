@@ -0,0 +1,132 @@
+package JP2ImageConverter.services;
+
+import JP2ImageConverter.util.VoidImageDetector;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class VoidImageDetectorTest {
+    @TempDir
+    public Path tmpFolder;
+
+    @AfterEach
+    public void tearDown() {
+        System.clearProperty("jp24u.void.maxVariance");
+        System.clearProperty("jp24u.void.detect");
+    }
+
+    @Test
+    public void testDetectionIsOptIn() throws Exception {
+        assertFalse(VoidImageDetector.isEnabled());
+
+        System.setProperty("jp24u.void.detect", "true");
+        assertTrue(VoidImageDetector.isEnabled());
+    }
+
+    @Test
+    public void testBlankPgmIsVoid() throws Exception {
+        Path pgm = writePgm(tmpFolder.resolve("blank.pgm"), 2000, 1500, new Random(1), 1);
+
+        var sample = VoidImageDetector.sample(pgm.toString());
+
+        assertTrue(sample.isVoid());
+        assertEquals(1, sample.channels());
+        // decimated to at most 512 pixels on the long side
+        assertTrue(sample.pixels() <= 512 * 512);
+    }
+
+    @Test
+    public void testNoisyPgmIsNotVoid() throws Exception {
+        Path pgm = writePgm(tmpFolder.resolve("noisy.pgm"), 600, 400, new Random(1), 256);
+
+        var sample = VoidImageDetector.sample(pgm.toString());
+
+        assertFalse(sample.isVoid());
+        assertTrue(sample.entropy() > 7);
+    }
+
+    @Test
+    public void testVarianceThreshold() throws Exception {
+        Path pgm = writePgm(tmpFolder.resolve("faint.pgm"), 300, 300, new Random(1), 8);
+        var sample = VoidImageDetector.sample(pgm.toString());
+        System.setProperty("jp24u.void.maxVariance", "100");
+        assertFalse(sample.isVoid());
+
+        System.setProperty("jp24u.void.maxEntropy", "4");
+        try {
+            assertTrue(sample.isVoid());
+        } finally {
+            System.clearProperty("jp24u.void.maxEntropy");
+        }
+    }
+
+    @Test
+    public void testImageIOSample() throws Exception {
+        BufferedImage blank = new BufferedImage(1000, 800, BufferedImage.TYPE_BYTE_GRAY);
+        Path png = tmpFolder.resolve("blank.png");
+        ImageIO.write(blank, "png", png.toFile());
+
+        assertTrue(VoidImageDetector.sample(png.toString()).isVoid());
+        assertFalse(VoidImageDetector.sample("src/test/resources/IMG_2377.jpeg").isVoid());
+        assertNull(VoidImageDetector.sample("src/test/resources/lorem_ipsum.txt"));
+    }
+
+    @Test
+    public void testThinStrokeBetweenSamplesIsNotUniform() throws Exception {
+        // sampled every 4th row and column, the stroke is on row 2
+        Path pgm = writePgm(tmpFolder.resolve("stroke.pgm"), 2000, 1500, new Random(1), 1);
+        try (FileChannel channel = FileChannel.open(pgm, StandardOpenOption.WRITE)) {
+            long row = Files.size(pgm) - 2000L * 1500 + 2 * 2000L;
+            channel.write(ByteBuffer.wrap(new byte[2000]), row);
+        }
+
+        assertTrue(VoidImageDetector.sample(pgm.toString()).isVoid());
+        assertFalse(VoidImageDetector.isUniform(pgm.toString()));
+        Path blank = writePgm(tmpFolder.resolve("blank.pgm"), 2000, 1500, new Random(1), 1);
+        assertTrue(VoidImageDetector.isUniform(blank.toString()));
+    }
+
+    @Test
+    public void testImageIOUniformInBands() throws Exception {
+        System.setProperty("jp24u.void.bandPixels", "10000");
+        try {
+            BufferedImage image = new BufferedImage(1000, 800, BufferedImage.TYPE_BYTE_GRAY);
+            Path blank = tmpFolder.resolve("blank.png");
+            ImageIO.write(image, "png", blank.toFile());
+            assertTrue(VoidImageDetector.isUniform(blank.toString()));
+
+            image.getRaster().setSample(501, 799, 0, 255);
+            Path speck = tmpFolder.resolve("speck.png");
+            ImageIO.write(image, "png", speck.toFile());
+            assertFalse(VoidImageDetector.isUniform(speck.toString()));
+            assertFalse(VoidImageDetector.isUniform("src/test/resources/lorem_ipsum.txt"));
+        } finally {
+            System.clearProperty("jp24u.void.bandPixels");
+        }
+    }
+
+    private Path writePgm(Path path, int width, int height, Random random, int levels) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(("P5\n# test\n" + width + " " + height + "\n255\n").getBytes(StandardCharsets.US_ASCII));
+        for (int i = 0; i < width * height; i++) {
+            out.write(128 + random.nextInt(levels) - levels / 2);
+        }
+        return Files.write(path, out.toByteArray());
+    }
+}